@@ -0,0 +1,78 @@
+package br.ufal.ic.p2.jackut.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command-line options of the benchmark tools, given as {@code --name=value}.
+ */
+public class BenchOptions {
+
+    /**
+     * Option values by name.
+     */
+    private final Map<String, String> values = new HashMap<>();
+
+    /**
+     * Parses the command-line arguments.
+     *
+     * @param args The arguments.
+     * @throws IllegalArgumentException If an argument is not of the form {@code --name=value}.
+     */
+    public BenchOptions(String[] args) {
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Options look like --name=value: " + arg);
+            }
+            values.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+    }
+
+    /**
+     * Gets a text option.
+     *
+     * @param name         The option name.
+     * @param defaultValue The value if the option is absent, possibly null.
+     * @return The value.
+     */
+    public String get(String name, String defaultValue) {
+        return values.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * Gets an integer option.
+     *
+     * @param name         The option name.
+     * @param defaultValue The value if the option is absent.
+     * @return The value.
+     */
+    public int getInt(String name, int defaultValue) {
+        String value = values.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * Gets a long option.
+     *
+     * @param name         The option name.
+     * @param defaultValue The value if the option is absent.
+     * @return The value.
+     */
+    public long getLong(String name, long defaultValue) {
+        String value = values.get(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    /**
+     * Gets a decimal option.
+     *
+     * @param name         The option name.
+     * @param defaultValue The value if the option is absent.
+     * @return The value.
+     */
+    public double getDouble(String name, double defaultValue) {
+        String value = values.get(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+}
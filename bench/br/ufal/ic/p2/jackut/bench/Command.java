@@ -0,0 +1,192 @@
+package br.ufal.ic.p2.jackut.bench;
+
+import br.ufal.ic.p2.jackut.Facade;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One call to the {@link Facade} in a generated workload.
+ *
+ * Commands name users by login: when an operation takes a session id, its first value is the
+ * login of the user acting, and the session that user opened is looked up when the command runs.
+ * This keeps workloads independent of the random session ids, so the same workload can be
+ * replayed any number of times or written as an EasyAccept script.
+ */
+public class Command {
+
+    /**
+     * Parameter names of each supported operation, as used in the EasyAccept scripts.
+     */
+    private static final Map<String, String[]> PARAMETERS = new HashMap<>();
+
+    static {
+        PARAMETERS.put("criarUsuario", new String[] {"login", "senha", "nome"});
+        PARAMETERS.put("abrirSessao", new String[] {"login", "senha"});
+        PARAMETERS.put("editarPerfil", new String[] {"id", "atributo", "valor"});
+        PARAMETERS.put("getAtributoUsuario", new String[] {"login", "atributo"});
+        PARAMETERS.put("adicionarAmigo", new String[] {"id", "amigo"});
+        PARAMETERS.put("ehAmigo", new String[] {"login", "amigo"});
+        PARAMETERS.put("getAmigos", new String[] {"login"});
+        PARAMETERS.put("enviarRecado", new String[] {"id", "destinatario", "recado"});
+        PARAMETERS.put("lerRecado", new String[] {"id"});
+        PARAMETERS.put("criarComunidade", new String[] {"sessao", "nome", "descricao"});
+        PARAMETERS.put("adicionarComunidade", new String[] {"sessao", "nome"});
+        PARAMETERS.put("getDescricaoComunidade", new String[] {"nome"});
+        PARAMETERS.put("getDonoComunidade", new String[] {"nome"});
+        PARAMETERS.put("getMembrosComunidade", new String[] {"nome"});
+        PARAMETERS.put("getComunidades", new String[] {"login"});
+        PARAMETERS.put("enviarMensagem", new String[] {"id", "comunidade", "mensagem"});
+        PARAMETERS.put("lerMensagem", new String[] {"id"});
+        PARAMETERS.put("adicionarIdolo", new String[] {"id", "idolo"});
+        PARAMETERS.put("ehFa", new String[] {"login", "idolo"});
+        PARAMETERS.put("getFas", new String[] {"login"});
+        PARAMETERS.put("adicionarPaquera", new String[] {"id", "paquera"});
+        PARAMETERS.put("ehPaquera", new String[] {"id", "paquera"});
+        PARAMETERS.put("getPaqueras", new String[] {"id"});
+        PARAMETERS.put("adicionarInimigo", new String[] {"id", "inimigo"});
+        PARAMETERS.put("removerUsuario", new String[] {"id"});
+    }
+
+    /**
+     * The facade operation.
+     */
+    private final String operation;
+
+    /**
+     * The argument values; for operations that take a session, the first one is the acting login.
+     */
+    private final String[] values;
+
+    /**
+     * Creates a command.
+     *
+     * @param operation The facade operation.
+     * @param values    The argument values, with the acting login in place of a session id.
+     * @throws IllegalArgumentException If the operation is unknown or the values don't match it.
+     */
+    public Command(String operation, String... values) {
+        String[] parameters = PARAMETERS.get(operation);
+        if (parameters == null || parameters.length != values.length) {
+            throw new IllegalArgumentException("Bad command: " + operation);
+        }
+        this.operation = operation;
+        this.values = values;
+    }
+
+    /**
+     * Gets the facade operation.
+     *
+     * @return The operation name.
+     */
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * Gets the login of the user the command acts for or about.
+     *
+     * @return The login, or a community name for community queries.
+     */
+    public String getActor() {
+        return values[0];
+    }
+
+    /**
+     * Checks whether the first argument is a session id.
+     *
+     * @return true if the command acts through the session of {@link #getActor()}.
+     */
+    private boolean takesSession() {
+        String first = PARAMETERS.get(operation)[0];
+        return first.equals("id") || first.equals("sessao");
+    }
+
+    /**
+     * Runs the command.
+     *
+     * @param facade   The system.
+     * @param sessions Session id of each logged-in login; updated by {@code abrirSessao}.
+     * @return The value returned by the facade, or null for operations that return nothing.
+     * @throws Exception Any exception thrown by the facade.
+     */
+    public Object execute(Facade facade, Map<String, String> sessions) throws Exception {
+        String[] v = values;
+        String id = takesSession() ? sessions.getOrDefault(v[0], "") : null;
+        switch (operation) {
+            case "criarUsuario": facade.criarUsuario(v[0], v[1], v[2]); return null;
+            case "abrirSessao": {
+                String session = facade.abrirSessao(v[0], v[1]);
+                sessions.put(v[0], session);
+                return session;
+            }
+            case "editarPerfil": facade.editarPerfil(id, v[1], v[2]); return null;
+            case "getAtributoUsuario": return facade.getAtributoUsuario(v[0], v[1]);
+            case "adicionarAmigo": facade.adicionarAmigo(id, v[1]); return null;
+            case "ehAmigo": return facade.ehAmigo(v[0], v[1]);
+            case "getAmigos": return facade.getAmigos(v[0]);
+            case "enviarRecado": facade.enviarRecado(id, v[1], v[2]); return null;
+            case "lerRecado": return facade.lerRecado(id);
+            case "criarComunidade": facade.criarComunidade(id, v[1], v[2]); return null;
+            case "adicionarComunidade": facade.adicionarComunidade(id, v[1]); return null;
+            case "getDescricaoComunidade": return facade.getDescricaoComunidade(v[0]);
+            case "getDonoComunidade": return facade.getDonoComunidade(v[0]);
+            case "getMembrosComunidade": return facade.getMembrosComunidade(v[0]);
+            case "getComunidades": return facade.getComunidades(v[0]);
+            case "enviarMensagem": facade.enviarMensagem(id, v[1], v[2]); return null;
+            case "lerMensagem": return facade.lerMensagem(id);
+            case "adicionarIdolo": facade.adicionarIdolo(id, v[1]); return null;
+            case "ehFa": return facade.ehFa(v[0], v[1]);
+            case "getFas": return facade.getFas(v[0]);
+            case "adicionarPaquera": facade.adicionarPaquera(id, v[1]); return null;
+            case "ehPaquera": return facade.ehPaquera(id, v[1]);
+            case "getPaqueras": return facade.getPaqueras(id);
+            case "adicionarInimigo": facade.adicionarInimigo(id, v[1]); return null;
+            case "removerUsuario": facade.removerUsuario(id); return null;
+            default: throw new IllegalStateException(operation);
+        }
+    }
+
+    /**
+     * Writes the command as an EasyAccept call, with sessions referenced through script
+     * variables named after the login ({@code ${s<login>}}).
+     *
+     * @return The call, without {@code expect} or assignment prefix.
+     */
+    public String toScript() {
+        String[] parameters = PARAMETERS.get(operation);
+        StringBuilder line = new StringBuilder(operation);
+        for (int i = 0; i < values.length; i++) {
+            line.append(' ').append(parameters[i]).append('=');
+            if (i == 0 && takesSession()) {
+                line.append("${").append(sessionVariable(values[0])).append('}');
+            } else {
+                line.append(quote(values[i]));
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * Gets the name of the script variable holding a login's session id.
+     *
+     * @param login The login.
+     * @return The variable name.
+     */
+    public static String sessionVariable(String login) {
+        return "s" + login;
+    }
+
+    /**
+     * Quotes a value for an EasyAccept script if it is empty or has spaces.
+     *
+     * @param value The value, without double quotes.
+     * @return The value as written in the script.
+     */
+    public static String quote(String value) {
+        if (value.isEmpty() || value.indexOf(' ') >= 0 || value.indexOf('=') >= 0) {
+            return "\"" + value + "\"";
+        }
+        return value;
+    }
+}
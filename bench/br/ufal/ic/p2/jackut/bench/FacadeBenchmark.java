@@ -0,0 +1,427 @@
+package br.ufal.ic.p2.jackut.bench;
+
+import br.ufal.ic.p2.jackut.Facade;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmark of every {@link Facade} operation on a populated system.
+ *
+ * For each population size, users are created with a power-law friend graph (friend requests
+ * go to users drawn from a {@link ZipfSampler}, so a few users are very popular), and a share of
+ * them join communities whose sizes are skewed the same way. Each operation is then run on the
+ * given number of threads, first to warm up and then measured, and the benchmark reports its
+ * throughput, latency percentiles, bytes allocated per call by the calling thread, and the
+ * exceptions it threw. Exceptions are part of normal traffic (for example reading an empty inbox),
+ * so they are counted and not treated as failures.
+ *
+ * Operations run in a fixed order, each on the state left by the previous ones; user removal
+ * runs last and only deletes users that were set aside for it.
+ *
+ * Usage: {@code java br.ufal.ic.p2.jackut.bench.FacadeBenchmark [--option=value]...}, with the options
+ * <ul>
+ *     <li>{@code --users}: comma-separated population sizes (default {@code 10000})</li>
+ *     <li>{@code --threads}: number of threads (default: number of processors)</li>
+ *     <li>{@code --seconds}: measured seconds per operation (default {@code 2})</li>
+ *     <li>{@code --warmup}: warm-up seconds per operation (default {@code 1})</li>
+ *     <li>{@code --friends}: friend requests sent by each user (default {@code 4})</li>
+ *     <li>{@code --exponent}: exponent of the popularity distribution (default {@code 1.0})</li>
+ *     <li>{@code --ops}: comma-separated operations to run (default: all)</li>
+ * </ul>
+ * The system keeps its files in the working directory and is erased before each size, so the
+ * benchmark must run in a scratch directory.
+ */
+public class FacadeBenchmark {
+
+    /**
+     * Password of every benchmark user.
+     */
+    private static final String PASSWORD = "p";
+
+    /**
+     * One benchmarked operation.
+     */
+    private interface Operation {
+        /**
+         * Runs the operation once.
+         *
+         * @param random The calling thread's random source.
+         * @return false if the operation has nothing left to work on.
+         * @throws Exception Any exception thrown by the facade.
+         */
+        boolean run(Random random) throws Exception;
+    }
+
+    /**
+     * The system under test.
+     */
+    private final Facade facade;
+
+    /**
+     * Number of users created by {@link #populate()}.
+     */
+    private final int users;
+
+    /**
+     * Number of users used by the operations; the others are set aside for removal.
+     */
+    private final int active;
+
+    /**
+     * Login of each user.
+     */
+    private final String[] logins;
+
+    /**
+     * An open session of each user. Slots are replaced by the session benchmark; any session
+     * stored there is valid, so the unsynchronized writes are harmless.
+     */
+    private final String[] sessions;
+
+    /**
+     * Popularity of the active users.
+     */
+    private final ZipfSampler popularity;
+
+    /**
+     * Names of the communities created by {@link #populate()}.
+     */
+    private final String[] communities;
+
+    /**
+     * Popularity of the communities.
+     */
+    private final ZipfSampler communityPopularity;
+
+    /**
+     * Number of users that joined a community; they are the users with the lowest indexes.
+     */
+    private final int members;
+
+    /**
+     * Community joined by each member.
+     */
+    private final int[] communityOf;
+
+    /**
+     * Friend requests sent by each user during {@link #populate()}.
+     */
+    private final int friends;
+
+    /**
+     * Number of users created by the user creation benchmark.
+     */
+    private final AtomicInteger createdUsers = new AtomicInteger();
+
+    /**
+     * Number of communities created by the community creation benchmark.
+     */
+    private final AtomicInteger createdCommunities = new AtomicInteger();
+
+    /**
+     * Number of users removed by the removal benchmark.
+     */
+    private final AtomicInteger removedUsers = new AtomicInteger();
+
+    /**
+     * Index after the last user the removal benchmark may remove in the current run. Half of the
+     * users set aside for removal are left to the warm-up, the other half to the measured run.
+     */
+    private volatile int removalEnd;
+
+    /**
+     * Creates a benchmark for a population size.
+     *
+     * @param facade   The system under test.
+     * @param users    Number of users.
+     * @param friends  Friend requests sent by each user.
+     * @param exponent Exponent of the popularity distribution.
+     */
+    private FacadeBenchmark(Facade facade, int users, int friends, double exponent) {
+        this.facade = facade;
+        this.users = users;
+        this.active = users - Math.max(1, users / 10);
+        this.logins = new String[users];
+        this.sessions = new String[users];
+        this.popularity = new ZipfSampler(active, exponent);
+        this.communities = new String[Math.max(1, users / 1000)];
+        this.communityPopularity = new ZipfSampler(communities.length, exponent);
+        this.members = Math.max(communities.length, Math.min(active, 10_000));
+        this.communityOf = new int[members];
+        this.friends = friends;
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Options, as described in the class documentation.
+     * @throws Exception If populating the system fails.
+     */
+    public static void main(String[] args) throws Exception {
+        BenchOptions options = new BenchOptions(args);
+        int threads = options.getInt("threads", Runtime.getRuntime().availableProcessors());
+        long seconds = options.getLong("seconds", 2);
+        long warmup = options.getLong("warmup", 1);
+        int friends = options.getInt("friends", 4);
+        double exponent = options.getDouble("exponent", 1.0);
+        String selected = options.get("ops", null);
+
+        // Compacting the journal rewrites the whole snapshot, which would dominate the
+        // population of large systems; it can still be enabled with -Djackut.journal.compaction.
+        if (System.getProperty("jackut.journal.compaction") == null) {
+            System.setProperty("jackut.journal.compaction", String.valueOf(Integer.MAX_VALUE));
+        }
+
+        Facade facade = new Facade();
+        for (String size : options.get("users", "10000").split(",")) {
+            facade.zerarSistema();
+            FacadeBenchmark benchmark = new FacadeBenchmark(facade, Integer.parseInt(size.trim()), friends, exponent);
+            long start = System.nanoTime();
+            benchmark.populate();
+            System.out.printf("%nusers=%d friends/user=%d communities=%d members=%d threads=%d (populated in %.1f s)%n",
+                    benchmark.users, friends, benchmark.communities.length, benchmark.members, threads,
+                    (System.nanoTime() - start) / 1e9);
+            OperationStats.printHeader();
+
+            for (Map.Entry<String, Operation> entry : benchmark.operations().entrySet()) {
+                if (selected != null && !("," + selected + ",").contains("," + entry.getKey() + ",")) {
+                    continue;
+                }
+                benchmark.removalEnd = benchmark.active + (benchmark.users - benchmark.active) / 2;
+                run(entry.getValue(), threads, warmup * 1_000_000_000L);
+                benchmark.removalEnd = benchmark.users;
+                benchmark.removedUsers.set(Math.max(benchmark.removedUsers.get(), (benchmark.users - benchmark.active) / 2));
+                long nanos = seconds * 1_000_000_000L;
+                long begin = System.nanoTime();
+                OperationStats stats = run(entry.getValue(), threads, nanos);
+                stats.print(entry.getKey(), System.nanoTime() - begin);
+            }
+        }
+        facade.zerarSistema();
+        System.exit(0);
+    }
+
+    /**
+     * Creates the users, their sessions, the friend graph and the communities.
+     *
+     * @throws Exception If the facade rejects a setup call.
+     */
+    private void populate() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < users; i++) {
+            logins[i] = "u" + i;
+            facade.criarUsuario(logins[i], PASSWORD, "User " + i);
+            sessions[i] = facade.abrirSessao(logins[i], PASSWORD);
+        }
+        for (int i = 0; i < active; i++) {
+            for (int f = 0; f < friends; f++) {
+                try {
+                    facade.adicionarAmigo(sessions[i], logins[other(i, random)]);
+                } catch (Exception e) {
+                    // Repeated or already accepted requests are expected with a skewed graph.
+                }
+            }
+        }
+        for (int c = 0; c < communities.length; c++) {
+            communities[c] = "community" + c;
+            facade.criarComunidade(sessions[c], communities[c], "Community " + c);
+            communityOf[c] = c;
+        }
+        for (int m = communities.length; m < members; m++) {
+            communityOf[m] = communityPopularity.sample(random);
+            facade.adicionarComunidade(sessions[m], communities[communityOf[m]]);
+        }
+    }
+
+    /**
+     * Builds the benchmarked operations, in the order they run.
+     *
+     * @return The operations by facade method name.
+     */
+    private Map<String, Operation> operations() {
+        Map<String, Operation> operations = new LinkedHashMap<>();
+        operations.put("criarUsuario", r -> {
+            facade.criarUsuario("new" + createdUsers.incrementAndGet(), PASSWORD, "New user");
+            return true;
+        });
+        operations.put("abrirSessao", r -> {
+            int user = r.nextInt(active);
+            sessions[user] = facade.abrirSessao(logins[user], PASSWORD);
+            return true;
+        });
+        operations.put("editarPerfil", r -> {
+            facade.editarPerfil(sessions[r.nextInt(active)], "cidade", "Maceio");
+            return true;
+        });
+        operations.put("getAtributoUsuario", r -> {
+            facade.getAtributoUsuario(logins[popularity.sample(r)], "nome");
+            return true;
+        });
+        operations.put("adicionarAmigo", r -> {
+            int user = r.nextInt(active);
+            facade.adicionarAmigo(sessions[user], logins[other(user, r)]);
+            return true;
+        });
+        operations.put("ehAmigo", r -> {
+            int user = r.nextInt(active);
+            facade.ehAmigo(logins[user], logins[other(user, r)]);
+            return true;
+        });
+        operations.put("getAmigos", r -> {
+            facade.getAmigos(logins[popularity.sample(r)]);
+            return true;
+        });
+        operations.put("enviarRecado", r -> {
+            int user = r.nextInt(active);
+            facade.enviarRecado(sessions[user], logins[other(user, r)], "Oi!");
+            return true;
+        });
+        operations.put("lerRecado", r -> {
+            facade.lerRecado(sessions[popularity.sample(r)]);
+            return true;
+        });
+        operations.put("enviarMensagem", r -> {
+            int member = r.nextInt(members);
+            facade.enviarMensagem(sessions[member], communities[communityOf[member]], "Oi, comunidade!");
+            return true;
+        });
+        operations.put("lerMensagem", r -> {
+            facade.lerMensagem(sessions[r.nextInt(members)]);
+            return true;
+        });
+        operations.put("getMembrosComunidade", r -> {
+            facade.getMembrosComunidade(communities[communityPopularity.sample(r)]);
+            return true;
+        });
+        operations.put("getComunidades", r -> {
+            facade.getComunidades(logins[r.nextInt(members)]);
+            return true;
+        });
+        operations.put("getDescricaoComunidade", r -> {
+            facade.getDescricaoComunidade(communities[communityPopularity.sample(r)]);
+            return true;
+        });
+        operations.put("criarComunidade", r -> {
+            facade.criarComunidade(sessions[r.nextInt(active)], "new" + createdCommunities.incrementAndGet(), "New community");
+            return true;
+        });
+        operations.put("adicionarComunidade", r -> {
+            facade.adicionarComunidade(sessions[r.nextInt(active)], communities[communityPopularity.sample(r)]);
+            return true;
+        });
+        operations.put("adicionarIdolo", r -> {
+            int user = r.nextInt(active);
+            facade.adicionarIdolo(sessions[user], logins[other(user, r)]);
+            return true;
+        });
+        operations.put("ehFa", r -> {
+            int user = r.nextInt(active);
+            facade.ehFa(logins[user], logins[other(user, r)]);
+            return true;
+        });
+        operations.put("getFas", r -> {
+            facade.getFas(logins[popularity.sample(r)]);
+            return true;
+        });
+        operations.put("adicionarPaquera", r -> {
+            int user = r.nextInt(active);
+            facade.adicionarPaquera(sessions[user], logins[other(user, r)]);
+            return true;
+        });
+        operations.put("ehPaquera", r -> {
+            int user = r.nextInt(active);
+            facade.ehPaquera(sessions[user], logins[other(user, r)]);
+            return true;
+        });
+        operations.put("getPaqueras", r -> {
+            facade.getPaqueras(sessions[r.nextInt(active)]);
+            return true;
+        });
+        operations.put("adicionarInimigo", r -> {
+            int user = r.nextInt(active);
+            facade.adicionarInimigo(sessions[user], logins[other(user, r)]);
+            return true;
+        });
+        operations.put("removerUsuario", r -> {
+            int user = active + removedUsers.getAndIncrement();
+            if (user >= removalEnd) {
+                return false;
+            }
+            facade.removerUsuario(sessions[user]);
+            return true;
+        });
+        return operations;
+    }
+
+    /**
+     * Draws a popular user other than the given one.
+     *
+     * @param user   The user to avoid.
+     * @param random The random source.
+     * @return The index of another active user, or the same one if it is the only one.
+     */
+    private int other(int user, Random random) {
+        for (int attempt = 0; attempt < 8; attempt++) {
+            int other = popularity.sample(random);
+            if (other != user) {
+                return other;
+            }
+        }
+        return (user + 1) % active;
+    }
+
+    /**
+     * Runs an operation on several threads for a fixed time.
+     *
+     * @param operation The operation.
+     * @param threads   The number of threads.
+     * @param nanos     How long to run, in nanoseconds.
+     * @return The merged measurements of every thread.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    private static OperationStats run(Operation operation, int threads, long nanos) throws InterruptedException {
+        OperationStats total = new OperationStats();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                OperationStats result = new OperationStats();
+                try {
+                    start.await();
+                    Random random = ThreadLocalRandom.current();
+                    long allocatedBefore = OperationStats.threadAllocatedBytes();
+                    long deadline = System.nanoTime() + nanos;
+                    boolean more = true;
+                    for (long now = System.nanoTime(); more && now < deadline; ) {
+                        Exception error = null;
+                        try {
+                            more = operation.run(random);
+                        } catch (Exception e) {
+                            error = e;
+                        }
+                        long end = System.nanoTime();
+                        if (more) {
+                            result.record(end - now, error);
+                        }
+                        now = end;
+                    }
+                    long allocatedAfter = OperationStats.threadAllocatedBytes();
+                    result.addAllocated(allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    total.add(result);
+                    done.countDown();
+                }
+            }, "bench-" + t).start();
+        }
+        start.countDown();
+        done.await();
+        return total;
+    }
+}
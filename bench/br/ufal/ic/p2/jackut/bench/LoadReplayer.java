@@ -0,0 +1,147 @@
+package br.ufal.ic.p2.jackut.bench;
+
+import br.ufal.ic.p2.jackut.Facade;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Replays a generated {@link Workload} against the {@link Facade} from several threads and
+ * reports the latency of each operation, phase by phase.
+ *
+ * Commands are split between the threads by the user they act for, so each user's commands run
+ * in order while different users run concurrently, as they would with real clients. Exceptions
+ * are part of normal traffic (for example reading an empty inbox) and are counted, not treated as
+ * failures. The bytes each call allocates are measured on the calling thread. After the traffic,
+ * the time {@code encerrarSistema} takes to save the system is reported.
+ *
+ * Usage: {@code java br.ufal.ic.p2.jackut.bench.LoadReplayer [--option=value]...}, with the
+ * options of {@link WorkloadGenerator} and
+ * <ul>
+ *     <li>{@code --threads}: number of threads (default: number of processors)</li>
+ * </ul>
+ * The system keeps its files in the working directory and is erased first, so the replayer must
+ * run in a scratch directory.
+ */
+public class LoadReplayer {
+
+    /**
+     * The system under test.
+     */
+    private final Facade facade;
+
+    /**
+     * Number of threads.
+     */
+    private final int threads;
+
+    /**
+     * Session id of each logged-in login.
+     */
+    private final Map<String, String> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a replayer.
+     *
+     * @param facade  The system, already erased.
+     * @param threads Number of threads.
+     */
+    public LoadReplayer(Facade facade, int threads) {
+        this.facade = facade;
+        this.threads = threads;
+    }
+
+    /**
+     * Runs the replayer.
+     *
+     * @param args Options, as described in the class comment.
+     * @throws Exception If a thread is interrupted.
+     */
+    public static void main(String[] args) throws Exception {
+        BenchOptions options = new BenchOptions(args);
+        int threads = options.getInt("threads", Runtime.getRuntime().availableProcessors());
+        if (System.getProperty("jackut.journal.compaction") == null) {
+            System.setProperty("jackut.journal.compaction", String.valueOf(Integer.MAX_VALUE));
+        }
+        Workload workload = new WorkloadGenerator(options).generate();
+        System.out.printf("%d commands on %d threads%n", workload.size(), threads);
+
+        Facade facade = new Facade();
+        facade.zerarSistema();
+        LoadReplayer replayer = new LoadReplayer(facade, threads);
+        replayer.replay("setup", workload.getSetup());
+        replayer.replay("relations", workload.getRelations());
+        replayer.replay("traffic", workload.getTraffic());
+
+        long begin = System.nanoTime();
+        facade.encerrarSistema();
+        System.out.printf("%nencerrarSistema: %.1f ms%n", (System.nanoTime() - begin) / 1e6);
+    }
+
+    /**
+     * Replays a phase and prints its measurements.
+     *
+     * @param phase    The phase name.
+     * @param commands The commands of the phase.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    public void replay(String phase, List<Command> commands) throws InterruptedException {
+        List<List<Command>> partitions = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (Command command : commands) {
+            partitions.get(Math.floorMod(command.getActor().hashCode(), threads)).add(command);
+        }
+
+        Map<String, OperationStats> total = new LinkedHashMap<>();
+        for (Command command : commands) {
+            total.computeIfAbsent(command.getOperation(), operation -> new OperationStats());
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (List<Command> partition : partitions) {
+            Thread worker = new Thread(() -> {
+                Map<String, OperationStats> stats = new LinkedHashMap<>();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (Command command : partition) {
+                    OperationStats operation = stats.computeIfAbsent(command.getOperation(), name -> new OperationStats());
+                    long allocatedBefore = OperationStats.threadAllocatedBytes();
+                    long before = System.nanoTime();
+                    Exception error = null;
+                    try {
+                        command.execute(facade, sessions);
+                    } catch (Exception e) {
+                        error = e;
+                    }
+                    long after = System.nanoTime();
+                    long allocatedAfter = OperationStats.threadAllocatedBytes();
+                    operation.record(after - before, error);
+                    operation.addAllocated(allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore);
+                }
+                stats.forEach((name, operation) -> total.get(name).add(operation));
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        System.out.printf("%n== %s: %d commands in %.1f ms%n", phase, commands.size(), elapsed / 1e6);
+        OperationStats.printHeader();
+        total.forEach((name, operation) -> operation.print(name, elapsed));
+    }
+}
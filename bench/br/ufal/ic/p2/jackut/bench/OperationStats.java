@@ -0,0 +1,117 @@
+package br.ufal.ic.p2.jackut.bench;
+
+import br.ufal.ic.p2.jackut.LatencyHistogram;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Measurements of one operation: call latencies, exceptions thrown and bytes allocated.
+ * Each thread fills its own instance, and they are merged with {@link #add(OperationStats)}.
+ */
+public class OperationStats {
+
+    /**
+     * Thread management bean, used to read the bytes allocated by each thread.
+     */
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Latency of every call.
+     */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Number of exceptions by exception class.
+     */
+    private final Map<String, Long> errors = new TreeMap<>();
+
+    /**
+     * Bytes allocated by the calling threads, or a negative number if the JVM cannot tell.
+     */
+    private long allocated;
+
+    /**
+     * Records a call.
+     *
+     * @param nanos The call latency in nanoseconds.
+     * @param error The exception thrown by the call, or null.
+     */
+    public void record(long nanos, Exception error) {
+        latency.record(nanos);
+        if (error != null) {
+            errors.merge(error.getClass().getSimpleName(), 1L, Long::sum);
+        }
+    }
+
+    /**
+     * Adds bytes allocated by a calling thread.
+     *
+     * @param bytes The byte count, or a negative number if the JVM cannot tell.
+     */
+    public void addAllocated(long bytes) {
+        allocated = allocated < 0 || bytes < 0 ? -1 : allocated + bytes;
+    }
+
+    /**
+     * Adds the measurements of another thread.
+     *
+     * @param other The other thread's measurements.
+     */
+    public synchronized void add(OperationStats other) {
+        latency.add(other.latency);
+        other.errors.forEach((name, count) -> errors.merge(name, count, Long::sum));
+        addAllocated(other.allocated);
+    }
+
+    /**
+     * Gets the number of recorded calls.
+     *
+     * @return The call count.
+     */
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    /**
+     * Prints the header of the table written by {@link #print}.
+     */
+    public static void printHeader() {
+        System.out.printf("%-22s %12s %9s %9s %9s %9s %9s %9s  %s%n",
+                "operation", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us", "B/op", "errors");
+    }
+
+    /**
+     * Prints the measurements as a table row.
+     *
+     * @param name    The operation name.
+     * @param elapsed The wall-clock time the calls were spread over, in nanoseconds.
+     */
+    public void print(String name, long elapsed) {
+        long calls = latency.getCount();
+        System.out.printf("%-22s %12.0f %9.1f %9.1f %9.1f %9.1f %9.1f %9s  %s%n",
+                name,
+                calls / (elapsed / 1e9),
+                latency.getPercentile(50) / 1e3,
+                latency.getPercentile(90) / 1e3,
+                latency.getPercentile(99) / 1e3,
+                latency.getPercentile(99.9) / 1e3,
+                latency.getMax() / 1e3,
+                allocated < 0 || calls == 0 ? "n/a" : String.valueOf(allocated / calls),
+                errors.isEmpty() ? "" : errors.toString());
+    }
+
+    /**
+     * Gets the number of bytes allocated so far by the current thread.
+     *
+     * @return The byte count, or -1 if the JVM does not track it.
+     */
+    public static long threadAllocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,94 @@
+package br.ufal.ic.p2.jackut.bench;
+
+import br.ufal.ic.p2.jackut.Facade;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a generated {@link Workload} as an EasyAccept script in the format of the
+ * {@code tests/usX_Y.txt} user stories, so large scenarios can be kept as regression tests.
+ *
+ * The workload is run once, in order, on a fresh system, and each command is written with the
+ * outcome it had: {@code expect} with the returned value, {@code expectError} with the message of
+ * the exception thrown, or the plain call. Sessions are kept in script variables named after the
+ * login. The script erases the system first and closes it at the end, and is written in
+ * ISO-8859-1 like the other scripts. Running it against a later version of the system checks
+ * that every outcome is unchanged.
+ *
+ * Usage: {@code java br.ufal.ic.p2.jackut.bench.ScriptExporter [--option=value]...}, with the
+ * options of {@link WorkloadGenerator} and
+ * <ul>
+ *     <li>{@code --out}: the script file (default {@code workload.txt})</li>
+ * </ul>
+ * Keep the workload small (a few hundred users) for scripts meant to be committed. The system
+ * keeps its files in the working directory and is erased first, so the exporter must run in a
+ * scratch directory.
+ */
+public class ScriptExporter {
+
+    /**
+     * Runs the exporter.
+     *
+     * @param args Options, as described in the class comment.
+     * @throws IOException If the script can't be written.
+     */
+    public static void main(String[] args) throws IOException {
+        BenchOptions options = new BenchOptions(args);
+        String out = options.get("out", "workload.txt");
+        Workload workload = new WorkloadGenerator(options).generate();
+
+        Facade facade = new Facade();
+        facade.zerarSistema();
+        Map<String, String> sessions = new HashMap<>();
+        try (PrintWriter script = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.ISO_8859_1))) {
+            script.println("# Cenario gerado por br.ufal.ic.p2.jackut.bench.ScriptExporter com as opcoes:");
+            script.println("# " + String.join(" ", args));
+            script.println();
+            script.println("zerarSistema");
+            write(script, "setup", workload.getSetup(), facade, sessions);
+            write(script, "relations", workload.getRelations(), facade, sessions);
+            write(script, "traffic", workload.getTraffic(), facade, sessions);
+            script.println();
+            script.println("encerrarSistema");
+            script.println("quit");
+        }
+        facade.zerarSistema();
+        System.out.printf("%d commands written to %s%n", workload.size(), out);
+    }
+
+    /**
+     * Runs the commands of a phase and writes them with their outcomes.
+     *
+     * @param script   The script.
+     * @param phase    The phase name, written as a comment.
+     * @param commands The commands.
+     * @param facade   The system.
+     * @param sessions Session id of each logged-in login.
+     */
+    private static void write(PrintWriter script, String phase, List<Command> commands, Facade facade, Map<String, String> sessions) {
+        script.println();
+        script.println("# " + phase);
+        for (Command command : commands) {
+            String call = command.toScript();
+            try {
+                Object result = command.execute(facade, sessions);
+                if (command.getOperation().equals("abrirSessao")) {
+                    script.println(Command.sessionVariable(command.getActor()) + "=" + call);
+                } else if (result != null) {
+                    script.println("expect " + Command.quote(result.toString()) + " " + call);
+                } else {
+                    script.println(call);
+                }
+            } catch (Exception e) {
+                script.println("expectError \"" + e.getMessage() + "\" " + call);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package br.ufal.ic.p2.jackut.bench;
+
+import br.ufal.ic.p2.jackut.Session;
+import br.ufal.ic.p2.jackut.SessionTable;
+import br.ufal.ic.p2.jackut.SessionToken;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Microbenchmark comparing the session token path with the one it replaced: tokens drawn with
+ * {@link UUID#randomUUID()} and looked up as strings in a {@link ConcurrentHashMap}, against
+ * {@link SessionToken#generate()} and lookups of the text token in a {@link SessionTable}.
+ *
+ * Each case runs on the given number of threads, after a warm-up round, and prints the
+ * throughput in operations per second. Lookups use a fresh copy of the id each time, as an id
+ * read from a request would be, so that the string hash code is not cached.
+ *
+ * Usage: {@code java br.ufal.ic.p2.jackut.bench.SessionTokenBenchmark [threads] [operations per thread]}
+ */
+public class SessionTokenBenchmark {
+
+    /**
+     * Number of sessions in the table during the lookup cases.
+     */
+    private static final int SESSIONS = 100_000;
+
+    /**
+     * Receives the results of the operations, so that the JIT cannot drop them as unused.
+     */
+    private static volatile long blackhole;
+
+    /**
+     * One measured operation, run by a thread with its index.
+     */
+    private interface Operation {
+        /**
+         * Runs the operation once.
+         *
+         * @param thread    The index of the running thread.
+         * @param iteration The iteration number.
+         * @return A value derived from the result, so that the work cannot be optimized away.
+         */
+        long run(int thread, int iteration);
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Number of threads and number of operations per thread, both optional.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        Map<String, Session> byString = new ConcurrentHashMap<>();
+        SessionTable byToken = new SessionTable();
+        char[][] uuidIds = new char[SESSIONS][];
+        char[][] tokenIds = new char[SESSIONS][];
+        for (int i = 0; i < SESSIONS; i++) {
+            SessionToken token = SessionToken.generate();
+            Session session = new Session(token, "user" + i);
+            String uuid = UUID.randomUUID().toString();
+            uuidIds[i] = uuid.toCharArray();
+            tokenIds[i] = token.toString().toCharArray();
+            byString.put(uuid, session);
+            byToken.put(session);
+        }
+
+        System.out.println("threads=" + threads + " operations/thread=" + operations);
+        measure("generate UUID.randomUUID", threads, operations,
+                (thread, i) -> UUID.randomUUID().toString().length());
+        measure("generate SessionToken", threads, operations,
+                (thread, i) -> SessionToken.generate().toString().length());
+        measure("lookup ConcurrentHashMap<String>", threads, operations,
+                (thread, i) -> byString.get(new String(uuidIds[(i * 31 + thread) % SESSIONS])).getLogin().length());
+        measure("lookup SessionTable", threads, operations, (thread, i) -> {
+            String id = new String(tokenIds[(i * 31 + thread) % SESSIONS]);
+            if (!SessionToken.isWellFormed(id)) {
+                return 0;
+            }
+            return byToken.get(SessionToken.parseHigh(id), SessionToken.parseLow(id)).getLogin().length();
+        });
+    }
+
+    /**
+     * Runs an operation on several threads, once to warm up and once measured, and prints the throughput.
+     *
+     * @param name       The case name.
+     * @param threads    The number of threads.
+     * @param operations The number of operations per thread.
+     * @param operation  The operation.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    private static void measure(String name, int threads, int operations, Operation operation) throws InterruptedException {
+        run(threads, operations, operation);
+        long elapsed = run(threads, operations, operation);
+        double perSecond = (double) threads * operations / (elapsed / 1e9);
+        System.out.printf("%-36s %,14.0f ops/s%n", name, perSecond);
+    }
+
+    /**
+     * Runs an operation on several threads started together.
+     *
+     * @param threads    The number of threads.
+     * @param operations The number of operations per thread.
+     * @param operation  The operation.
+     * @return The elapsed time in nanoseconds.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    private static long run(int threads, int operations, Operation operation) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicLong sink = new AtomicLong();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            new Thread(() -> {
+                long local = 0;
+                try {
+                    start.await();
+                    for (int i = 0; i < operations; i++) {
+                        local += operation.run(thread, i);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    sink.addAndGet(local);
+                    done.countDown();
+                }
+            }).start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        blackhole = sink.get();
+        return elapsed;
+    }
+}
@@ -0,0 +1,68 @@
+package br.ufal.ic.p2.jackut.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A generated workload, as three phases of {@link Command}s that run one after the other.
+ * <ul>
+ *     <li>setup: accounts, sessions, profiles and communities, which everything else relies on;</li>
+ *     <li>relations: friendships, idols, crushes, enemies and community memberships;</li>
+ *     <li>traffic: messages, reads and queries, interleaved as they would be in production.</li>
+ * </ul>
+ * Within a phase, the commands of each user are in the order they must run; commands of
+ * different users may be reordered when the phase is replayed on several threads.
+ */
+public class Workload {
+
+    /**
+     * Commands of the setup phase.
+     */
+    private final List<Command> setup = new ArrayList<>();
+
+    /**
+     * Commands of the relations phase.
+     */
+    private final List<Command> relations = new ArrayList<>();
+
+    /**
+     * Commands of the traffic phase.
+     */
+    private final List<Command> traffic = new ArrayList<>();
+
+    /**
+     * Gets the commands of the setup phase.
+     *
+     * @return The modifiable list of commands.
+     */
+    public List<Command> getSetup() {
+        return setup;
+    }
+
+    /**
+     * Gets the commands of the relations phase.
+     *
+     * @return The modifiable list of commands.
+     */
+    public List<Command> getRelations() {
+        return relations;
+    }
+
+    /**
+     * Gets the commands of the traffic phase.
+     *
+     * @return The modifiable list of commands.
+     */
+    public List<Command> getTraffic() {
+        return traffic;
+    }
+
+    /**
+     * Gets the number of commands in every phase.
+     *
+     * @return The command count.
+     */
+    public int size() {
+        return setup.size() + relations.size() + traffic.size();
+    }
+}
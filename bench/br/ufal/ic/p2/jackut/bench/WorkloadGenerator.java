@@ -0,0 +1,317 @@
+package br.ufal.ic.p2.jackut.bench;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates reproducible social-network workloads.
+ *
+ * Users pick the targets of their friend requests, idols, crushes, enemies and messages from a
+ * {@link ZipfSampler}, so a few users are very popular and most are not; communities are joined
+ * the same way with their own exponent, so a few communities are huge and most are small. Counts
+ * per user are given as means: a mean of 2.5 gives every user 2 or 3. The same options and seed
+ * always give the same workload.
+ *
+ * The options, read from {@link BenchOptions}, are
+ * <ul>
+ *     <li>{@code --users}: number of users (default {@code 1000})</li>
+ *     <li>{@code --seed}: random seed (default {@code 1})</li>
+ *     <li>{@code --exponent}: exponent of user popularity (default {@code 1.0})</li>
+ *     <li>{@code --friends}: friend requests per user (default {@code 4})</li>
+ *     <li>{@code --accept}: share of friend requests that are returned (default {@code 0.6})</li>
+ *     <li>{@code --idols}, {@code --crushes}, {@code --enemies}: per user (defaults {@code 1}, {@code 0.5}, {@code 0.2})</li>
+ *     <li>{@code --communities}: number of communities (default: users / 50, at least 1)</li>
+ *     <li>{@code --community-exponent}: exponent of community size (default {@code 1.2})</li>
+ *     <li>{@code --memberships}: communities joined per user (default {@code 2})</li>
+ *     <li>{@code --recados}, {@code --messages}, {@code --queries}: traffic per user (defaults {@code 10}, {@code 2}, {@code 10})</li>
+ *     <li>{@code --removals}: share of users removed at the end of the traffic (default {@code 0})</li>
+ * </ul>
+ */
+public class WorkloadGenerator {
+
+    /**
+     * Attributes set on the profiles, in turn.
+     */
+    private static final String[] ATTRIBUTES = {"descricao", "estadoCivil", "aniversario", "filhos", "idiomas", "cidadeNatal"};
+
+    /**
+     * Queries mixed into the traffic, in proportion to their number of entries.
+     */
+    private static final String[] QUERIES = {
+            "getAmigos", "getAmigos", "ehAmigo", "ehAmigo", "getComunidades", "getMembrosComunidade",
+            "getAtributoUsuario", "getAtributoUsuario", "ehFa", "getFas", "ehPaquera", "getPaqueras",
+            "getDescricaoComunidade", "getDonoComunidade"
+    };
+
+    /**
+     * Number of users.
+     */
+    private final int users;
+
+    /**
+     * Random seed.
+     */
+    private final long seed;
+
+    /**
+     * Popularity of users as targets.
+     */
+    private final ZipfSampler popularity;
+
+    /**
+     * Popularity of communities.
+     */
+    private final ZipfSampler communities;
+
+    /**
+     * Mean friend requests per user.
+     */
+    private final double friends;
+
+    /**
+     * Share of friend requests that are returned.
+     */
+    private final double accept;
+
+    /**
+     * Mean idols per user.
+     */
+    private final double idols;
+
+    /**
+     * Mean crushes per user.
+     */
+    private final double crushes;
+
+    /**
+     * Mean enemies per user.
+     */
+    private final double enemies;
+
+    /**
+     * Mean communities joined per user.
+     */
+    private final double memberships;
+
+    /**
+     * Mean messages sent to users, per user.
+     */
+    private final double recados;
+
+    /**
+     * Mean messages sent to communities, per user.
+     */
+    private final double messages;
+
+    /**
+     * Mean queries per user.
+     */
+    private final double queries;
+
+    /**
+     * Share of users removed at the end.
+     */
+    private final double removals;
+
+    /**
+     * Creates a generator.
+     *
+     * @param options The options, as described in the class comment.
+     */
+    public WorkloadGenerator(BenchOptions options) {
+        this.users = options.getInt("users", 1000);
+        this.seed = options.getLong("seed", 1);
+        this.popularity = new ZipfSampler(users, options.getDouble("exponent", 1.0));
+        this.communities = new ZipfSampler(options.getInt("communities", Math.max(1, users / 50)),
+                options.getDouble("community-exponent", 1.2));
+        this.friends = options.getDouble("friends", 4);
+        this.accept = options.getDouble("accept", 0.6);
+        this.idols = options.getDouble("idols", 1);
+        this.crushes = options.getDouble("crushes", 0.5);
+        this.enemies = options.getDouble("enemies", 0.2);
+        this.memberships = options.getDouble("memberships", 2);
+        this.recados = options.getDouble("recados", 10);
+        this.messages = options.getDouble("messages", 2);
+        this.queries = options.getDouble("queries", 10);
+        this.removals = options.getDouble("removals", 0);
+    }
+
+    /**
+     * Gets the login of a user.
+     *
+     * @param user The user index.
+     * @return The login.
+     */
+    public static String login(int user) {
+        return "u" + user;
+    }
+
+    /**
+     * Gets the password of a user.
+     *
+     * @param user The user index.
+     * @return The password.
+     */
+    private static String password(int user) {
+        return "p" + user;
+    }
+
+    /**
+     * Gets the name of a community.
+     *
+     * @param community The community index.
+     * @return The name.
+     */
+    private static String community(int community) {
+        return "Comunidade " + community;
+    }
+
+    /**
+     * Generates the workload.
+     *
+     * @return The workload.
+     */
+    public Workload generate() {
+        Random random = new Random(seed);
+        Workload workload = new Workload();
+        generateSetup(random, workload.getSetup());
+        generateRelations(random, workload.getRelations());
+        generateTraffic(random, workload.getTraffic());
+        return workload;
+    }
+
+    /**
+     * Generates accounts, sessions, a profile attribute per user, and the communities, each
+     * owned by a random user.
+     *
+     * @param random   The random source.
+     * @param commands The list to add the commands to.
+     */
+    private void generateSetup(Random random, List<Command> commands) {
+        for (int i = 0; i < users; i++) {
+            commands.add(new Command("criarUsuario", login(i), password(i), "Usuario " + i));
+        }
+        for (int i = 0; i < users; i++) {
+            commands.add(new Command("abrirSessao", login(i), password(i)));
+            commands.add(new Command("editarPerfil", login(i), ATTRIBUTES[i % ATTRIBUTES.length], "valor " + i));
+        }
+        for (int c = 0; c < communities.size(); c++) {
+            commands.add(new Command("criarComunidade", login(random.nextInt(users)), community(c), "Descricao da comunidade " + c));
+        }
+    }
+
+    /**
+     * Generates the relations of every user, with targets drawn by popularity. A returned friend
+     * request is made by the target right after the request, so both commands belong to the
+     * phase in request order.
+     *
+     * @param random   The random source.
+     * @param commands The list to add the commands to.
+     */
+    private void generateRelations(Random random, List<Command> commands) {
+        for (int i = 0; i < users; i++) {
+            String login = login(i);
+            for (int k = count(random, friends); k > 0; k--) {
+                int target = other(random, i);
+                commands.add(new Command("adicionarAmigo", login, login(target)));
+                if (random.nextDouble() < accept) {
+                    commands.add(new Command("adicionarAmigo", login(target), login));
+                }
+            }
+            for (int k = count(random, idols); k > 0; k--) {
+                commands.add(new Command("adicionarIdolo", login, login(other(random, i))));
+            }
+            for (int k = count(random, crushes); k > 0; k--) {
+                commands.add(new Command("adicionarPaquera", login, login(other(random, i))));
+            }
+            for (int k = count(random, enemies); k > 0; k--) {
+                commands.add(new Command("adicionarInimigo", login, login(other(random, i))));
+            }
+            for (int k = count(random, memberships); k > 0; k--) {
+                commands.add(new Command("adicionarComunidade", login, community(communities.sample(random))));
+            }
+        }
+    }
+
+    /**
+     * Generates messages, reads and queries, shuffled, followed by the removals.
+     *
+     * @param random   The random source.
+     * @param commands The list to add the commands to.
+     */
+    private void generateTraffic(Random random, List<Command> commands) {
+        int sequence = 0;
+        for (int i = 0; i < users; i++) {
+            String login = login(i);
+            int sent = count(random, recados);
+            for (int k = 0; k < sent; k++) {
+                int target = other(random, i);
+                commands.add(new Command("enviarRecado", login, login(target), "Recado " + sequence++ + " de " + login));
+                commands.add(new Command("lerRecado", login(target)));
+            }
+            for (int k = count(random, messages); k > 0; k--) {
+                commands.add(new Command("enviarMensagem", login, community(communities.sample(random)), "Mensagem " + sequence++));
+                commands.add(new Command("lerMensagem", login(other(random, i))));
+            }
+            for (int k = count(random, queries); k > 0; k--) {
+                commands.add(query(random, i));
+            }
+        }
+        Collections.shuffle(commands, random);
+        for (int k = (int) (users * removals); k > 0; k--) {
+            commands.add(new Command("removerUsuario", login(random.nextInt(users))));
+        }
+    }
+
+    /**
+     * Generates a random query made by a user.
+     *
+     * @param random The random source.
+     * @param user   The user index.
+     * @return The query.
+     */
+    private Command query(Random random, int user) {
+        String login = login(user);
+        String operation = QUERIES[random.nextInt(QUERIES.length)];
+        switch (operation) {
+            case "ehAmigo":
+            case "ehFa":
+            case "ehPaquera":
+                return new Command(operation, login, login(other(random, user)));
+            case "getMembrosComunidade":
+            case "getDescricaoComunidade":
+            case "getDonoComunidade":
+                return new Command(operation, community(communities.sample(random)));
+            case "getAtributoUsuario":
+                return new Command(operation, login(popularity.sample(random)), "nome");
+            default:
+                return new Command(operation, login);
+        }
+    }
+
+    /**
+     * Draws a target other than the user, by popularity.
+     *
+     * @param random The random source.
+     * @param user   The user index.
+     * @return The target user index.
+     */
+    private int other(Random random, int user) {
+        int target = popularity.sample(random);
+        return target != user ? target : (user + 1) % users;
+    }
+
+    /**
+     * Draws a count with the given mean: its integer part, plus one with the probability of its
+     * fractional part.
+     *
+     * @param random The random source.
+     * @param mean   The mean.
+     * @return The count.
+     */
+    private static int count(Random random, double mean) {
+        int whole = (int) mean;
+        return whole + (random.nextDouble() < mean - whole ? 1 : 0);
+    }
+}
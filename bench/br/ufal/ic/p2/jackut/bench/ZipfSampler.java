@@ -0,0 +1,146 @@
+package br.ufal.ic.p2.jackut.bench;
+
+import java.util.Random;
+
+/**
+ * Draws ranks from a Zipf (power-law) distribution: rank {@code k} of {@code n} is drawn with
+ * probability proportional to {@code 1 / (k + 1)^exponent}, so rank 0 is the most popular.
+ *
+ * Uses the rejection-inversion method of Hörmann and Derflinger, which needs constant time and
+ * memory per draw whatever the number of ranks, so populations of millions of users can be
+ * sampled without precomputed tables. The sampler holds no mutable state and can be shared by
+ * threads, each with its own {@link Random}.
+ */
+public class ZipfSampler {
+
+    /**
+     * Number of ranks.
+     */
+    private final int n;
+
+    /**
+     * The exponent of the distribution.
+     */
+    private final double exponent;
+
+    /**
+     * {@code hIntegral(1.5) - 1}.
+     */
+    private final double hIntegralX1;
+
+    /**
+     * {@code hIntegral(n + 0.5)}.
+     */
+    private final double hIntegralN;
+
+    /**
+     * Acceptance threshold that lets most draws skip the rejection test.
+     */
+    private final double s;
+
+    /**
+     * Creates a sampler.
+     *
+     * @param n        Number of ranks, at least 1.
+     * @param exponent The exponent, greater than 0; 1 gives the classic Zipf law.
+     */
+    public ZipfSampler(int n, double exponent) {
+        if (n < 1 || exponent <= 0) {
+            throw new IllegalArgumentException("Zipf needs n >= 1 and exponent > 0");
+        }
+        this.n = n;
+        this.exponent = exponent;
+        this.hIntegralX1 = hIntegral(1.5) - 1;
+        this.hIntegralN = hIntegral(n + 0.5);
+        this.s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+    }
+
+    /**
+     * Gets the number of ranks.
+     *
+     * @return The number of ranks.
+     */
+    public int size() {
+        return n;
+    }
+
+    /**
+     * Draws a rank.
+     *
+     * @param random The random source.
+     * @return A rank between 0 and {@code n - 1}.
+     */
+    public int sample(Random random) {
+        while (true) {
+            double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+            double x = hIntegralInverse(u);
+            int k = (int) (x + 0.5);
+            if (k < 1) {
+                k = 1;
+            } else if (k > n) {
+                k = n;
+            }
+            if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                return k - 1;
+            }
+        }
+    }
+
+    /**
+     * The unnormalized probability density, {@code x^-exponent}.
+     *
+     * @param x The point.
+     * @return The density.
+     */
+    private double h(double x) {
+        return Math.exp(-exponent * Math.log(x));
+    }
+
+    /**
+     * An integral of {@link #h}.
+     *
+     * @param x The point.
+     * @return The integral.
+     */
+    private double hIntegral(double x) {
+        double logX = Math.log(x);
+        return expm1OverX((1 - exponent) * logX) * logX;
+    }
+
+    /**
+     * The inverse of {@link #hIntegral}.
+     *
+     * @param x The point.
+     * @return The inverse.
+     */
+    private double hIntegralInverse(double x) {
+        double t = Math.max(-1, x * (1 - exponent));
+        return Math.exp(log1pOverX(t) * x);
+    }
+
+    /**
+     * Computes {@code log(1 + x) / x}, accurately near 0.
+     *
+     * @param x The point.
+     * @return The value.
+     */
+    private static double log1pOverX(double x) {
+        if (Math.abs(x) > 1e-8) {
+            return Math.log1p(x) / x;
+        }
+        return 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+    }
+
+    /**
+     * Computes {@code (exp(x) - 1) / x}, accurately near 0.
+     *
+     * @param x The point.
+     * @return The value.
+     */
+    private static double expm1OverX(double x) {
+        if (Math.abs(x) > 1e-8) {
+            return Math.expm1(x) / x;
+        }
+        return 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+    }
+}
@@ -0,0 +1,318 @@
+package br.ufal.ic.p2.jackut;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Helpers shared by the hand-written binary readers and writers of the snapshot files and the journal.
+ *
+ * Every snapshot file starts with a header made of the {@link #MAGIC} number and the format
+ * {@link #VERSION}. Lengths and counts are variable-length integers, and strings are written as
+ * their UTF-8 byte length followed by the bytes. References to users are written as their logins
+ * and references to communities as their names, never as nested objects, so that each user record
+ * can be decoded on its own (see {@link UserStore}).
+ */
+public final class BinaryFormat {
+
+    /**
+     * Magic number identifying a Jackut binary snapshot file ("JKUT").
+     */
+    public static final int MAGIC = 0x4A4B5554;
+
+    /**
+     * Current version of the binary snapshot format.
+     */
+    public static final int VERSION = 8;
+
+    /**
+     * Oldest version of the binary snapshot format that can still be read.
+     * Older snapshots are upgraded to the current version when the system starts.
+     */
+    public static final int MIN_VERSION = 2;
+
+    /**
+     * First two bytes of a file written by {@link ObjectOutputStream}, used to detect legacy snapshots.
+     */
+    private static final int JAVA_SERIALIZATION_MAGIC = 0xACED;
+
+    /**
+     * Utility class, not meant to be instantiated.
+     */
+    private BinaryFormat() {
+    }
+
+    /**
+     * Writes the snapshot file header.
+     *
+     * @param out The output stream.
+     * @throws IOException If writing fails.
+     */
+    public static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+    }
+
+    /**
+     * Reads and validates the snapshot file header.
+     *
+     * @param in The input stream.
+     * @return The format version of the file.
+     * @throws IOException If the header is missing or the version is not supported.
+     */
+    public static int readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a Jackut snapshot file");
+        }
+        int version = in.readUnsignedShort();
+        if (version < MIN_VERSION || version > VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        return version;
+    }
+
+    /**
+     * Checks whether a file was written with Java serialization by a previous version of the system.
+     *
+     * @param file The file to check.
+     * @return true if the file is a legacy Java serialization stream.
+     */
+    public static boolean isLegacyFile(File file) {
+        if (!file.exists()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readUnsignedShort() == JAVA_SERIALIZATION_MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes a non-negative integer as an unsigned variable-length quantity (7 bits per byte).
+     * Small values, such as most lengths, counts and user ids, take a single byte.
+     *
+     * @param out   The output stream.
+     * @param value The value, which must not be negative.
+     * @throws IOException If writing fails.
+     */
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Reads an integer written by {@link #writeVarInt}.
+     *
+     * @param in The input stream.
+     * @return The value.
+     * @throws IOException If reading fails or the value is malformed.
+     */
+    public static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+
+    /**
+     * Writes a non-negative long as an unsigned variable-length quantity (7 bits per byte).
+     *
+     * @param out   The output stream.
+     * @param value The value, which must not be negative.
+     * @throws IOException If writing fails.
+     */
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a long written by {@link #writeVarLong}.
+     *
+     * @param in The input stream.
+     * @return The value.
+     * @throws IOException If reading fails or the value is malformed.
+     */
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length long");
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string.
+     * The prefix is the byte length plus one, so that zero can stand for null.
+     *
+     * @param out   The output stream.
+     * @param value The string, possibly null.
+     * @throws IOException If writing fails.
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string.
+     *
+     * @param in The input stream.
+     * @return The string, possibly null.
+     * @throws IOException If reading fails.
+     */
+    public static String readString(DataInput in) throws IOException {
+        int length = readVarInt(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a session token as a flag followed by its 16 bytes.
+     *
+     * @param out   The output stream.
+     * @param token The token.
+     * @throws IOException If writing fails.
+     */
+    public static void writeToken(DataOutput out, SessionToken token) throws IOException {
+        out.writeBoolean(true);
+        out.writeLong(token.getHigh());
+        out.writeLong(token.getLow());
+    }
+
+    /**
+     * Writes the text form of a session token, as kept by messages. Well-formed tokens are packed
+     * like {@link #writeToken(DataOutput, SessionToken)}, anything else is written as a regular string.
+     *
+     * @param out   The output stream.
+     * @param token The text token, possibly null.
+     * @throws IOException If writing fails.
+     */
+    public static void writeToken(DataOutput out, String token) throws IOException {
+        SessionToken parsed = SessionToken.parse(token);
+        if (parsed == null) {
+            out.writeBoolean(false);
+            writeString(out, token);
+        } else {
+            writeToken(out, parsed);
+        }
+    }
+
+    /**
+     * Reads the text form of a session token written by {@link #writeToken(DataOutput, String)}.
+     *
+     * @param in The input stream.
+     * @return The text token, possibly null.
+     * @throws IOException If reading fails.
+     */
+    public static String readTokenText(DataInput in) throws IOException {
+        if (in.readBoolean()) {
+            return new SessionToken(in.readLong(), in.readLong()).toString();
+        }
+        return readString(in);
+    }
+
+    /**
+     * Reads a session token written by {@link #writeToken}. Older snapshots may hold tokens
+     * that were not in the canonical form as regular strings, after a false flag; they are
+     * parsed, and rejected if they are not well formed.
+     *
+     * @param in The input stream.
+     * @return The token.
+     * @throws IOException If reading fails or the token is not well formed.
+     */
+    public static SessionToken readToken(DataInput in) throws IOException {
+        if (in.readBoolean()) {
+            return new SessionToken(in.readLong(), in.readLong());
+        }
+        String text = readString(in);
+        SessionToken token = SessionToken.parse(text);
+        if (token == null) {
+            throw new IOException("Invalid session token " + text);
+        }
+        return token;
+    }
+
+    /**
+     * Writes a collection of strings preceded by its size.
+     *
+     * @param out    The output stream.
+     * @param values The strings to write.
+     * @throws IOException If writing fails.
+     */
+    public static void writeStrings(DataOutput out, Collection<String> values) throws IOException {
+        writeVarInt(out, values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    /**
+     * Reads a collection of strings written by {@link #writeStrings} into the given collection.
+     *
+     * @param in     The input stream.
+     * @param target The collection receiving the strings.
+     * @throws IOException If reading fails.
+     */
+    public static void readStrings(DataInput in, Collection<String> target) throws IOException {
+        int size = readVarInt(in);
+        for (int i = 0; i < size; i++) {
+            target.add(readString(in));
+        }
+    }
+
+    /**
+     * Writes a string map preceded by its size.
+     *
+     * @param out    The output stream.
+     * @param values The map to write.
+     * @throws IOException If writing fails.
+     */
+    public static void writeStringMap(DataOutput out, Map<String, String> values) throws IOException {
+        writeVarInt(out, values.size());
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    /**
+     * Reads a string map written by {@link #writeStringMap} into the given map.
+     *
+     * @param in     The input stream.
+     * @param target The map receiving the entries.
+     * @throws IOException If reading fails.
+     */
+    public static void readStringMap(DataInput in, Map<String, String> target) throws IOException {
+        int size = readVarInt(in);
+        for (int i = 0; i < size; i++) {
+            target.put(readString(in), readString(in));
+        }
+    }
+}
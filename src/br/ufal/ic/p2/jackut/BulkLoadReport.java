@@ -0,0 +1,130 @@
+package br.ufal.ic.p2.jackut;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a bulk load (see {@link Jackut#bulkLoad}) or of a dataset import (see
+ * {@link Dataset#load}): the number of rows applied and the rows that were rejected, each with
+ * the exception that rejected it.
+ */
+public class BulkLoadReport {
+
+    /**
+     * A rejected row.
+     */
+    public static class RowError {
+        /**
+         * Name of the stream the row came from.
+         */
+        private final String source;
+
+        /**
+         * Position of the row in its stream, starting at 1.
+         */
+        private final long row;
+
+        /**
+         * Why the row was rejected.
+         */
+        private final Exception error;
+
+        /**
+         * Creates a row error.
+         *
+         * @param source Name of the stream the row came from.
+         * @param row    Position of the row in its stream, starting at 1.
+         * @param error  Why the row was rejected.
+         */
+        RowError(String source, long row, Exception error) {
+            this.source = source;
+            this.row = row;
+            this.error = error;
+        }
+
+        /**
+         * Gets the name of the stream the row came from: {@code users}, {@code friendships},
+         * {@code memberships} or {@code messages} for a bulk load, the table name for an import.
+         *
+         * @return The stream name.
+         */
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * Gets the position of the row in its stream.
+         *
+         * @return The row number, starting at 1.
+         */
+        public long getRow() {
+            return row;
+        }
+
+        /**
+         * Gets why the row was rejected.
+         *
+         * @return The exception.
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        /**
+         * Formats the error as {@code source:row: message}.
+         *
+         * @return The formatted error.
+         */
+        @Override
+        public String toString() {
+            return source + ":" + row + ": " + error.getMessage();
+        }
+    }
+
+    /**
+     * Number of rows applied.
+     */
+    private long applied;
+
+    /**
+     * Rejected rows, in the order they were read.
+     */
+    private final List<RowError> errors = new ArrayList<>();
+
+    /**
+     * Records an applied row.
+     */
+    void applied() {
+        applied++;
+    }
+
+    /**
+     * Records a rejected row.
+     *
+     * @param source Name of the stream the row came from.
+     * @param row    Position of the row in its stream, starting at 1.
+     * @param error  Why the row was rejected.
+     */
+    void rejected(String source, long row, Exception error) {
+        errors.add(new RowError(source, row, error));
+    }
+
+    /**
+     * Gets the number of rows applied.
+     *
+     * @return The number of applied rows.
+     */
+    public long getApplied() {
+        return applied;
+    }
+
+    /**
+     * Gets the rejected rows.
+     *
+     * @return The errors, in the order the rows were read.
+     */
+    public List<RowError> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+}
@@ -1,14 +1,40 @@
 package br.ufal.ic.p2.jackut;
 
+import br.ufal.ic.p2.jackut.Exceptions.UserAlreadyCommunityMemberException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Represents a community in the Jackut system.
  * A community has a name, description, owner, and members.
  * Implements Serializable to allow object serialization.
+ * The members and the message log are guarded by the community's monitor.
+ *
+ * Messages sent to the community are appended once to its log, whatever the number of members,
+ * and each member has a read cursor into the log: a member joining the community starts at the
+ * end of the log, and reading a message moves the member's cursor past it. Messages of deleted
+ * users are replaced by null in the log and skipped. Messages read by every member are dropped
+ * from the log when it is compacted, before the community is written to a snapshot, which only
+ * happens when the community changed since it was last written.
+ * Since posting costs the same for any number of members, posts are applied on the caller's thread,
+ * with no delivery queue: a message is readable by every member, the sender included, once the post
+ * returns, in the order the community received it.
  */
 public class Community implements Serializable {
+    /**
+     * Version identifier for serialization, pinned to the value computed for snapshots
+     * written before the binary format so that they can still be migrated.
+     */
+    private static final long serialVersionUID = 1816845935310513151L;
+
     /**
      * The name of the community. Must be unique.
      */
@@ -20,14 +46,70 @@ public class Community implements Serializable {
     private String description;
 
     /**
-     * The user who created and owns the community.
+     * Login of the user who created and owns the community.
+     */
+    private String ownerLogin;
+
+    /**
+     * Messages not yet read by every member, in the order they were sent.
+     * Messages of deleted senders are replaced by null.
+     */
+    private ArrayList<CommunityMessage> log;
+
+    /**
+     * Position of the first message of the {@link #log}. Positions grow with every message sent
+     * and are only renumbered when the log is compacted.
+     */
+    private long logStart;
+
+    /**
+     * Members of the community, by login in the order they joined, with the position of the next
+     * message each one will read.
+     */
+    private Map<String, Cursor> members;
+
+    /**
+     * The members' logins formatted as {@code {a,b}}, built on first use and discarded when a
+     * member joins or leaves, and read without locking. Not serialized.
+     */
+    private transient volatile String formattedMembers;
+
+    /**
+     * Read position of a member in the {@link #log}.
+     */
+    private static class Cursor implements Serializable {
+        /**
+         * Version identifier for serialization.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Position of the next message to read.
+         */
+        private long position;
+
+        /**
+         * Creates a cursor.
+         *
+         * @param position Position of the next message to read
+         */
+        private Cursor(long position) {
+            this.position = position;
+        }
+    }
+
+    /**
+     * The repository used to resolve members when messages are delivered.
+     * Not serialized: it is re-attached by the repository when the community is loaded.
      */
-    private User owner;
+    private transient Repository repository;
 
     /**
-     * A list of users who are members of the community.
+     * Whether the community changed since it was last written to a snapshot, so that a snapshot
+     * only rewrites the segments holding communities that changed. A new community starts dirty.
+     * Not serialized.
      */
-    private ArrayList<User> members;
+    private transient boolean dirty = true;
 
     /**
      * Constructs a new Community with the given parameters.
@@ -35,12 +117,27 @@ public class Community implements Serializable {
      * @param name The name of the community
      * @param description The description of the community
      * @param owner The User who owns/created this community
+     * @param repository The repository the community belongs to
      */
-    Community(String name, String description, User owner) {
+    Community(String name, String description, User owner, Repository repository) {
+        this(name, description, owner.getLogin(), repository);
+    }
+
+    /**
+     * Constructs a new Community owned by the given login.
+     *
+     * @param name The name of the community
+     * @param description The description of the community
+     * @param ownerLogin The login of the user who owns/created this community
+     * @param repository The repository the community belongs to
+     */
+    private Community(String name, String description, String ownerLogin, Repository repository) {
         this.name = name;
         this.description = description;
-        this.owner = owner;
-        this.members = new ArrayList<User>();
+        this.ownerLogin = ownerLogin;
+        this.log = new ArrayList<>();
+        this.members = new LinkedHashMap<>();
+        this.repository = repository;
     }
 
     /**
@@ -67,7 +164,7 @@ public class Community implements Serializable {
      * @return The owner's login
      */
     public String getOwner() {
-        return owner.getLogin();
+        return ownerLogin;
     }
 
     /**
@@ -75,24 +172,240 @@ public class Community implements Serializable {
      *
      * @return ArrayList containing all members' logins
      */
-    public ArrayList<String> getMembers() {
-        ArrayList<String> membersLogins = new ArrayList<>();
+    public synchronized ArrayList<String> getMembers() {
+        return new ArrayList<>(members.keySet());
+    }
+
+    /**
+     * Gets the members' logins in the order they joined, formatted as {@code {a,b}}.
+     * The text is kept until the membership changes, so repeated calls do not rebuild it.
+     *
+     * @return The formatted member list
+     */
+    public String getFormattedMembers() {
+        String formatted = formattedMembers;
+        if (formatted == null) {
+            synchronized (this) {
+                if (formattedMembers == null) {
+                    formattedMembers = ListFormat.format(members.keySet());
+                }
+                formatted = formattedMembers;
+            }
+        }
+        return formatted;
+    }
+
+    /**
+     * Appends a message to the log, where every current member will read it, and records the
+     * community on the sender. Takes constant time whatever the number of members.
+     *
+     * @param sender The user sending the message
+     * @param text The content of the message
+     */
+    public synchronized void postMessage(User sender, String text) {
+        log.add(new CommunityMessage(sender.getId(), text, repository.nextCommunityMessageSequence()));
+        sender.addPostedCommunity(name);
+        markDirty();
+    }
+
+    /**
+     * Gets the sequence number of the next message a member will read.
+     *
+     * @param login The member's login
+     * @return The sequence number, or {@link Long#MAX_VALUE} if the member has no message to read
+     */
+    synchronized long peekSequence(String login) {
+        Cursor cursor = members.get(login);
+        if (cursor == null) {
+            return Long.MAX_VALUE;
+        }
+        CommunityMessage next = skipDeleted(cursor);
+        return next == null ? Long.MAX_VALUE : next.getSequence();
+    }
+
+    /**
+     * Reads the next message of a member and moves the member's cursor past it.
+     *
+     * @param login The member's login
+     * @return The message, or null if the member has no message to read
+     */
+    synchronized CommunityMessage readMessage(String login) {
+        Cursor cursor = members.get(login);
+        if (cursor == null) {
+            return null;
+        }
+        CommunityMessage next = skipDeleted(cursor);
+        if (next != null) {
+            cursor.position++;
+            markDirty();
+        }
+        return next;
+    }
 
-        for (User user : members) {
-            membersLogins.add(user.getLogin());
+    /**
+     * Moves a cursor past the messages of deleted senders.
+     *
+     * @param cursor The cursor
+     * @return The message at the cursor, or null if the cursor is at the end of the log
+     */
+    private CommunityMessage skipDeleted(Cursor cursor) {
+        long end = logStart + log.size();
+        while (cursor.position < end) {
+            CommunityMessage message = log.get((int) (cursor.position - logStart));
+            if (message != null) {
+                return message;
+            }
+            cursor.position++;
         }
+        return null;
+    }
 
-        return membersLogins;
+    /**
+     * Gets the messages a member has not read yet.
+     *
+     * @param login The member's login
+     * @return The unread messages, in send order
+     */
+    synchronized List<CommunityMessage> getUnreadMessages(String login) {
+        List<CommunityMessage> unread = new ArrayList<>();
+        Cursor cursor = members.get(login);
+        if (cursor != null) {
+            for (int i = (int) (cursor.position - logStart); i < log.size(); i++) {
+                if (log.get(i) != null) {
+                    unread.add(log.get(i));
+                }
+            }
+        }
+        return unread;
     }
 
     /**
-     * Sends a message to all community members.
+     * Gets the number of messages waiting to be read, summed over the members.
+     * Messages of deleted senders that were not skipped yet are counted.
      *
-     * @param message The CommunityMessage to send to all members
+     * @return The number of unread messages
      */
-    public void sendMessageToMembers(CommunityMessage message) {
-        for (User user : members) {
-            user.addCommunityMessage(message);
+    public synchronized long getUnreadCount() {
+        long end = logStart + log.size();
+        long unread = 0;
+        for (Cursor cursor : members.values()) {
+            unread += end - cursor.position;
+        }
+        return unread;
+    }
+
+    /**
+     * Removes the messages sent by a deleted user from the log.
+     *
+     * @param login The login of the deleted user
+     */
+    synchronized void forgetSender(String login) {
+        int senderId = repository.findId(login);
+        if (senderId < 0) {
+            return;
+        }
+        for (int i = 0; i < log.size(); i++) {
+            CommunityMessage message = log.get(i);
+            if (message != null && message.getSenderId() == senderId) {
+                log.set(i, null);
+                markDirty();
+            }
+        }
+    }
+
+    /**
+     * Drops from the log the messages every member has read and the messages of deleted senders,
+     * and renumbers the log and the cursors from zero.
+     */
+    private void compact() {
+        long end = logStart + log.size();
+        long first = end;
+        for (Cursor cursor : members.values()) {
+            first = Math.min(first, cursor.position);
+        }
+        int from = (int) (first - logStart);
+        int[] kept = new int[log.size() - from + 1];
+        ArrayList<CommunityMessage> compacted = new ArrayList<>();
+        for (int i = from; i < log.size(); i++) {
+            kept[i - from] = compacted.size();
+            if (log.get(i) != null) {
+                compacted.add(log.get(i));
+            }
+        }
+        kept[log.size() - from] = compacted.size();
+        for (Cursor cursor : members.values()) {
+            cursor.position = kept[(int) (cursor.position - first)];
+        }
+        log = compacted;
+        logStart = 0;
+    }
+
+    /**
+     * Appends a message restored by a {@link Dataset} import, with its original sequence number,
+     * and records the community on the sender.
+     *
+     * @param sender The user who sent the message
+     * @param text The content of the message
+     * @param sequence The position of the message in the global send order, after the last message of the log
+     * @throws IllegalArgumentException If the message does not come after the last message of the log
+     */
+    synchronized void restoreMessage(User sender, String text, long sequence) {
+        CommunityMessage last = log.isEmpty() ? null : log.get(log.size() - 1);
+        if (last != null && last.getSequence() >= sequence) {
+            throw new IllegalArgumentException("Mensagem fora de ordem.");
+        }
+        log.add(new CommunityMessage(sender.getId(), text, sequence));
+        sender.addPostedCommunity(name);
+        repository.restoreCommunityMessageSequence(sequence);
+        markDirty();
+    }
+
+    /**
+     * Adds a member restored by a {@link Dataset} import, who has not read the last messages of
+     * the log. The community is added to the member's list by the import's own rows.
+     *
+     * @param user The member
+     * @param unread The number of messages at the end of the log the member has not read
+     * @throws UserAlreadyCommunityMemberException If the user is already a member
+     */
+    synchronized void restoreMember(User user, long unread) throws UserAlreadyCommunityMemberException {
+        if (members.containsKey(user.getLogin())) {
+            throw new UserAlreadyCommunityMemberException();
+        }
+        long end = logStart + log.size();
+        members.put(user.getLogin(), new Cursor(Math.max(logStart, end - Math.max(0, unread))));
+        formattedMembers = null;
+        markDirty();
+    }
+
+    /**
+     * Writes this community, the messages some member has not read and its members as the rows
+     * of a {@link Dataset} export. Messages of deleted senders are left out, and each member's
+     * unread count only counts the messages written.
+     *
+     * @param out Receives the rows
+     * @throws IOException If a row cannot be written
+     */
+    synchronized void exportTo(Dataset.RowSink out) throws IOException {
+        out.row(Dataset.Table.COMMUNITIES, name, description, ownerLogin);
+        long first = logStart + log.size();
+        for (Cursor cursor : members.values()) {
+            first = Math.min(first, cursor.position);
+        }
+        int from = (int) (first - logStart);
+        int[] unread = new int[log.size() - from + 1];
+        for (int i = log.size() - 1; i >= from; i--) {
+            unread[i - from] = unread[i - from + 1] + (log.get(i) != null ? 1 : 0);
+        }
+        for (int i = from; i < log.size(); i++) {
+            CommunityMessage message = log.get(i);
+            if (message != null) {
+                out.row(Dataset.Table.COMMUNITY_MESSAGES, name, repository.loginOf(message.getSenderId()),
+                        Long.toString(message.getSequence()), message.getMessage());
+            }
+        }
+        for (Map.Entry<String, Cursor> member : members.entrySet()) {
+            out.row(Dataset.Table.MEMBERS, name, member.getKey(), Integer.toString(unread[(int) (member.getValue().position - first)]));
         }
     }
 
@@ -102,8 +415,8 @@ public class Community implements Serializable {
      * @param user The User to check
      * @return true if the user is a member, false otherwise
      */
-    public Boolean isAlreadyMember(User user) {
-        return members.contains(user);
+    public synchronized Boolean isAlreadyMember(User user) {
+        return members.containsKey(user.getLogin());
     }
 
     /**
@@ -112,8 +425,122 @@ public class Community implements Serializable {
      *
      * @param user The User to add as a member
      */
-    public void addMember(User user) {
+    public synchronized void addMember(User user) {
         user.addCommunity(this.name);
-        members.add(user);
+        members.put(user.getLogin(), new Cursor(logStart + log.size()));
+        formattedMembers = null;
+        markDirty();
+    }
+
+    /**
+     * Removes a member from this community.
+     *
+     * @param login The login of the member to remove
+     */
+    public synchronized void removeMember(String login) {
+        if (members.remove(login) != null) {
+            formattedMembers = null;
+            markDirty();
+        }
+    }
+
+    /**
+     * Records that the community changed, so that the next snapshot writes it again.
+     * The repository is told the first time the community changes after being written.
+     */
+    private void markDirty() {
+        if (!dirty) {
+            dirty = true;
+            repository.communityChanged(name);
+        }
+    }
+
+    /**
+     * Records that the community was written to a snapshot. Called while the repository is held exclusively.
+     */
+    synchronized void clearDirty() {
+        dirty = false;
+    }
+
+    /**
+     * Compacts the message log and writes this community in the binary snapshot format.
+     * The caller holds the repository exclusively, so no member is reading the log.
+     *
+     * @param out The snapshot output stream
+     * @throws IOException If writing fails
+     */
+    synchronized void writeTo(DataOutputStream out) throws IOException {
+        compact();
+        BinaryFormat.writeString(out, name);
+        BinaryFormat.writeString(out, description);
+        BinaryFormat.writeString(out, ownerLogin);
+        BinaryFormat.writeStrings(out, members.keySet());
+        BinaryFormat.writeVarInt(out, log.size());
+        for (CommunityMessage message : log) {
+            CommunityMessage.CODEC.write(out, message, repository);
+        }
+        for (Cursor cursor : members.values()) {
+            BinaryFormat.writeVarInt(out, (int) cursor.position);
+        }
+    }
+
+    /**
+     * Reads a community written by {@link #writeTo}.
+     * Communities written before version 6 of the format have no message log, since their
+     * messages were queued on each member; every member starts at the end of an empty log.
+     *
+     * @param in The snapshot input stream
+     * @param version The format version of the snapshot
+     * @param repository The repository the community belongs to
+     * @return The community
+     * @throws IOException If reading fails
+     */
+    static Community readFrom(DataInputStream in, int version, Repository repository) throws IOException {
+        String name = BinaryFormat.readString(in);
+        String description = BinaryFormat.readString(in);
+        Community community = new Community(name, description, BinaryFormat.readString(in), repository);
+        List<String> logins = new ArrayList<>();
+        BinaryFormat.readStrings(in, logins);
+        if (version >= 6) {
+            int count = BinaryFormat.readVarInt(in);
+            for (int i = 0; i < count; i++) {
+                community.log.add(CommunityMessage.CODEC.read(in, repository));
+            }
+        }
+        for (String login : logins) {
+            long position = version >= 6 ? BinaryFormat.readVarInt(in) : 0;
+            community.members.put(login, new Cursor(position));
+        }
+        community.dirty = false;
+        return community;
+    }
+
+    /**
+     * Reads a community written with Java serialization by a previous version of the system,
+     * which stored the owner and the members as full {@link User} objects. Their logins are taken
+     * once the whole object graph was read, since the users may still be incomplete at this point.
+     *
+     * @param in The object input stream
+     * @throws IOException If reading fails
+     * @throws ClassNotFoundException If a serialized class cannot be found
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        this.name = (String) fields.get("name", null);
+        this.description = (String) fields.get("description", null);
+        User owner = (User) fields.get("owner", null);
+        List<User> members = (List<User>) fields.get("members", null);
+        this.log = new ArrayList<>();
+        this.members = new LinkedHashMap<>();
+        this.dirty = true;
+        in.registerValidation(() -> {
+            this.ownerLogin = owner == null ? null : owner.getLogin();
+            if (members != null) {
+                for (User member : members) {
+                    this.members.put(member.getLogin(), new Cursor(0));
+                }
+            }
+        }, 0);
     }
-}
\ No newline at end of file
+}
@@ -1,11 +1,18 @@
 package br.ufal.ic.p2.jackut;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 /**
  * Represents a message sent to a community in the Jackut system.
- * Contains information about the sender, target community, and message content.
- * Implements Serializable to support object persistence.
+ * A message only holds the id of its sender, given by the repository's login dictionary, its
+ * content and its position in the send order; the community is the one whose log holds it.
+ * A message is stored once in the community log however many members read it, and members that
+ * keep it after the community is deleted share the same instance.
+ * Serializable only so that snapshots written with Java serialization by previous versions can be read.
  */
 public class CommunityMessage implements Serializable {
     /**
@@ -14,14 +21,29 @@ public class CommunityMessage implements Serializable {
     private static final long serialVersionUID = 1L;
 
     /**
-     * The user who sent the message.
+     * Encoding of community messages in logs, inboxes and snapshots: the sender's login, the text,
+     * then the sequence number.
      */
-    private User sender;
+    static final Inbox.Codec<CommunityMessage> CODEC = new Inbox.Codec<CommunityMessage>() {
+        @Override
+        public void write(DataOutputStream out, CommunityMessage message, Repository repository) throws IOException {
+            BinaryFormat.writeString(out, repository.loginOf(message.senderId));
+            BinaryFormat.writeString(out, message.message);
+            BinaryFormat.writeVarLong(out, message.sequence);
+        }
+
+        @Override
+        public CommunityMessage read(DataInputStream in, Repository repository) throws IOException {
+            int senderId = repository.idOf(BinaryFormat.readString(in));
+            String text = BinaryFormat.readString(in);
+            return new CommunityMessage(senderId, text, BinaryFormat.readVarLong(in));
+        }
+    };
 
     /**
-     * The community to which the message was sent.
+     * Id of the user who sent the message.
      */
-    private Community community;
+    private transient int senderId;
 
     /**
      * The content of the message.
@@ -29,34 +51,38 @@ public class CommunityMessage implements Serializable {
     private String message;
 
     /**
-     * Constructs a new CommunityMessage with the specified sender, community, and content.
-     *
-     * @param sender    The User who sent this message
-     * @param community The Community this message is sent to
-     * @param message   The content of the message
+     * Position of the message in the order messages were sent to every community, so that a user
+     * reads the messages of all its communities in the order they were sent.
+     * Messages written before the order was recorded have sequence 0 and come first.
      */
-    CommunityMessage(User sender, Community community, String message) {
-        this.sender = sender;
-        this.community = community;
-        this.message = message;
-    }
+    private long sequence;
+
+    /**
+     * The sender of a message read from a legacy snapshot, until its id is resolved by
+     * {@link #resolveSender(Repository)}.
+     */
+    private transient User legacySender;
 
     /**
-     * Gets the user who sent this community message.
+     * Constructs a new CommunityMessage.
      *
-     * @return The sender User object
+     * @param senderId The id of the user who sent this message
+     * @param message  The content of the message
+     * @param sequence The position of the message in the global send order
      */
-    public User getSender() {
-        return sender;
+    CommunityMessage(int senderId, String message, long sequence) {
+        this.senderId = senderId;
+        this.message = message;
+        this.sequence = sequence;
     }
 
     /**
-     * Gets the community this message was sent to.
+     * Gets the id of the user who sent this community message.
      *
-     * @return The target Community object
+     * @return The sender's id
      */
-    public Community getCommunity() {
-        return community;
+    int getSenderId() {
+        return senderId;
     }
 
     /**
@@ -67,4 +93,45 @@ public class CommunityMessage implements Serializable {
     public String getMessage() {
         return message;
     }
-}
\ No newline at end of file
+
+    /**
+     * Gets the position of this message in the global send order.
+     *
+     * @return The sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gives a message read from a legacy snapshot the id of its sender, once the whole object
+     * graph was read and the sender is complete. Messages delivered to several users share one
+     * instance, so a message may be resolved more than once.
+     *
+     * @param repository The repository the message belongs to
+     * @return false if the message has no sender and must be dropped
+     */
+    boolean resolveSender(Repository repository) {
+        if (legacySender != null && legacySender.getLogin() != null) {
+            this.senderId = repository.idOf(legacySender.getLogin());
+        }
+        this.legacySender = null;
+        return senderId >= 0;
+    }
+
+    /**
+     * Reads a community message written with Java serialization by a previous version of the system,
+     * which stored the sender and the community as full objects. The sender is kept until
+     * {@link #resolveSender(Repository)} is called; the community is not needed.
+     *
+     * @param in The object input stream
+     * @throws IOException If reading fails
+     * @throws ClassNotFoundException If a serialized class cannot be found
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        this.message = (String) fields.get("message", null);
+        this.legacySender = (User) fields.get("sender", null);
+        this.senderId = -1;
+    }
+}
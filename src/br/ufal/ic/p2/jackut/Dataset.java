@@ -0,0 +1,828 @@
+package br.ufal.ic.p2.jackut;
+
+import br.ufal.ic.p2.jackut.Exceptions.CommunityAlreadyExistsException;
+import br.ufal.ic.p2.jackut.Exceptions.UserAlreadyCommunityMemberException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Export and import of the whole dataset as CSV or NDJSON files, one file per {@link Table},
+ * to rebuild a node or seed a test environment.
+ *
+ * Both directions stream: the export visits one user or community at a time, decoding the users
+ * that are not loaded without keeping them in memory, and the import applies each row as it is
+ * read. The export holds only the locks of the user or community it is writing, so it runs
+ * alongside regular operations; the result is consistent per user and per community, and rows
+ * referring to users created or deleted while it ran are rejected when imported. The import is a
+ * bulk load (see {@link Repository#bulkLoad}): it holds the repository exclusively, skips the
+ * journal and is saved by a single snapshot. It is meant for an empty system; rows that conflict
+ * with existing data are rejected.
+ *
+ * Sessions are not exported. Passwords are exported as stored, in clear text.
+ *
+ * Usage, from the directory holding the system files:
+ * <ul>
+ *     <li>{@code java br.ufal.ic.p2.jackut.Dataset export <directory> [csv|ndjson]}</li>
+ *     <li>{@code java br.ufal.ic.p2.jackut.Dataset import <directory>}</li>
+ * </ul>
+ */
+public class Dataset {
+
+    /**
+     * Metrics of {@link #export}.
+     */
+    private static final OperationMetrics EXPORT = Metrics.operation("exportDataset");
+
+    /**
+     * Metrics of {@link #load}; rejected rows are counted as its errors.
+     */
+    private static final OperationMetrics IMPORT = Metrics.operation("importDataset");
+
+    /**
+     * File format of a dataset.
+     */
+    public enum Format {
+        /**
+         * Comma-separated values with a header line, quoted as in RFC 4180.
+         */
+        CSV("csv"),
+
+        /**
+         * One JSON object per line, keyed by column name.
+         */
+        NDJSON("ndjson");
+
+        /**
+         * Extension of the table files.
+         */
+        private final String extension;
+
+        /**
+         * Creates a format.
+         *
+         * @param extension Extension of the table files.
+         */
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    /**
+     * Tables of a dataset, in the order they are imported, each with its columns.
+     */
+    enum Table {
+        /**
+         * Users: login, password and name.
+         */
+        USERS("users", "login", "password", "name"),
+
+        /**
+         * Profile attributes other than login and name.
+         */
+        ATTRIBUTES("attributes", "login", "attribute", "value"),
+
+        /**
+         * Relationships a user started: {@code friend} (a friend request, confirmed when the other
+         * user sent one back), {@code idol}, {@code crush} or {@code enemy}.
+         */
+        RELATIONSHIPS("relationships", "login", "relation", "other"),
+
+        /**
+         * Communities.
+         */
+        COMMUNITIES("communities", "name", "description", "owner"),
+
+        /**
+         * Communities of each user, in the order the user joined them.
+         */
+        MEMBERSHIPS("memberships", "login", "community"),
+
+        /**
+         * Community messages some member has not read yet, in send order, with their position in
+         * the global send order.
+         */
+        COMMUNITY_MESSAGES("community_messages", "community", "sender", "sequence", "text"),
+
+        /**
+         * Members of each community, in the order they joined, with the number of messages of
+         * the community they have not read, which are the last ones.
+         */
+        MEMBERS("members", "community", "login", "unread"),
+
+        /**
+         * Private messages waiting to be read, in the order they will be read.
+         */
+        MESSAGES("messages", "receiver", "sender", "text"),
+
+        /**
+         * Community messages a user kept from deleted communities, in send order.
+         */
+        KEPT_MESSAGES("kept_messages", "receiver", "sender", "sequence", "text");
+
+        /**
+         * Name of the table, and of its file without the extension.
+         */
+        private final String name;
+
+        /**
+         * Column names.
+         */
+        private final String[] columns;
+
+        /**
+         * Creates a table.
+         *
+         * @param name    Name of the table.
+         * @param columns Column names.
+         */
+        Table(String name, String... columns) {
+            this.name = name;
+            this.columns = columns;
+        }
+    }
+
+    /**
+     * Receives the rows of an export.
+     */
+    interface RowSink {
+        /**
+         * Writes a row.
+         *
+         * @param table  The table of the row.
+         * @param fields The fields, in the table's column order.
+         * @throws IOException If writing fails.
+         */
+        void row(Table table, String... fields) throws IOException;
+    }
+
+    /**
+     * Writes the rows of one table file.
+     */
+    interface RowWriter extends Closeable {
+        /**
+         * Writes a row.
+         *
+         * @param fields The fields, in the table's column order.
+         * @throws IOException If writing fails.
+         */
+        void write(String[] fields) throws IOException;
+    }
+
+    /**
+     * Reads the rows of one table file.
+     */
+    interface RowReader extends Closeable {
+        /**
+         * Reads the next row.
+         *
+         * @return The fields, in the table's column order, or null at the end of the file.
+         * @throws IOException If reading fails.
+         * @throws IllegalArgumentException If the row is malformed; reading can go on with the next row.
+         */
+        String[] read() throws IOException;
+    }
+
+    /**
+     * Not instantiable.
+     */
+    private Dataset() {
+    }
+
+    /**
+     * Exports the dataset, writing one file per table into a directory.
+     *
+     * @param directory The directory, created if needed; existing table files are overwritten.
+     * @param format    The file format.
+     * @return The number of rows written.
+     * @throws IOException If a file cannot be written.
+     */
+    public static long export(File directory, Format format) throws IOException {
+        Map<Table, RowWriter> writers = new EnumMap<>(Table.class);
+        long[] rows = new long[1];
+        return EXPORT.call(() -> {
+            try {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Cannot create " + directory);
+                }
+                for (Table table : Table.values()) {
+                    writers.put(table, openWriter(new File(directory, table.name + "." + format.extension), table, format));
+                }
+                Repository.getInstance().exportTo((table, fields) -> {
+                    writers.get(table).write(fields);
+                    rows[0]++;
+                });
+                return rows[0];
+            } finally {
+                for (RowWriter writer : writers.values()) {
+                    writer.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Imports a dataset written by {@link #export}, reading the table files of a directory in
+     * the order of {@link Table}, whatever their format. Missing tables are skipped. Each row is
+     * applied as the state it describes, without the checks of the operations that would have
+     * produced it; rows that cannot be applied, for example because they refer to a user that
+     * does not exist, are reported and skipped.
+     *
+     * @param directory The directory holding the table files.
+     * @return The number of rows applied and the rejected rows.
+     * @throws IOException If a file cannot be read, the rows applied until then being kept and saved,
+     *                     or if the snapshot saving the import cannot be written.
+     */
+    public static BulkLoadReport load(File directory) throws IOException {
+        BulkLoadReport report = new BulkLoadReport();
+        Repository repository = Repository.getInstance();
+        return IMPORT.call(() -> {
+            try {
+                repository.bulkLoad(() -> {
+                    for (Table table : Table.values()) {
+                        try {
+                            loadTable(repository, directory, table, report);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                IOException cause = e.getCause();
+                for (Throwable suppressed : e.getSuppressed()) {
+                    cause.addSuppressed(suppressed);
+                }
+                throw cause;
+            }
+            return report;
+        });
+    }
+
+    /**
+     * Applies the rows of one table file, if the directory has one.
+     *
+     * @param repository The repository.
+     * @param directory  The directory holding the table files.
+     * @param table      The table.
+     * @param report     The report of the import.
+     * @throws IOException If the file cannot be read.
+     */
+    private static void loadTable(Repository repository, File directory, Table table, BulkLoadReport report) throws IOException {
+        for (Format format : Format.values()) {
+            File file = new File(directory, table.name + "." + format.extension);
+            if (!file.exists()) {
+                continue;
+            }
+            try (RowReader reader = openReader(file, table, format)) {
+                for (long position = 1; ; position++) {
+                    try {
+                        String[] row = reader.read();
+                        if (row == null) {
+                            break;
+                        }
+                        apply(repository, table, row);
+                        report.applied();
+                    } catch (IOException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        IMPORT.failed(e);
+                        report.rejected(table.name, position, e);
+                    }
+                }
+            }
+            return;
+        }
+    }
+
+    /**
+     * Applies an imported row. The caller holds the repository exclusively.
+     *
+     * @param repository The repository.
+     * @param table      The table of the row.
+     * @param row        The fields, in the table's column order.
+     * @throws Exception If the row cannot be applied.
+     */
+    private static void apply(Repository repository, Table table, String[] row) throws Exception {
+        switch (table) {
+            case USERS:
+                repository.addUser(row[0], row[1], row[2]);
+                break;
+            case ATTRIBUTES:
+                repository.getUser(row[0]).setAtributo(row[1], row[2]);
+                break;
+            case RELATIONSHIPS:
+                applyRelationship(repository, repository.getUser(row[0]), row[1], row[2]);
+                break;
+            case COMMUNITIES:
+                if (repository.isCommunityCreated(row[0])) {
+                    throw new CommunityAlreadyExistsException();
+                }
+                repository.newCommunity(row[0], new Community(row[0], row[1], repository.getUser(row[2]), repository));
+                break;
+            case MEMBERSHIPS:
+                User user = repository.getUser(row[0]);
+                repository.getCommunityByName(row[1]);
+                if (user.getCommunities().contains(row[1])) {
+                    throw new UserAlreadyCommunityMemberException();
+                }
+                user.addCommunity(row[1]);
+                break;
+            case COMMUNITY_MESSAGES:
+                repository.getCommunityByName(row[0]).restoreMessage(repository.getUser(row[1]), row[3], Long.parseLong(row[2]));
+                break;
+            case MEMBERS:
+                repository.getCommunityByName(row[0]).restoreMember(repository.getUser(row[1]), Long.parseLong(row[2]));
+                break;
+            case MESSAGES:
+                repository.getUser(row[0]).addMessage(repository.getUser(row[1]), row[2]);
+                break;
+            case KEPT_MESSAGES:
+                User receiver = repository.getUser(row[0]);
+                User sender = repository.getUser(row[1]);
+                long sequence = Long.parseLong(row[2]);
+                receiver.addCommunityMessage(new CommunityMessage(sender.getId(), row[3], sequence));
+                if (sender != receiver) {
+                    sender.addCorrespondent(receiver.getId());
+                }
+                repository.restoreCommunityMessageSequence(sequence);
+                break;
+        }
+    }
+
+    /**
+     * Applies an imported relationship.
+     *
+     * @param repository The repository.
+     * @param user       The user who started the relationship.
+     * @param relation   The kind of relationship.
+     * @param other      The login of the other user.
+     * @throws Exception If the other user does not exist, or the relationship cannot be applied.
+     */
+    private static void applyRelationship(Repository repository, User user, String relation, String other) throws Exception {
+        switch (String.valueOf(relation)) {
+            case "friend":
+                user.addFriend(other);
+                break;
+            case "idol":
+                User idol = repository.getUser(other);
+                user.follow(other);
+                idol.setFollower(user.getLogin());
+                break;
+            case "crush":
+                repository.getUser(other);
+                user.addCrush(other);
+                break;
+            case "enemy":
+                repository.getUser(other);
+                user.addEnemy(other);
+                break;
+            default:
+                throw new IllegalArgumentException("Relação inválida: " + relation);
+        }
+    }
+
+    /**
+     * Opens a table file for writing and writes its header, if the format has one.
+     *
+     * @param file   The file.
+     * @param table  The table.
+     * @param format The file format.
+     * @return The row writer.
+     * @throws IOException If the file cannot be created.
+     */
+    static RowWriter openWriter(File file, Table table, Format format) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+        if (format == Format.CSV) {
+            writeCsv(out, table.columns);
+            return new RowWriter() {
+                @Override
+                public void write(String[] fields) throws IOException {
+                    writeCsv(out, fields);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.close();
+                }
+            };
+        }
+        return new RowWriter() {
+            @Override
+            public void write(String[] fields) throws IOException {
+                out.write('{');
+                for (int i = 0; i < fields.length; i++) {
+                    if (i > 0) {
+                        out.write(',');
+                    }
+                    writeJsonString(out, table.columns[i]);
+                    out.write(':');
+                    writeJsonString(out, fields[i]);
+                }
+                out.write("}\n");
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+
+    /**
+     * Opens a table file for reading. Columns are matched by name, so they may come in any order;
+     * a CSV file must have every column of the table in its header.
+     *
+     * @param file   The file.
+     * @param table  The table.
+     * @param format The file format.
+     * @return The row reader.
+     * @throws IOException If the file cannot be read, or a CSV header lacks a column.
+     */
+    static RowReader openReader(File file, Table table, Format format) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16);
+        if (format == Format.CSV) {
+            String[] header = readCsv(in);
+            int[] positions = new int[table.columns.length];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = header == null ? -1 : List.of(header).indexOf(table.columns[i]);
+                if (positions[i] < 0) {
+                    in.close();
+                    throw new IOException("Missing column " + table.columns[i] + " in " + file);
+                }
+            }
+            return new RowReader() {
+                @Override
+                public String[] read() throws IOException {
+                    String[] record = readCsv(in);
+                    if (record == null) {
+                        return null;
+                    }
+                    if (record.length != header.length) {
+                        throw new IllegalArgumentException("Número de campos inválido.");
+                    }
+                    String[] row = new String[positions.length];
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = record[positions[i]];
+                    }
+                    return row;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    in.close();
+                }
+            };
+        }
+        return new RowReader() {
+            @Override
+            public String[] read() throws IOException {
+                String line;
+                do {
+                    line = in.readLine();
+                } while (line != null && line.trim().isEmpty());
+                if (line == null) {
+                    return null;
+                }
+                Map<String, String> object = new JsonLine(line).readObject();
+                String[] row = new String[table.columns.length];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = object.get(table.columns[i]);
+                }
+                return row;
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    /**
+     * Writes a CSV record, quoting the fields that hold a comma, a quote, a line break or
+     * surrounding spaces. Null fields are written empty.
+     *
+     * @param out    The output.
+     * @param fields The fields.
+     * @throws IOException If writing fails.
+     */
+    private static void writeCsv(Writer out, String[] fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            String field = fields[i] == null ? "" : fields[i];
+            boolean quoted = !field.isEmpty() && (field.charAt(0) == ' ' || field.charAt(field.length() - 1) == ' ');
+            for (int j = 0; j < field.length() && !quoted; j++) {
+                char c = field.charAt(j);
+                quoted = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (quoted) {
+                out.write('"');
+                out.write(field.replace("\"", "\"\""));
+                out.write('"');
+            } else {
+                out.write(field);
+            }
+        }
+        out.write('\n');
+    }
+
+    /**
+     * Reads a CSV record, which may span several lines when a quoted field holds line breaks.
+     * Blank lines are skipped.
+     *
+     * @param in The input.
+     * @return The fields, or null at the end of the input.
+     * @throws IOException If reading fails.
+     * @throws IllegalArgumentException If the input ends inside a quoted field.
+     */
+    private static String[] readCsv(BufferedReader in) throws IOException {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean started = false;
+        for (int c = in.read(); ; c = in.read()) {
+            if (c < 0) {
+                if (quoted) {
+                    throw new IllegalArgumentException("Campo entre aspas não terminado.");
+                }
+                if (!started) {
+                    return null;
+                }
+                break;
+            }
+            if (quoted) {
+                if (c != '"') {
+                    field.append((char) c);
+                    continue;
+                }
+                in.mark(1);
+                if (in.read() == '"') {
+                    field.append('"');
+                } else {
+                    in.reset();
+                    quoted = false;
+                }
+                continue;
+            }
+            if (c == '\r') {
+                continue;
+            }
+            if (c == '\n') {
+                if (!started) {
+                    continue;
+                }
+                break;
+            }
+            started = true;
+            if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '"') {
+                quoted = true;
+            } else {
+                field.append((char) c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    /**
+     * Writes a JSON string, or {@code null}.
+     *
+     * @param out   The output.
+     * @param value The string, or null.
+     * @throws IOException If writing fails.
+     */
+    private static void writeJsonString(Writer out, String value) throws IOException {
+        if (value == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': out.write("\\\""); break;
+                case '\\': out.write("\\\\"); break;
+                case '\n': out.write("\\n"); break;
+                case '\r': out.write("\\r"); break;
+                case '\t': out.write("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+
+    /**
+     * Parser of one NDJSON line: a flat object whose values are strings, numbers, booleans or null.
+     * Numbers and booleans are kept as their text.
+     */
+    private static class JsonLine {
+        /**
+         * The line.
+         */
+        private final String text;
+
+        /**
+         * Position of the next character.
+         */
+        private int position;
+
+        /**
+         * Creates a parser.
+         *
+         * @param text The line.
+         */
+        private JsonLine(String text) {
+            this.text = text;
+        }
+
+        /**
+         * Reads the object the line holds.
+         *
+         * @return The values, by key.
+         * @throws IllegalArgumentException If the line is not a flat JSON object.
+         */
+        private Map<String, String> readObject() {
+            Map<String, String> object = new HashMap<>();
+            expect('{');
+            if (peek() == '}') {
+                position++;
+            } else {
+                do {
+                    String key = readString();
+                    expect(':');
+                    object.put(key, readValue());
+                } while (next() == ',');
+                position--;
+                expect('}');
+            }
+            if (peek() != 0) {
+                throw invalid();
+            }
+            return object;
+        }
+
+        /**
+         * Reads a value.
+         *
+         * @return The value as text, or null for {@code null}.
+         */
+        private String readValue() {
+            if (peek() == '"') {
+                return readString();
+            }
+            int start = position;
+            while (position < text.length() && ",}".indexOf(text.charAt(position)) < 0 && !Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+            String literal = text.substring(start, position);
+            if (literal.equals("null")) {
+                return null;
+            }
+            if (literal.isEmpty() || literal.startsWith("\"") || literal.startsWith("{") || literal.startsWith("[")) {
+                throw invalid();
+            }
+            return literal;
+        }
+
+        /**
+         * Reads a string.
+         *
+         * @return The string.
+         */
+        private String readString() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                if (position >= text.length()) {
+                    throw invalid();
+                }
+                char c = text.charAt(position++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (position >= text.length()) {
+                    throw invalid();
+                }
+                char escaped = text.charAt(position++);
+                switch (escaped) {
+                    case 'n': value.append('\n'); break;
+                    case 'r': value.append('\r'); break;
+                    case 't': value.append('\t'); break;
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'u':
+                        if (position + 4 > text.length()) {
+                            throw invalid();
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw invalid();
+                        }
+                        position += 4;
+                        break;
+                    default: value.append(escaped);
+                }
+            }
+        }
+
+        /**
+         * Skips whitespace and consumes an expected character.
+         *
+         * @param expected The character.
+         */
+        private void expect(char expected) {
+            if (next() != expected) {
+                throw invalid();
+            }
+        }
+
+        /**
+         * Skips whitespace and consumes the next character.
+         *
+         * @return The character, or 0 at the end of the line.
+         */
+        private char next() {
+            char c = peek();
+            position++;
+            return c;
+        }
+
+        /**
+         * Skips whitespace and returns the next character without consuming it.
+         *
+         * @return The character, or 0 at the end of the line.
+         */
+        private char peek() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+            return position < text.length() ? text.charAt(position) : 0;
+        }
+
+        /**
+         * Builds the error of a malformed line.
+         *
+         * @return The error.
+         */
+        private IllegalArgumentException invalid() {
+            return new IllegalArgumentException("JSON inválido na coluna " + (position + 1) + ".");
+        }
+    }
+
+    /**
+     * Runs an export or an import from the command line, on the system files of the working directory.
+     *
+     * @param args {@code export <directory> [csv|ndjson]} or {@code import <directory>}.
+     * @throws IOException If a file cannot be read or written.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2 && args[0].equals("export")) {
+            Format format = args.length > 2 ? Format.valueOf(args[2].toUpperCase(Locale.ROOT)) : Format.CSV;
+            long start = System.nanoTime();
+            long rows = export(new File(args[1]), format);
+            System.out.printf("%d rows exported to %s in %.1f s%n", rows, args[1], (System.nanoTime() - start) / 1e9);
+        } else if (args.length >= 2 && args[0].equals("import")) {
+            long start = System.nanoTime();
+            BulkLoadReport report = load(new File(args[1]));
+            for (BulkLoadReport.RowError error : report.getErrors()) {
+                System.err.println(error);
+            }
+            System.out.printf("%d rows imported, %d rejected, in %.1f s%n", report.getApplied(), report.getErrors().size(),
+                    (System.nanoTime() - start) / 1e9);
+        } else {
+            System.err.println("Usage: Dataset export <directory> [csv|ndjson] | Dataset import <directory>");
+            System.exit(2);
+        }
+    }
+}
@@ -1,13 +1,13 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 
 /**
- * Exceo lanada quando um usurio tenta adicionar como paquera algum que j foi adicionado.
+ * Exceção lançada quando um usuário tenta adicionar como paquera alguém que já foi adicionado.
  */
 public class AlreadyCrushException extends Exception {
     /**
-     * Cria uma nova instncia de AlreadyCrushException com a mensagem padro.
+     * Cria uma nova instância de AlreadyCrushException com a mensagem padrão.
      */
     public AlreadyCrushException() {
-        super("Usurio j est adicionado como paquera.");
+        super("Usuário já está adicionado como paquera.");
     }
 }
\ No newline at end of file
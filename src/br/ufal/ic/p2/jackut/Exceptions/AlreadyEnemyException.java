@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando um usurio tenta adicionar como inimigo algum que j foi adicionado.
+ * Exceção lançada quando um usuário tenta adicionar como inimigo alguém que já foi adicionado.
  */
 public class AlreadyEnemyException extends Exception {
     /**
-     * Cria uma nova instncia de AlreadyEnemyException com a mensagem padro.
+     * Cria uma nova instância de AlreadyEnemyException com a mensagem padrão.
      */
     public AlreadyEnemyException() {
-        super("Usurio j est adicionado como inimigo.");
+        super("Usuário já está adicionado como inimigo.");
     }
 }
@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando um usurio tenta adicionar como dolo algum que j foi adicionado.
+ * Exceção lançada quando um usuário tenta adicionar como ídolo alguém que já foi adicionado.
  */
 public class AlreadyFollowsException extends RuntimeException {
     /**
-     * Cria uma nova instncia de AlreadyFollowsException com a mensagem padro.
+     * Cria uma nova instância de AlreadyFollowsException com a mensagem padrão.
      */
     public AlreadyFollowsException() {
-        super("Usurio j est adicionado como dolo.");
+        super("Usuário já está adicionado como ídolo.");
     }
 }
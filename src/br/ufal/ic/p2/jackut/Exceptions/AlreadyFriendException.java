@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando um usurio tenta adicionar como amigo algum que j foi adicionado.
+ * Exceção lançada quando um usuário tenta adicionar como amigo alguém que já foi adicionado.
  */
 public class AlreadyFriendException extends Exception{
     /**
-     * Cria uma nova instncia de AlreadyFriendException com a mensagem padro.
+     * Cria uma nova instância de AlreadyFriendException com a mensagem padrão.
      */
     public AlreadyFriendException(){
-        super("Usurio j est adicionado como amigo.");
+        super("Usuário já está adicionado como amigo.");
     }
 }
\ No newline at end of file
@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando um usurio tenta adicionar como amigo a si mesmo.
+ * Exceção lançada quando um usuário tenta adicionar como amigo a si mesmo.
  */
 public class CantAddItselfException extends Exception {
     /**
-     * Cria uma nova instncia de CantAddItselfException com a mensagem padro.
+     * Cria uma nova instância de CantAddItselfException com a mensagem padrão.
      */
     public CantAddItselfException() {
-        super("Usurio no pode adicionar a si mesmo como amigo.");
+        super("Usuário não pode adicionar a si mesmo como amigo.");
     }
 }
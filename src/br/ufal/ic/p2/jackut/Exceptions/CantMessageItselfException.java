@@ -1,13 +1,13 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 
 /**
- * Exceo lanada quando um usurio tenta enviar mensagem para si mesmo.
+ * Exceção lançada quando um usuário tenta enviar mensagem para si mesmo.
  */
 public class CantMessageItselfException extends Exception {
     /**
-     * Cria uma nova instncia de CantMessageItselfException com a mensagem padro.
+     * Cria uma nova instância de CantMessageItselfException com a mensagem padrão.
      */
     public CantMessageItselfException() {
-        super("Usurio no pode enviar recado para si mesmo.");
+        super("Usuário não pode enviar recado para si mesmo.");
     }
 }
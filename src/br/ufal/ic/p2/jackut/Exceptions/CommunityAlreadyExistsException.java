@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando um usurio tenta criar uma comunidade com um nome j existente.
+ * Exceção lançada quando um usuário tenta criar uma comunidade com um nome já existente.
  */
 public class CommunityAlreadyExistsException extends Exception {
     /**
-     * Cria uma nova instncia de CommunityAlreadyExistsException com a mensagem padro.
+     * Cria uma nova instância de CommunityAlreadyExistsException com a mensagem padrão.
      */
      public CommunityAlreadyExistsException() {
-         super("Comunidade com esse nome j existe.");
+         super("Comunidade com esse nome já existe.");
      }
 }
@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando se tenta acessar uma comunidade que no existe.
+ * Exceção lançada quando se tenta acessar uma comunidade que não existe.
  */
 public class CommunityDoesntExistException extends Exception {
     /**
-     * Cria uma nova instncia de CommunityDoesntExistException com a mensagem padro.
+     * Cria uma nova instância de CommunityDoesntExistException com a mensagem padrão.
      */
     public CommunityDoesntExistException() {
-        super("Comunidade no existe.");
+        super("Comunidade não existe.");
     }
 }
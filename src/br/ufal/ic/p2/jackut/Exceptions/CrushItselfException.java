@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando um usurio tenta adicionar como paquera a si mesmo.
+ * Exceção lançada quando um usuário tenta adicionar como paquera a si mesmo.
  */
 public class CrushItselfException extends Exception {
     /**
-     * Cria uma nova instncia de CrushItselfException com a mensagem padro.
+     * Cria uma nova instância de CrushItselfException com a mensagem padrão.
      */
     public CrushItselfException() {
-        super("Usurio no pode ser paquera de si mesmo.");
+        super("Usuário não pode ser paquera de si mesmo.");
     }
 }
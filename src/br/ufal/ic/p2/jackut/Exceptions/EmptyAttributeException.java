@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando um se tenta acessar um atributo de usurio que no existe.
+ * Exceção lançada quando um se tenta acessar um atributo de usuário que não existe.
  */
 public class EmptyAttributeException extends Exception {
     /**
-     * Cria uma nova instncia de EmptyAttributeException com a mensagem padro.
+     * Cria uma nova instância de EmptyAttributeException com a mensagem padrão.
      */
     public EmptyAttributeException() {
-        super("Atributo no preenchido.");
+        super("Atributo não preenchido.");
     }
 }
@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando um usurio tenta fazer alguma ao bloqueada por conta do status de inimizade.
+ * Exceção lançada quando um usuário tenta fazer alguma ação bloqueada por conta do status de inimizade.
  */
 public class InvalidFunctionEnemyException extends Exception {
     /**
-     * Cria uma nova instncia de InvalidFunctionEnemyException com a mensagem padro.
+     * Cria uma nova instância de InvalidFunctionEnemyException com a mensagem padrão.
      */
     public InvalidFunctionEnemyException(String enemy) {
-        super(String.format("Funo invlida: %s  seu inimigo.", enemy));
+        super(String.format("Função inválida: %s é seu inimigo.", enemy));
     }
 }
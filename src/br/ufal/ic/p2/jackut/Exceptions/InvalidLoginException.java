@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando se tenta cadastrar um usurio no sistema e o login inserido  nulo.
+ * Exceção lançada quando se tenta cadastrar um usuário no sistema e o login inserido é nulo.
  */
 public class InvalidLoginException  extends Exception {
     /**
-     * Cria uma nova instncia de InvalidLoginException com a mensagem padro.
+     * Cria uma nova instância de InvalidLoginException com a mensagem padrão.
      */
     public InvalidLoginException() {
-        super("Login invlido.");
+        super("Login inválido.");
     }
 }
@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando se tenta cadastrar um usurio no sistema e a senha inserida  nula.
+ * Exceção lançada quando se tenta cadastrar um usuário no sistema e a senha inserida é nula.
  */
 public class InvalidPasswordException extends Exception {
     /**
-     * Cria uma nova instncia de InvalidPasswordException com a mensagem padro.
+     * Cria uma nova instância de InvalidPasswordException com a mensagem padrão.
      */
     public InvalidPasswordException() {
-        super("Senha invlida.");
+        super("Senha inválida.");
     }
 }
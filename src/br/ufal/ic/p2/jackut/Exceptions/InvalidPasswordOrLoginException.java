@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando se tenta iniciar uma sesso com as credenciais erradas.
+ * Exceção lançada quando se tenta iniciar uma sessão com as credenciais erradas.
  */
 public class InvalidPasswordOrLoginException extends Exception {
     /**
-     * Cria uma nova instncia de InvalidPasswordOrLoginException com a mensagem padro.
+     * Cria uma nova instância de InvalidPasswordOrLoginException com a mensagem padrão.
      */
     public InvalidPasswordOrLoginException() {
-        super("Login ou senha invlidos.");
+        super("Login ou senha inválidos.");
     }
 }
@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando o usurio tenta ler mensagens, mas no h mais nenhuma para se ser lida.
+ * Exceção lançada quando o usuário tenta ler mensagens, mas não há mais nenhuma para se ser lida.
  */
 public class NoCommunityMessagesException extends Exception {
     /**
-     * Cria uma nova instncia de NoCommunityMessagesException com a mensagem padro.
+     * Cria uma nova instância de NoCommunityMessagesException com a mensagem padrão.
      */
     public NoCommunityMessagesException() {
-        super("No h mensagens.");
+        super("Não há mensagens.");
     }
 }
@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando o usurio tenta ler recados, mas no h mais nenhum para se ser lida.
+ * Exceção lançada quando o usuário tenta ler recados, mas não há mais nenhum para se ser lida.
  */
 public class NoMessagesException extends Exception {
     /**
-     * Cria uma nova instncia de NoMessagesException com a mensagem padro.
+     * Cria uma nova instância de NoMessagesException com a mensagem padrão.
      */
     public NoMessagesException() {
-        super("No h recados.");
+        super("Não há recados.");
     }
 }
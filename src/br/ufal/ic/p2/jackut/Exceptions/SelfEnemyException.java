@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando um usurio tenta adicionar como inimigo a si mesmo.
+ * Exceção lançada quando um usuário tenta adicionar como inimigo a si mesmo.
  */
 public class SelfEnemyException extends Exception {
     /**
-     * Cria uma nova instncia de SelfEnemyException com a mensagem padro.
+     * Cria uma nova instância de SelfEnemyException com a mensagem padrão.
      */
     public SelfEnemyException(){
-        super("Usurio no pode ser inimigo de si mesmo.");
+        super("Usuário não pode ser inimigo de si mesmo.");
     }
 }
@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando um usurio tenta adicionar como f a si mesmo.
+ * Exceção lançada quando um usuário tenta adicionar como fã a si mesmo.
  */
 public class SelfFanException extends Exception {
     /**
-     * Cria uma nova instncia de SelfFanException com a mensagem padro.
+     * Cria uma nova instância de SelfFanException com a mensagem padrão.
      */
     public SelfFanException() {
-        super("Usurio no pode ser f de si mesmo.");
+        super("Usuário não pode ser fã de si mesmo.");
     }
 }
@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando um usurio tenta entrar numa comunidade em que j est.
+ * Exceção lançada quando um usuário tenta entrar numa comunidade em que já está.
  */
 public class UserAlreadyCommunityMemberException extends Exception {
     /**
-     * Cria uma nova instncia de UserAlreadyCommunityMemberException com a mensagem padro.
+     * Cria uma nova instância de UserAlreadyCommunityMemberException com a mensagem padrão.
      */
     public UserAlreadyCommunityMemberException() {
-        super("Usuario j faz parte dessa comunidade.");
+        super("Usuario já faz parte dessa comunidade.");
     }
 }
@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando se tenta cadastrar um usurio com um nome j existente.
+ * Exceção lançada quando se tenta cadastrar um usuário com um nome já existente.
  */
 public class UserAlreadyExistsException extends Exception {
     /**
-     * Cria uma nova instncia de UserAlreadyExistsException com a mensagem padro.
+     * Cria uma nova instância de UserAlreadyExistsException com a mensagem padrão.
      */
     public UserAlreadyExistsException() {
-        super("Conta com esse nome j existe.");
+        super("Conta com esse nome já existe.");
     }
 }
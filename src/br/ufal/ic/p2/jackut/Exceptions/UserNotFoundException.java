@@ -2,14 +2,14 @@ package br.ufal.ic.p2.jackut.Exceptions;
 
 import java.nio.charset.StandardCharsets;
 /**
- * Exceo lanada quando se tenta buscar por um usurio que no est cadastrado no sistema.
+ * Exceção lançada quando se tenta buscar por um usuário que não está cadastrado no sistema.
  */
 public class UserNotFoundException extends Exception {
     /**
-     * Cria uma nova instncia de UserNotFoundException com a mensagem padro.
+     * Cria uma nova instância de UserNotFoundException com a mensagem padrão.
      */
     public UserNotFoundException() {
-        super("Usurio no cadastrado.");
+        super("Usuário não cadastrado.");
     }
 }
 
@@ -1,12 +1,12 @@
 package br.ufal.ic.p2.jackut.Exceptions;
 /**
- * Exceo lanada quando um usurio tenta adicionar como amigo a si mesmo.
+ * Exceção lançada quando um usuário tenta adicionar como amigo a si mesmo.
  */
 public class WaitingToAcceptException extends Exception {
     /**
-     * Cria uma nova instncia de WaitingToAcceptException com a mensagem padro.
+     * Cria uma nova instância de WaitingToAcceptException com a mensagem padrão.
      */
     public WaitingToAcceptException() {
-        super("Usurio j est adicionado como amigo, esperando aceitao do convite.");
+        super("Usuário já está adicionado como amigo, esperando aceitação do convite.");
     }
 }
@@ -2,6 +2,8 @@ package br.ufal.ic.p2.jackut;
 
 import br.ufal.ic.p2.jackut.Exceptions.*;
 
+import java.util.stream.Stream;
+
 /**
  * Provides a simplified interface to the Jackut system, exposing core functionality
  * for managing users, sessions, communities, and messages.
@@ -22,14 +24,14 @@ public class Facade {
     }
 
     /**
-     * Cria um novo usurio no sistema.
+     * Cria um novo usuário no sistema.
      *
-     * @param login    O login do usurio.
-     * @param password A senha do usurio.
-     * @param nome     O nome do usurio.
-     * @throws InvalidPasswordException   Se a senha for invlida.
-     * @throws InvalidLoginException      Se o login for invlido.
-     * @throws UserAlreadyExistsException Se o usurio j existir.
+     * @param login    O login do usuário.
+     * @param password A senha do usuário.
+     * @param nome     O nome do usuário.
+     * @throws InvalidPasswordException   Se a senha for inválida.
+     * @throws InvalidLoginException      Se o login for inválido.
+     * @throws UserAlreadyExistsException Se o usuário já existir.
      */
     public void criarUsuario(String login, String password, String nome)
             throws InvalidPasswordException, InvalidLoginException, UserAlreadyExistsException {
@@ -37,13 +39,13 @@ public class Facade {
     }
 
     /**
-     * Obtm um atributo de um usurio.
+     * Obtém um atributo de um usuário.
      *
-     * @param login    O login do usurio.
+     * @param login    O login do usuário.
      * @param atributo O nome do atributo desejado.
      * @return O valor do atributo solicitado.
      * @throws EmptyAttributeException Se o atributo estiver vazio.
-     * @throws UserNotFoundException   Se o usurio no for encontrado.
+     * @throws UserNotFoundException   Se o usuário não for encontrado.
      */
     public String getAtributoUsuario(String login, String atributo)
             throws EmptyAttributeException, UserNotFoundException {
@@ -51,12 +53,12 @@ public class Facade {
     }
 
     /**
-     * Abre uma sesso para um usurio autenticado.
+     * Abre uma sessão para um usuário autenticado.
      *
-     * @param login O login do usurio.
-     * @param senha A senha do usurio.
-     * @return O ID da sesso criada.
-     * @throws UserNotFoundException           Se o usurio no for encontrado.
+     * @param login O login do usuário.
+     * @param senha A senha do usuário.
+     * @return O ID da sessão criada.
+     * @throws UserNotFoundException           Se o usuário não for encontrado.
      * @throws InvalidPasswordOrLoginException Se login ou senha estiverem incorretos.
      */
     public String abrirSessao(String login, String senha)
@@ -72,12 +74,12 @@ public class Facade {
     }
 
     /**
-     * Edita o perfil de um usurio.
+     * Edita o perfil de um usuário.
      *
-     * @param id       O ID do usurio.
+     * @param id       O ID do usuário.
      * @param atributo O atributo a ser modificado.
      * @param valor    O novo valor do atributo.
-     * @throws UserNotFoundException   Se o usurio no for encontrado.
+     * @throws UserNotFoundException   Se o usuário não for encontrado.
      * @throws EmptyAttributeException Se o atributo estiver vazio.
      */
     public void editarPerfil(String id, String atributo, String valor)
@@ -90,14 +92,14 @@ public class Facade {
     }
 
     /**
-     * Adiciona um amigo  lista de amigos do usurio.
+     * Adiciona um amigo à lista de amigos do usuário.
      *
-     * @param id    O ID do usurio.
+     * @param id    O ID do usuário.
      * @param amigo O login do amigo a ser adicionado.
-     * @throws UserNotFoundException     Se o usurio no for encontrado.
-     * @throws WaitingToAcceptException  Se o convite j foi enviado e aguarda aceitao.
-     * @throws AlreadyFriendException    Se os usurios j so amigos.
-     * @throws InvalidFunctionEnemyException Se o usurio for inimigo.
+     * @throws UserNotFoundException     Se o usuário não for encontrado.
+     * @throws WaitingToAcceptException  Se o convite já foi enviado e aguarda aceitação.
+     * @throws AlreadyFriendException    Se os usuários já são amigos.
+     * @throws InvalidFunctionEnemyException Se o usuário for inimigo.
      */
     public void adicionarAmigo(String id, String amigo)
             throws Exception, UserNotFoundException, WaitingToAcceptException, AlreadyFriendException, InvalidFunctionEnemyException {
@@ -105,36 +107,36 @@ public class Facade {
     }
 
     /**
-     * Obtm a lista de amigos de um usurio.
+     * Obtém a lista de amigos de um usuário.
      *
-     * @param login O login do usurio.
-     * @return Uma String representando os amigos do usurio.
+     * @param login O login do usuário.
+     * @return Uma String representando os amigos do usuário.
      */
     public String getAmigos(String login)  {
         return this.jackut.getFriends(login);
     }
 
     /**
-     * Verifica se dois usurios so amigos.
+     * Verifica se dois usuários são amigos.
      *
-     * @param login O login do usurio.
-     * @param amigo O login do possvel amigo.
-     * @return `true` se forem amigos, `false` caso contrrio.
-     * @throws UserNotFoundException Se o usurio no for encontrado.
+     * @param login O login do usuário.
+     * @param amigo O login do possível amigo.
+     * @return `true` se forem amigos, `false` caso contrário.
+     * @throws UserNotFoundException Se o usuário não for encontrado.
      */
     public boolean ehAmigo(String login, String amigo) throws UserNotFoundException {
         return this.jackut.isFriend(login, amigo);
     }
 
     /**
-     * Envia um recado para outro usurio.
+     * Envia um recado para outro usuário.
      *
      * @param id           O ID do remetente.
-     * @param destinatario O login do destinatrio.
+     * @param destinatario O login do destinatário.
      * @param mensagem     A mensagem a ser enviada.
-     * @throws CantMessageItselfException Se o usurio tentar enviar mensagem para si mesmo.
-     * @throws UserNotFoundException      Se o destinatrio no for encontrado.
-     * @throws InvalidFunctionEnemyException Se o usurio for inimigo.
+     * @throws CantMessageItselfException Se o usuário tentar enviar mensagem para si mesmo.
+     * @throws UserNotFoundException      Se o destinatário não for encontrado.
+     * @throws InvalidFunctionEnemyException Se o usuário for inimigo.
      */
     public void enviarRecado(String id, String destinatario, String mensagem)
             throws CantMessageItselfException, UserNotFoundException, InvalidFunctionEnemyException {
@@ -142,12 +144,12 @@ public class Facade {
     }
 
     /**
-     * L o primeiro recado disponvel para um usurio.
+     * Lê o primeiro recado disponível para um usuário.
      *
-     * @param sessionId O ID da sesso do usurio.
-     * @return O contedo do recado.
-     * @throws UserNotFoundException Se o usurio no for encontrado.
-     * @throws NoMessagesException   Se no houver mensagens disponveis.
+     * @param sessionId O ID da sessão do usuário.
+     * @return O conteúdo do recado.
+     * @throws UserNotFoundException Se o usuário não for encontrado.
+     * @throws NoMessagesException   Se não houver mensagens disponíveis.
      */
     public String lerRecado(String sessionId)
             throws UserNotFoundException, NoMessagesException {
@@ -331,4 +333,21 @@ public class Facade {
         this.jackut.removeUser(id);
     }
 
+    /**
+     * Loads users, friendships, community memberships and private messages in bulk, validating each
+     * row and saving the whole load with a single snapshot. See {@link Jackut#bulkLoad} for the
+     * fields of each row.
+     * @param usuarios Rows of login, password and name.
+     * @param amizades Rows of two logins that become friends.
+     * @param comunidades Rows of login and community to join, or of login, community and
+     *                    description to create.
+     * @param recados Rows of sender, receiver and text.
+     * @return The number of applied rows and the rejected rows with their errors.
+     * @throws java.io.UncheckedIOException If the snapshot saving the load could not be written.
+     */
+    public BulkLoadReport carregarEmLote(Stream<String[]> usuarios, Stream<String[]> amizades,
+                                         Stream<String[]> comunidades, Stream<String[]> recados) {
+        return this.jackut.bulkLoad(usuarios, amizades, comunidades, recados);
+    }
+
 }
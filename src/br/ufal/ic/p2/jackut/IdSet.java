@@ -0,0 +1,226 @@
+package br.ufal.ic.p2.jackut;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Insertion-ordered set of user ids given by {@link LoginIds}, stored as primitive ints.
+ *
+ * The ids are kept in an array in the order they were added, so listings keep the order in which
+ * relationships were created. Small sets are searched linearly; once a set holds more than
+ * {@link #LINEAR_LIMIT} entries, an open-addressing hash table over the array positions is built,
+ * so membership checks take constant time. Removed ids leave a hole in the array, which is
+ * squeezed out the next time the array is full.
+ *
+ * Instances are not thread-safe; each set is guarded by the user that owns it.
+ */
+class IdSet {
+
+    /**
+     * Shared array of empty sets.
+     */
+    private static final int[] EMPTY = new int[0];
+
+    /**
+     * Number of entries up to which the set is searched linearly, without a hash table.
+     */
+    private static final int LINEAR_LIMIT = 8;
+
+    /**
+     * Marks the position of a removed id in {@link #order}. Ids are never negative.
+     */
+    private static final int REMOVED = -1;
+
+    /**
+     * The ids in insertion order, with {@link #REMOVED} at the positions of removed ids.
+     */
+    private int[] order = EMPTY;
+
+    /**
+     * Number of used positions in {@link #order}, removed ones included.
+     */
+    private int end;
+
+    /**
+     * Number of ids in the set.
+     */
+    private int size;
+
+    /**
+     * Hash table of the positions in {@link #order}, plus one, with 0 for an empty slot; probed
+     * linearly. Null while the set is small enough to be searched linearly.
+     */
+    private int[] table;
+
+    /**
+     * Checks whether the set holds an id.
+     *
+     * @param id The id, or a negative value for a login without an id.
+     * @return true if the id is in the set.
+     */
+    boolean contains(int id) {
+        return positionOf(id) >= 0;
+    }
+
+    /**
+     * Adds an id at the end of the set, if it is not there yet.
+     *
+     * @param id The id.
+     * @return true if the id was added.
+     */
+    boolean add(int id) {
+        if (positionOf(id) >= 0) {
+            return false;
+        }
+        if (end == order.length) {
+            compact(size >= order.length / 2 ? Math.max(4, order.length * 2) : order.length);
+        }
+        order[end] = id;
+        if (table != null) {
+            insert(id, end);
+        }
+        end++;
+        size++;
+        if (table == null && end > LINEAR_LIMIT) {
+            index();
+        }
+        return true;
+    }
+
+    /**
+     * Removes an id from the set.
+     *
+     * @param id The id, or a negative value for a login without an id.
+     * @return true if the id was in the set.
+     */
+    boolean remove(int id) {
+        int position = positionOf(id);
+        if (position < 0) {
+            return false;
+        }
+        order[position] = REMOVED;
+        if (--size == 0) {
+            clear();
+        }
+        return true;
+    }
+
+    /**
+     * Removes every id.
+     */
+    void clear() {
+        order = EMPTY;
+        table = null;
+        end = 0;
+        size = 0;
+    }
+
+    /**
+     * Gets the number of ids in the set.
+     *
+     * @return The size.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Calls an action with every id, in insertion order.
+     *
+     * @param action The action.
+     */
+    void forEach(IntConsumer action) {
+        for (int i = 0; i < end; i++) {
+            if (order[i] != REMOVED) {
+                action.accept(order[i]);
+            }
+        }
+    }
+
+    /**
+     * Finds the position of an id in {@link #order}.
+     *
+     * @param id The id.
+     * @return The position, or -1 if the id is not in the set.
+     */
+    private int positionOf(int id) {
+        if (id < 0) {
+            return -1;
+        }
+        if (table == null) {
+            for (int i = 0; i < end; i++) {
+                if (order[i] == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int mask = table.length - 1;
+        for (int slot = hash(id) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            if (order[table[slot] - 1] == id) {
+                return table[slot] - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Moves the ids to a new array of the given capacity, dropping the removed positions, and
+     * rebuilds the hash table.
+     *
+     * @param capacity The new capacity, at least {@link #size} plus one.
+     */
+    private void compact(int capacity) {
+        int[] compacted = new int[capacity];
+        int kept = 0;
+        for (int i = 0; i < end; i++) {
+            if (order[i] != REMOVED) {
+                compacted[kept++] = order[i];
+            }
+        }
+        order = compacted;
+        end = kept;
+        table = null;
+        if (end > LINEAR_LIMIT) {
+            index();
+        }
+    }
+
+    /**
+     * Builds the hash table over the used positions, with at least twice as many slots as the
+     * capacity of {@link #order}, so the table never gets more than half full.
+     */
+    private void index() {
+        table = new int[Integer.highestOneBit(order.length * 2 - 1) << 1];
+        for (int i = 0; i < end; i++) {
+            if (order[i] != REMOVED) {
+                insert(order[i], i);
+            }
+        }
+    }
+
+    /**
+     * Adds a position to the hash table.
+     *
+     * @param id       The id at the position.
+     * @param position The position in {@link #order}.
+     */
+    private void insert(int id, int position) {
+        int mask = table.length - 1;
+        int slot = hash(id) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = position + 1;
+    }
+
+    /**
+     * Spreads the bits of an id, since ids are consecutive.
+     *
+     * @param id The id.
+     * @return The hash.
+     */
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,557 @@
+package br.ufal.ic.p2.jackut;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * First-in first-out queue of the messages waiting to be read by a user, holding a bounded number
+ * of them in memory whatever the length of the queue.
+ *
+ * The oldest messages are kept in an in-memory head and the newest ones in an in-memory tail.
+ * When the tail fills up it is appended to the inbox's segment files on disk, each holding up to
+ * {@link #SEGMENT_MESSAGES} messages; when the head has been read it is refilled from the oldest
+ * segment, and a segment is deleted once it has been read. An inbox therefore keeps at most twice
+ * {@link #MEMORY_MESSAGES} messages in memory.
+ *
+ * Segment files only relieve the heap and are not part of the persisted state: messages are
+ * written with their user to the snapshot and replayed from the journal like any other data, so
+ * the segment directory is cleared when the system starts. Segments hold messages in the encoding
+ * of the snapshot, so writing a snapshot copies them as they are.
+ *
+ * Instances are not thread-safe; each inbox is guarded by the user that owns it.
+ *
+ * @param <T> The message type.
+ */
+class Inbox<T> {
+
+    /**
+     * Number of messages an inbox keeps in its head, and in its tail, before spilling to disk.
+     * Configurable through the {@code jackut.inbox.memory} system property.
+     */
+    private static final int MEMORY_MESSAGES = Math.max(1, Integer.getInteger("jackut.inbox.memory", 64));
+
+    /**
+     * Directory holding the segment files of every inbox.
+     * Configurable through the {@code jackut.inbox.dir} system property.
+     */
+    private static final File SPILL_DIRECTORY = new File(System.getProperty("jackut.inbox.dir", "jackut_inbox"));
+
+    /**
+     * Number of messages written to a segment before a new one is started.
+     */
+    private static final int SEGMENT_MESSAGES = 4096;
+
+    /**
+     * Source of the ids naming the segment files of each inbox.
+     */
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    /**
+     * Number of messages currently spilled to disk, over every inbox.
+     */
+    private static final AtomicLong SPILLED = new AtomicLong();
+
+    /**
+     * Encoding of the messages, shared with the snapshot.
+     *
+     * @param <T> The message type.
+     */
+    interface Codec<T> {
+        /**
+         * Writes a message.
+         *
+         * @param out        The output stream.
+         * @param message    The message.
+         * @param repository The repository, giving the logins of the ids in the message.
+         * @throws IOException If writing fails.
+         */
+        void write(DataOutputStream out, T message, Repository repository) throws IOException;
+
+        /**
+         * Reads a message written by {@link #write}.
+         *
+         * @param in         The input stream.
+         * @param repository The repository, giving the ids of the logins in the message.
+         * @return The message.
+         * @throws IOException If reading fails.
+         */
+        T read(DataInputStream in, Repository repository) throws IOException;
+    }
+
+    /**
+     * Encoding of the messages.
+     */
+    private final Codec<T> codec;
+
+    /**
+     * The repository the inbox belongs to.
+     */
+    private final Repository repository;
+
+    /**
+     * Oldest messages, read first; null while empty.
+     */
+    private ArrayDeque<T> head;
+
+    /**
+     * Newest messages, not spilled yet; null while empty.
+     */
+    private ArrayDeque<T> tail;
+
+    /**
+     * Number of messages in the inbox, in memory and on disk.
+     */
+    private int size;
+
+    /**
+     * Id naming the inbox's segment files, or -1 until the inbox first spills.
+     */
+    private long id = -1;
+
+    /**
+     * Index of the oldest segment.
+     */
+    private int firstSegment;
+
+    /**
+     * Number of segments on disk.
+     */
+    private int segmentCount;
+
+    /**
+     * Offset of the next message to read in the oldest segment.
+     */
+    private long readOffset;
+
+    /**
+     * Number of messages written to the newest segment.
+     */
+    private int lastSegmentMessages;
+
+    /**
+     * Creates an empty inbox.
+     *
+     * @param codec Encoding of the messages.
+     * @param repository The repository the inbox belongs to.
+     */
+    Inbox(Codec<T> codec, Repository repository) {
+        this.codec = codec;
+        this.repository = repository;
+    }
+
+    /**
+     * Adds a message at the end of the inbox.
+     *
+     * @param message The message.
+     */
+    void add(T message) {
+        size++;
+        if (segmentCount == 0 && count(tail) == 0 && count(head) < MEMORY_MESSAGES) {
+            if (head == null) {
+                head = new ArrayDeque<>();
+            }
+            head.add(message);
+            return;
+        }
+        if (tail == null) {
+            tail = new ArrayDeque<>();
+        }
+        tail.add(message);
+        if (tail.size() >= MEMORY_MESSAGES) {
+            spill();
+        }
+    }
+
+    /**
+     * Gets the oldest message without removing it.
+     *
+     * @return The message, or null if the inbox is empty.
+     */
+    T peek() {
+        fill();
+        return head == null ? null : head.peek();
+    }
+
+    /**
+     * Removes and returns the oldest message.
+     *
+     * @return The message, or null if the inbox is empty.
+     */
+    T poll() {
+        fill();
+        T message = head == null ? null : head.poll();
+        if (message != null) {
+            size--;
+        }
+        return message;
+    }
+
+    /**
+     * Gets the number of messages in the inbox, in memory and on disk.
+     *
+     * @return The size.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Calls an action with every message, oldest first, reading the spilled ones back from disk.
+     *
+     * @param action The action.
+     */
+    void forEach(Consumer<T> action) {
+        if (head != null) {
+            head.forEach(action);
+        }
+        for (int i = 0; i < segmentCount; i++) {
+            File file = segmentFile(firstSegment + i);
+            try (FileInputStream fin = new FileInputStream(file)) {
+                long start = i == 0 ? readOffset : 0;
+                fin.getChannel().position(start);
+                long length = fin.getChannel().size() - start;
+                CountingInputStream counting = new CountingInputStream(new BufferedInputStream(fin));
+                DataInputStream in = new DataInputStream(counting);
+                while (counting.count < length) {
+                    action.accept(codec.read(in, repository));
+                }
+            } catch (IOException e) {
+                System.err.println("Error reading inbox segment " + file + ": " + e.getMessage());
+            }
+        }
+        if (tail != null) {
+            tail.forEach(action);
+        }
+    }
+
+    /**
+     * Removes the messages matching a condition, rewriting the segments on disk.
+     *
+     * @param filter The condition.
+     */
+    void removeIf(Predicate<T> filter) {
+        if (head != null) {
+            size -= count(head);
+            head.removeIf(filter);
+            size += head.size();
+        }
+        if (tail != null) {
+            size -= count(tail);
+            tail.removeIf(filter);
+            size += tail.size();
+        }
+        for (int i = 0; i < segmentCount; i++) {
+            int segment = firstSegment + i;
+            File file = segmentFile(segment);
+            File rewritten = new File(file.getPath() + ".tmp");
+            int kept = 0;
+            int dropped = 0;
+            try (FileInputStream fin = new FileInputStream(file);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(rewritten)))) {
+                long start = i == 0 ? readOffset : 0;
+                fin.getChannel().position(start);
+                long length = fin.getChannel().size() - start;
+                CountingInputStream counting = new CountingInputStream(new BufferedInputStream(fin));
+                DataInputStream in = new DataInputStream(counting);
+                while (counting.count < length) {
+                    T message = codec.read(in, repository);
+                    if (filter.test(message)) {
+                        dropped++;
+                    } else {
+                        codec.write(out, message, repository);
+                        kept++;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error rewriting inbox segment " + file + ": " + e.getMessage());
+                rewritten.delete();
+                continue;
+            }
+            try {
+                Files.move(rewritten.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                System.err.println("Error rewriting inbox segment " + file + ": " + e.getMessage());
+                rewritten.delete();
+                continue;
+            }
+            if (i == 0) {
+                readOffset = 0;
+            }
+            if (i == segmentCount - 1) {
+                lastSegmentMessages = kept;
+            }
+            size -= dropped;
+            SPILLED.addAndGet(-dropped);
+        }
+    }
+
+    /**
+     * Removes every message and deletes the segments.
+     */
+    void clear() {
+        for (int i = 0; i < segmentCount; i++) {
+            segmentFile(firstSegment + i).delete();
+        }
+        SPILLED.addAndGet(-(size - count(head) - count(tail)));
+        head = null;
+        tail = null;
+        size = 0;
+        segmentCount = 0;
+        readOffset = 0;
+        lastSegmentMessages = 0;
+    }
+
+    /**
+     * Writes the messages in the snapshot format: their number, then each message, oldest first.
+     * Spilled messages are copied from the segments without being decoded.
+     *
+     * @param out The snapshot output stream.
+     * @throws IOException If writing fails or a segment cannot be read.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        BinaryFormat.writeVarInt(out, size);
+        if (head != null) {
+            for (T message : head) {
+                codec.write(out, message, repository);
+            }
+        }
+        byte[] buffer = new byte[8192];
+        for (int i = 0; i < segmentCount; i++) {
+            try (FileInputStream fin = new FileInputStream(segmentFile(firstSegment + i))) {
+                fin.getChannel().position(i == 0 ? readOffset : 0);
+                int read;
+                while ((read = fin.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+            }
+        }
+        if (tail != null) {
+            for (T message : tail) {
+                codec.write(out, message, repository);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of messages spilled to disk, over every inbox.
+     *
+     * @return The number of spilled messages.
+     */
+    static long getSpilledCount() {
+        return SPILLED.get();
+    }
+
+    /**
+     * Deletes every segment file, left by a previous run or by inboxes that were discarded.
+     * Called when the system starts and when it is erased, once no inbox refers to them.
+     */
+    static void clearSpillDirectory() {
+        File[] files = SPILL_DIRECTORY.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        SPILLED.set(0);
+    }
+
+    /**
+     * Refills the head once it has been read: from the oldest segment if there is one, otherwise
+     * with the tail.
+     */
+    private void fill() {
+        while (count(head) == 0 && size > 0) {
+            if (segmentCount > 0) {
+                if (!readSegment()) {
+                    return;
+                }
+            } else {
+                ArrayDeque<T> read = head;
+                head = tail;
+                tail = read;
+            }
+        }
+    }
+
+    /**
+     * Moves the tail to the newest segment, starting a new segment when it is full.
+     * If the segment cannot be written, the tail stays in memory and is spilled with the next message.
+     */
+    private void spill() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (T message : tail) {
+                codec.write(out, message, repository);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        if (id < 0) {
+            id = NEXT_ID.getAndIncrement();
+        }
+        boolean newSegment = segmentCount == 0 || lastSegmentMessages >= SEGMENT_MESSAGES;
+        int segment = newSegment ? firstSegment + segmentCount : firstSegment + segmentCount - 1;
+        File file = segmentFile(segment);
+        long length = file.length();
+        try {
+            SPILL_DIRECTORY.mkdirs();
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                bytes.writeTo(out);
+            }
+        } catch (IOException e) {
+            System.err.println("Error spilling inbox to " + file + ": " + e.getMessage());
+            truncate(file, newSegment ? 0 : length);
+            return;
+        }
+        if (newSegment) {
+            if (segmentCount == 0) {
+                readOffset = 0;
+            }
+            segmentCount++;
+            lastSegmentMessages = 0;
+        }
+        lastSegmentMessages += tail.size();
+        SPILLED.addAndGet(tail.size());
+        tail = null;
+    }
+
+    /**
+     * Reads up to {@link #MEMORY_MESSAGES} messages of the oldest segment into the head, and
+     * deletes the segment once it has been read.
+     *
+     * @return false if the segment cannot be read.
+     */
+    private boolean readSegment() {
+        File file = segmentFile(firstSegment);
+        if (head == null) {
+            head = new ArrayDeque<>();
+        }
+        try (FileInputStream fin = new FileInputStream(file)) {
+            fin.getChannel().position(readOffset);
+            long length = fin.getChannel().size() - readOffset;
+            CountingInputStream counting = new CountingInputStream(new BufferedInputStream(fin));
+            DataInputStream in = new DataInputStream(counting);
+            int read = 0;
+            while (counting.count < length && read < MEMORY_MESSAGES) {
+                head.add(codec.read(in, repository));
+                read++;
+            }
+            readOffset += counting.count;
+            SPILLED.addAndGet(-read);
+            if (counting.count < length) {
+                return true;
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading inbox segment " + file + ": " + e.getMessage());
+            return false;
+        }
+        file.delete();
+        firstSegment++;
+        segmentCount--;
+        readOffset = 0;
+        if (segmentCount == 0) {
+            lastSegmentMessages = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the file of a segment.
+     *
+     * @param segment The segment index.
+     * @return The file.
+     */
+    private File segmentFile(int segment) {
+        return new File(SPILL_DIRECTORY, id + "-" + segment + ".seg");
+    }
+
+    /**
+     * Cuts a segment back to its length before a failed write, deleting it if it was new.
+     *
+     * @param file   The segment file.
+     * @param length The length to keep.
+     */
+    private static void truncate(File file, long length) {
+        if (length == 0) {
+            file.delete();
+            return;
+        }
+        try (FileChannel channel = new FileOutputStream(file, true).getChannel()) {
+            channel.truncate(length);
+        } catch (IOException e) {
+            System.err.println("Error truncating inbox segment " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gets the number of messages of a possibly absent queue.
+     *
+     * @param queue The queue, or null.
+     * @return Its size.
+     */
+    private static int count(ArrayDeque<?> queue) {
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Input stream counting the bytes read through it, so the offset of the next message is known
+     * while reading from a buffered stream.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        /**
+         * Number of bytes read.
+         */
+        private long count;
+
+        /**
+         * Wraps a stream.
+         *
+         * @param in The stream.
+         */
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -4,15 +4,173 @@ import br.ufal.ic.p2.jackut.Exceptions.*;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 /**
  * Main class of the Jackut system, responsible for managing users, sessions, friendships, and messages.
  * This class acts as the system's interface, interacting with the {@link Repository}.
  * Implements Serializable to support system persistence.
+ *
+ * Methods may be called from several threads. Every operation that changes state runs atomically
+ * with respect to the users and communities it involves: it holds their locks from
+ * {@link Repository#lockUsers(String...)} while it checks its preconditions, applies the change
+ * and records it in the journal. Users and communities are looked up before the locks are taken,
+ * so once they are held the operation checks that none of them was deleted in between. Queries read each user consistently, but a query involving
+ * several users may observe operations that complete while it runs.
+ *
+ * Every public operation is measured in {@link Metrics}: its calls, latencies and the exceptions
+ * it throws, by type. Each one runs its body through {@link OperationMetrics#call} or
+ * {@link OperationMetrics#run}, which rethrow the exceptions of the body unchanged.
  */
 public class Jackut implements Serializable {
     /**
-     * Repositrio associado ao usurio, contendo dados e funcionalidades relacionadas.
+     * Metrics of {@link #getUserAttribute}.
+     */
+    private static final OperationMetrics GET_USER_ATTRIBUTE = Metrics.operation("getUserAttribute");
+
+    /**
+     * Metrics of {@link #createUser}.
+     */
+    private static final OperationMetrics CREATE_USER = Metrics.operation("createUser");
+
+    /**
+     * Metrics of {@link #newSession}.
+     */
+    private static final OperationMetrics NEW_SESSION = Metrics.operation("newSession");
+
+    /**
+     * Metrics of {@link #isFriend}.
+     */
+    private static final OperationMetrics IS_FRIEND = Metrics.operation("isFriend");
+
+    /**
+     * Metrics of {@link #addFriend}.
+     */
+    private static final OperationMetrics ADD_FRIEND = Metrics.operation("addFriend");
+
+    /**
+     * Metrics of {@link #editProfile}.
+     */
+    private static final OperationMetrics EDIT_PROFILE = Metrics.operation("editProfile");
+
+    /**
+     * Metrics of {@link #getFriends}.
+     */
+    private static final OperationMetrics GET_FRIENDS = Metrics.operation("getFriends");
+
+    /**
+     * Metrics of {@link #sendMessage}.
+     */
+    private static final OperationMetrics SEND_MESSAGE = Metrics.operation("sendMessage");
+
+    /**
+     * Metrics of {@link #getFirstMessage}.
+     */
+    private static final OperationMetrics GET_FIRST_MESSAGE = Metrics.operation("getFirstMessage");
+
+    /**
+     * Metrics of {@link #createCommunity}.
+     */
+    private static final OperationMetrics CREATE_COMMUNITY = Metrics.operation("createCommunity");
+
+    /**
+     * Metrics of {@link #getCommunityDescription}.
+     */
+    private static final OperationMetrics GET_COMMUNITY_DESCRIPTION = Metrics.operation("getCommunityDescription");
+
+    /**
+     * Metrics of {@link #getCommunityOwner}.
+     */
+    private static final OperationMetrics GET_COMMUNITY_OWNER = Metrics.operation("getCommunityOwner");
+
+    /**
+     * Metrics of {@link #getCommunityMembers}.
+     */
+    private static final OperationMetrics GET_COMMUNITY_MEMBERS = Metrics.operation("getCommunityMembers");
+
+    /**
+     * Metrics of {@link #getCommunitiesByLogin}.
+     */
+    private static final OperationMetrics GET_COMMUNITIES_BY_LOGIN = Metrics.operation("getCommunitiesByLogin");
+
+    /**
+     * Metrics of {@link #addMemberToCommunity}.
+     */
+    private static final OperationMetrics ADD_MEMBER_TO_COMMUNITY = Metrics.operation("addMemberToCommunity");
+
+    /**
+     * Metrics of {@link #getMessage}.
+     */
+    private static final OperationMetrics GET_MESSAGE = Metrics.operation("getMessage");
+
+    /**
+     * Metrics of {@link #sendCommunityMessage}.
+     */
+    private static final OperationMetrics SEND_COMMUNITY_MESSAGE = Metrics.operation("sendCommunityMessage");
+
+    /**
+     * Metrics of {@link #isFan}.
+     */
+    private static final OperationMetrics IS_FAN = Metrics.operation("isFan");
+
+    /**
+     * Metrics of {@link #follow}.
+     */
+    private static final OperationMetrics FOLLOW = Metrics.operation("follow");
+
+    /**
+     * Metrics of {@link #getFollowers}.
+     */
+    private static final OperationMetrics GET_FOLLOWERS = Metrics.operation("getFollowers");
+
+    /**
+     * Metrics of {@link #isCrush}.
+     */
+    private static final OperationMetrics IS_CRUSH = Metrics.operation("isCrush");
+
+    /**
+     * Metrics of {@link #addCrush}.
+     */
+    private static final OperationMetrics ADD_CRUSH = Metrics.operation("addCrush");
+
+    /**
+     * Metrics of {@link #getCrushes}.
+     */
+    private static final OperationMetrics GET_CRUSHES = Metrics.operation("getCrushes");
+
+    /**
+     * Metrics of {@link #addEnemy}.
+     */
+    private static final OperationMetrics ADD_ENEMY = Metrics.operation("addEnemy");
+
+    /**
+     * Metrics of {@link #removeUser}.
+     */
+    private static final OperationMetrics REMOVE_USER = Metrics.operation("removeUser");
+
+    /**
+     * Metrics of {@link #bulkLoad}; rejected rows are counted as its errors.
+     */
+    private static final OperationMetrics BULK_LOAD = Metrics.operation("bulkLoad");
+
+    /**
+     * Applies one row of a bulk load.
+     */
+    private interface RowLoader {
+        /**
+         * Validates and applies a row.
+         *
+         * @param row The row fields.
+         * @throws Exception If the row is rejected.
+         */
+        void load(String[] row) throws Exception;
+    }
+
+    /**
+     * Repositório associado ao usuário, contendo dados e funcionalidades relacionadas.
      */
     private Repository repository;
 
@@ -41,14 +199,16 @@ public class Jackut implements Serializable {
      * @throws UserNotFoundException If the user doesn't exist
      */
     public String getUserAttribute(String login, String attribute) throws EmptyAttributeException, UserNotFoundException {
-        User user = this.repository.getUser(login);
-        String attributeValue = user.getAtributo(attribute);
+        return GET_USER_ATTRIBUTE.call(() -> {
+            User user = this.repository.getUser(login);
+            String attributeValue = user.getAtributo(attribute);
 
-        if (attributeValue == null) {
-            throw new EmptyAttributeException();
-        }
+            if (attributeValue == null) {
+                throw new EmptyAttributeException();
+            }
 
-        return attributeValue;
+            return attributeValue;
+        });
     }
 
     /**
@@ -62,13 +222,26 @@ public class Jackut implements Serializable {
      * @throws InvalidPasswordException If the password is invalid
      */
     public void createUser(String login, String password, String name) throws UserAlreadyExistsException, InvalidLoginException, InvalidPasswordException {
+        CREATE_USER.run(() -> addUser(login, password, name));
+    }
+
+    /**
+     * Validates and adds a new user.
+     *
+     * @param login The user's login
+     * @param password The user's password
+     * @param name The user's name
+     * @throws UserAlreadyExistsException If the user already exists
+     * @throws InvalidLoginException If the login is invalid
+     * @throws InvalidPasswordException If the password is invalid
+     */
+    private void addUser(String login, String password, String name) throws UserAlreadyExistsException, InvalidLoginException, InvalidPasswordException {
         if (login == null) {
             throw new InvalidLoginException();
         } else if (password == null) {
             throw new InvalidPasswordException();
-        } else {
-            repository.addUser(login, password, name);
         }
+        repository.addUser(login, password, name);
     }
 
     /**
@@ -81,8 +254,10 @@ public class Jackut implements Serializable {
      * @throws InvalidPasswordOrLoginException If the credentials are invalid
      */
     public String newSession(String login, String password) throws UserNotFoundException, InvalidPasswordOrLoginException {
-        Session session = this.repository.newSession(login, password);
-        return session.getId();
+        return NEW_SESSION.call(() -> {
+            Session session = this.repository.newSession(login, password);
+            return session.getId();
+        });
     }
 
     /**
@@ -94,8 +269,10 @@ public class Jackut implements Serializable {
      * @throws UserNotFoundException If either user doesn't exist
      */
     public boolean isFriend(String login, String friend) throws UserNotFoundException {
-        User user = repository.getUser(login);
-        return user.isFriend(friend);
+        return IS_FRIEND.call(() -> {
+            User user = repository.getUser(login);
+            return user.isFriend(friend);
+        });
     }
 
     /**
@@ -111,17 +288,25 @@ public class Jackut implements Serializable {
      */
     public void addFriend(String userSessionId, String friendLogin) throws UserNotFoundException,
             AlreadyFriendException, WaitingToAcceptException, CantAddItselfException, InvalidFunctionEnemyException {
-        User user = this.repository.getUserBySessionId(userSessionId);
-        User possibleFriend = repository.getUser(friendLogin);
-
-        if (user.isFriend(friendLogin)) {
-            throw new AlreadyFriendException();
-        }
-
-        if(user.isEnemy(friendLogin) || possibleFriend.isEnemy(user.getLogin())) {
-            throw new InvalidFunctionEnemyException(possibleFriend.getName());
-        }
-        user.addFriend(friendLogin);
+        ADD_FRIEND.run(() -> {
+            User user = this.repository.getUserBySessionId(userSessionId);
+            User possibleFriend = repository.getUser(friendLogin);
+
+            StripedLocks.Guard guard = this.repository.lockUsers(user.getLogin(), friendLogin);
+            try {
+                this.repository.requireCurrent(user, possibleFriend);
+                if (user.isFriend(friendLogin)) {
+                    throw new AlreadyFriendException();
+                }
+
+                if(user.isEnemy(friendLogin) || possibleFriend.isEnemy(user.getLogin())) {
+                    throw new InvalidFunctionEnemyException(possibleFriend.getName());
+                }
+                user.addFriend(friendLogin);
+            } finally {
+                guard.close();
+            }
+        });
     }
 
     /**
@@ -131,6 +316,17 @@ public class Jackut implements Serializable {
         this.repository.saveData();
     }
 
+    /**
+     * Gets a future that completes once every operation performed so far is durable on disk.
+     * Operations are persisted in the background, so callers that need a durability guarantee
+     * before answering can wait on this future.
+     *
+     * @return The durability future
+     */
+    public CompletableFuture<Void> whenDurable() {
+        return this.repository.whenDurable();
+    }
+
     /**
      * Edits a user's profile.
      *
@@ -141,17 +337,19 @@ public class Jackut implements Serializable {
      * @throws EmptyAttributeException If the attribute is invalid
      */
     public void editProfile(String id, String attribute, String value) throws UserNotFoundException, EmptyAttributeException {
-        if (id.isEmpty()) {
-            throw new UserNotFoundException();
-        }
+        EDIT_PROFILE.run(() -> {
+            if (id.isEmpty()) {
+                throw new UserNotFoundException();
+            }
 
-        Session session = this.repository.getSession(id);
+            Session session = this.repository.getSession(id);
 
-        if (session == null) {
-            throw new UserNotFoundException();
-        }
+            if (session == null) {
+                throw new UserNotFoundException();
+            }
 
-        this.repository.editProfile(session, attribute, value);
+            this.repository.editProfile(session, attribute, value);
+        });
     }
 
     /**
@@ -161,12 +359,14 @@ public class Jackut implements Serializable {
      * @return Formatted string containing friends list
      */
     public String getFriends(String login) {
-        try {
-            User user = this.repository.getUser(login);
-            return "{" + String.join(",", user.getFriends()) + "}";
-        } catch (UserNotFoundException e) {
-            return "{}";
-        }
+        return GET_FRIENDS.call(() -> {
+            try {
+                User user = this.repository.getUser(login);
+                return user.getFormattedFriends();
+            } catch (UserNotFoundException e) {
+                return "{}";
+            }
+        });
     }
 
     /**
@@ -181,19 +381,27 @@ public class Jackut implements Serializable {
      */
     public void sendMessage(String sessionId, String receiverLogin, String message) throws InvalidFunctionEnemyException, UserNotFoundException,
             CantMessageItselfException {
-        User sender = this.repository.getUserBySessionId(sessionId);
-        User receiver = this.repository.getUser(receiverLogin);
-
-        if (sender.getLogin().equals(receiverLogin)) {
-            throw new CantMessageItselfException();
-        }
-
-        if(sender.isFriend(receiverLogin) || receiver.isEnemy((sender.getLogin()))) {
-            throw new InvalidFunctionEnemyException(receiver.getName());
-        }
-
-        Message m = new Message(sessionId, receiverLogin, message, sender);
-        receiver.addMessage(m);
+        SEND_MESSAGE.run(() -> {
+            User sender = this.repository.getUserBySessionId(sessionId);
+            User receiver = this.repository.getUser(receiverLogin);
+
+            if (sender.getLogin().equals(receiverLogin)) {
+                throw new CantMessageItselfException();
+            }
+
+            StripedLocks.Guard guard = this.repository.lockUsers(sender.getLogin(), receiverLogin);
+            try {
+                this.repository.requireCurrent(sender, receiver);
+                if(sender.isFriend(receiverLogin) || receiver.isEnemy((sender.getLogin()))) {
+                    throw new InvalidFunctionEnemyException(receiver.getName());
+                }
+
+                receiver.addMessage(sender, message);
+                this.repository.record(Journal.Operation.SEND_MESSAGE, sender.getLogin(), receiverLogin, message);
+            } finally {
+                guard.close();
+            }
+        });
     }
 
     /**
@@ -205,8 +413,18 @@ public class Jackut implements Serializable {
      * @throws NoMessagesException If there are no messages
      */
     public String getFirstMessage(String sessionId) throws UserNotFoundException, NoMessagesException {
-        User user = this.repository.getUserBySessionId(sessionId);
-        return user.getFirstMessage();
+        return GET_FIRST_MESSAGE.call(() -> {
+            User user = this.repository.getUserBySessionId(sessionId);
+            StripedLocks.Guard guard = this.repository.lockUsers(user.getLogin());
+            try {
+                this.repository.requireCurrent(user);
+                String message = user.getFirstMessage();
+                this.repository.record(Journal.Operation.READ_MESSAGE, user.getLogin());
+                return message;
+            } finally {
+                guard.close();
+            }
+        });
     }
 
     /**
@@ -219,16 +437,30 @@ public class Jackut implements Serializable {
      * @throws CommunityAlreadyExistsException If the community already exists
      */
     public void createCommunity(String sessionId, String name, String description) throws UserNotFoundException, CommunityAlreadyExistsException {
-        if (this.repository.isCommunityCreated(name)) {
-            throw new CommunityAlreadyExistsException();
-        }
-
-        User owner = this.repository.getUserBySessionId(sessionId);
-        Community newCommunity = new Community(name, description, owner);
-
-        newCommunity.addMember(owner);
-
-        this.repository.newCommunity(name, newCommunity);
+        CREATE_COMMUNITY.run(() -> {
+            if (this.repository.isCommunityCreated(name)) {
+                throw new CommunityAlreadyExistsException();
+            }
+
+            User owner = this.repository.getUserBySessionId(sessionId);
+
+            StripedLocks.Guard guard = this.repository.lockUsers(owner.getLogin(), name);
+            try {
+                this.repository.requireCurrent(owner);
+                if (this.repository.isCommunityCreated(name)) {
+                    throw new CommunityAlreadyExistsException();
+                }
+
+                Community newCommunity = new Community(name, description, owner, this.repository);
+
+                newCommunity.addMember(owner);
+
+                this.repository.newCommunity(name, newCommunity);
+                this.repository.record(Journal.Operation.CREATE_COMMUNITY, name, description, owner.getLogin());
+            } finally {
+                guard.close();
+            }
+        });
     }
 
     /**
@@ -239,7 +471,7 @@ public class Jackut implements Serializable {
      * @throws CommunityDoesntExistException If the community doesn't exist
      */
     public String getCommunityDescription(String communityName) throws CommunityDoesntExistException {
-        return this.repository.getCommunityDescription(communityName);
+        return GET_COMMUNITY_DESCRIPTION.call(() -> this.repository.getCommunityDescription(communityName));
     }
 
     /**
@@ -250,7 +482,7 @@ public class Jackut implements Serializable {
      * @throws CommunityDoesntExistException If the community doesn't exist
      */
     public String getCommunityOwner(String communityName) throws CommunityDoesntExistException {
-        return this.repository.getCommunityOwner(communityName);
+        return GET_COMMUNITY_OWNER.call(() -> this.repository.getCommunityOwner(communityName));
     }
 
     /**
@@ -261,8 +493,10 @@ public class Jackut implements Serializable {
      * @throws CommunityDoesntExistException If the community doesn't exist
      */
     public String getCommunityMembers(String communityName) throws CommunityDoesntExistException {
-        Community community = this.repository.getCommunityByName(communityName);
-        return "{" + String.join(",", community.getMembers()) + "}";
+        return GET_COMMUNITY_MEMBERS.call(() -> {
+            Community community = this.repository.getCommunityByName(communityName);
+            return community.getFormattedMembers();
+        });
     }
 
     /**
@@ -273,8 +507,7 @@ public class Jackut implements Serializable {
      * @throws UserNotFoundException If the user doesn't exist
      */
     public String getCommunitiesByLogin(String ownerLogin) throws UserNotFoundException {
-        ArrayList<String> communities = this.repository.getCommunitiesByLogin(ownerLogin);
-        return "{" + String.join(",", communities) + "}";
+        return GET_COMMUNITIES_BY_LOGIN.call(() -> this.repository.getCommunitiesByLogin(ownerLogin));
     }
 
     /**
@@ -287,18 +520,29 @@ public class Jackut implements Serializable {
      * @throws UserAlreadyCommunityMemberException If the user is already a member
      */
     public void addMemberToCommunity(String session, String communityName) throws UserNotFoundException, CommunityDoesntExistException, UserAlreadyCommunityMemberException {
-        User newMember = this.repository.getUserBySessionId(session);
-        Community community = this.repository.getCommunityByName(communityName);
-
-        if(community.isAlreadyMember(newMember)) {
-            throw new UserAlreadyCommunityMemberException();
-        }
-
-        community.addMember(newMember);
+        ADD_MEMBER_TO_COMMUNITY.run(() -> {
+            User newMember = this.repository.getUserBySessionId(session);
+            Community community = this.repository.getCommunityByName(communityName);
+
+            StripedLocks.Guard guard = this.repository.lockUsers(newMember.getLogin(), communityName);
+            try {
+                this.repository.requireCurrent(newMember);
+                this.repository.requireCurrent(community);
+                if(community.isAlreadyMember(newMember)) {
+                    throw new UserAlreadyCommunityMemberException();
+                }
+
+                community.addMember(newMember);
+                this.repository.record(Journal.Operation.JOIN_COMMUNITY, communityName, newMember.getLogin());
+            } finally {
+                guard.close();
+            }
+        });
     }
 
     /**
-     * Gets the first community message for a user.
+     * Gets the first community message for a user: the oldest unread message, in the order they
+     * were sent, among all the user's communities.
      *
      * @param sessionId The user's session ID
      * @return The message content
@@ -307,12 +551,26 @@ public class Jackut implements Serializable {
      * @throws NoCommunityMessagesException If there are no community messages
      */
     public String getMessage(String sessionId) throws UserNotFoundException, NoMessagesException, NoCommunityMessagesException {
-        User user = this.repository.getUserBySessionId(sessionId);
-        return user.getFirstCommunityMessage();
+        return GET_MESSAGE.call(() -> {
+            User user = this.repository.getUserBySessionId(sessionId);
+            StripedLocks.Guard guard = lockMemberships(user);
+            try {
+                this.repository.requireCurrent(user);
+                String message = this.repository.readCommunityMessage(user);
+                this.repository.record(Journal.Operation.READ_COMMUNITY_MESSAGE, user.getLogin());
+                return message;
+            } finally {
+                guard.close();
+            }
+        });
     }
 
     /**
      * Sends a message to a community.
+     * The message is appended once to the community's log, so the cost does not depend on the
+     * number of members, and it is readable by every member as soon as this method returns.
+     * Members read the messages of a community in the order they were sent, and its journal
+     * record is flushed in the background with the other pending records.
      *
      * @param sessionId The sender's session ID
      * @param communityName The community name
@@ -321,12 +579,44 @@ public class Jackut implements Serializable {
      * @throws CommunityDoesntExistException If the community doesn't exist
      */
     public void sendCommunityMessage(String sessionId, String communityName, String message) throws UserNotFoundException, CommunityDoesntExistException {
-        Community community = this.repository.getCommunityByName(communityName);
-        User sender = this.repository.getUserBySessionId(sessionId);
-
-        CommunityMessage communityMessage = new CommunityMessage(sender, community, message);
+        SEND_COMMUNITY_MESSAGE.run(() -> {
+            Community community = this.repository.getCommunityByName(communityName);
+            User sender = this.repository.getUserBySessionId(sessionId);
+
+            StripedLocks.Guard guard = this.repository.lockUsers(communityName, sender.getLogin());
+            try {
+                this.repository.requireCurrent(sender);
+                this.repository.requireCurrent(community);
+                community.postMessage(sender, message);
+                this.repository.record(Journal.Operation.SEND_COMMUNITY_MESSAGE, communityName, sender.getLogin(), message);
+            } finally {
+                guard.close();
+            }
+        });
+    }
 
-        community.sendMessageToMembers(communityMessage);
+    /**
+     * Locks a user together with all of its communities, so that reading a community message is
+     * atomic with respect to messages being sent to any of them, and the message read is the same
+     * when the journal is replayed. Joining a community requires the user's lock, so once it is
+     * held the community list cannot change; if it changed while the locks were being acquired,
+     * they are acquired again.
+     *
+     * @param user The user
+     * @return A guard releasing the locks when closed
+     */
+    private StripedLocks.Guard lockMemberships(User user) {
+        while (true) {
+            List<String> communities = user.getCommunities();
+            List<String> keys = new ArrayList<>(communities);
+            keys.add(user.getLogin());
+
+            StripedLocks.Guard guard = this.repository.lockUsers(keys.toArray(new String[0]));
+            if (user.getCommunities().equals(communities)) {
+                return guard;
+            }
+            guard.close();
+        }
     }
 
     /**
@@ -338,8 +628,10 @@ public class Jackut implements Serializable {
      * @throws UserNotFoundException If either user doesn't exist
      */
     public boolean isFan(String fanLogin, String idolLogin) throws UserNotFoundException {
-        User fan = this.repository.getUser(fanLogin);
-        return fan.doesUserFollow(idolLogin);
+        return IS_FAN.call(() -> {
+            User fan = this.repository.getUser(fanLogin);
+            return fan.doesUserFollow(idolLogin);
+        });
     }
 
     /**
@@ -352,22 +644,31 @@ public class Jackut implements Serializable {
      * @throws InvalidFunctionEnemyException If trying to follow an enemy
      */
     public void follow(String userId, String idolLogin) throws UserNotFoundException, SelfFanException, InvalidFunctionEnemyException {
-        User user = this.repository.getUserBySessionId(userId);
-        User idol = this.repository.getUser(idolLogin);
-
-        if(user.doesUserFollow(idolLogin)) {
-            throw new AlreadyFollowsException();
-        }
-
-        if(user.getLogin().equals(idolLogin)) {
-            throw new SelfFanException();
-        }
-
-        if(user.isEnemy(idolLogin) || idol.isEnemy(user.getLogin())) {
-            throw new InvalidFunctionEnemyException(idol.getName());
-        }
-        user.follow(idolLogin);
-        idol.setFollower(user.getLogin());
+        FOLLOW.run(() -> {
+            User user = this.repository.getUserBySessionId(userId);
+            User idol = this.repository.getUser(idolLogin);
+
+            StripedLocks.Guard guard = this.repository.lockUsers(user.getLogin(), idolLogin);
+            try {
+                this.repository.requireCurrent(user, idol);
+                if(user.doesUserFollow(idolLogin)) {
+                    throw new AlreadyFollowsException();
+                }
+
+                if(user.getLogin().equals(idolLogin)) {
+                    throw new SelfFanException();
+                }
+
+                if(user.isEnemy(idolLogin) || idol.isEnemy(user.getLogin())) {
+                    throw new InvalidFunctionEnemyException(idol.getName());
+                }
+                user.follow(idolLogin);
+                idol.setFollower(user.getLogin());
+                this.repository.record(Journal.Operation.FOLLOW, user.getLogin(), idolLogin);
+            } finally {
+                guard.close();
+            }
+        });
     }
 
     /**
@@ -378,8 +679,10 @@ public class Jackut implements Serializable {
      * @throws UserNotFoundException If the user doesn't exist
      */
     public String getFollowers(String userLogin) throws UserNotFoundException {
-        User user = this.repository.getUser(userLogin);
-        return "{" + String.join(",", user.getFollowers()) + "}";
+        return GET_FOLLOWERS.call(() -> {
+            User user = this.repository.getUser(userLogin);
+            return user.getFormattedFollowers();
+        });
     }
 
     /**
@@ -391,12 +694,17 @@ public class Jackut implements Serializable {
      * @throws UserNotFoundException If either user doesn't exist
      */
     public boolean isCrush(String userId, String crushLogin) throws UserNotFoundException {
-        User user = this.repository.getUserBySessionId(userId);
-        return user.isCrush(crushLogin);
+        return IS_CRUSH.call(() -> {
+            User user = this.repository.getUserBySessionId(userId);
+            return user.isCrush(crushLogin);
+        });
     }
 
     /**
      * Adds a crush relationship between users.
+     * If the crush is mutual, both users receive a message. Adding the crush, checking whether it
+     * is mutual and sending both messages happen atomically: the locks of both users are held
+     * throughout, so two users adding each other at the same time get exactly one pair of messages.
      *
      * @param userId The user's session ID
      * @param crushLogin The crush's login
@@ -407,32 +715,41 @@ public class Jackut implements Serializable {
      */
     public void addCrush(String userId, String crushLogin) throws UserNotFoundException, AlreadyCrushException,
             CrushItselfException, InvalidFunctionEnemyException {
-        User user = this.repository.getUserBySessionId(userId);
-        User crush = this.repository.getUser(crushLogin);
-
-        if(user.isCrush(crushLogin)) {
-            throw new AlreadyCrushException();
-        }
-
-        if (user.getLogin().equals(crushLogin)) {
-            throw new CrushItselfException();
-        }
-
-        if(user.isEnemy(crushLogin) || crush.isEnemy(user.getLogin())) {
-            throw new InvalidFunctionEnemyException(crush.getName());
-        }
-
-        user.addCrush(crushLogin);
-
-        if(user.isCrush(crushLogin) && crush.isCrush(user.getLogin())) {
-            String stringMsg = String.format("%s  seu paquera - Recado do Jackut.", user.getName());
-            Message msg = new Message(userId, crushLogin, stringMsg, user);
-            crush.addMessage(msg);
-
-            String anotherStringMsg = String.format("%s  seu paquera - Recado do Jackut.", crush.getName());
-            Message anotherMsg = new Message(crushLogin, userId, anotherStringMsg, crush);
-            user.addMessage(anotherMsg);
-        }
+        ADD_CRUSH.run(() -> {
+            User user = this.repository.getUserBySessionId(userId);
+            User crush = this.repository.getUser(crushLogin);
+
+            StripedLocks.Guard guard = this.repository.lockUsers(user.getLogin(), crushLogin);
+            try {
+                this.repository.requireCurrent(user, crush);
+                if(user.isCrush(crushLogin)) {
+                    throw new AlreadyCrushException();
+                }
+
+                if (user.getLogin().equals(crushLogin)) {
+                    throw new CrushItselfException();
+                }
+
+                if(user.isEnemy(crushLogin) || crush.isEnemy(user.getLogin())) {
+                    throw new InvalidFunctionEnemyException(crush.getName());
+                }
+
+                user.addCrush(crushLogin);
+                this.repository.record(Journal.Operation.ADD_CRUSH, user.getLogin(), crushLogin);
+
+                if(user.isCrush(crushLogin) && crush.isCrush(user.getLogin())) {
+                    String stringMsg = String.format("%s é seu paquera - Recado do Jackut.", user.getName());
+                    crush.addMessage(user, stringMsg);
+                    this.repository.record(Journal.Operation.SEND_MESSAGE, user.getLogin(), crushLogin, stringMsg);
+
+                    String anotherStringMsg = String.format("%s é seu paquera - Recado do Jackut.", crush.getName());
+                    user.addMessage(crush, anotherStringMsg);
+                    this.repository.record(Journal.Operation.SEND_MESSAGE, crushLogin, user.getLogin(), anotherStringMsg);
+                }
+            } finally {
+                guard.close();
+            }
+        });
     }
 
     /**
@@ -443,8 +760,10 @@ public class Jackut implements Serializable {
      * @throws UserNotFoundException If the user doesn't exist
      */
     public String getCrushes(String userId) throws UserNotFoundException {
-        User user = this.repository.getUserBySessionId(userId);
-        return "{" + String.join(",", user.getCrushes()) + "}";
+        return GET_CRUSHES.call(() -> {
+            User user = this.repository.getUserBySessionId(userId);
+            return user.getFormattedCrushes();
+        });
     }
 
     /**
@@ -459,18 +778,27 @@ public class Jackut implements Serializable {
      * @throws SelfEnemyException If trying to add self as enemy
      */
     public void addEnemy(String sessionId, String enemyLogin) throws UserNotFoundException, AlreadyEnemyException, SelfEnemyException {
-        User user = this.repository.getUserBySessionId(sessionId);
-        this.repository.getUser(enemyLogin);
-
-        if(user.isEnemy(enemyLogin)) {
-            throw new AlreadyEnemyException();
-        }
-
-        if(user.getLogin().equals(enemyLogin)) {
-            throw new SelfEnemyException();
-        }
-
-        user.addEnemy(enemyLogin);
+        ADD_ENEMY.run(() -> {
+            User user = this.repository.getUserBySessionId(sessionId);
+            User enemy = this.repository.getUser(enemyLogin);
+
+            StripedLocks.Guard guard = this.repository.lockUsers(user.getLogin(), enemyLogin);
+            try {
+                this.repository.requireCurrent(user, enemy);
+                if(user.isEnemy(enemyLogin)) {
+                    throw new AlreadyEnemyException();
+                }
+
+                if(user.getLogin().equals(enemyLogin)) {
+                    throw new SelfEnemyException();
+                }
+
+                user.addEnemy(enemyLogin);
+                this.repository.record(Journal.Operation.ADD_ENEMY, user.getLogin(), enemyLogin);
+            } finally {
+                guard.close();
+            }
+        });
     }
 
     /**
@@ -481,7 +809,163 @@ public class Jackut implements Serializable {
      * @throws UserNotFoundException If the user doesn't exist
      */
     public void removeUser(String userId) throws UserNotFoundException {
-        User user = this.repository.getUserBySessionId(userId);
-        this.repository.deleteUser(user.getLogin());
+        REMOVE_USER.run(() -> {
+            User user = this.repository.getUserBySessionId(userId);
+            this.repository.deleteUser(user);
+        });
+    }
+
+    /**
+     * Loads users, friendships, community memberships and messages in bulk, for imports and
+     * migrations. The streams are consumed in that order, and each row is validated like the
+     * equivalent single operation; a rejected row is reported and skipped, and the load goes on.
+     * The load holds the repository exclusively and is not journaled row by row: it is saved by a
+     * single snapshot once every stream is consumed.
+     *
+     * Rows are arrays of fields:
+     * <ul>
+     *     <li>users: login, password, name;</li>
+     *     <li>friendships: login, friend login; the two users become friends, as if each had
+     *     added the other;</li>
+     *     <li>memberships: login, community name, to join the community; or login, community
+     *     name, description, to create the community owned by the user;</li>
+     *     <li>messages: sender login, receiver login, text, sent as a private message.</li>
+     * </ul>
+     *
+     * @param users The users to create, or null
+     * @param friendships The friendships to create, or null
+     * @param memberships The communities to create or join, or null
+     * @param messages The private messages to send, or null
+     * @return The number of rows applied and the rejected rows
+     * @throws java.io.UncheckedIOException If the snapshot saving the load could not be written; the
+     *                                      rows stay applied in memory until a later snapshot succeeds
+     */
+    public BulkLoadReport bulkLoad(Stream<String[]> users, Stream<String[]> friendships,
+                                   Stream<String[]> memberships, Stream<String[]> messages) {
+        BulkLoadReport report = new BulkLoadReport();
+        return BULK_LOAD.call(() -> {
+            this.repository.bulkLoad(() -> {
+                loadRows("users", users, 3, 3, row -> addUser(row[0], row[1], row[2]), report);
+                loadRows("friendships", friendships, 2, 2, row -> loadFriendship(row[0], row[1]), report);
+                loadRows("memberships", memberships, 2, 3, this::loadMembership, report);
+                loadRows("messages", messages, 3, 3, row -> loadMessage(row[0], row[1], row[2]), report);
+            });
+            return report;
+        });
+    }
+
+    /**
+     * Applies the rows of one stream of a bulk load, reporting the rejected ones.
+     *
+     * @param source The stream name, for the report
+     * @param rows The rows, or null
+     * @param minFields The least number of fields of a row
+     * @param maxFields The most number of fields of a row
+     * @param loader Applies a row
+     * @param report The report of the load
+     */
+    private static void loadRows(String source, Stream<String[]> rows, int minFields, int maxFields,
+                                 RowLoader loader, BulkLoadReport report) {
+        if (rows == null) {
+            return;
+        }
+        Iterator<String[]> iterator = rows.iterator();
+        for (long position = 1; iterator.hasNext(); position++) {
+            String[] row = iterator.next();
+            try {
+                if (row == null || row.length < minFields || row.length > maxFields) {
+                    throw new IllegalArgumentException("Número de campos inválido.");
+                }
+                loader.load(row);
+                report.applied();
+            } catch (Exception e) {
+                BULK_LOAD.failed(e);
+                report.rejected(source, position, e);
+            }
+        }
+    }
+
+    /**
+     * Makes two users friends, for a bulk load, as if each had added the other.
+     *
+     * @param login The first user's login
+     * @param friendLogin The second user's login
+     * @throws UserNotFoundException If either user doesn't exist
+     * @throws AlreadyFriendException If they are already friends
+     * @throws WaitingToAcceptException Not thrown, since requests already sent are kept rather than sent again
+     * @throws CantAddItselfException If both logins are the same
+     * @throws InvalidFunctionEnemyException If either user is the other's enemy
+     */
+    private void loadFriendship(String login, String friendLogin) throws UserNotFoundException,
+            AlreadyFriendException, WaitingToAcceptException, CantAddItselfException, InvalidFunctionEnemyException {
+        User user = this.repository.getUser(login);
+        User friend = this.repository.getUser(friendLogin);
+        if (login.equals(friendLogin)) {
+            throw new CantAddItselfException();
+        }
+        if (user.isFriend(friendLogin)) {
+            throw new AlreadyFriendException();
+        }
+        if (user.isEnemy(friendLogin) || friend.isEnemy(login)) {
+            throw new InvalidFunctionEnemyException(friend.getName());
+        }
+        if (!user.hasRequested(friend.getId())) {
+            user.addFriend(friendLogin);
+        }
+        if (!friend.hasRequested(user.getId())) {
+            friend.addFriend(login);
+        }
+    }
+
+    /**
+     * Creates or joins a community, for a bulk load.
+     *
+     * @param row The member's login and the community name, followed by the description if the
+     *            community is to be created
+     * @throws UserNotFoundException If the user doesn't exist
+     * @throws CommunityAlreadyExistsException If the community to create already exists
+     * @throws CommunityDoesntExistException If the community to join doesn't exist
+     * @throws UserAlreadyCommunityMemberException If the user is already a member
+     */
+    private void loadMembership(String[] row) throws UserNotFoundException, CommunityAlreadyExistsException,
+            CommunityDoesntExistException, UserAlreadyCommunityMemberException {
+        User user = this.repository.getUser(row[0]);
+        if (row.length == 3) {
+            if (this.repository.isCommunityCreated(row[1])) {
+                throw new CommunityAlreadyExistsException();
+            }
+            Community community = new Community(row[1], row[2], user, this.repository);
+            community.addMember(user);
+            this.repository.newCommunity(row[1], community);
+            return;
+        }
+        Community community = this.repository.getCommunityByName(row[1]);
+        if (community.isAlreadyMember(user)) {
+            throw new UserAlreadyCommunityMemberException();
+        }
+        community.addMember(user);
+    }
+
+    /**
+     * Sends a private message, for a bulk load.
+     *
+     * @param senderLogin The sender's login
+     * @param receiverLogin The receiver's login
+     * @param text The message content
+     * @throws UserNotFoundException If either user doesn't exist
+     * @throws CantMessageItselfException If both logins are the same
+     * @throws InvalidFunctionEnemyException If the message is not allowed, as in {@link #sendMessage}
+     */
+    private void loadMessage(String senderLogin, String receiverLogin, String text) throws UserNotFoundException,
+            CantMessageItselfException, InvalidFunctionEnemyException {
+        User sender = this.repository.getUser(senderLogin);
+        User receiver = this.repository.getUser(receiverLogin);
+        if (senderLogin.equals(receiverLogin)) {
+            throw new CantMessageItselfException();
+        }
+        if (sender.isFriend(receiverLogin) || receiver.isEnemy(senderLogin)) {
+            throw new InvalidFunctionEnemyException(receiver.getName());
+        }
+        receiver.addMessage(sender, text);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,396 @@
+package br.ufal.ic.p2.jackut;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only operation journal used by the {@link Repository} as a write-ahead log.
+ * Every mutation is appended as a small self-describing record instead of rewriting
+ * the whole snapshot, so the cost of a write no longer depends on the size of the system.
+ *
+ * Each record is framed as {@code [int length][int crc32][payload]}, where the payload holds
+ * the operation ordinal, the record's sequence number and the operation arguments as
+ * length-prefixed UTF-8 strings (see {@link BinaryFormat}). Sequence numbers increase with every
+ * record and carry over from the snapshot, which stores the last one it holds, so replay can skip
+ * records that are already part of the snapshot or that were replayed from an archive.
+ * Records written before sequence numbers existed have none, and are always replayed.
+ * A torn or corrupted tail (for example after a crash mid-write) is detected by the
+ * length/checksum pair and discarded during replay.
+ *
+ * Records are handed to the operating system on every append, but they are only forced
+ * to disk when {@link #sync()} is called, which lets the {@link PersistenceScheduler}
+ * group many records into a single {@code fsync}.
+ */
+public class Journal implements Closeable {
+
+    /**
+     * Operations that can be recorded in the journal.
+     * The ordinal is written to disk, so new operations must only be appended at the end.
+     */
+    public enum Operation {
+        /** A new user was created: login, password, name. */
+        CREATE_USER,
+        /** A profile attribute was edited: login, attribute, value. */
+        EDIT_PROFILE,
+        /** A session was opened: session id, login, opening time in milliseconds (absent in older journals). */
+        NEW_SESSION,
+        /** A friend request was sent or accepted: login, friend login. */
+        ADD_FRIEND,
+        /**
+         * A private message was enqueued: sender login, receiver login, text. Older journals
+         * also hold the sender's session id, before the sender login.
+         */
+        SEND_MESSAGE,
+        /** The first private message of a user was read: login. */
+        READ_MESSAGE,
+        /** A community was created: name, description, owner login. */
+        CREATE_COMMUNITY,
+        /** A user joined a community: community name, login. */
+        JOIN_COMMUNITY,
+        /** A message was sent to a community: community name, sender login, text. */
+        SEND_COMMUNITY_MESSAGE,
+        /** The first community message of a user was read: login. */
+        READ_COMMUNITY_MESSAGE,
+        /** A user became fan of another: fan login, idol login. */
+        FOLLOW,
+        /** A user added a crush: login, crush login. */
+        ADD_CRUSH,
+        /** A user added an enemy: login, enemy login. */
+        ADD_ENEMY,
+        /** A user account was removed: login. */
+        DELETE_USER
+    }
+
+    /**
+     * Size of the record header (length and checksum).
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Upper bound for a single record, used to reject garbage lengths from a torn tail.
+     */
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Flag set on the ordinal byte of the records that carry a sequence number.
+     */
+    private static final int SEQUENCED = 0x80;
+
+    /**
+     * The journal file on disk.
+     */
+    private final File file;
+
+    /**
+     * Stream used to append records, or null while the journal is closed.
+     */
+    private FileOutputStream output;
+
+    /**
+     * Number of records appended since the last {@code fsync}.
+     */
+    private int unsyncedRecords;
+
+    /**
+     * Number of records currently stored in the journal.
+     */
+    private long records;
+
+    /**
+     * Size of the journal file in bytes.
+     */
+    private long size;
+
+    /**
+     * Sequence number of the last record appended, replayed or skipped.
+     */
+    private long lastSequence;
+
+    /**
+     * Creates a journal backed by the given file.
+     * The file is only opened for appending on the first write.
+     *
+     * @param file The journal file.
+     */
+    public Journal(File file) {
+        this.file = file;
+        this.size = file.length();
+    }
+
+    /**
+     * Appends a record to the journal.
+     *
+     * @param operation The recorded operation.
+     * @param arguments The operation arguments.
+     * @throws IOException If the record cannot be written.
+     */
+    public synchronized void append(Operation operation, String... arguments) throws IOException {
+        byte[] payload = encode(operation, lastSequence + 1, arguments);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(HEADER_SIZE + payload.length);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+
+        openForAppend().write(buffer.toByteArray());
+        lastSequence++;
+        size += buffer.size();
+        records++;
+        unsyncedRecords++;
+    }
+
+    /**
+     * Forces every appended record to disk.
+     *
+     * @throws IOException If the file cannot be synced.
+     */
+    public synchronized void sync() throws IOException {
+        if (output != null && unsyncedRecords > 0) {
+            output.getFD().sync();
+        }
+        unsyncedRecords = 0;
+    }
+
+    /**
+     * Replays every valid record of the journal, in order.
+     * Reading stops at the first torn or corrupted record, which is then truncated away
+     * so that new records are appended right after the last valid one.
+     *
+     * @param handler Callback receiving each operation and its arguments.
+     * @throws IOException If the journal cannot be read.
+     */
+    public void replay(BiConsumer<Operation, String[]> handler) throws IOException {
+        replay(0, handler);
+    }
+
+    /**
+     * Replays the valid records of the journal, in order, skipping those whose sequence number
+     * is not past the given one. Reading stops at the first torn or corrupted record, which is
+     * then truncated away so that new records are appended right after the last valid one.
+     *
+     * @param after   Sequence number of the last record already applied.
+     * @param handler Callback receiving each operation and its arguments.
+     * @throws IOException If the journal cannot be read.
+     */
+    public synchronized void replay(long after, BiConsumer<Operation, String[]> handler) throws IOException {
+        close();
+        records = 0;
+        if (!file.exists()) {
+            size = 0;
+            return;
+        }
+
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                int checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 0 || length > MAX_RECORD_SIZE) {
+                    break;
+                }
+
+                byte[] payload = new byte[length];
+                try {
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                Operation operation = decodeOperation(payload);
+                if (operation == null) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload, 1, payload.length - 1));
+                long sequence = (payload[0] & SEQUENCED) != 0 ? BinaryFormat.readVarLong(record) : 0;
+                String[] arguments = decodeArguments(record);
+                if (sequence == 0 || sequence > after) {
+                    handler.accept(operation, arguments);
+                }
+                lastSequence = Math.max(lastSequence, sequence);
+                validLength += HEADER_SIZE + length;
+                records++;
+            }
+        }
+
+        if (validLength < file.length()) {
+            System.err.println("Discarding corrupted tail of " + file.getName() + " at byte " + validLength);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+        size = validLength;
+    }
+
+    /**
+     * Discards every record, typically right after the state was compacted into a snapshot.
+     *
+     * @throws IOException If the journal file cannot be truncated.
+     */
+    public synchronized void reset() throws IOException {
+        close();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file.getName());
+        }
+        records = 0;
+        size = 0;
+    }
+
+    /**
+     * Moves every record to an archive file and starts an empty journal, when the state was
+     * compacted into a snapshot that keeps the previous one as a fallback. The records are
+     * appended to the archive if it already exists, so the archive holds every operation applied
+     * since the snapshot it is named after. The archive is forced to disk.
+     *
+     * @param archive The archive file.
+     * @throws IOException If the records cannot be moved.
+     */
+    public synchronized void archive(File archive) throws IOException {
+        close();
+        if (file.exists()) {
+            if (!archive.exists()) {
+                Files.move(file.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                try (FileOutputStream out = new FileOutputStream(archive, true)) {
+                    Files.copy(file.toPath(), out);
+                    out.getFD().sync();
+                }
+                reset();
+            }
+        }
+        records = 0;
+        size = 0;
+    }
+
+    /**
+     * Gets the sequence number of the last record appended, replayed or skipped.
+     *
+     * @return The sequence number, or 0 if there was none.
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Numbers the records appended from now on after a sequence number, if it is past the last one.
+     * Called once the journal was replayed on top of a snapshot holding records up to that number.
+     *
+     * @param sequence The sequence number.
+     */
+    public synchronized void continueAfter(long sequence) {
+        lastSequence = Math.max(lastSequence, sequence);
+    }
+
+    /**
+     * Gets the number of records currently in the journal.
+     *
+     * @return The record count.
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * Gets the size of the journal in bytes.
+     *
+     * @return The journal size.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Syncs and closes the journal file. The journal is reopened on the next append.
+     *
+     * @throws IOException If the file cannot be synced or closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (output != null) {
+            try {
+                sync();
+            } finally {
+                output.close();
+                output = null;
+            }
+        }
+    }
+
+    /**
+     * Opens the journal file for appending if it is not open yet.
+     *
+     * @return The append stream.
+     * @throws IOException If the file cannot be opened.
+     */
+    private FileOutputStream openForAppend() throws IOException {
+        if (output == null) {
+            output = new FileOutputStream(file, true);
+        }
+        return output;
+    }
+
+    /**
+     * Encodes an operation, its sequence number and its arguments into a record payload.
+     *
+     * @param operation The operation.
+     * @param sequence  The sequence number of the record.
+     * @param arguments The arguments, which may contain null values.
+     * @return The encoded payload.
+     * @throws IOException If encoding fails.
+     */
+    private static byte[] encode(Operation operation, long sequence, String[] arguments) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(operation.ordinal() | SEQUENCED);
+        BinaryFormat.writeVarLong(out, sequence);
+        out.writeByte(arguments.length);
+        for (String argument : arguments) {
+            BinaryFormat.writeString(out, argument);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Decodes the operation of a record payload.
+     *
+     * @param payload The record payload.
+     * @return The operation, or null if the ordinal is unknown.
+     */
+    private static Operation decodeOperation(byte[] payload) {
+        int ordinal = payload.length == 0 ? -1 : payload[0] & ~SEQUENCED & 0xFF;
+        Operation[] operations = Operation.values();
+        return ordinal >= 0 && ordinal < operations.length ? operations[ordinal] : null;
+    }
+
+    /**
+     * Decodes the arguments of a record payload.
+     *
+     * @param in The payload, positioned after the operation and the sequence number.
+     * @return The decoded arguments.
+     * @throws IOException If the payload is malformed.
+     */
+    private static String[] decodeArguments(DataInputStream in) throws IOException {
+        String[] arguments = new String[in.readUnsignedByte()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = BinaryFormat.readString(in);
+        }
+        return arguments;
+    }
+}
@@ -0,0 +1,89 @@
+package br.ufal.ic.p2.jackut;
+
+import java.util.Collection;
+
+/**
+ * Renders the lists returned by the listing operations, in the {@code {a,b,c}} format of the
+ * facade.
+ *
+ * Lists are rendered into a builder kept by each thread, so that rendering a list allocates only
+ * the resulting string. Users and communities keep the lists they rendered until the listed
+ * relationship changes, so most listing calls do not render anything.
+ */
+final class ListFormat {
+
+    /**
+     * Capacity above which a thread's builder is dropped after use instead of being kept, so that
+     * rendering one very long list does not pin its buffer for the life of the thread.
+     */
+    private static final int MAX_KEPT_CAPACITY = 1 << 16;
+
+    /**
+     * Builder of each thread.
+     */
+    private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    /**
+     * Not instantiable.
+     */
+    private ListFormat() {
+    }
+
+    /**
+     * Starts a list in the calling thread's builder.
+     *
+     * @return The builder, holding the opening brace.
+     */
+    static StringBuilder open() {
+        StringBuilder out = BUILDER.get();
+        out.setLength(0);
+        return out.append('{');
+    }
+
+    /**
+     * Appends an element to a list started by {@link #open()}. Elements are told apart by the
+     * length of the list, so they must not be empty, which holds for logins.
+     *
+     * @param out     The builder.
+     * @param element The element.
+     */
+    static void append(StringBuilder out, String element) {
+        if (out.length() > 1) {
+            out.append(',');
+        }
+        out.append(element);
+    }
+
+    /**
+     * Ends a list started by {@link #open()}.
+     *
+     * @param out The builder.
+     * @return The rendered list.
+     */
+    static String close(StringBuilder out) {
+        String list = out.append('}').toString();
+        if (out.capacity() > MAX_KEPT_CAPACITY) {
+            BUILDER.remove();
+        }
+        return list;
+    }
+
+    /**
+     * Renders a list of names.
+     *
+     * @param elements The names, in order; they may be empty.
+     * @return The rendered list.
+     */
+    static String format(Collection<String> elements) {
+        StringBuilder out = open();
+        boolean first = true;
+        for (String element : elements) {
+            if (!first) {
+                out.append(',');
+            }
+            out.append(element);
+            first = false;
+        }
+        return close(out);
+    }
+}
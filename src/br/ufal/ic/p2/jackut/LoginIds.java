@@ -0,0 +1,117 @@
+package br.ufal.ic.p2.jackut;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary giving every login a small integer id, so that users can refer to each other
+ * through primitive ints in {@link IdSet}s instead of strings.
+ *
+ * Ids are handed out the first time a login is seen, and are kept in memory only: snapshots and
+ * the journal keep referring to users by login, so ids may differ from one run to the next.
+ * An id lives as long as its user. Deleting a user removes every link to it first, and then
+ * {@link #release(String) releases} its id, which is handed to the next new login; ids are
+ * therefore bounded by the number of users rather than by the number of accounts ever created.
+ * The only references that may outlive the user are entries in the correspondents of users that
+ * sent messages to it, which only name users worth checking on deletion and skip released ids.
+ *
+ * Lookups are lock-free; assigning a new id is serialized.
+ */
+class LoginIds {
+
+    /**
+     * Id of each login.
+     */
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+
+    /**
+     * Login of each id. Grown by copying, and replaced only after the new login was stored, so a
+     * thread that obtained an id always finds its login.
+     */
+    private volatile String[] logins = new String[1024];
+
+    /**
+     * Next id to hand out when none was released. Guarded by this dictionary's monitor.
+     */
+    private int next;
+
+    /**
+     * Released ids, handed out again before new ones. Guarded by this dictionary's monitor.
+     */
+    private int[] free = new int[16];
+
+    /**
+     * Number of entries of {@link #free} in use. Guarded by this dictionary's monitor.
+     */
+    private int freeCount;
+
+    /**
+     * Gets the id of a login, giving it a new one if it has none yet.
+     *
+     * @param login The login.
+     * @return The id.
+     */
+    int intern(String login) {
+        Integer id = ids.get(login);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(login);
+            if (id != null) {
+                return id;
+            }
+            int assigned = freeCount > 0 ? free[--freeCount] : next++;
+            String[] current = logins;
+            if (assigned == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[assigned] = login;
+            logins = current;
+            ids.put(login, assigned);
+            return assigned;
+        }
+    }
+
+    /**
+     * Releases the id of a deleted user, to be handed to another login.
+     * The caller must hold the repository exclusively and have removed every reference to the
+     * id first, other than correspondent entries: a reference left behind would point to
+     * whichever login gets the id next.
+     *
+     * @param login The login.
+     */
+    synchronized void release(String login) {
+        Integer id = ids.remove(login);
+        if (id == null) {
+            return;
+        }
+        logins[id] = null;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = id;
+    }
+
+    /**
+     * Gets the id of a login without giving it one.
+     *
+     * @param login The login.
+     * @return The id, or -1 if the login was never seen or was released, in which case no user refers to it.
+     */
+    int find(String login) {
+        Integer id = ids.get(login);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Gets the login of an id.
+     *
+     * @param id An id returned by {@link #intern(String)}.
+     * @return The login.
+     */
+    String loginOf(int id) {
+        return logins[id];
+    }
+}
@@ -1,10 +1,16 @@
 package br.ufal.ic.p2.jackut;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 /**
  * Represents a message sent from one user to another in the Jackut system.
- * This class implements {@link Serializable} to allow message persistence.
+ * A message only holds the id of its sender, given by the repository's login dictionary, and its
+ * text: the receiver is the user whose queue holds it. Serializable only so that snapshots written
+ * with Java serialization by previous versions can be read.
  */
 public class Message implements Serializable {
 
@@ -14,19 +20,26 @@ public class Message implements Serializable {
     private static final long serialVersionUID = 1L;
 
     /**
-     * Session ID of the user who sent the message.
+     * Encoding of messages in inboxes and snapshots: the sender's login, then the text.
      */
-    private String senderSessionId;
+    static final Inbox.Codec<Message> CODEC = new Inbox.Codec<Message>() {
+        @Override
+        public void write(DataOutputStream out, Message message, Repository repository) throws IOException {
+            BinaryFormat.writeString(out, repository.loginOf(message.senderId));
+            BinaryFormat.writeString(out, message.text);
+        }
 
-    /**
-     * User object representing the sender of the message.
-     */
-    private User sender;
+        @Override
+        public Message read(DataInputStream in, Repository repository) throws IOException {
+            int senderId = repository.idOf(BinaryFormat.readString(in));
+            return new Message(senderId, BinaryFormat.readString(in));
+        }
+    };
 
     /**
-     * Login of the user who will receive the message.
+     * Id of the user who sent the message.
      */
-    private String receiverLogin;
+    private transient int senderId;
 
     /**
      * The content of the message.
@@ -34,17 +47,19 @@ public class Message implements Serializable {
     private String text;
 
     /**
-     * Constructs a message with sender, receiver, and content.
+     * The sender of a message read from a legacy snapshot, until its id is resolved by
+     * {@link #resolveSender(Repository)}.
+     */
+    private transient User legacySender;
+
+    /**
+     * Constructs a message.
      *
-     * @param senderSessionId The session ID of the user who sent the message.
-     * @param receiverLogin The login of the user who will receive the message.
+     * @param senderId The id of the user who sent the message.
      * @param text The content of the message.
-     * @param sender The User object representing the sender.
      */
-    public Message(String senderSessionId, String receiverLogin, String text, User sender) {
-        this.senderSessionId = senderSessionId;
-        this.receiverLogin = receiverLogin;
-        this.sender = sender;
+    Message(int senderId, String text) {
+        this.senderId = senderId;
         this.text = text;
     }
 
@@ -58,29 +73,43 @@ public class Message implements Serializable {
     }
 
     /**
-     * Gets the session ID of the user who sent the message.
+     * Gets the id of the user who sent the message.
      *
-     * @return The sender's session ID.
+     * @return The sender's id.
      */
-    public String getSenderSessionId() {
-        return senderSessionId;
+    int getSenderId() {
+        return senderId;
     }
 
     /**
-     * Gets the User object representing the sender.
+     * Gives a message read from a legacy snapshot the id of its sender, once the whole object
+     * graph was read and the sender is complete. Messages delivered to several users share one
+     * instance, so a message may be resolved more than once.
      *
-     * @return The sender User object.
+     * @param repository The repository the message belongs to.
+     * @return false if the message has no sender and must be dropped.
      */
-    public User getSender() {
-        return sender;
+    boolean resolveSender(Repository repository) {
+        if (legacySender != null && legacySender.getLogin() != null) {
+            this.senderId = repository.idOf(legacySender.getLogin());
+        }
+        this.legacySender = null;
+        return senderId >= 0;
     }
 
     /**
-     * Gets the login of the user who received the message.
+     * Reads a message written with Java serialization by a previous version of the system,
+     * which stored the sender as a full {@link User} object, along with the sender's session and
+     * the receiver's login. The sender is kept until {@link #resolveSender(Repository)} is called.
      *
-     * @return The receiver's login.
+     * @param in The object input stream.
+     * @throws IOException If reading fails.
+     * @throws ClassNotFoundException If a serialized class cannot be found.
      */
-    public String getReceiver() {
-        return receiverLogin;
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        this.text = (String) fields.get("text", null);
+        this.legacySender = (User) fields.get("sender", null);
+        this.senderId = -1;
     }
-}
\ No newline at end of file
+}
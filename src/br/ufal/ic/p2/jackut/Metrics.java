@@ -0,0 +1,294 @@
+package br.ufal.ic.p2.jackut;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of the metrics of the system, exported in the Prometheus text format.
+ *
+ * Operations register an {@link OperationMetrics} once, through {@link #operation(String)}, and
+ * measure each call with it; values computed on demand, such as the number of users, are
+ * registered as gauges through {@link #gauge(String, String, DoubleSupplier)} and read only when
+ * the metrics are exported. Recording is lock-free, so instrumented operations on different
+ * threads do not contend on the registry.
+ *
+ * The metrics are exported by {@link #startExporters()} according to system properties:
+ * {@code jackut.metrics.file} names a file rewritten every {@code jackut.metrics.interval}
+ * milliseconds (10 seconds by default) and after every snapshot, and {@code jackut.metrics.port}
+ * serves them over HTTP at {@code /metrics} on the loopback interface. Both are off by default.
+ */
+public final class Metrics {
+
+    /**
+     * File the metrics are dumped to, or null for no dump.
+     * Configurable through the {@code jackut.metrics.file} system property.
+     */
+    private static final String METRICS_FILE = System.getProperty("jackut.metrics.file");
+
+    /**
+     * Time in milliseconds between two dumps of the metrics file.
+     * Configurable through the {@code jackut.metrics.interval} system property.
+     */
+    private static final long METRICS_INTERVAL_MS = Long.getLong("jackut.metrics.interval", 10_000);
+
+    /**
+     * Loopback port serving the metrics over HTTP, or 0 for no endpoint.
+     * Configurable through the {@code jackut.metrics.port} system property.
+     */
+    private static final int METRICS_PORT = Integer.getInteger("jackut.metrics.port", 0);
+
+    /**
+     * Latency quantiles exported for each operation.
+     */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /**
+     * A value read when the metrics are exported.
+     */
+    private static class Gauge {
+        /**
+         * Description of the value.
+         */
+        private final String help;
+
+        /**
+         * Computes the value.
+         */
+        private final DoubleSupplier value;
+
+        /**
+         * Creates a gauge.
+         *
+         * @param help  Description of the value.
+         * @param value Computes the value.
+         */
+        private Gauge(String help, DoubleSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Metrics of every registered operation, in registration order.
+     */
+    private static final List<OperationMetrics> OPERATIONS = new CopyOnWriteArrayList<>();
+
+    /**
+     * Registered gauges, by metric name.
+     */
+    private static final Map<String, Gauge> GAUGES = new ConcurrentSkipListMap<>();
+
+    /**
+     * Background thread dumping the metrics file and running the HTTP endpoint, once started.
+     */
+    private static ScheduledExecutorService exporter;
+
+    /**
+     * Not instantiable.
+     */
+    private Metrics() {
+    }
+
+    /**
+     * Registers the metrics of an operation.
+     *
+     * @param name The operation name, exported as the {@code operation} label.
+     * @return The metrics to record the operation's calls with.
+     */
+    public static OperationMetrics operation(String name) {
+        OperationMetrics metrics = new OperationMetrics(name);
+        OPERATIONS.add(metrics);
+        return metrics;
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge of the same name.
+     *
+     * @param name  The metric name.
+     * @param help  Description of the value.
+     * @param value Computes the value; called from the exporting thread.
+     */
+    public static void gauge(String name, String help, DoubleSupplier value) {
+        GAUGES.put(name, new Gauge(help, value));
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format.
+     *
+     * @param out The destination.
+     * @throws IOException If the destination cannot be written.
+     */
+    public static void writePrometheus(Writer out) throws IOException {
+        header(out, "jackut_operation_calls_total", "counter", "Calls of each Jackut operation, successful or not.");
+        for (OperationMetrics operation : OPERATIONS) {
+            sample(out, "jackut_operation_calls_total", label(operation), operation.getLatency().getCount());
+        }
+
+        header(out, "jackut_operation_errors_total", "counter", "Exceptions thrown by each Jackut operation, by exception type.");
+        for (OperationMetrics operation : OPERATIONS) {
+            for (Map.Entry<String, Long> error : operation.getErrors().entrySet()) {
+                sample(out, "jackut_operation_errors_total",
+                        label(operation) + ",exception=\"" + error.getKey() + "\"", error.getValue());
+            }
+        }
+
+        header(out, "jackut_operation_latency_seconds", "summary", "Latency of each Jackut operation.");
+        for (OperationMetrics operation : OPERATIONS) {
+            LatencyHistogram latency = operation.getLatency();
+            for (double quantile : QUANTILES) {
+                sample(out, "jackut_operation_latency_seconds", label(operation) + ",quantile=\"" + quantile + "\"",
+                        latency.getPercentile(quantile * 100) / 1e9);
+            }
+            sample(out, "jackut_operation_latency_seconds_sum", label(operation), latency.getSum() / 1e9);
+            sample(out, "jackut_operation_latency_seconds_count", label(operation), latency.getCount());
+        }
+
+        header(out, "jackut_operation_latency_max_seconds", "gauge", "Slowest call of each Jackut operation.");
+        for (OperationMetrics operation : OPERATIONS) {
+            sample(out, "jackut_operation_latency_max_seconds", label(operation), operation.getLatency().getMax() / 1e9);
+        }
+
+        for (Map.Entry<String, Gauge> gauge : GAUGES.entrySet()) {
+            header(out, gauge.getKey(), "gauge", gauge.getValue().help);
+            sample(out, gauge.getKey(), null, gauge.getValue().value.getAsDouble());
+        }
+    }
+
+    /**
+     * Gets every metric in the Prometheus text format.
+     *
+     * @return The metrics.
+     */
+    public static String toPrometheus() {
+        StringWriter out = new StringWriter();
+        try {
+            writePrometheus(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes the metrics file, if one is configured. The file is replaced atomically, so readers
+     * never see a partial dump.
+     */
+    public static void dump() {
+        if (METRICS_FILE == null) {
+            return;
+        }
+        Path target = Paths.get(METRICS_FILE);
+        Path temp = Paths.get(METRICS_FILE + ".tmp");
+        try {
+            Files.write(temp, toPrometheus().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error writing metrics to " + METRICS_FILE + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts the exporters configured by the system properties, if not started yet.
+     * They run on a daemon thread and do not keep the JVM alive.
+     */
+    public static synchronized void startExporters() {
+        if (exporter != null || (METRICS_FILE == null && METRICS_PORT <= 0)) {
+            return;
+        }
+        exporter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "jackut-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (METRICS_FILE != null) {
+            exporter.scheduleWithFixedDelay(Metrics::dump, METRICS_INTERVAL_MS, METRICS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        if (METRICS_PORT > 0) {
+            // Started from the daemon thread, so that the server's own threads are daemons too.
+            exporter.execute(Metrics::startEndpoint);
+        }
+    }
+
+    /**
+     * Starts the HTTP endpoint serving the metrics at {@code /metrics} on the loopback interface.
+     */
+    private static void startEndpoint() {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), METRICS_PORT), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.setExecutor(exporter);
+            server.start();
+        } catch (IOException e) {
+            System.err.println("Error starting the metrics endpoint on port " + METRICS_PORT + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the help and type lines of a metric.
+     *
+     * @param out  The destination.
+     * @param name The metric name.
+     * @param type The metric type.
+     * @param help Description of the metric.
+     * @throws IOException If the destination cannot be written.
+     */
+    private static void header(Writer out, String name, String type, String help) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    /**
+     * Writes a sample of a metric.
+     *
+     * @param out    The destination.
+     * @param name   The metric name.
+     * @param labels The labels, without braces, or null.
+     * @param value  The value.
+     * @throws IOException If the destination cannot be written.
+     */
+    private static void sample(Writer out, String name, String labels, double value) throws IOException {
+        out.write(name);
+        if (labels != null) {
+            out.write("{" + labels + "}");
+        }
+        out.write(" ");
+        out.write(value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value));
+        out.write("\n");
+    }
+
+    /**
+     * Gets the label identifying an operation.
+     *
+     * @param operation The operation metrics.
+     * @return The label.
+     */
+    private static String label(OperationMetrics operation) {
+        return "operation=\"" + operation.getName() + "\"";
+    }
+}
@@ -0,0 +1,166 @@
+package br.ufal.ic.p2.jackut;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of one operation: number of calls, latency of each call and exceptions thrown, by type.
+ * Instances are created and registered by {@link Metrics#operation(String)}.
+ *
+ * A call is measured by running it through {@link #call(Call)}, or {@link #run(Task)} if it
+ * returns nothing. Code that cannot be wrapped in a lambda takes {@link System#nanoTime()} before
+ * the call and passes it to {@link #record(long)} once it returns or throws; a call that throws is
+ * also passed to {@link #failed(Exception)}.
+ */
+public class OperationMetrics {
+
+    /**
+     * Body of a measured call that returns a value.
+     *
+     * @param <T> The type of the value.
+     */
+    @FunctionalInterface
+    public interface Call<T> {
+        /**
+         * Runs the call.
+         *
+         * @return The value.
+         * @throws Exception Any exception, rethrown unchanged by {@link #call(Call)}.
+         */
+        T call() throws Exception;
+    }
+
+    /**
+     * Body of a measured call that returns nothing.
+     */
+    @FunctionalInterface
+    public interface Task {
+        /**
+         * Runs the call.
+         *
+         * @throws Exception Any exception, rethrown unchanged by {@link #run(Task)}.
+         */
+        void run() throws Exception;
+    }
+
+    /**
+     * Name of the operation.
+     */
+    private final String name;
+
+    /**
+     * Latency of every call, successful or not.
+     */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Number of exceptions thrown, by exception class name.
+     */
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the metrics of an operation.
+     *
+     * @param name The operation name.
+     */
+    OperationMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Gets the name of the operation.
+     *
+     * @return The operation name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Runs and measures a call: its latency is recorded whether it returns or throws, and the
+     * exception it throws, if any, is counted and rethrown unchanged.
+     * The compiler cannot track the checked exceptions of the call through this method, so the
+     * method making the call must still declare the ones its body throws.
+     *
+     * @param call The call.
+     * @param <T>  The type of the value.
+     * @return The value returned by the call.
+     */
+    public <T> T call(Call<T> call) {
+        long start = System.nanoTime();
+        try {
+            return call.call();
+        } catch (Exception e) {
+            failed(e);
+            throw OperationMetrics.<RuntimeException>rethrow(e);
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Runs and measures a call that returns nothing, as {@link #call(Call)}.
+     *
+     * @param task The call.
+     */
+    public void run(Task task) {
+        call(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Throws an exception without the compiler requiring it to be declared, since its type is
+     * erased to the unchecked type argument.
+     *
+     * @param error The exception.
+     * @param <E>   Inferred as an unchecked type by the caller.
+     * @return Never returns; declared so that the call can be written as a throw statement.
+     * @throws E Always, as the exception given.
+     */
+    @SuppressWarnings("unchecked")
+    private static <E extends Exception> RuntimeException rethrow(Exception error) throws E {
+        throw (E) error;
+    }
+
+    /**
+     * Records a call.
+     *
+     * @param startNanos The value of {@link System#nanoTime()} when the call started.
+     */
+    public void record(long startNanos) {
+        latency.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Counts an exception thrown by a call.
+     *
+     * @param error The exception.
+     */
+    public void failed(Exception error) {
+        errors.computeIfAbsent(error.getClass().getSimpleName(), type -> new LongAdder()).increment();
+    }
+
+    /**
+     * Gets the latency histogram of the calls.
+     *
+     * @return The histogram, in nanoseconds.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Gets the number of exceptions thrown, by exception class name.
+     *
+     * @return A sorted copy of the counts.
+     */
+    public Map<String, Long> getErrors() {
+        Map<String, Long> copy = new TreeMap<>();
+        errors.forEach((type, count) -> copy.put(type, count.sum()));
+        return copy;
+    }
+}
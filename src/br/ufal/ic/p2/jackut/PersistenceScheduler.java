@@ -0,0 +1,251 @@
+package br.ufal.ic.p2.jackut;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group-commit scheduler that moves journal writes off the caller's thread.
+ * Operations are queued in memory and a background thread appends them to the {@link Journal}
+ * in batches, forcing each batch to disk with a single {@code fsync}.
+ *
+ * A batch is flushed as soon as the oldest queued operation is older than the durability window,
+ * or as soon as the batch reaches its maximum size, whichever comes first.
+ * Every submitted operation gets a future that completes once it is durable on disk.
+ */
+public class PersistenceScheduler implements Closeable {
+
+    /**
+     * An operation waiting to be appended to the journal.
+     */
+    private static class Pending {
+        /**
+         * The recorded operation.
+         */
+        private final Journal.Operation operation;
+
+        /**
+         * The operation arguments.
+         */
+        private final String[] arguments;
+
+        /**
+         * Creates a pending journal record.
+         *
+         * @param operation The recorded operation.
+         * @param arguments The operation arguments.
+         */
+        private Pending(Journal.Operation operation, String[] arguments) {
+            this.operation = operation;
+            this.arguments = arguments;
+        }
+    }
+
+    /**
+     * The journal receiving the flushed operations.
+     */
+    private final Journal journal;
+
+    /**
+     * Maximum time, in nanoseconds, an operation may wait in memory before being flushed.
+     */
+    private final long windowNanos;
+
+    /**
+     * Number of queued operations that triggers an immediate flush.
+     */
+    private final int maxBatch;
+
+    /**
+     * Monitor guarding the queue and the flush state.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Operations waiting for the next flush.
+     */
+    private List<Pending> pending = new ArrayList<>();
+
+    /**
+     * Future completed when the operations currently in {@link #pending} are durable.
+     */
+    private CompletableFuture<Void> pendingFuture = new CompletableFuture<>();
+
+    /**
+     * Future of the batch currently being written by the background thread.
+     */
+    private CompletableFuture<Void> inFlightFuture = CompletableFuture.completedFuture(null);
+
+    /**
+     * Time, from {@link System#nanoTime()}, at which the oldest pending operation was queued.
+     */
+    private long oldestPendingAt;
+
+    /**
+     * Whether a caller asked for the pending operations to be flushed right away.
+     */
+    private boolean flushRequested;
+
+    /**
+     * Whether the scheduler was closed.
+     */
+    private boolean closed;
+
+    /**
+     * Background thread performing the flushes.
+     */
+    private final Thread worker;
+
+    /**
+     * Creates and starts a scheduler for the given journal.
+     *
+     * @param journal      The journal receiving the operations.
+     * @param windowMillis Durability window in milliseconds; zero or less flushes every operation immediately.
+     * @param maxBatch     Number of queued operations that triggers an immediate flush.
+     */
+    public PersistenceScheduler(Journal journal, long windowMillis, int maxBatch) {
+        this.journal = journal;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMillis));
+        this.maxBatch = Math.max(1, maxBatch);
+        this.worker = new Thread(this::run, "jackut-persistence");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Queues an operation to be appended to the journal.
+     *
+     * @param operation The recorded operation.
+     * @param arguments The operation arguments.
+     * @return A future completed once the operation is durable on disk.
+     */
+    public CompletableFuture<Void> submit(Journal.Operation operation, String... arguments) {
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("Persistence scheduler is closed");
+            }
+            if (pending.isEmpty()) {
+                oldestPendingAt = System.nanoTime();
+            }
+            pending.add(new Pending(operation, arguments));
+            if (windowNanos == 0 || pending.size() >= maxBatch) {
+                flushRequested = true;
+                lock.notifyAll();
+            } else if (pending.size() == 1) {
+                lock.notifyAll();
+            }
+            return pendingFuture;
+        }
+    }
+
+    /**
+     * Requests an immediate flush of every queued operation.
+     *
+     * @return A future completed once every operation submitted so far is durable on disk.
+     */
+    public CompletableFuture<Void> flush() {
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                return inFlightFuture;
+            }
+            flushRequested = true;
+            lock.notifyAll();
+            return pendingFuture;
+        }
+    }
+
+    /**
+     * Gets the number of operations waiting to be written.
+     *
+     * @return The queue length.
+     */
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Flushes every queued operation and stops the background thread.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Background loop: waits for a batch to become due, then writes and syncs it.
+     */
+    private void run() {
+        while (true) {
+            List<Pending> batch;
+            CompletableFuture<Void> future;
+
+            synchronized (lock) {
+                try {
+                    while (!isBatchDue()) {
+                        if (pending.isEmpty()) {
+                            if (closed) {
+                                return;
+                            }
+                            lock.wait();
+                        } else {
+                            long remaining = oldestPendingAt + windowNanos - System.nanoTime();
+                            TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+
+                batch = pending;
+                future = pendingFuture;
+                pending = new ArrayList<>();
+                pendingFuture = new CompletableFuture<>();
+                inFlightFuture = future;
+                flushRequested = false;
+            }
+
+            try {
+                for (Pending record : batch) {
+                    journal.append(record.operation, record.arguments);
+                }
+                journal.sync();
+                future.complete(null);
+            } catch (IOException e) {
+                System.err.println("Error flushing journal: " + e.getMessage());
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the queued operations must be flushed now.
+     * Must be called while holding {@link #lock}.
+     *
+     * @return true if a flush is due.
+     */
+    private boolean isBatchDue() {
+        if (pending.isEmpty()) {
+            return false;
+        }
+        return closed || flushRequested || System.nanoTime() - oldestPendingAt >= windowNanos;
+    }
+}
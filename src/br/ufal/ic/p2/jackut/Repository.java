@@ -3,12 +3,27 @@ package br.ufal.ic.p2.jackut;
 import br.ufal.ic.p2.jackut.Exceptions.*;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * The Repository class is responsible for managing users and sessions in the system.
  * It follows the Singleton pattern to ensure a single instance is used throughout the application.
  * This class also handles data persistence by saving and loading users and sessions from files.
+ *
+ * The repository is safe to use from several threads. Lookups go through concurrent maps and
+ * users and communities synchronize their own state. Operations that must be atomic across
+ * several users hold the locks returned by {@link #lockUsers(String...)} for all of them,
+ * so that the check, the mutation and the journal record happen as one step.
+ * Operations that visit every user (deletion, erasure, snapshots) hold the repository exclusively.
  */
 public class Repository implements Serializable {
 
@@ -18,46 +33,294 @@ public class Repository implements Serializable {
     private static final long serialVersionUID = 1L;
 
     /**
-     * File path where user data is stored.
+     * Directory holding the segments of the users snapshot, see {@link SegmentedUserStore}.
+     */
+    private static final String USERS_DIRECTORY = "jackut_users";
+
+    /**
+     * Directory holding the segments of the sessions snapshot.
+     */
+    private static final String SESSIONS_DIRECTORY = "jackut_sessions";
+
+    /**
+     * Directory holding the segments of the communities snapshot.
+     */
+    private static final String COMMUNITIES_DIRECTORY = "jackut_communities";
+
+    /**
+     * File where user data was stored before snapshots were segmented. Read once and converted.
      */
     private static final String USERS_FILE = "jackut_users.dat";
 
     /**
-     * File path where session data is stored.
+     * File where session data was stored before snapshots were segmented.
      */
     private static final String SESSIONS_FILE = "jackut_sessions.dat";
 
     /**
-     * File path where community data is stored.
+     * File where community data was stored before snapshots were segmented.
      */
     private static final String COMMUNITIES_FILE = "jackut_communities.dat";
 
     /**
-     * Singleton instance of the Repository class.
+     * Number of segments users, communities and sessions are split into by a new snapshot.
+     * A snapshot only rewrites the segments holding something that changed, so more segments make
+     * small saves cheaper at the cost of more files. An existing snapshot keeps its segment count.
+     * Configurable through the {@code jackut.store.segments} system property.
+     */
+    private static final int SNAPSHOT_SEGMENTS = Math.max(1, Integer.getInteger("jackut.store.segments", 64));
+
+    /**
+     * Whether loading a snapshot compares the CRC32C checksum of every segment with its
+     * {@link SnapshotManifest}, rather than only its length. Configurable through the
+     * {@code jackut.store.verify} system property.
+     */
+    private static final boolean VERIFY_CHECKSUMS = Boolean.parseBoolean(System.getProperty("jackut.store.verify", "true"));
+
+    /**
+     * Index of the users section in a {@link SnapshotManifest}.
+     */
+    private static final int USERS_SECTION = 0;
+
+    /**
+     * Index of the communities section in a {@link SnapshotManifest}.
+     */
+    private static final int COMMUNITIES_SECTION = 1;
+
+    /**
+     * Index of the sessions section in a {@link SnapshotManifest}.
+     */
+    private static final int SESSIONS_SECTION = 2;
+
+    /**
+     * Directory of each section of a {@link SnapshotManifest}, by section index.
+     */
+    private static final String[] SECTION_DIRECTORIES = {USERS_DIRECTORY, COMMUNITIES_DIRECTORY, SESSIONS_DIRECTORY};
+
+    /**
+     * File path of the write-ahead journal holding the operations applied since the last snapshot.
+     */
+    private static final String JOURNAL_FILE = "jackut_journal.log";
+
+    /**
+     * Maximum time, in milliseconds, an operation may stay in memory before it is forced to disk.
+     * Configurable through the {@code jackut.durability.window} system property; zero makes every
+     * operation wait for its own flush.
+     */
+    private static final long DURABILITY_WINDOW_MS = Long.getLong("jackut.durability.window", 20);
+
+    /**
+     * Number of queued operations that forces a flush before the durability window elapses.
+     * Configurable through the {@code jackut.durability.batch} system property.
+     */
+    private static final int DURABILITY_BATCH = Integer.getInteger("jackut.durability.batch", 512);
+
+    /**
+     * Number of journal records after which the journal is compacted into a new snapshot.
+     * Configurable through the {@code jackut.journal.compaction} system property.
+     */
+    private static final int JOURNAL_COMPACTION_RECORDS = Integer.getInteger("jackut.journal.compaction", 10_000);
+
+    /**
+     * Number of lock stripes guarding the users.
+     */
+    private static final int LOCK_STRIPES = 256;
+
+    /**
+     * Time in milliseconds after which an unused session expires, or 0 for no limit.
+     * Configurable through the {@code jackut.session.idle} system property.
+     */
+    private static final long SESSION_IDLE_TIMEOUT_MS = Long.getLong("jackut.session.idle", 30 * 60 * 1000L);
+
+    /**
+     * Time in milliseconds after which a session expires even if it is in use, or 0 for no limit.
+     * Configurable through the {@code jackut.session.absolute} system property.
+     */
+    private static final long SESSION_ABSOLUTE_TIMEOUT_MS = Long.getLong("jackut.session.absolute", 24 * 60 * 60 * 1000L);
+
+    /**
+     * Maximum number of open sessions per user; opening another one closes the oldest.
+     * Configurable through the {@code jackut.session.maxPerUser} system property.
+     */
+    private static final int SESSION_MAX_PER_USER = Integer.getInteger("jackut.session.maxPerUser", 64);
+
+    /**
+     * Whether sessions are journaled and written to the snapshot, so that they survive a restart.
+     * Configurable through the {@code jackut.session.persist} system property.
+     */
+    private static final boolean PERSIST_SESSIONS = Boolean.parseBoolean(System.getProperty("jackut.session.persist", "true"));
+
+    /**
+     * Metrics of {@link #saveData()}.
+     */
+    private static final OperationMetrics SAVE_DATA = Metrics.operation("saveData");
+
+    /**
+     * Lazily initialized holder of the singleton instance.
+     * Class initialization guarantees the instance is created once and safely published to every thread.
+     */
+    private static class Holder {
+        /**
+         * Singleton instance of the Repository class.
+         */
+        private static final Repository INSTANCE = new Repository();
+    }
+
+    /**
+     * Map of the users loaded in memory, where the key is the login and the value is the User object.
+     * Users created since the last snapshot live here; users of the snapshot are decoded from the
+     * {@link #userStore} and added here the first time they are accessed.
+     */
+    private Map<String, User> users = new ConcurrentHashMap<>();
+
+    /**
+     * Ids of the logins, through which users refer to each other in memory.
      */
-    private static Repository instance;
+    private final transient LoginIds loginIds = new LoginIds();
 
     /**
-     * Map of registered users, where the key is the login and the value is the User object.
+     * Number of segments of the snapshot.
      */
-    private Map<String, User> users = new HashMap<>();
+    private transient int segmentCount = SNAPSHOT_SEGMENTS;
 
     /**
-     * Map of active sessions, where the key is the session token and the value is the Session object.
+     * Memory-mapped users segments of the last snapshot.
      */
-    private Map<String, Session> sessions = new HashMap<>();
+    private transient SegmentedUserStore userStore = new SegmentedUserStore(segmentCount);
+
+    /**
+     * Logins of the users deleted since the last snapshot, whose records are still in the {@link #userStore}.
+     */
+    private transient Set<String> deletedUsers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Logins of the users that changed since they were last written to a snapshot.
+     */
+    private transient Set<String> dirtyUsers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Names of the communities created, changed or deleted since they were last written to a snapshot.
+     */
+    private transient Set<String> dirtyCommunities = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Whether the next snapshot must write every segment: when there is no snapshot generation
+     * yet, when it was written in an older format or layout, and after an erasure.
+     */
+    private transient boolean rewriteAll = true;
+
+    /**
+     * Manifest of the snapshot generation the segments in memory come from, or null if there is none.
+     */
+    private transient SnapshotManifest manifest;
+
+    /**
+     * Newest snapshot generation found on disk or written, so that a new generation never reuses
+     * the number, or the file names, of a rejected one.
+     */
+    private transient long lastGeneration;
+
+    /**
+     * Whether the snapshot was loaded from a layout without a manifest, whose files are deleted
+     * once the next snapshot converted them.
+     */
+    private transient boolean convertedLayout;
+
+    /**
+     * Active sessions, indexed by session token and by login.
+     */
+    private transient SessionStore sessions = newSessionStore(segmentCount);
 
     /**
      * Map of communities, where the key is the community name (must be unique) and the value is the Community object.
      */
-    private Map<String, Community> communities = new HashMap<>();
+    private Map<String, Community> communities = new ConcurrentHashMap<>();
+
+    /**
+     * Write-ahead journal of the operations applied since the last snapshot.
+     */
+    private transient Journal journal;
+
+    /**
+     * Background scheduler that group-commits journal records to disk.
+     */
+    private transient PersistenceScheduler scheduler;
+
+    /**
+     * Number of records in the journal, including the ones still queued in the scheduler.
+     */
+    private final transient AtomicLong journalRecords = new AtomicLong();
+
+    /**
+     * Number of users created minus users deleted since the last snapshot, so that the number of
+     * users is known without decoding the {@link #userStore}.
+     */
+    private final transient AtomicLong usersSinceSnapshot = new AtomicLong();
+
+    /**
+     * Duration of the last {@link #saveData()}, in nanoseconds.
+     */
+    private transient volatile long lastSaveNanos;
+
+    /**
+     * Sequence number of the last message sent to a community, giving the global send order in
+     * which users read the messages of all their communities.
+     */
+    private final transient AtomicLong communityMessageSequence = new AtomicLong();
+
+    /**
+     * Whether a journal compaction is scheduled or running.
+     */
+    private final transient AtomicBoolean compacting = new AtomicBoolean();
+
+    /**
+     * Guards the structure of the repository. Regular operations hold it shared; operations that
+     * visit every user, and snapshots, hold it exclusively.
+     */
+    private final transient ReentrantReadWriteLock structureLock = new ReentrantReadWriteLock();
 
+    /**
+     * Per-user locks making compound operations on the same users atomic.
+     */
+    private final transient StripedLocks userLocks = new StripedLocks(LOCK_STRIPES);
+
+    /**
+     * Whether operations are applied without being journaled: while the journal is replayed, since
+     * its operations are already recorded, and during a bulk load, which is saved by a snapshot.
+     * Only changed while no operation can run, at startup or while the repository is held exclusively.
+     */
+    private transient boolean journalSuspended;
 
     /**
      * Private constructor that loads saved data upon initialization.
      */
     private Repository() {
         loadData();
+        registerGauges();
+        Metrics.startExporters();
+    }
+
+    /**
+     * Registers the gauges describing the repository with {@link Metrics}.
+     * Private message queues are summed over the users loaded in memory; users that were not
+     * accessed since the snapshot was loaded are not decoded for this, so their queues are not counted.
+     */
+    private void registerGauges() {
+        Metrics.gauge("jackut_users", "Number of user accounts.",
+                () -> userStore.size() + usersSinceSnapshot.get());
+        Metrics.gauge("jackut_users_loaded", "Number of users decoded and held in memory.", () -> users.size());
+        Metrics.gauge("jackut_sessions", "Number of open sessions, including expired ones not swept yet.", () -> sessions.size());
+        Metrics.gauge("jackut_communities", "Number of communities.", () -> communities.size());
+        Metrics.gauge("jackut_queued_messages", "Private messages waiting to be read by the users loaded in memory.",
+                () -> users.values().stream().mapToLong(User::getMessageCount).sum());
+        Metrics.gauge("jackut_queued_community_messages", "Community messages waiting to be read, summed over the members.",
+                () -> communities.values().stream().mapToLong(Community::getUnreadCount).sum()
+                        + users.values().stream().mapToLong(User::getCommunityMessageCount).sum());
+        Metrics.gauge("jackut_spilled_messages", "Queued messages spilled from memory to the inbox segment files.",
+                () -> Inbox.getSpilledCount());
+        Metrics.gauge("jackut_journal_records", "Journal records written since the last snapshot.", () -> journalRecords.get());
+        Metrics.gauge("jackut_journal_pending", "Journal records waiting for the next flush.", () -> scheduler.getPendingCount());
+        Metrics.gauge("jackut_save_last_duration_seconds", "Duration of the last snapshot.", () -> lastSaveNanos / 1e9);
     }
 
     /**
@@ -66,10 +329,92 @@ public class Repository implements Serializable {
      * @return The singleton instance of Repository.
      */
     public static Repository getInstance() {
-        if (instance == null) {
-            instance = new Repository();
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Locks the given users (or community names) for a compound operation.
+     * The repository is held shared, so operations on other users proceed in parallel.
+     * Every user read or written by the operation must be passed in a single call:
+     * locks are acquired in a fixed order, and acquiring more locks later could deadlock.
+     *
+     * @param keys The logins (or community names) to lock.
+     * @return A guard releasing the locks when closed.
+     */
+    public StripedLocks.Guard lockUsers(String... keys) {
+        Lock shared = structureLock.readLock();
+        shared.lock();
+        return userLocks.lock(keys).within(shared);
+    }
+
+    /**
+     * Locks the whole repository, waiting for every running operation to finish.
+     *
+     * @return A guard releasing the lock when closed.
+     */
+    private StripedLocks.Guard lockAll() {
+        Lock exclusive = structureLock.writeLock();
+        exclusive.lock();
+        return StripedLocks.Guard.of(exclusive);
+    }
+
+    /**
+     * Creates an empty session table with the configured timeouts.
+     *
+     * @param segments The number of snapshot segments the sessions are written in.
+     * @return The session table.
+     */
+    private static SessionStore newSessionStore(int segments) {
+        return new SessionStore(SESSION_IDLE_TIMEOUT_MS, SESSION_ABSOLUTE_TIMEOUT_MS, SESSION_MAX_PER_USER, segments);
+    }
+
+    /**
+     * Records that a user changed since it was last written, so that the next snapshot rewrites its segment.
+     *
+     * @param login The login of the user.
+     */
+    void userChanged(String login) {
+        dirtyUsers.add(login);
+    }
+
+    /**
+     * Records that a community changed since it was last written, so that the next snapshot
+     * rewrites its segment.
+     *
+     * @param name The name of the community.
+     */
+    void communityChanged(String name) {
+        dirtyCommunities.add(name);
+    }
+
+    /**
+     * Checks, under the locks of an operation, that users looked up before the locks were taken
+     * are still the ones registered under their logins. A user may have been deleted, or deleted
+     * and created again, in between: changing the detached object would be lost, and its journal
+     * record would refer to a user that no longer exists.
+     *
+     * @param users The users looked up by the operation.
+     * @throws UserNotFoundException If any of them was deleted.
+     */
+    void requireCurrent(User... users) throws UserNotFoundException {
+        for (User user : users) {
+            if (findUser(user.getLogin()) != user) {
+                throw new UserNotFoundException();
+            }
+        }
+    }
+
+    /**
+     * Checks, under the locks of an operation, that a community looked up before the locks were
+     * taken still exists: it is deleted along with its owner.
+     *
+     * @param community The community looked up by the operation.
+     * @throws CommunityDoesntExistException If it was deleted.
+     */
+    void requireCurrent(Community community) throws CommunityDoesntExistException {
+        if (communities.get(community.getName()) != community) {
+            throw new CommunityDoesntExistException();
         }
-        return instance;
     }
 
     /**
@@ -78,21 +423,25 @@ public class Repository implements Serializable {
      * @return true if the community exists, false otherwise.
      */
     public boolean isCommunityCreated(String communityName) {
-        Community community = communities.get(communityName);
-        return community != null;
+        return communityName != null && communities.containsKey(communityName);
     }
 
     /**
      * Creates a new community in the system.
      * @param name The name of the new community.
      * @param community The Community object to be added.
+     * @return true if the community was added, false if a community with that name already exists.
      * @throws IllegalArgumentException if either parameter is null.
      */
-    public void newCommunity(String name, Community community) {
+    public boolean newCommunity(String name, Community community) {
         if (name == null || community == null) {
             throw new IllegalArgumentException("Community name and object cannot be null");
         }
-        this.communities.put(name, community);
+        if (this.communities.putIfAbsent(name, community) != null) {
+            return false;
+        }
+        communityChanged(name);
+        return true;
     }
 
     /**
@@ -102,7 +451,7 @@ public class Repository implements Serializable {
      * @throws CommunityDoesntExistException if no community with the given name exists.
      */
     public Community getCommunityByName(String communityName) throws CommunityDoesntExistException {
-        Community community = this.communities.get(communityName);
+        Community community = communityName == null ? null : this.communities.get(communityName);
 
         if (community == null) {
             throw new CommunityDoesntExistException();
@@ -117,7 +466,7 @@ public class Repository implements Serializable {
      * @throws CommunityDoesntExistException if no community with the given name exists.
      */
     public String getCommunityDescription(String communityName) throws CommunityDoesntExistException {
-        Community community = this.communities.get(communityName);
+        Community community = communityName == null ? null : this.communities.get(communityName);
 
         if (community == null) {
             throw new CommunityDoesntExistException();
@@ -133,7 +482,7 @@ public class Repository implements Serializable {
      * @throws CommunityDoesntExistException if no community with the given name exists.
      */
     public String getCommunityOwner(String communityName) throws CommunityDoesntExistException {
-        Community community = this.communities.get(communityName);
+        Community community = communityName == null ? null : this.communities.get(communityName);
 
         if (community == null) {
             throw new CommunityDoesntExistException();
@@ -142,14 +491,62 @@ public class Repository implements Serializable {
         return community.getOwner();
     }
 
+    /**
+     * Gets the sequence number of a new community message.
+     *
+     * @return The next number of the global send order.
+     */
+    long nextCommunityMessageSequence() {
+        return communityMessageSequence.incrementAndGet();
+    }
+
+    /**
+     * Makes the community messages sent from now on follow a message restored with its original
+     * sequence number.
+     *
+     * @param sequence The sequence number of the restored message.
+     */
+    void restoreCommunityMessageSequence(long sequence) {
+        communityMessageSequence.accumulateAndGet(sequence, Math::max);
+    }
+
+    /**
+     * Reads the next community message of a user: the oldest unread message, in the global send
+     * order, among the logs of the user's communities and the messages the user kept from deleted
+     * communities. The caller holds the locks of the user and of all its communities.
+     *
+     * @param user The user.
+     * @return The text of the message.
+     * @throws NoCommunityMessagesException If the user has no community message to read.
+     */
+    String readCommunityMessage(User user) throws NoCommunityMessagesException {
+        String login = user.getLogin();
+        Community next = null;
+        long nextSequence = user.peekCommunityMessageSequence();
+        for (String communityName : user.getCommunities()) {
+            Community community = communities.get(communityName);
+            if (community != null) {
+                long sequence = community.peekSequence(login);
+                if (sequence < nextSequence) {
+                    next = community;
+                    nextSequence = sequence;
+                }
+            }
+        }
+        if (next != null) {
+            return next.readMessage(login).getMessage();
+        }
+        return user.getFirstCommunityMessage();
+    }
+
     /**
      * Retrieves all communities that a user belongs to.
      * @param userLogin The login of the user.
-     * @return ArrayList containing the names of all communities the user belongs to.
+     * @return The names of all communities the user belongs to, formatted as {@code {a,b}}.
      * @throws UserNotFoundException if the user doesn't exist or if an empty login is provided.
      */
-    public ArrayList<String> getCommunitiesByLogin(String userLogin) throws UserNotFoundException {
-        User user = this.users.get(userLogin);
+    public String getCommunitiesByLogin(String userLogin) throws UserNotFoundException {
+        User user = findUser(userLogin);
 
         if (Objects.equals(userLogin, "")) {
             throw new UserNotFoundException();
@@ -159,7 +556,7 @@ public class Repository implements Serializable {
             throw new UserNotFoundException();
         }
 
-        return user.getCommunities();
+        return user.getFormattedCommunities();
     }
 
     /**
@@ -168,27 +565,35 @@ public class Repository implements Serializable {
      * @param login    The user's login.
      * @param password The user's password.
      * @return A new Session object.
-     * @throws UserNotFoundException         If the user does not exist.
-     * @throws InvalidPasswordOrLoginException If the password is incorrect.
+     * @throws UserNotFoundException         If the user is deleted while the session is opened.
+     * @throws InvalidPasswordOrLoginException If the user does not exist or the password is incorrect.
      */
     public Session newSession(String login, String password) throws UserNotFoundException, InvalidPasswordOrLoginException {
-        User user = users.get(login);
+        User user = findUser(login);
 
         if (user == null || !user.getPassword().equals(password)) {
             throw new InvalidPasswordOrLoginException();
         }
 
-        String sessionId = UUID.randomUUID().toString();
-        sessions.put(sessionId, new Session(sessionId, user));
-        saveData();
-        return sessions.get(sessionId);
+        Session session = new Session(SessionToken.generate(), login);
+        StripedLocks.Guard guard = lockUsers(login);
+        try {
+            requireCurrent(user);
+            sessions.add(session);
+            if (PERSIST_SESSIONS) {
+                record(Journal.Operation.NEW_SESSION, session.getId(), login, Long.toString(session.getCreatedAt()));
+            }
+        } finally {
+            guard.close();
+        }
+        return session;
     }
 
     /**
-     * Retrieves a session based on the session ID.
+     * Retrieves a session based on the session ID, and marks it as used.
      *
      * @param sessionId The session ID.
-     * @return The corresponding Session object, or null if not found.
+     * @return The corresponding Session object, or null if not found or expired.
      */
     public Session getSession(String sessionId) {
         return sessions.get(sessionId);
@@ -202,10 +607,11 @@ public class Repository implements Serializable {
      * @throws UserNotFoundException If the session ID does not exist.
      */
     public User getUserBySessionId(String id) throws UserNotFoundException {
-        if (!sessions.containsKey(id)) {
+        Session session = getSession(id);
+        if (session == null) {
             throw new UserNotFoundException();
         }
-        return sessions.get(id).getUser();
+        return getUser(session.getLogin());
     }
 
     /**
@@ -217,173 +623,1336 @@ public class Repository implements Serializable {
      * @throws UserAlreadyExistsException If a user with the same login already exists.
      */
     public void addUser(String login, String password, String name) throws UserAlreadyExistsException {
-        if (users.containsKey(login)) {
-            throw new UserAlreadyExistsException();
+        StripedLocks.Guard guard = lockUsers(login);
+        try {
+            if (userExists(login)) {
+                throw new UserAlreadyExistsException();
+            }
+            users.put(login, new User(login, password, name, this));
+            deletedUsers.remove(login);
+            userChanged(login);
+            usersSinceSnapshot.incrementAndGet();
+            record(Journal.Operation.CREATE_USER, login, password, name);
+        } finally {
+            guard.close();
         }
-        users.put(login, new User(login, password, name));
-        saveData();
     }
 
     /**
      * Deletes all users, sessions and communities from the repository.
      */
     public void eraseEverything() {
-        users.clear();
-        sessions.clear();
-        communities.clear();
-        new File(USERS_FILE).delete();
-        new File(SESSIONS_FILE).delete();
-        new File(COMMUNITIES_FILE).delete();
-        saveData();
+        StripedLocks.Guard guard = lockAll();
+        try {
+            users.clear();
+            Inbox.clearSpillDirectory();
+            deletedUsers.clear();
+            dirtyUsers.clear();
+            dirtyCommunities.clear();
+            usersSinceSnapshot.set(0);
+            communityMessageSequence.set(0);
+            communities.clear();
+            segmentCount = SNAPSHOT_SEGMENTS;
+            userStore = new SegmentedUserStore(segmentCount);
+            sessions = newSessionStore(segmentCount);
+            rewriteAll = true;
+            saveData();
+        } finally {
+            guard.close();
+        }
     }
 
 
     /**
-     * Saves users, sessions and communities to their respective files.
+     * Saves users, sessions and communities as a new snapshot generation.
+     * The snapshot then contains every journaled operation, so the journal is compacted away,
+     * into the archive kept for the previous generation.
+     * If the snapshot cannot be written, the journal is kept.
+     * Waits for every running operation to finish, and blocks new ones until the snapshot is written.
+     *
+     * @return true if the snapshot was written.
      */
-    public void saveData() {
-        saveToFile(USERS_FILE, users);
-        saveToFile(SESSIONS_FILE, sessions);
-        saveToFile(COMMUNITIES_FILE, communities);
+    public boolean saveData() {
+        long start = System.nanoTime();
+        boolean saved;
+        StripedLocks.Guard guard = lockAll();
+        try {
+            whenDurable().exceptionally(e -> null).join();
+            saved = writeSnapshot();
+            if (saved) {
+                journalRecords.set(0);
+            }
+        } finally {
+            guard.close();
+            SAVE_DATA.record(start);
+            lastSaveNanos = System.nanoTime() - start;
+        }
+        Metrics.dump();
+        return saved;
     }
 
     /**
-     * Saves a given object to a file.
+     * Applies a bulk load holding the repository exclusively, then saves it with a single snapshot.
+     * Operations applied by the load are not journaled: they become durable all at once when the
+     * snapshot is written, which happens even if the load stops with an exception.
+     * If the snapshot cannot be written, the load stays applied in memory only, until a later
+     * snapshot succeeds, and the caller is told: a load that completed throws an
+     * {@link UncheckedIOException}, and a load that stopped with an exception carries it as a
+     * suppressed exception.
      *
-     * @param fileName The name of the file.
-     * @param data     The object to save.
+     * @param load The operations to apply.
+     * @throws UncheckedIOException If the snapshot saving the load could not be written.
      */
-    private void saveToFile(String fileName, Object data) {
-        try (FileOutputStream fileStream = new FileOutputStream(fileName);
-             ObjectOutputStream oos = new ObjectOutputStream(fileStream)) {
-            oos.writeObject(data);
-        } catch (IOException e) {
-            System.err.println("Error saving data to " + fileName + ": " + e.getMessage());
+    public void bulkLoad(Runnable load) {
+        StripedLocks.Guard guard = lockAll();
+        try {
+            journalSuspended = true;
+            try {
+                load.run();
+            } catch (RuntimeException | Error e) {
+                journalSuspended = false;
+                if (!saveData()) {
+                    e.addSuppressed(unsavedLoad());
+                }
+                throw e;
+            }
+            journalSuspended = false;
+            if (!saveData()) {
+                throw unsavedLoad();
+            }
+        } finally {
+            guard.close();
         }
     }
 
     /**
-     * Loads data from a file.
+     * Creates the exception reporting a bulk load whose snapshot could not be written.
      *
-     * @param <T>         The type of object to load.
-     * @param fileName    The name of the file.
-     * @param defaultValue The default value if the file does not exist or an error occurs.
-     * @return The loaded object or the default value.
+     * @return The exception.
      */
-    @SuppressWarnings("unchecked")
-    private <T> T loadFromFile(String fileName, T defaultValue) {
-        File file = new File(fileName);
-        if (!file.exists()) {
-            return defaultValue;
+    private static UncheckedIOException unsavedLoad() {
+        return new UncheckedIOException(new IOException("The bulk load could not be saved; it is only kept in memory"));
+    }
+
+    /**
+     * Writes every user and community as the rows of a {@link Dataset} export, while regular
+     * operations go on. Each user and community is written holding only its own lock, so each
+     * one is consistent but the whole is not a point-in-time copy.
+     * The users of the snapshot are visited first, through the {@link SegmentedUserStore} mapped
+     * when the export started, which stays readable if a new snapshot replaces it; those that were never
+     * accessed are decoded for the export and dropped afterwards. The users created since are
+     * visited next.
+     *
+     * @param out Receives the rows.
+     * @throws IOException If a row cannot be written.
+     */
+    void exportTo(Dataset.RowSink out) throws IOException {
+        SegmentedUserStore store = userStore;
+        try {
+            for (String login : store.logins()) {
+                exportUser(login, out);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        try (FileInputStream fileStream = new FileInputStream(fileName);
-             ObjectInputStream ois = new ObjectInputStream(fileStream)) {
-            return (T) ois.readObject();
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Error loading data from " + fileName + ": " + e.getMessage());
-            return defaultValue;
+        for (String login : users.keySet()) {
+            if (!store.contains(login)) {
+                exportUser(login, out);
+            }
+        }
+        for (Community community : communities.values()) {
+            StripedLocks.Guard guard = lockUsers(community.getName());
+            try {
+                if (communities.get(community.getName()) == community) {
+                    community.exportTo(out);
+                }
+            } finally {
+                guard.close();
+            }
         }
     }
 
     /**
-     * Edits a user profile attribute.
+     * Writes the rows of a user, if it still exists, without keeping it in memory if it was not loaded.
      *
-     * @param session  The session of the user.
-     * @param atributo The attribute to modify.
-     * @param valor    The new value.
-     * @throws EmptyAttributeException If the provided attribute value is empty.
+     * @param login The login of the user.
+     * @param out   Receives the rows.
+     * @throws IOException If the user cannot be decoded or a row cannot be written.
      */
-    public void editProfile(Session session, String atributo, String valor) throws EmptyAttributeException {
-        session.getUser().setAtributo(atributo, valor);
+    private void exportUser(String login, Dataset.RowSink out) throws IOException {
+        StripedLocks.Guard guard = lockUsers(login);
+        try {
+            User user = users.get(login);
+            if (user != null) {
+                user.exportTo(out);
+                return;
+            }
+            if (deletedUsers.contains(login) || (user = userStore.load(login, this)) == null) {
+                return;
+            }
+            try {
+                user.exportTo(out);
+            } finally {
+                user.discardMessages();
+            }
+        } finally {
+            guard.close();
+        }
     }
 
-
     /**
-     * Loads all application data from persistent storage files.
-     * Initializes the users, sessions and communities maps by reading from their respective files.
-     * If any file is not found or corrupted, initializes with empty HashMaps.
+     * Requests an immediate flush of every recorded operation.
      *
-     * The method loads three separate data structures:
-     * - Users data from USERS_FILE
-     * - Sessions data from SESSIONS_FILE
-     * - Communities data from COMMUNITIES_FILE
+     * @return A future completed once every operation recorded so far is durable on disk.
      */
-    private void loadData() {
-        users = loadFromFile(USERS_FILE, new HashMap<>());
-        sessions = loadFromFile(SESSIONS_FILE, new HashMap<>());
-        communities = loadFromFile(COMMUNITIES_FILE, new HashMap<>());
+    public CompletableFuture<Void> whenDurable() {
+        return scheduler.flush();
     }
 
     /**
-     * Retrieves a user by their login.
+     * Appends an operation to the write-ahead journal.
+     * Must be called right after the operation was applied to the in-memory state, while still
+     * holding the locks of the operation, so that the journal order matches the order in which
+     * conflicting operations were applied.
+     * The record is written by the {@link PersistenceScheduler} within the durability window,
+     * unless the window is zero, in which case this call waits until the record is on disk.
+     * Once the journal grows past {@link #JOURNAL_COMPACTION_RECORDS} it is compacted into a new
+     * snapshot in the background, since the caller's locks would keep the snapshot from starting.
      *
-     * @param login The login of the user.
-     * @return The User object.
-     * @throws UserNotFoundException If the user does not exist.
+     * @param operation The applied operation.
+     * @param arguments The operation arguments, as documented in {@link Journal.Operation}.
+     * @return A future completed once the operation is durable on disk.
      */
-    public User getUser(String login) throws UserNotFoundException {
-        if (!users.containsKey(login)) {
-            throw new UserNotFoundException();
+    CompletableFuture<Void> record(Journal.Operation operation, String... arguments) {
+        if (journalSuspended) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> durable = scheduler.submit(operation, arguments);
+        if (DURABILITY_WINDOW_MS <= 0) {
+            durable.exceptionally(e -> null).join();
+        }
+        if (journalRecords.incrementAndGet() >= JOURNAL_COMPACTION_RECORDS && compacting.compareAndSet(false, true)) {
+            CompletableFuture.runAsync(() -> {
+                try {
+                    saveData();
+                } finally {
+                    compacting.set(false);
+                }
+            });
         }
-        return users.get(login);
+        return durable;
     }
 
     /**
-     * Deletes a user and all associated data from the system.
-     * Performs a complete cleanup including:
-     * - Removing all user messages and community messages
-     * - Removing references from other users' messages
-     * - Handling owned communities (deletes them if user is owner)
-     * - Removing from friends lists
-     * - Cleaning session data
+     * Re-applies a journaled operation on top of the loaded snapshot.
+     * Records already part of the snapshot, or already replayed from the archive, are skipped
+     * by the journal through their sequence number, so every other record is applied once.
+     * Records written before sequence numbers existed cannot be told apart: a user that already
+     * exists is not created again, and the others are applied again. Records that fail, for
+     * example because they refer to a user deleted since, are reported and skipped.
      *
-     * @param login The login of the user to be deleted
-     * @throws UserNotFoundException If no user with the specified login exists
-     *
-     * Operation steps:
-     * 1. Verifies user existence
-     * 2. Clears all user messages
-     * 3. Removes user references from other users' messages
-     * 4. Handles communities owned by the user
-     * 5. Updates all users' community memberships
-     * 6. Removes user from friends lists
-     * 7. Cleans up user and session data
+     * @param operation The journaled operation.
+     * @param args      The operation arguments.
      */
-    public void deleteUser(String login) throws UserNotFoundException {
-        if (!users.containsKey(login)) {
-            throw new UserNotFoundException();
+    private void replay(Journal.Operation operation, String[] args) {
+        try {
+            switch (operation) {
+                case CREATE_USER:
+                    if (!userExists(args[0])) {
+                        users.put(args[0], new User(args[0], args[1], args[2], this));
+                        deletedUsers.remove(args[0]);
+                        userChanged(args[0]);
+                        usersSinceSnapshot.incrementAndGet();
+                    }
+                    break;
+                case EDIT_PROFILE:
+                    getUser(args[0]).setAtributo(args[1], args[2]);
+                    break;
+                case NEW_SESSION:
+                    getUser(args[1]);
+                    SessionToken token = SessionToken.parse(args[0]);
+                    if (token == null) {
+                        throw new IllegalArgumentException("Invalid session token " + args[0]);
+                    }
+                    sessions.add(args.length > 2 ? new Session(token, args[1], Long.parseLong(args[2])) : new Session(token, args[1]));
+                    break;
+                case ADD_FRIEND:
+                    getUser(args[0]).addFriend(args[1]);
+                    break;
+                case SEND_MESSAGE:
+                    int sender = args.length > 3 ? 1 : 0;
+                    getUser(args[sender + 1]).addMessage(getUser(args[sender]), args[sender + 2]);
+                    break;
+                case READ_MESSAGE:
+                    getUser(args[0]).getFirstMessage();
+                    break;
+                case CREATE_COMMUNITY:
+                    Community community = new Community(args[0], args[1], getUser(args[2]), this);
+                    community.addMember(getUser(args[2]));
+                    newCommunity(args[0], community);
+                    break;
+                case JOIN_COMMUNITY:
+                    getCommunityByName(args[0]).addMember(getUser(args[1]));
+                    break;
+                case SEND_COMMUNITY_MESSAGE:
+                    getCommunityByName(args[0]).postMessage(getUser(args[1]), args[2]);
+                    break;
+                case READ_COMMUNITY_MESSAGE:
+                    readCommunityMessage(getUser(args[0]));
+                    break;
+                case FOLLOW:
+                    getUser(args[0]).follow(args[1]);
+                    getUser(args[1]).setFollower(args[0]);
+                    break;
+                case ADD_CRUSH:
+                    getUser(args[0]).addCrush(args[1]);
+                    break;
+                case ADD_ENEMY:
+                    getUser(args[0]).addEnemy(args[1]);
+                    break;
+                case DELETE_USER:
+                    deleteUser(args[0]);
+                    break;
+            }
+        } catch (Exception e) {
+            System.err.println("Skipping journal record " + operation + ": " + e.getMessage());
         }
+    }
 
-        User userToDelete = users.get(login);
-        userToDelete.getMessages().clear();
-        userToDelete.getCommunityMessages().clear();
-
-        for (User otherUser : users.values()) {
-            otherUser.getMessages().removeIf(msg -> msg.getSender().getLogin().equals(login));
-            otherUser.getCommunityMessages().removeIf(msg -> msg.getSender().getLogin().equals(login));
-        }
+    /**
+     * Writes one section of the snapshot, in the binary format, to a file.
+     */
+    private interface SectionWriter {
+        /**
+         * Writes the section body, after the file header.
+         *
+         * @param out The output stream.
+         * @throws IOException If writing fails.
+         */
+        void write(DataOutputStream out) throws IOException;
+    }
 
-        ArrayList<String> removedCommunities = new ArrayList<>();
+    /**
+     * Reads one section of the snapshot, in the binary format, from a file.
+     */
+    private interface SectionReader {
+        /**
+         * Reads the section body, after the file header.
+         *
+         * @param in      The input stream.
+         * @param version The format version of the file.
+         * @throws IOException If reading fails.
+         */
+        void read(DataInputStream in, int version) throws IOException;
+    }
 
-        for (Community community : new ArrayList<>(communities.values())) {
-            if (community.getOwner().equals(login)) {
-                communities.remove(community.getName());
-                removedCommunities.add(community.getName());
+    /**
+     * Writes a new generation of the snapshot: the segments of users, communities and sessions
+     * that changed since the last snapshot, or every segment if {@link #rewriteAll} is set, then
+     * the {@link SnapshotManifest} committing them along with the unchanged segments of the
+     * previous generation. Before the commit, the journal is archived under the previous
+     * generation, or under generation 0 for the first one, so that the previous generation can
+     * still be loaded with every operation if the new one is later found corrupted, and so that
+     * a crash right after the commit does not replay on top of the new generation the operations
+     * it already holds.
+     * Nothing changes in memory until the manifest is written: if a file cannot be written, the
+     * new generation is abandoned and its files deleted. Once it is committed, the files only
+     * referenced by older generations than the previous one are deleted.
+     *
+     * @return true if the new generation was committed.
+     */
+    private boolean writeSnapshot() {
+        long generation = lastGeneration + 1;
+        SegmentedUserStore source = userStore;
+        SnapshotManifest.Segment[][] segments = new SnapshotManifest.Segment[SECTION_DIRECTORIES.length][];
+        for (int s = 0; s < segments.length; s++) {
+            segments[s] = rewriteAll ? new SnapshotManifest.Segment[segmentCount] : manifest.getSegments(s).clone();
+        }
+        boolean[] sessionChanges = sessions.takeChangedSegments();
+        List<File> written = new ArrayList<>();
+        File[] userFiles;
+        List<List<Community>> communitySegments;
+        long journalSequence = journal == null ? loadedJournalSequence() : journal.getLastSequence();
+        SnapshotManifest committed = new SnapshotManifest(generation, journalSequence, SECTION_DIRECTORIES, segments);
+        try {
+            userFiles = writeUsers(generation, segments[USERS_SECTION], written);
+            communitySegments = writeCommunities(generation, segments[COMMUNITIES_SECTION], written);
+            writeSessions(generation, sessionChanges, segments[SESSIONS_SECTION], written);
+            for (String directory : SECTION_DIRECTORIES) {
+                SnapshotManifest.syncDirectory(new File(directory));
+            }
+            if (journal != null) {
+                journal.archive(journalArchive(loadedGeneration()));
+            }
+            committed.write();
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error saving snapshot generation " + generation + ": " + e.getMessage());
+            for (File file : written) {
+                file.delete();
+            }
+            for (int i = 0; i < sessionChanges.length; i++) {
+                if (sessionChanges[i]) {
+                    sessions.markChanged(i);
+                }
+            }
+            return false;
+        }
+
+        SnapshotManifest previous = manifest;
+        manifest = committed;
+        lastGeneration = generation;
+        try {
+            userStore = source.replace(userFiles);
+        } catch (IOException e) {
+            System.err.println("Error mapping " + USERS_DIRECTORY + ": " + e.getMessage());
+            return false;
+        }
+        long total = source.size() + usersSinceSnapshot.get();
+        usersSinceSnapshot.set(total - userStore.size());
+        int count = userFiles.length;
+        for (String login : rewriteAll ? users.keySet() : dirtyUsers) {
+            User user = users.get(login);
+            if (user != null && userFiles[SegmentedUserStore.segmentOf(login, count)] != null) {
+                user.clearDirty();
+            }
+        }
+        dirtyUsers.removeIf(login -> userFiles[SegmentedUserStore.segmentOf(login, count)] != null);
+        deletedUsers.removeIf(login -> userFiles[SegmentedUserStore.segmentOf(login, count)] != null);
+        for (List<Community> segment : communitySegments) {
+            if (segment != null) {
+                segment.forEach(Community::clearDirty);
+            }
+        }
+        dirtyCommunities.removeIf(name -> communitySegments.get(SegmentedUserStore.segmentOf(name, count)) != null);
+
+        if (convertedLayout) {
+            for (String fileName : new String[] {USERS_FILE, SESSIONS_FILE, COMMUNITIES_FILE}) {
+                new File(fileName).delete();
+            }
+            for (String directory : SECTION_DIRECTORIES) {
+                deleteUnversionedSegments(new File(directory));
+            }
+            convertedLayout = false;
+        }
+        rewriteAll = false;
+        collectGarbage(previous);
+        return true;
+    }
+
+    /**
+     * Writes the users segments holding users that changed or were deleted since the last
+     * snapshot. Changed users are encoded again, while the records of the other users of those
+     * segments are copied unchanged from the current {@link SegmentedUserStore}.
+     *
+     * @param generation The generation being written.
+     * @param entries    Receives the manifest entries of the written segments, by segment index.
+     * @param written    Receives the files written, to be deleted if the generation is abandoned.
+     * @return The files written, by segment index, null for the segments left unchanged.
+     * @throws IOException If a segment cannot be written.
+     */
+    private File[] writeUsers(long generation, SnapshotManifest.Segment[] entries, List<File> written) throws IOException {
+        SegmentedUserStore source = userStore;
+        int count = entries.length;
+        Collection<String> changed = rewriteAll ? users.keySet() : dirtyUsers;
+        boolean[] rewrite = new boolean[count];
+        if (rewriteAll) {
+            Arrays.fill(rewrite, true);
+        } else {
+            for (String login : dirtyUsers) {
+                rewrite[SegmentedUserStore.segmentOf(login, count)] = true;
+            }
+            for (String login : deletedUsers) {
+                rewrite[SegmentedUserStore.segmentOf(login, count)] = true;
+            }
+        }
+        File[] files = new File[count];
+        for (int i = 0; i < count; i++) {
+            if (rewrite[i]) {
+                files[i] = segmentFile(USERS_DIRECTORY, i, generation);
+            }
+        }
+
+        Files.createDirectories(Paths.get(USERS_DIRECTORY));
+        UserStore.Writer[] writers = new UserStore.Writer[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                if (files[i] != null) {
+                    written.add(files[i]);
+                    writers[i] = new UserStore.Writer(files[i]);
+                }
+            }
+            boolean sameLayout = source.getSegmentCount() == count;
+            for (int s = 0; s < source.getSegmentCount(); s++) {
+                if (sameLayout && files[s] == null) {
+                    continue;
+                }
+                UserStore segment = source.getSegment(s);
+                for (String login : segment.logins()) {
+                    int target = SegmentedUserStore.segmentOf(login, count);
+                    if (files[target] == null || deletedUsers.contains(login)) {
+                        continue;
+                    }
+                    User user = dirtyUsers.contains(login) ? users.get(login) : null;
+                    if (user != null) {
+                        writers[target].add(login, user);
+                    } else {
+                        writers[target].addRecord(login, segment.openRecord(login));
+                    }
+                }
+            }
+            for (String login : changed) {
+                int target = SegmentedUserStore.segmentOf(login, count);
+                User user = users.get(login);
+                if (user != null && !source.contains(login)) {
+                    writers[target].add(login, user);
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                if (writers[i] != null) {
+                    UserStore.Writer writer = writers[i];
+                    writers[i] = null;
+                    writer.close();
+                    entries[i] = SnapshotManifest.Segment.describe(files[i]);
+                }
+            }
+        } finally {
+            for (UserStore.Writer writer : writers) {
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException ignored) {
+                        // The generation is abandoned and the file deleted.
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Writes the communities segments holding communities that were created, changed or deleted
+     * since the last snapshot. Each segment starts with the sequence number of the last community
+     * message sent, the highest of which is restored on load.
+     *
+     * @param generation The generation being written.
+     * @param entries    Receives the manifest entries of the written segments, by segment index.
+     * @param written    Receives the files written, to be deleted if the generation is abandoned.
+     * @return The communities of each written segment, by segment index, null for the segments left unchanged.
+     * @throws IOException If a segment cannot be written.
+     */
+    private List<List<Community>> writeCommunities(long generation, SnapshotManifest.Segment[] entries, List<File> written) throws IOException {
+        int count = entries.length;
+        List<List<Community>> segments = new ArrayList<>(Collections.nCopies(count, null));
+        for (int i = 0; i < count; i++) {
+            if (rewriteAll) {
+                segments.set(i, new ArrayList<>());
+            }
+        }
+        for (String name : dirtyCommunities) {
+            int segment = SegmentedUserStore.segmentOf(name, count);
+            if (segments.get(segment) == null) {
+                segments.set(segment, new ArrayList<>());
+            }
+        }
+        for (Community community : communities.values()) {
+            List<Community> segment = segments.get(SegmentedUserStore.segmentOf(community.getName(), count));
+            if (segment != null) {
+                segment.add(community);
+            }
+        }
+
+        Files.createDirectories(Paths.get(COMMUNITIES_DIRECTORY));
+        long sequence = communityMessageSequence.get();
+        for (int i = 0; i < count; i++) {
+            List<Community> segment = segments.get(i);
+            if (segment == null) {
+                continue;
+            }
+            File file = segmentFile(COMMUNITIES_DIRECTORY, i, generation);
+            written.add(file);
+            writeSection(file, out -> {
+                BinaryFormat.writeVarLong(out, sequence);
+                BinaryFormat.writeVarInt(out, segment.size());
+                for (Community community : segment) {
+                    community.writeTo(out);
+                }
+            });
+            entries[i] = SnapshotManifest.Segment.describe(file);
+        }
+        return segments;
+    }
+
+    /**
+     * Writes the sessions segments holding sessions that were opened, used or closed since the
+     * last snapshot. Finding the live sessions of those segments visits the session table in memory.
+     * When sessions are not persisted, the segments are only written, empty, by a full rewrite.
+     *
+     * @param generation The generation being written.
+     * @param changed    Whether each segment changed, as taken from the session table.
+     * @param entries    Receives the manifest entries of the written segments, by segment index.
+     * @param written    Receives the files written, to be deleted if the generation is abandoned.
+     * @throws IOException If a segment cannot be written.
+     */
+    private void writeSessions(long generation, boolean[] changed, SnapshotManifest.Segment[] entries, List<File> written) throws IOException {
+        int count = entries.length;
+        List<List<Session>> segments = new ArrayList<>(Collections.nCopies(count, null));
+        for (int i = 0; i < count; i++) {
+            if (rewriteAll || (PERSIST_SESSIONS && changed[i])) {
+                segments.set(i, new ArrayList<>());
             }
         }
+        if (segments.stream().allMatch(Objects::isNull)) {
+            return;
+        }
+        if (PERSIST_SESSIONS) {
+            for (Session session : sessions.liveSessions()) {
+                List<Session> segment = segments.get(sessions.segmentOf(session.getLogin()));
+                if (segment != null) {
+                    segment.add(session);
+                }
+            }
+        }
+
+        Files.createDirectories(Paths.get(SESSIONS_DIRECTORY));
+        for (int i = 0; i < count; i++) {
+            List<Session> segment = segments.get(i);
+            if (segment == null) {
+                continue;
+            }
+            File file = segmentFile(SESSIONS_DIRECTORY, i, generation);
+            written.add(file);
+            writeSection(file, out -> {
+                BinaryFormat.writeVarInt(out, segment.size());
+                for (Session session : segment) {
+                    session.writeTo(out);
+                }
+            });
+            entries[i] = SnapshotManifest.Segment.describe(file);
+        }
+    }
+
+    /**
+     * Gets the file a segment is written to by a generation.
+     *
+     * @param directory  The directory of the section.
+     * @param index      The segment index.
+     * @param generation The generation.
+     * @return The file.
+     */
+    private static File segmentFile(String directory, int index, long generation) {
+        return new File(directory, index + "." + generation + ".dat");
+    }
+
+    /**
+     * Gets the archive holding the journal records applied on top of a generation, until the
+     * generation that followed it.
+     *
+     * @param generation The generation.
+     * @return The archive file.
+     */
+    private static File journalArchive(long generation) {
+        return new File("jackut_journal." + generation + ".log");
+    }
+
+    /**
+     * Gets the generation the state in memory was loaded from or last saved as.
+     *
+     * @return The generation, or 0 before the first one, when the state started empty or from
+     *         files written before generations existed.
+     */
+    private long loadedGeneration() {
+        return manifest == null ? 0 : manifest.getGeneration();
+    }
+
+    /**
+     * Gets the sequence number of the last journal record held by the generation the state in
+     * memory was loaded from or last saved as.
+     *
+     * @return The sequence number, or 0 before the first generation.
+     */
+    private long loadedJournalSequence() {
+        return manifest == null ? 0 : manifest.getJournalSequence();
+    }
+
+    /**
+     * Deletes the manifests, segments and journal archives that neither the current generation
+     * nor the previous one need, called once a new generation is committed. Manifests are deleted
+     * first, so that no manifest is left referring to a deleted segment.
+     *
+     * @param previous The manifest of the previous generation, or null if there is none.
+     */
+    private void collectGarbage(SnapshotManifest previous) {
+        long keptGeneration = previous == null ? 0 : previous.getGeneration();
+        for (long generation : SnapshotManifest.generations()) {
+            if (generation != manifest.getGeneration() && generation != keptGeneration) {
+                SnapshotManifest.fileOf(generation).delete();
+            }
+        }
+        Set<File> kept = new HashSet<>(manifest.files());
+        if (previous != null) {
+            kept.addAll(previous.files());
+        }
+        for (String directory : SECTION_DIRECTORIES) {
+            File[] files = new File(directory).listFiles((dir, name) -> name.matches("[0-9]+\\.[0-9]+\\.dat"));
+            if (files != null) {
+                for (File file : files) {
+                    if (!kept.contains(file)) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+        String[] names = new File(".").list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.matches("jackut_journal\\.[0-9]+\\.log") && !journalArchive(keptGeneration).getName().equals(name)) {
+                    new File(name).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the segments {@code 0.dat} to {@code n-1.dat} of a directory, written before
+     * snapshots had a manifest, once they were converted.
+     *
+     * @param directory The directory of the segments.
+     */
+    private static void deleteUnversionedSegments(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.matches("[0-9]+\\.dat"));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Loads the newest generation of the snapshot whose manifest and segments are intact,
+     * rejecting the newer ones with a message. A snapshot written before generations existed, in
+     * segments or in the single-file layout, is read when there is no manifest at all, and
+     * converted by the next snapshot.
+     * Users are not decoded here; they are loaded on demand by {@link #findUser(String)}.
+     * If no generation can be loaded, the system starts empty.
+     */
+    private void loadSnapshot() {
+        clearSnapshotState();
+        List<Long> generations = SnapshotManifest.generations();
+        lastGeneration = generations.isEmpty() ? 0 : generations.get(0);
+        for (long generation : generations) {
+            try {
+                SnapshotManifest candidate = SnapshotManifest.read(generation);
+                candidate.verify(VERIFY_CHECKSUMS);
+                loadGeneration(candidate);
+                manifest = candidate;
+                if (generation != lastGeneration) {
+                    System.err.println("Loaded snapshot generation " + generation + " in place of generation " + lastGeneration);
+                }
+                return;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Rejecting snapshot generation " + generation + ": " + e.getMessage());
+                clearSnapshotState();
+            }
+        }
+        if (!generations.isEmpty()) {
+            System.err.println("No intact snapshot generation, starting empty");
+            return;
+        }
+
+        File usersDirectory = new File(USERS_DIRECTORY);
+        boolean segmented = SegmentedUserStore.countSegments(usersDirectory) > 0;
+        if (!segmented && !new File(USERS_FILE).exists()) {
+            return;
+        }
+        try {
+            if (segmented) {
+                userStore = SegmentedUserStore.open(usersDirectory);
+                segmentCount = userStore.getSegmentCount();
+                sessions = newSessionStore(segmentCount);
+                loadUnversionedSegments(COMMUNITIES_DIRECTORY, this::readCommunities);
+                loadUnversionedSegments(SESSIONS_DIRECTORY, this::readSessions);
+            } else {
+                userStore = SegmentedUserStore.single(new UserStore(new File(USERS_FILE)));
+                loadFromFile(COMMUNITIES_FILE, this::readCommunities);
+                loadFromFile(SESSIONS_FILE, this::readSessions);
+            }
+            convertedLayout = true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error loading data from " + (segmented ? USERS_DIRECTORY : USERS_FILE) + ": " + e.getMessage());
+            clearSnapshotState();
+        }
+    }
+
+    /**
+     * Empties the state read from the snapshot, before a snapshot is loaded or after it failed to load.
+     */
+    private void clearSnapshotState() {
+        users = new ConcurrentHashMap<>();
+        deletedUsers = ConcurrentHashMap.newKeySet();
+        dirtyUsers = ConcurrentHashMap.newKeySet();
+        dirtyCommunities = ConcurrentHashMap.newKeySet();
+        usersSinceSnapshot.set(0);
+        segmentCount = SNAPSHOT_SEGMENTS;
+        userStore = new SegmentedUserStore(segmentCount);
+        sessions = newSessionStore(segmentCount);
+        communities = new ConcurrentHashMap<>();
+        communityMessageSequence.set(0);
+        manifest = null;
+        convertedLayout = false;
+        rewriteAll = true;
+    }
+
+    /**
+     * Maps the users segments of a verified generation and reads its communities and sessions segments.
+     *
+     * @param generation The manifest of the generation.
+     * @throws IOException If a segment cannot be read.
+     */
+    private void loadGeneration(SnapshotManifest generation) throws IOException {
+        File[] userFiles = generation.getFiles(USERS_SECTION);
+        if (userFiles.length == 0) {
+            throw new IOException("No user segment in generation " + generation.getGeneration());
+        }
+        userStore = SegmentedUserStore.open(userFiles);
+        segmentCount = userFiles.length;
+        sessions = newSessionStore(segmentCount);
+        for (File file : generation.getFiles(COMMUNITIES_SECTION)) {
+            loadFromFile(file.getPath(), this::readCommunities);
+        }
+        for (File file : generation.getFiles(SESSIONS_SECTION)) {
+            loadFromFile(file.getPath(), this::readSessions);
+        }
+        rewriteAll = generation.getSegments(COMMUNITIES_SECTION).length != segmentCount
+                || generation.getSegments(SESSIONS_SECTION).length != segmentCount;
+    }
+
+    /**
+     * Reads a communities section: the sequence number of the last community message, then the communities.
+     *
+     * @param in      The input stream.
+     * @param version The format version of the file.
+     * @throws IOException If reading fails.
+     */
+    private void readCommunities(DataInputStream in, int version) throws IOException {
+        restoreCommunityMessageSequence(version >= 6 ? BinaryFormat.readVarLong(in) : 0);
+        int count = BinaryFormat.readVarInt(in);
+        for (int i = 0; i < count; i++) {
+            Community community = Community.readFrom(in, version, this);
+            communities.put(community.getName(), community);
+        }
+    }
+
+    /**
+     * Reads a sessions section, keeping the sessions only if sessions are persisted.
+     *
+     * @param in      The input stream.
+     * @param version The format version of the file.
+     * @throws IOException If reading fails.
+     */
+    private void readSessions(DataInputStream in, int version) throws IOException {
+        int count = BinaryFormat.readVarInt(in);
+        for (int i = 0; i < count; i++) {
+            Session session = Session.readFrom(in, version);
+            if (PERSIST_SESSIONS) {
+                sessions.add(session);
+            }
+        }
+    }
+
+    /**
+     * Reads the segments {@code 0.dat} to {@code n-1.dat} of a directory, written before
+     * snapshots had a manifest.
+     *
+     * @param directory The directory of the segments.
+     * @param reader    Reads the section body of each segment.
+     * @throws IOException If a segment is missing or cannot be read.
+     */
+    private void loadUnversionedSegments(String directory, SectionReader reader) throws IOException {
+        File dir = new File(directory);
+        int count = SegmentedUserStore.countSegments(dir);
+        for (int i = 0; i < count; i++) {
+            File file = SegmentedUserStore.segmentFile(dir, i);
+            if (!file.exists()) {
+                throw new IOException("Missing segment " + file);
+            }
+            loadFromFile(file.getPath(), reader);
+        }
+    }
+
+    /**
+     * Writes a snapshot section to a new file, preceded by the binary format header, and forces
+     * the file to disk.
+     *
+     * @param file   The file.
+     * @param writer Writes the section body.
+     * @throws IOException If the file cannot be written.
+     */
+    private static void writeSection(File file, SectionWriter writer) throws IOException {
+        try (FileOutputStream stream = new FileOutputStream(file);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+            BinaryFormat.writeHeader(out);
+            writer.write(out);
+            out.flush();
+            stream.getFD().sync();
+        }
+    }
+
+    /**
+     * Reads a snapshot section from a file, if the file exists.
+     *
+     * @param fileName The name of the file.
+     * @param reader   Reads the section body.
+     * @throws IOException If the file exists but cannot be read.
+     */
+    private void loadFromFile(String fileName, SectionReader reader) throws IOException {
+        File file = new File(fileName);
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            reader.read(in, BinaryFormat.readHeader(in));
+        }
+    }
+
+    /**
+     * Converts a snapshot written with Java serialization by a previous version of the system
+     * into the binary format. The legacy files are kept with a {@code .legacy} suffix, and
+     * replaced by the segments of the new snapshot.
+     */
+    private void migrateLegacySnapshot() {
+        for (String fileName : new String[] {USERS_FILE, SESSIONS_FILE, COMMUNITIES_FILE}) {
+            File file = new File(fileName);
+            if (file.exists()) {
+                try {
+                    Files.copy(file.toPath(), new File(fileName + ".legacy").toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    System.err.println("Error backing up " + fileName + ": " + e.getMessage());
+                    return;
+                }
+            }
+        }
+
+        users = new ConcurrentHashMap<>(loadLegacyFile(USERS_FILE, new HashMap<String, User>()));
+        Map<String, Session> legacySessions = loadLegacyFile(SESSIONS_FILE, new HashMap<String, Session>());
+        communities = new ConcurrentHashMap<>(loadLegacyFile(COMMUNITIES_FILE, new HashMap<String, Community>()));
 
+        deletedUsers = ConcurrentHashMap.newKeySet();
+        dirtyUsers = ConcurrentHashMap.newKeySet();
+        dirtyCommunities = ConcurrentHashMap.newKeySet();
+        segmentCount = SNAPSHOT_SEGMENTS;
+        userStore = new SegmentedUserStore(segmentCount);
+        manifest = null;
+        convertedLayout = true;
+        rewriteAll = true;
+        usersSinceSnapshot.set(users.size());
         for (User user : users.values()) {
-            for (String communityName : removedCommunities) {
-                user.removeCommunity(communityName);
+            user.setRepository(this);
+        }
+        sessions = newSessionStore(segmentCount);
+        for (Session session : legacySessions.values()) {
+            if (session.getToken() != null && users.containsKey(session.getLogin())) {
+                sessions.add(session);
             }
         }
+        rebuildIndexes();
+
+        writeSnapshot();
+    }
 
+    /**
+     * Rewrites a snapshot written with an older version of the binary format in the current version.
+     * Every user is decoded, the data missing from the older version is rebuilt, and every
+     * segment is written again, so that unchanged records can keep being copied verbatim.
+     */
+    private void upgradeSnapshot() {
+        loadAllUsers();
+        rebuildIndexes();
+        for (User user : users.values()) {
+            userChanged(user.getLogin());
+        }
+        rewriteAll = true;
+        writeSnapshot();
+    }
+
+    /**
+     * Rebuilds the confirmed friendships, pending invites and reverse links of every loaded user
+     * from their relationships and messages. Only used when converting snapshots that predate them.
+     */
+    private void rebuildIndexes() {
         for (User user : users.values()) {
-            user.removeFriend(login);
+            user.resetIndexes();
+        }
+        for (User user : users.values()) {
+            for (String friend : user.getFriendRequests()) {
+                User other = users.get(friend);
+                if (other == null) {
+                    continue;
+                }
+                if (other.hasRequested(user.getId())) {
+                    user.confirmFriend(other.getId());
+                } else {
+                    other.addPendingInvite(user.getId());
+                }
+            }
+            for (String crush : user.getCrushes()) {
+                User other = users.get(crush);
+                if (other != null) {
+                    other.addCrushedBy(user.getId());
+                }
+            }
+            for (String enemy : user.getEnemies()) {
+                User other = users.get(enemy);
+                if (other != null) {
+                    other.addEnemyOf(user.getId());
+                }
+            }
+            user.getMessages().forEach(message -> {
+                User sender = users.get(loginOf(message.getSenderId()));
+                if (sender != null) {
+                    sender.addCorrespondent(user.getId());
+                }
+            });
+            user.getCommunityMessages().forEach(message -> {
+                User sender = users.get(loginOf(message.getSenderId()));
+                if (sender != null) {
+                    sender.addCorrespondent(user.getId());
+                }
+            });
+        }
+    }
+
+    /**
+     * Loads data from a file written with Java serialization by a previous version of the system.
+     *
+     * @param <T>         The type of object to load.
+     * @param fileName    The name of the file.
+     * @param defaultValue The default value if the file does not exist or an error occurs.
+     * @return The loaded object or the default value.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T loadLegacyFile(String fileName, T defaultValue) {
+        File file = new File(fileName);
+        if (!file.exists()) {
+            return defaultValue;
+        }
+        try (FileInputStream fileStream = new FileInputStream(fileName);
+             ObjectInputStream ois = new ObjectInputStream(fileStream)) {
+            return (T) ois.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Error loading data from " + fileName + ": " + e.getMessage());
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Edits a user profile attribute.
+     *
+     * @param session  The session of the user.
+     * @param atributo The attribute to modify.
+     * @param valor    The new value.
+     * @throws EmptyAttributeException If the provided attribute value is empty.
+     * @throws UserNotFoundException If the session's user no longer exists.
+     */
+    public void editProfile(Session session, String atributo, String valor) throws EmptyAttributeException, UserNotFoundException {
+        String login = session.getLogin();
+        StripedLocks.Guard guard = lockUsers(login);
+        try {
+            getUser(login).setAtributo(atributo, valor);
+            record(Journal.Operation.EDIT_PROFILE, login, atributo, valor);
+        } finally {
+            guard.close();
+        }
+    }
+
+
+    /**
+     * Loads all application data from persistent storage files.
+     * Initializes the users, sessions and communities maps by reading from their respective files.
+     * If any file is not found or corrupted, initializes with empty HashMaps.
+     * Files still written with Java serialization are migrated to the binary format first.
+     * The write-ahead journal is then replayed on top of the loaded snapshot, after the journal
+     * archived under its generation, if any: when a newer generation was rejected, the archive
+     * holds the operations that generation had compacted away. Only the records numbered past
+     * the last one the loaded generation holds are applied, each of them once.
+     *
+     * The method loads three separate data structures:
+     * - Users data from the segments of USERS_DIRECTORY
+     * - Sessions data from the segments of SESSIONS_DIRECTORY
+     * - Communities data from the segments of COMMUNITIES_DIRECTORY
+     * listed by the newest intact {@link SnapshotManifest}. A snapshot written without a manifest,
+     * in segments or in the single-file layout (USERS_FILE, SESSIONS_FILE, COMMUNITIES_FILE),
+     * is rewritten as a new generation right away.
+     */
+    private void loadData() {
+        Inbox.clearSpillDirectory();
+        if (BinaryFormat.isLegacyFile(new File(USERS_FILE))) {
+            migrateLegacySnapshot();
+        }
+        loadSnapshot();
+        File archive = journalArchive(loadedGeneration());
+        if (userStore.getVersion() < BinaryFormat.VERSION) {
+            upgradeSnapshot();
+        } else if (convertedLayout) {
+            writeSnapshot();
+        }
+
+        journal = new Journal(new File(JOURNAL_FILE));
+        long records = 0;
+        long applied = loadedJournalSequence();
+        journalSuspended = true;
+        try {
+            if (archive.exists()) {
+                Journal archived = new Journal(archive);
+                archived.replay(applied, this::replay);
+                records = archived.getRecords();
+                applied = Math.max(applied, archived.getLastSequence());
+            }
+            journal.replay(applied, this::replay);
+        } catch (IOException e) {
+            System.err.println("Error replaying " + JOURNAL_FILE + ": " + e.getMessage());
+        } finally {
+            journalSuspended = false;
+        }
+        journal.continueAfter(applied);
+        journalRecords.set(records + journal.getRecords());
+
+        scheduler = new PersistenceScheduler(journal, DURABILITY_WINDOW_MS, DURABILITY_BATCH);
+        Runtime.getRuntime().addShutdownHook(new Thread(scheduler::close, "jackut-persistence-shutdown"));
+    }
+
+    /**
+     * Retrieves a user by their login.
+     *
+     * @param login The login of the user.
+     * @return The User object.
+     * @throws UserNotFoundException If the user does not exist.
+     */
+    public User getUser(String login) throws UserNotFoundException {
+        User user = findUser(login);
+        if (user == null) {
+            throw new UserNotFoundException();
+        }
+        return user;
+    }
+
+    /**
+     * Looks a user up by their login, decoding it from the {@link SegmentedUserStore} on first access.
+     *
+     * @param login The login of the user.
+     * @return The User object, or null if the user does not exist.
+     */
+    User findUser(String login) {
+        if (login == null) {
+            return null;
+        }
+        User user = users.get(login);
+        if (user != null) {
+            return user;
+        }
+
+        Lock shared = structureLock.readLock();
+        shared.lock();
+        try {
+            user = users.get(login);
+            if (user != null || deletedUsers.contains(login)) {
+                return user;
+            }
+            User loaded = userStore.load(login, this);
+            if (loaded == null) {
+                return null;
+            }
+            User concurrent = users.putIfAbsent(login, loaded);
+            if (concurrent != null) {
+                loaded.discardMessages();
+                return concurrent;
+            }
+            return loaded;
+        } catch (IOException e) {
+            System.err.println("Error loading user " + login + " from " + USERS_DIRECTORY + ": " + e.getMessage());
+            return null;
+        } finally {
+            shared.unlock();
+        }
+    }
+
+    /**
+     * Gets the id of a login, giving it one if it has none yet.
+     *
+     * @param login The login.
+     * @return The id.
+     */
+    int idOf(String login) {
+        return loginIds.intern(login);
+    }
+
+    /**
+     * Gets the id of a login without giving it one, for lookups.
+     *
+     * @param login The login.
+     * @return The id, or -1 if no user refers to the login.
+     */
+    int findId(String login) {
+        return loginIds.find(login);
+    }
+
+    /**
+     * Gets the login of an id.
+     *
+     * @param id The id.
+     * @return The login.
+     */
+    String loginOf(int id) {
+        return loginIds.loginOf(id);
+    }
+
+    /**
+     * Checks whether a user exists without decoding it.
+     * The caller holds the repository, shared or exclusively.
+     *
+     * @param login The login of the user.
+     * @return true if the user exists.
+     */
+    private boolean userExists(String login) {
+        if (users.containsKey(login)) {
+            return true;
+        }
+        if (deletedUsers.contains(login)) {
+            return false;
+        }
+        try {
+            return userStore.contains(login);
+        } catch (IOException e) {
+            System.err.println("Error reading " + USERS_DIRECTORY + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Decodes every user that is still only in the {@link SegmentedUserStore}.
+     * Needed by the operations that have to visit every user.
+     */
+    private void loadAllUsers() {
+        for (String login : userStore.logins()) {
+            findUser(login);
+        }
+    }
+
+    /**
+     * Deletes a user and all associated data from the system.
+     * Performs a complete cleanup including:
+     * - Removing the messages and community messages the user sent
+     * - Handling owned communities (deletes them if user is owner)
+     * - Removing the user from the communities it joined
+     * - Removing the user from the friends, fans, idols, crushes and enemies of other users
+     * - Cleaning session data
+     *
+     * Only the users and communities linked to the deleted user are visited, found through the
+     * reverse links each user keeps, so the cost depends on the user's own footprint and not
+     * on the size of the system.
+     *
+     * @param login The login of the user to be deleted
+     * @throws UserNotFoundException If no user with the specified login exists
+     */
+    public void deleteUser(String login) throws UserNotFoundException {
+        StripedLocks.Guard guard = lockAll();
+        try {
+            deleteUserLocked(login);
+        } finally {
+            guard.close();
+        }
+    }
+
+    /**
+     * Deletes a user looked up beforehand, as {@link #deleteUser(String)}, unless it was already
+     * deleted in the meantime: another user created since under the same login is left alone.
+     *
+     * @param user The user to be deleted
+     * @throws UserNotFoundException If the user was already deleted
+     */
+    public void deleteUser(User user) throws UserNotFoundException {
+        StripedLocks.Guard guard = lockAll();
+        try {
+            requireCurrent(user);
+            deleteUserLocked(user.getLogin());
+        } finally {
+            guard.close();
+        }
+    }
+
+    /**
+     * Moves the messages a member has not read from a community being deleted into the member's
+     * own queue, so that they can still be read. The senders record the member as a correspondent,
+     * so that deleting a sender later also removes these messages.
+     * The caller holds the repository exclusively.
+     *
+     * @param community The community being deleted
+     * @param member    The member
+     */
+    private void keepUnreadMessages(Community community, User member) {
+        for (CommunityMessage message : community.getUnreadMessages(member.getLogin())) {
+            User sender = findUser(loginOf(message.getSenderId()));
+            if (sender != null && sender != member) {
+                sender.addCorrespondent(member.getId());
+            }
+            member.addCommunityMessage(message);
+        }
+    }
+
+    /**
+     * Deletes a user, as described in {@link #deleteUser(String)}. The caller holds the repository exclusively.
+     * Once every link to the user is removed, its id is released to be handed to a new login (see {@link LoginIds}).
+     *
+     * @param login The login of the user to be deleted
+     * @throws UserNotFoundException If no user with the specified login exists
+     */
+    private void deleteUserLocked(String login) throws UserNotFoundException {
+        User userToDelete = getUser(login);
+
+        for (String communityName : userToDelete.getPostedCommunities()) {
+            Community community = communities.get(communityName);
+            if (community != null) {
+                community.forgetSender(login);
+            }
+        }
+
+        for (String communityName : userToDelete.getCommunities()) {
+            Community community = communities.get(communityName);
+            if (community == null) {
+                continue;
+            }
+            if (community.getOwner().equals(login)) {
+                communities.remove(communityName);
+                communityChanged(communityName);
+                for (String member : community.getMembers()) {
+                    User user = findUser(member);
+                    if (user != null) {
+                        user.removeCommunity(communityName);
+                        keepUnreadMessages(community, user);
+                    }
+                }
+            } else {
+                community.removeMember(login);
+            }
+        }
+
+        // Taken after the owned communities are deleted, whose unread messages may have made the
+        // user a correspondent of their members.
+        Set<String> affected = userToDelete.getLinkedUsers();
+        affected.remove(login);
+        for (String other : affected) {
+            User user = findUser(other);
+            if (user != null) {
+                user.forgetUser(login);
+            }
         }
 
         users.remove(login);
-        sessions.remove(login);
+        userToDelete.discardMessages();
+        deletedUsers.add(login);
+        usersSinceSnapshot.decrementAndGet();
+        sessions.removeLogin(login);
+        loginIds.release(login);
+        record(Journal.Operation.DELETE_USER, login);
     }
 
 }
@@ -0,0 +1,274 @@
+package br.ufal.ic.p2.jackut;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * User snapshot split into segment files, each a {@link UserStore} holding the users whose login
+ * hashes to it. Writing a snapshot only rewrites the segments holding users that changed, so its
+ * cost follows the number of changed users rather than the number of users.
+ *
+ * The segment files are listed by the {@link SnapshotManifest} of the snapshot. Instances are
+ * immutable: replacing segments gives a new store, and since a replaced file stays mapped, a
+ * reader still going through the old store keeps a consistent view of it.
+ */
+public class SegmentedUserStore {
+
+    /**
+     * The segments, by index.
+     */
+    private final UserStore[] segments;
+
+    /**
+     * Creates a store of empty segments, used when there is no snapshot yet.
+     *
+     * @param count The number of segments.
+     */
+    public SegmentedUserStore(int count) {
+        this.segments = new UserStore[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new UserStore();
+        }
+    }
+
+    /**
+     * Creates a store over the given segments.
+     *
+     * @param segments The segments, by index.
+     */
+    private SegmentedUserStore(UserStore[] segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * Wraps the single users file written before snapshots were segmented, as a store of one
+     * segment, until the snapshot is rewritten in segments.
+     *
+     * @param store The users file.
+     * @return The store.
+     */
+    static SegmentedUserStore single(UserStore store) {
+        return new SegmentedUserStore(new UserStore[] {store});
+    }
+
+    /**
+     * Maps the segment files of a snapshot.
+     *
+     * @param files The files, by segment index.
+     * @return The store.
+     * @throws IOException If a segment cannot be mapped.
+     */
+    public static SegmentedUserStore open(File[] files) throws IOException {
+        UserStore[] segments = new UserStore[files.length];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new UserStore(files[i]);
+        }
+        return new SegmentedUserStore(segments);
+    }
+
+    /**
+     * Maps the segments {@code 0.dat} to {@code n-1.dat} of a directory, written before snapshots
+     * had a {@link SnapshotManifest}.
+     *
+     * @param directory The directory.
+     * @return The store.
+     * @throws IOException If a segment is missing, or cannot be mapped.
+     */
+    public static SegmentedUserStore open(File directory) throws IOException {
+        File[] files = new File[countSegments(directory)];
+        if (files.length == 0) {
+            throw new IOException("No user segment in " + directory);
+        }
+        for (int i = 0; i < files.length; i++) {
+            files[i] = segmentFile(directory, i);
+            if (!files[i].exists()) {
+                throw new IOException("Missing user segment " + files[i]);
+            }
+        }
+        return open(files);
+    }
+
+    /**
+     * Gets a new store in which some segments were replaced by the files written for them.
+     *
+     * @param rewritten The files of the rewritten segments, by segment index, null for the
+     *                  segments that were not rewritten. Its length is the new segment count.
+     * @return The new store.
+     * @throws IOException If a segment cannot be mapped.
+     */
+    SegmentedUserStore replace(File[] rewritten) throws IOException {
+        UserStore[] replaced = rewritten.length == segments.length ? segments.clone() : new UserStore[rewritten.length];
+        for (int i = 0; i < rewritten.length; i++) {
+            if (rewritten[i] != null) {
+                replaced[i] = new UserStore(rewritten[i]);
+            } else if (replaced[i] == null) {
+                throw new IOException("Segment " + i + " was not rewritten");
+            }
+        }
+        return new SegmentedUserStore(replaced);
+    }
+
+    /**
+     * Gets the segment a key belongs to. The key's hash is spread with a multiplier and reduced
+     * by its high bits, so the segments do not share the low bits the hash index of each
+     * {@link UserStore} relies on.
+     *
+     * @param key   The login, or community name.
+     * @param count The number of segments.
+     * @return The segment index.
+     */
+    static int segmentOf(String key, int count) {
+        long spread = (key.hashCode() * 0x9E3779B9) & 0xFFFFFFFFL;
+        return (int) ((spread * count) >>> 32);
+    }
+
+    /**
+     * Gets the file of a segment written before snapshots had a {@link SnapshotManifest}.
+     *
+     * @param directory The directory of the segments.
+     * @param index     The segment index.
+     * @return The file.
+     */
+    static File segmentFile(File directory, int index) {
+        return new File(directory, index + ".dat");
+    }
+
+    /**
+     * Counts the segment files of a directory written before snapshots had a {@link SnapshotManifest}.
+     *
+     * @param directory The directory.
+     * @return The number of files named after a segment index, 0 if the directory does not exist.
+     */
+    static int countSegments(File directory) {
+        String[] names = directory.list();
+        int count = 0;
+        if (names != null) {
+            for (String name : names) {
+                if (name.matches("[0-9]+\\.dat")) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the number of segments.
+     *
+     * @return The segment count.
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Gets a segment.
+     *
+     * @param index The segment index.
+     * @return The segment.
+     */
+    UserStore getSegment(int index) {
+        return segments[index];
+    }
+
+    /**
+     * Gets the segment holding a login.
+     *
+     * @param login The login.
+     * @return The segment.
+     */
+    private UserStore segment(String login) {
+        return segments[segmentOf(login, segments.length)];
+    }
+
+    /**
+     * Gets the number of users in the store.
+     *
+     * @return The record count over every segment.
+     */
+    public int size() {
+        int size = 0;
+        for (UserStore segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Gets the oldest format version the records were written with.
+     *
+     * @return The format version.
+     */
+    public int getVersion() {
+        int version = BinaryFormat.VERSION;
+        for (UserStore segment : segments) {
+            version = Math.min(version, segment.getVersion());
+        }
+        return version;
+    }
+
+    /**
+     * Checks whether the store holds a record for the given login.
+     *
+     * @param login The login.
+     * @return true if the user is in the store.
+     * @throws IOException If the segment cannot be read.
+     */
+    public boolean contains(String login) throws IOException {
+        return login != null && segment(login).contains(login);
+    }
+
+    /**
+     * Opens the raw record of a user, as {@link UserStore#openRecord}.
+     *
+     * @param login The login.
+     * @return A stream over the record bytes, or null if the user is not in the store.
+     * @throws IOException If the segment cannot be read.
+     */
+    public InputStream openRecord(String login) throws IOException {
+        return segment(login).openRecord(login);
+    }
+
+    /**
+     * Decodes a user from the store.
+     *
+     * @param login      The login.
+     * @param repository The repository the user belongs to.
+     * @return The user, or null if it is not in the store.
+     * @throws IOException If the record cannot be read.
+     */
+    public User load(String login, Repository repository) throws IOException {
+        return segment(login).load(login, repository);
+    }
+
+    /**
+     * Iterates over the logins of every user in the store, segment by segment.
+     *
+     * @return The logins.
+     */
+    public Iterable<String> logins() {
+        return () -> new Iterator<String>() {
+            private int segment;
+            private Iterator<String> current = segments.length == 0 ? null : segments[0].logins().iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (current != null && !current.hasNext()) {
+                    current = ++segment < segments.length ? segments[segment].logins().iterator() : null;
+                }
+                return current != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+}
@@ -1,47 +1,171 @@
 package br.ufal.ic.p2.jackut;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 /**
  * Represents a user session in the Jackut system.
  * Each session is identified by a unique ID and is associated with a specific user.
+ * Sessions are kept in a {@link SessionStore}, which closes them once they expire.
  */
 public class Session implements Serializable {
     /**
-     * Id da sesso.
+     * Version identifier for serialization, pinned to the value computed for snapshots
+     * written before the binary format so that they can still be migrated.
      */
-    private String id;
+    private static final long serialVersionUID = 7367758300829495594L;
+
+    /**
+     * Token da sessão.
+     */
+    private SessionToken token;
+    /**
+     * Login do usuário que gerou a sessão.
+     */
+    private String login;
+    /**
+     * Time the session was opened, in milliseconds since the epoch.
+     */
+    private long createdAt;
+    /**
+     * Time the session was last used, in milliseconds since the epoch.
+     */
+    private volatile long lastAccess;
+
     /**
-     * User que gerou a sesso.
+     * Constructs a new session for a user, opened now.
+     *
+     * @param token The unique session token.
+     * @param login The login of the user associated with this session.
      */
-    private User user;
+    public Session(SessionToken token, String login) {
+        this(token, login, System.currentTimeMillis());
+    }
 
     /**
-     * Constructs a new session for a user.
+     * Constructs a session opened at the given time and not used since.
      *
-     * @param id   The unique session identifier.
-     * @param user The user associated with this session.
+     * @param token     The unique session token.
+     * @param login     The login of the user associated with this session.
+     * @param createdAt Time the session was opened, in milliseconds since the epoch.
      */
-    public Session(String id, User user) {
-        this.id = id;
-        this.user = user;
+    Session(SessionToken token, String login, long createdAt) {
+        this.token = token;
+        this.login = login;
+        this.createdAt = createdAt;
+        this.lastAccess = createdAt;
     }
 
     /**
-     * Gets the user associated with this session.
+     * Gets the login of the user associated with this session.
      *
-     * @return The session's user.
+     * @return The session's user login.
      */
-    public User getUser() {
-        return user;
+    public String getLogin() {
+        return login;
     }
 
     /**
-     * Gets the unique identifier of this session.
+     * Gets the unique identifier of this session, as given to the client.
      *
      * @return The session ID.
      */
     public String getId() {
-        return id;
+        return token.toString();
+    }
+
+    /**
+     * Gets the token of this session.
+     *
+     * @return The session token.
+     */
+    public SessionToken getToken() {
+        return token;
+    }
+
+    /**
+     * Gets the time the session was opened.
+     *
+     * @return The opening time, in milliseconds since the epoch.
+     */
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Gets the time the session was last used.
+     *
+     * @return The last use time, in milliseconds since the epoch.
+     */
+    long getLastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Marks the session as used, unless it was already marked less than a granularity ago.
+     *
+     * @param now         The current time, in milliseconds since the epoch.
+     * @param granularity Minimum time in milliseconds between two changes of the last use time.
+     * @return true if the last use time changed.
+     */
+    boolean touch(long now, long granularity) {
+        if (now - lastAccess < granularity) {
+            return false;
+        }
+        lastAccess = now;
+        return true;
+    }
+
+    /**
+     * Writes this session in the binary snapshot format.
+     *
+     * @param out The snapshot output stream.
+     * @throws IOException If writing fails.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        BinaryFormat.writeToken(out, token);
+        BinaryFormat.writeString(out, login);
+        out.writeLong(createdAt);
+        out.writeLong(lastAccess);
+    }
+
+    /**
+     * Reads a session written by {@link #writeTo}.
+     * Snapshots older than version 5 have no timestamps; their sessions are considered opened now.
+     *
+     * @param in      The snapshot input stream.
+     * @param version The format version of the snapshot.
+     * @return The session.
+     * @throws IOException If reading fails.
+     */
+    static Session readFrom(DataInputStream in, int version) throws IOException {
+        Session session = new Session(BinaryFormat.readToken(in), BinaryFormat.readString(in));
+        if (version >= 5) {
+            session.createdAt = in.readLong();
+            session.lastAccess = in.readLong();
+        }
+        return session;
+    }
+
+    /**
+     * Reads a session written with Java serialization by a previous version of the system,
+     * which stored the user as a full {@link User} object. The login is taken once the whole
+     * object graph was read, since the user may still be incomplete at this point.
+     * Ids that are not well-formed tokens leave the token null, and the session is dropped.
+     *
+     * @param in The object input stream.
+     * @throws IOException If reading fails.
+     * @throws ClassNotFoundException If a serialized class cannot be found.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        this.token = SessionToken.parse((String) fields.get("id", null));
+        this.createdAt = System.currentTimeMillis();
+        this.lastAccess = createdAt;
+        User user = (User) fields.get("user", null);
+        in.registerValidation(() -> this.login = user == null ? null : user.getLogin(), 0);
     }
-}
\ No newline at end of file
+}
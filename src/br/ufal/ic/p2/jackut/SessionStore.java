@@ -0,0 +1,324 @@
+package br.ufal.ic.p2.jackut;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Table of the open sessions, indexed by session token and by login.
+ * Lookups by token go through a {@link SessionTable}, without converting the text token to an object.
+ *
+ * Sessions expire after an idle timeout (time since they were last used) and after an absolute
+ * timeout (time since they were opened). Expiry is lazy: an expired session is dropped when it is
+ * looked up, and every few new sessions a bounded slice of the table is swept, so sessions that
+ * are never used again are reclaimed without a timer thread. Each login also keeps at most a fixed
+ * number of sessions, the oldest being evicted first, so a burst of logins cannot grow the table
+ * without bound.
+ *
+ * Sessions are written to snapshots in segments, by login (see {@link SegmentedUserStore#segmentOf}),
+ * and the table records which segments changed since they were last written, so a snapshot only
+ * rewrites those. The time a session was last used is only updated once a minute (or half the
+ * idle timeout, if shorter), so that lookups do not make every snapshot rewrite the sessions.
+ */
+public class SessionStore {
+
+    /**
+     * Number of new sessions between two incremental sweeps.
+     */
+    private static final int SWEEP_INTERVAL = 64;
+
+    /**
+     * Number of sessions examined by each incremental sweep.
+     * Larger than {@link #SWEEP_INTERVAL}, so the sweep keeps up with any rate of new sessions.
+     */
+    private static final int SWEEP_BATCH = 256;
+
+    /**
+     * Longest time in milliseconds between a use of a session and the time recorded as its last use.
+     */
+    private static final long TOUCH_GRANULARITY = 60_000;
+
+    /**
+     * Sessions by token.
+     */
+    private final SessionTable sessions = new SessionTable();
+
+    /**
+     * Session tokens of each login, oldest first. Each set is only changed inside
+     * {@code compute} calls on this map, which serialize changes to the same login.
+     */
+    private final Map<String, Set<SessionToken>> byLogin = new ConcurrentHashMap<>();
+
+    /**
+     * Maximum time in milliseconds a session may stay unused, or 0 for no limit.
+     */
+    private final long idleTimeout;
+
+    /**
+     * Maximum lifetime of a session in milliseconds, or 0 for no limit.
+     */
+    private final long absoluteTimeout;
+
+    /**
+     * Maximum number of sessions per login.
+     */
+    private final int maxPerLogin;
+
+    /**
+     * Minimum time in milliseconds between two changes of the last use time of a session.
+     * At most half the idle timeout, so a session in use never looks idle.
+     */
+    private final long touchGranularity;
+
+    /**
+     * New sessions left before the next incremental sweep.
+     */
+    private final AtomicInteger untilSweep = new AtomicInteger(SWEEP_INTERVAL);
+
+    /**
+     * Position of the incremental sweep in the table, as returned by {@link SessionTable#collect}.
+     * Only used by the thread holding {@link #sweeping}.
+     */
+    private long sweepCursor;
+
+    /**
+     * Whether a thread is currently sweeping.
+     */
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    /**
+     * Whether each snapshot segment changed since it was last written, 1 if it did.
+     */
+    private final AtomicIntegerArray changedSegments;
+
+    /**
+     * Creates an empty session table.
+     *
+     * @param idleTimeout     Maximum time in milliseconds a session may stay unused, or 0 for no limit.
+     * @param absoluteTimeout Maximum lifetime of a session in milliseconds, or 0 for no limit.
+     * @param maxPerLogin     Maximum number of sessions per login.
+     * @param segments        Number of snapshot segments the sessions are written in.
+     */
+    public SessionStore(long idleTimeout, long absoluteTimeout, int maxPerLogin, int segments) {
+        this.idleTimeout = idleTimeout;
+        this.absoluteTimeout = absoluteTimeout;
+        this.maxPerLogin = Math.max(1, maxPerLogin);
+        this.touchGranularity = idleTimeout > 0 ? Math.min(TOUCH_GRANULARITY, idleTimeout / 2) : TOUCH_GRANULARITY;
+        this.changedSegments = new AtomicIntegerArray(Math.max(1, segments));
+    }
+
+    /**
+     * Gets the number of snapshot segments the sessions are written in.
+     *
+     * @return The segment count.
+     */
+    public int getSegmentCount() {
+        return changedSegments.length();
+    }
+
+    /**
+     * Gets the snapshot segment the sessions of a login are written in.
+     *
+     * @param login The login.
+     * @return The segment index.
+     */
+    public int segmentOf(String login) {
+        return SegmentedUserStore.segmentOf(login, changedSegments.length());
+    }
+
+    /**
+     * Records that the sessions of a login changed.
+     *
+     * @param login The login.
+     */
+    private void changed(String login) {
+        changedSegments.set(segmentOf(login), 1);
+    }
+
+    /**
+     * Records that a segment must be written again, when writing it failed.
+     *
+     * @param segment The segment index.
+     */
+    void markChanged(int segment) {
+        changedSegments.set(segment, 1);
+    }
+
+    /**
+     * Gets the segments that changed since they were last written, and marks them unchanged.
+     * A session changing meanwhile marks its segment again, so it is written by the next snapshot.
+     *
+     * @return Whether each segment changed, by index.
+     */
+    boolean[] takeChangedSegments() {
+        boolean[] changed = new boolean[changedSegments.length()];
+        for (int i = 0; i < changed.length; i++) {
+            changed[i] = changedSegments.getAndSet(i, 0) != 0;
+        }
+        return changed;
+    }
+
+    /**
+     * Adds a session. If its login already has the maximum number of sessions, the oldest ones are closed.
+     *
+     * @param session The session.
+     */
+    public void add(Session session) {
+        byLogin.compute(session.getLogin(), (login, ids) -> {
+            Set<SessionToken> result = ids == null ? new LinkedHashSet<>() : ids;
+            result.add(session.getToken());
+            sessions.put(session);
+            Iterator<SessionToken> oldest = result.iterator();
+            while (result.size() > maxPerLogin) {
+                sessions.remove(oldest.next());
+                oldest.remove();
+            }
+            return result;
+        });
+        changed(session.getLogin());
+        if (untilSweep.decrementAndGet() <= 0) {
+            untilSweep.set(SWEEP_INTERVAL);
+            sweep(SWEEP_BATCH);
+        }
+    }
+
+    /**
+     * Looks a session up and marks it as used. An expired session is closed and not returned.
+     * The last use time only moves once per granularity, so repeated lookups do not mark the
+     * session's snapshot segment as changed each time.
+     *
+     * @param id The text form of the session token.
+     * @return The session, or null if it does not exist or expired.
+     */
+    public Session get(String id) {
+        if (!SessionToken.isWellFormed(id)) {
+            return null;
+        }
+        Session session = sessions.get(SessionToken.parseHigh(id), SessionToken.parseLow(id));
+        if (session == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (isExpired(session, now)) {
+            remove(session);
+            return null;
+        }
+        if (session.touch(now, touchGranularity)) {
+            changed(session.getLogin());
+        }
+        return session;
+    }
+
+    /**
+     * Closes every session of a login.
+     *
+     * @param login The login.
+     */
+    public void removeLogin(String login) {
+        Set<SessionToken> tokens = byLogin.remove(login);
+        if (tokens != null) {
+            for (SessionToken token : tokens) {
+                sessions.remove(token);
+            }
+            changed(login);
+        }
+    }
+
+    /**
+     * Closes every session.
+     */
+    public void clear() {
+        byLogin.clear();
+        sessions.clear();
+        for (int i = 0; i < changedSegments.length(); i++) {
+            changedSegments.set(i, 1);
+        }
+    }
+
+    /**
+     * Gets the number of sessions in the table, including expired ones not reclaimed yet.
+     *
+     * @return The number of sessions.
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Gets the sessions that have not expired, to be written to a snapshot.
+     *
+     * @return The live sessions.
+     */
+    public Collection<Session> liveSessions() {
+        long now = System.currentTimeMillis();
+        List<Session> all = new ArrayList<>(sessions.size());
+        sessions.collect(0, 0, Integer.MAX_VALUE, all);
+        List<Session> live = new ArrayList<>(all.size());
+        for (Session session : all) {
+            if (!isExpired(session, now)) {
+                live.add(session);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Checks whether a session expired.
+     *
+     * @param session The session.
+     * @param now     The current time in milliseconds.
+     * @return true if the session exceeded its idle or absolute timeout.
+     */
+    private boolean isExpired(Session session, long now) {
+        return (idleTimeout > 0 && now - session.getLastAccess() > idleTimeout)
+                || (absoluteTimeout > 0 && now - session.getCreatedAt() > absoluteTimeout);
+    }
+
+    /**
+     * Removes a session from both indexes.
+     *
+     * @param session The session.
+     */
+    private void remove(Session session) {
+        byLogin.computeIfPresent(session.getLogin(), (login, tokens) -> {
+            if (tokens.remove(session.getToken())) {
+                sessions.remove(session.getToken());
+            }
+            return tokens.isEmpty() ? null : tokens;
+        });
+        changed(session.getLogin());
+    }
+
+    /**
+     * Examines the next slice of the table and closes the expired sessions in it.
+     * Skipped if another thread is already sweeping.
+     *
+     * @param batch The number of table slots to examine.
+     */
+    private void sweep(int batch) {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<Session> slice = new ArrayList<>();
+            long next = sessions.collect((int) (sweepCursor >>> 32), (int) sweepCursor, batch, slice);
+            sweepCursor = next < 0 ? 0 : next;
+            long now = System.currentTimeMillis();
+            for (Session session : slice) {
+                if (isExpired(session, now)) {
+                    remove(session);
+                }
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+}
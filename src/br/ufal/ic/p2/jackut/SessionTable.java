@@ -0,0 +1,329 @@
+package br.ufal.ic.p2.jackut;
+
+import java.util.List;
+
+/**
+ * Hash table of sessions keyed by the two longs of their {@link SessionToken}.
+ *
+ * Keys are kept in primitive arrays next to the values, so a lookup compares numbers and never
+ * allocates, not even for the key. The table is split into segments, each one an open-addressing
+ * table with linear probing guarded by its own monitor; since tokens are random, the segments are
+ * evenly loaded and threads looking up different sessions rarely meet on the same monitor.
+ * Removal shifts the following entries back instead of leaving tombstones, so probe sequences
+ * stay short however many sessions come and go, and segments shrink again once mostly empty.
+ */
+public class SessionTable {
+
+    /**
+     * Number of segments, a power of two.
+     */
+    private static final int SEGMENTS = 64;
+
+    /**
+     * Initial number of slots of each segment, a power of two.
+     */
+    private static final int INITIAL_SLOTS = 16;
+
+    /**
+     * The segments.
+     */
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /**
+     * Creates an empty table.
+     */
+    public SessionTable() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Looks a session up.
+     *
+     * @param high The most significant bits of the token.
+     * @param low  The least significant bits of the token.
+     * @return The session, or null if there is none with that token.
+     */
+    public Session get(long high, long low) {
+        int hash = SessionToken.hash(high, low);
+        return segmentOf(hash).get(high, low, hash);
+    }
+
+    /**
+     * Adds a session, replacing any session with the same token.
+     *
+     * @param session The session.
+     */
+    public void put(Session session) {
+        SessionToken token = session.getToken();
+        int hash = token.hashCode();
+        segmentOf(hash).put(token.getHigh(), token.getLow(), hash, session);
+    }
+
+    /**
+     * Removes the session with the given token.
+     *
+     * @param token The token.
+     * @return The removed session, or null if there was none.
+     */
+    public Session remove(SessionToken token) {
+        int hash = token.hashCode();
+        return segmentOf(hash).remove(token.getHigh(), token.getLow(), hash);
+    }
+
+    /**
+     * Gets the number of sessions.
+     *
+     * @return The number of sessions.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Removes every session.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Copies the sessions of a range of slots, segment by segment, for a caller that walks the
+     * table in several steps. Entries moved by concurrent changes may be missed or seen twice.
+     *
+     * @param segment  The segment to start from.
+     * @param slot     The slot to start from within the segment.
+     * @param maxSlots Maximum number of slots to examine.
+     * @param out      Receives the sessions found.
+     * @return The position to continue from, as {@code segment << 32 | slot}, or -1 once past the last segment.
+     */
+    public long collect(int segment, int slot, int maxSlots, List<Session> out) {
+        int remaining = maxSlots;
+        while (segment < SEGMENTS) {
+            int next = segments[segment].collect(slot, remaining, out);
+            if (next >= 0) {
+                return ((long) segment << 32) | next;
+            }
+            remaining -= Math.max(0, segments[segment].capacity() - slot);
+            segment++;
+            slot = 0;
+            if (remaining <= 0) {
+                return segment < SEGMENTS ? (long) segment << 32 : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the segment responsible for a hash.
+     *
+     * @param hash The hash of a token.
+     * @return The segment.
+     */
+    private Segment segmentOf(int hash) {
+        return segments[(hash >>> 26) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * One open-addressing table with its own lock.
+     */
+    private static final class Segment {
+
+        /**
+         * Most significant token bits, by slot.
+         */
+        private long[] highs = new long[INITIAL_SLOTS];
+
+        /**
+         * Least significant token bits, by slot.
+         */
+        private long[] lows = new long[INITIAL_SLOTS];
+
+        /**
+         * Sessions by slot; null marks an empty slot.
+         */
+        private Session[] values = new Session[INITIAL_SLOTS];
+
+        /**
+         * Number of sessions in the segment.
+         */
+        private int size;
+
+        /**
+         * Looks a session up.
+         *
+         * @param high The most significant bits of the token.
+         * @param low  The least significant bits of the token.
+         * @param hash The hash of the token.
+         * @return The session, or null.
+         */
+        synchronized Session get(long high, long low, int hash) {
+            int slot = find(high, low, hash);
+            return slot < 0 ? null : values[slot];
+        }
+
+        /**
+         * Adds or replaces a session.
+         *
+         * @param high    The most significant bits of the token.
+         * @param low     The least significant bits of the token.
+         * @param hash    The hash of the token.
+         * @param session The session.
+         */
+        synchronized void put(long high, long low, int hash, Session session) {
+            int slot = find(high, low, hash);
+            if (slot >= 0) {
+                values[slot] = session;
+                return;
+            }
+            if ((size + 1) * 4 > values.length * 3) {
+                resize(values.length * 2);
+            }
+            insert(high, low, hash, session);
+            size++;
+        }
+
+        /**
+         * Removes a session and shifts back the entries that probed past its slot.
+         * The segment shrinks once it is mostly empty, so a burst of sessions does not keep its memory.
+         *
+         * @param high The most significant bits of the token.
+         * @param low  The least significant bits of the token.
+         * @param hash The hash of the token.
+         * @return The removed session, or null.
+         */
+        synchronized Session remove(long high, long low, int hash) {
+            int slot = find(high, low, hash);
+            if (slot < 0) {
+                return null;
+            }
+            Session removed = values[slot];
+            int mask = values.length - 1;
+            int hole = slot;
+            for (int next = (hole + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+                int home = SessionToken.hash(highs[next], lows[next]) & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    highs[hole] = highs[next];
+                    lows[hole] = lows[next];
+                    values[hole] = values[next];
+                    hole = next;
+                }
+            }
+            values[hole] = null;
+            size--;
+            if (values.length > INITIAL_SLOTS && size * 8 < values.length) {
+                resize(values.length / 2);
+            }
+            return removed;
+        }
+
+        /**
+         * Gets the number of sessions.
+         *
+         * @return The number of sessions.
+         */
+        synchronized int size() {
+            return size;
+        }
+
+        /**
+         * Gets the number of slots.
+         *
+         * @return The number of slots.
+         */
+        synchronized int capacity() {
+            return values.length;
+        }
+
+        /**
+         * Removes every session and shrinks the segment back to its initial size.
+         */
+        synchronized void clear() {
+            highs = new long[INITIAL_SLOTS];
+            lows = new long[INITIAL_SLOTS];
+            values = new Session[INITIAL_SLOTS];
+            size = 0;
+        }
+
+        /**
+         * Copies the sessions of a range of slots.
+         *
+         * @param from     The first slot.
+         * @param maxSlots Maximum number of slots to examine.
+         * @param out      Receives the sessions found.
+         * @return The slot to continue from, or -1 if the end of the segment was reached.
+         */
+        synchronized int collect(int from, int maxSlots, List<Session> out) {
+            int end = (int) Math.min(values.length, (long) from + maxSlots);
+            for (int slot = from; slot < end; slot++) {
+                if (values[slot] != null) {
+                    out.add(values[slot]);
+                }
+            }
+            return end < values.length ? end : -1;
+        }
+
+        /**
+         * Finds the slot of a token.
+         *
+         * @param high The most significant bits of the token.
+         * @param low  The least significant bits of the token.
+         * @param hash The hash of the token.
+         * @return The slot, or -1 if the token is not in the segment.
+         */
+        private int find(long high, long low, int hash) {
+            int mask = values.length - 1;
+            for (int slot = hash & mask; values[slot] != null; slot = (slot + 1) & mask) {
+                if (highs[slot] == high && lows[slot] == low) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Stores an entry in the first free slot of its probe sequence. The segment has room for it.
+         *
+         * @param high    The most significant bits of the token.
+         * @param low     The least significant bits of the token.
+         * @param hash    The hash of the token.
+         * @param session The session.
+         */
+        private void insert(long high, long low, int hash, Session session) {
+            int mask = values.length - 1;
+            int slot = hash & mask;
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            highs[slot] = high;
+            lows[slot] = low;
+            values[slot] = session;
+        }
+
+        /**
+         * Moves every entry into arrays of a new size.
+         *
+         * @param slots The new number of slots, a power of two.
+         */
+        private void resize(int slots) {
+            long[] oldHighs = highs;
+            long[] oldLows = lows;
+            Session[] oldValues = values;
+            highs = new long[slots];
+            lows = new long[slots];
+            values = new Session[slots];
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != null) {
+                    insert(oldHighs[i], oldLows[i], SessionToken.hash(oldHighs[i], oldLows[i]), oldValues[i]);
+                }
+            }
+        }
+    }
+}
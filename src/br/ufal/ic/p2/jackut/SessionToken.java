@@ -0,0 +1,311 @@
+package br.ufal.ic.p2.jackut;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Random 128-bit session token, held as two longs.
+ *
+ * Tokens are shown to clients in the canonical UUID text form (8-4-4-4-12 lowercase hex digits),
+ * so the identifiers returned by {@code abrirSessao} look the same as before, but they are stored
+ * and compared as numbers, and a text token can be looked up without being converted to an object
+ * (see {@link #isWellFormed}, {@link #parseHigh} and {@link #parseLow}).
+ *
+ * Tokens are generated from a per-thread random generator that fills a buffer of several tokens
+ * at a time, so concurrent logins neither share a generator nor pay for a generator call each.
+ */
+public final class SessionToken {
+
+    /**
+     * Number of tokens drawn from the generator at a time.
+     */
+    private static final int BUFFERED_TOKENS = 64;
+
+    /**
+     * Length of the text form.
+     */
+    private static final int TEXT_LENGTH = 36;
+
+    /**
+     * Digits of the text form, by value.
+     */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Value of each ASCII character as a hex digit, or -1 if it is not a lowercase hex digit.
+     */
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < HEX_DIGITS.length; i++) {
+            HEX_VALUES[HEX_DIGITS[i]] = (byte) i;
+        }
+    }
+
+    /**
+     * Random sources, one per thread.
+     */
+    private static final ThreadLocal<Source> SOURCES = ThreadLocal.withInitial(Source::new);
+
+    /**
+     * The most significant 64 bits.
+     */
+    private final long high;
+
+    /**
+     * The least significant 64 bits.
+     */
+    private final long low;
+
+    /**
+     * Creates a token from its bits.
+     *
+     * @param high The most significant 64 bits.
+     * @param low  The least significant 64 bits.
+     */
+    public SessionToken(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Generates a new random token.
+     *
+     * @return The token.
+     */
+    public static SessionToken generate() {
+        ByteBuffer buffer = SOURCES.get().next();
+        return new SessionToken(buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * Parses the text form of a token.
+     *
+     * @param text The text, possibly null.
+     * @return The token, or null if the text is not a well-formed token.
+     */
+    public static SessionToken parse(String text) {
+        return isWellFormed(text) ? new SessionToken(parseHigh(text), parseLow(text)) : null;
+    }
+
+    /**
+     * Checks whether a text is the text form of a token: 32 lowercase hex digits grouped 8-4-4-4-12.
+     *
+     * @param text The text, possibly null.
+     * @return true if the text is well formed.
+     */
+    public static boolean isWellFormed(String text) {
+        if (text == null || text.length() != TEXT_LENGTH
+                || text.charAt(8) != '-' || text.charAt(13) != '-' || text.charAt(18) != '-' || text.charAt(23) != '-') {
+            return false;
+        }
+        return (digitsCheck(text, 0, 8) | digitsCheck(text, 9, 13) | digitsCheck(text, 14, 18)
+                | digitsCheck(text, 19, 23) | digitsCheck(text, 24, TEXT_LENGTH)) >= 0;
+    }
+
+    /**
+     * Reads the most significant 64 bits from a well-formed text token.
+     *
+     * @param text The text, checked with {@link #isWellFormed}.
+     * @return The most significant bits.
+     */
+    public static long parseHigh(String text) {
+        return (hexBits(text, 0, 8) << 32) | (hexBits(text, 9, 13) << 16) | hexBits(text, 14, 18);
+    }
+
+    /**
+     * Reads the least significant 64 bits from a well-formed text token.
+     *
+     * @param text The text, checked with {@link #isWellFormed}.
+     * @return The least significant bits.
+     */
+    public static long parseLow(String text) {
+        return (hexBits(text, 19, 23) << 48) | hexBits(text, 24, 36);
+    }
+
+    /**
+     * Gets the most significant 64 bits.
+     *
+     * @return The most significant bits.
+     */
+    public long getHigh() {
+        return high;
+    }
+
+    /**
+     * Gets the least significant 64 bits.
+     *
+     * @return The least significant bits.
+     */
+    public long getLow() {
+        return low;
+    }
+
+    /**
+     * Checks whether this token has the given bits.
+     *
+     * @param high The most significant 64 bits.
+     * @param low  The least significant 64 bits.
+     * @return true if the bits match.
+     */
+    public boolean matches(long high, long low) {
+        return this.high == high && this.low == low;
+    }
+
+    /**
+     * Mixes the bits of a token into a hash code.
+     *
+     * @param high The most significant 64 bits.
+     * @param low  The least significant 64 bits.
+     * @return The hash code.
+     */
+    public static int hash(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L ^ low;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Compares two tokens.
+     *
+     * @param other The other object.
+     * @return true if the other object is a token with the same bits.
+     */
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof SessionToken && ((SessionToken) other).matches(high, low);
+    }
+
+    /**
+     * Gets the hash code of this token.
+     *
+     * @return The hash code.
+     */
+    @Override
+    public int hashCode() {
+        return hash(high, low);
+    }
+
+    /**
+     * Gets the text form of this token.
+     *
+     * @return The 8-4-4-4-12 hex text.
+     */
+    @Override
+    public String toString() {
+        char[] text = new char[TEXT_LENGTH];
+        writeHex(text, 0, high >>> 32, 8);
+        text[8] = '-';
+        writeHex(text, 9, high >>> 16, 4);
+        text[13] = '-';
+        writeHex(text, 14, high, 4);
+        text[18] = '-';
+        writeHex(text, 19, low >>> 48, 4);
+        text[23] = '-';
+        writeHex(text, 24, low, 12);
+        return new String(text);
+    }
+
+    /**
+     * Checks a run of hex digits.
+     *
+     * @param text  The text.
+     * @param start Index of the first digit.
+     * @param end   Index after the last digit.
+     * @return A negative number if any character is not a lowercase hex digit.
+     */
+    private static int digitsCheck(String text, int start, int end) {
+        int invalid = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            invalid |= c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+        }
+        return invalid;
+    }
+
+    /**
+     * Reads hex digits as a number.
+     *
+     * @param text  The text.
+     * @param start Index of the first digit.
+     * @param end   Index after the last digit.
+     * @return The value.
+     */
+    private static long hexBits(String text, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = (value << 4) | HEX_VALUES[text.charAt(i)];
+        }
+        return value;
+    }
+
+    /**
+     * Writes the lowest bits of a number as hex digits.
+     *
+     * @param text   The destination.
+     * @param start  Index of the first digit.
+     * @param value  The value.
+     * @param digits Number of digits to write.
+     */
+    private static void writeHex(char[] text, int start, long value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            text[start + i] = HEX_DIGITS[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * Random generator of one thread, with a buffer of pre-drawn tokens.
+     */
+    private static final class Source {
+
+        /**
+         * The thread's own generator.
+         */
+        private final SecureRandom random = newGenerator();
+
+        /**
+         * Pre-drawn random bytes; starts empty so that the first token fills it.
+         */
+        private final ByteBuffer buffer = ByteBuffer.allocate(16 * BUFFERED_TOKENS);
+
+        /**
+         * Creates the source with an empty buffer.
+         */
+        Source() {
+            buffer.position(buffer.limit());
+        }
+
+        /**
+         * Gets the buffer positioned at the next 16 random bytes, drawing new bytes when it is exhausted.
+         *
+         * @return The buffer.
+         */
+        ByteBuffer next() {
+            if (!buffer.hasRemaining()) {
+                random.nextBytes(buffer.array());
+                buffer.clear();
+            }
+            return buffer;
+        }
+
+        /**
+         * Creates a generator with its own state. The default generator on many platforms reads
+         * from a process-wide source under a lock, which serializes concurrent logins.
+         *
+         * @return The generator.
+         */
+        private static SecureRandom newGenerator() {
+            for (String algorithm : new String[] {"DRBG", "SHA1PRNG"}) {
+                try {
+                    return SecureRandom.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    // Try the next algorithm.
+                }
+            }
+            return new SecureRandom();
+        }
+    }
+}
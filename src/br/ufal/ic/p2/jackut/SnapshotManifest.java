@@ -0,0 +1,367 @@
+package br.ufal.ic.p2.jackut;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+
+/**
+ * Manifest of one generation of the snapshot: for each section (users, communities and sessions),
+ * the segment files holding it, with their length and CRC32C checksum.
+ *
+ * A generation only exists once its manifest does. Segment files are written under names carrying
+ * the generation that wrote them and forced to disk first; the manifest is then written to a
+ * temporary file, forced to disk and renamed into place, so a crash at any point leaves either
+ * the previous generation or the new one, never a mix. Segments that did not change are shared
+ * with the previous generation. On load, a generation whose files are missing, truncated or fail
+ * their checksum is rejected, and the previous one is used instead.
+ *
+ * The manifest itself is {@code jackut_manifest.<generation>}: the binary format header, the
+ * generation, the sequence number of the last journal record the generation holds (since version
+ * 8 of the format), the sections, then the CRC32C of everything before it.
+ */
+public class SnapshotManifest {
+
+    /**
+     * Prefix of the manifest file names, followed by the generation.
+     */
+    private static final String PREFIX = "jackut_manifest.";
+
+    /**
+     * Names of the manifest files.
+     */
+    private static final Pattern NAME = Pattern.compile(Pattern.quote(PREFIX) + "([0-9]+)");
+
+    /**
+     * Size of the chunks a file is read in to compute its checksum.
+     */
+    private static final int CHECKSUM_CHUNK = 1 << 16;
+
+    /**
+     * A segment file of the snapshot.
+     */
+    static final class Segment {
+        /**
+         * Name of the file in its section's directory.
+         */
+        private final String fileName;
+
+        /**
+         * Length of the file in bytes.
+         */
+        private final long length;
+
+        /**
+         * CRC32C checksum of the file.
+         */
+        private final int checksum;
+
+        /**
+         * Creates a segment entry.
+         *
+         * @param fileName Name of the file in its section's directory.
+         * @param length   Length of the file in bytes.
+         * @param checksum CRC32C checksum of the file.
+         */
+        Segment(String fileName, long length, int checksum) {
+            this.fileName = fileName;
+            this.length = length;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Describes a segment file that was just written.
+         *
+         * @param file The file.
+         * @return The entry, with the file's current length and checksum.
+         * @throws IOException If the file cannot be read.
+         */
+        static Segment describe(File file) throws IOException {
+            return new Segment(file.getName(), file.length(), checksum(file));
+        }
+
+        /**
+         * Gets the name of the file in its section's directory.
+         *
+         * @return The file name.
+         */
+        String getFileName() {
+            return fileName;
+        }
+    }
+
+    /**
+     * The generation, increasing with every snapshot written.
+     */
+    private final long generation;
+
+    /**
+     * Sequence number of the last journal record applied to the state the generation holds.
+     */
+    private final long journalSequence;
+
+    /**
+     * Directory of each section.
+     */
+    private final String[] directories;
+
+    /**
+     * Segments of each section, by section and then by segment index.
+     */
+    private final Segment[][] segments;
+
+    /**
+     * Creates a manifest.
+     *
+     * @param generation      The generation.
+     * @param journalSequence Sequence number of the last journal record the generation holds.
+     * @param directories     The directory of each section.
+     * @param segments        The segments of each section, by section and then by segment index.
+     */
+    SnapshotManifest(long generation, long journalSequence, String[] directories, Segment[][] segments) {
+        this.generation = generation;
+        this.journalSequence = journalSequence;
+        this.directories = directories;
+        this.segments = segments;
+    }
+
+    /**
+     * Gets the generation.
+     *
+     * @return The generation.
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Gets the sequence number of the last journal record applied to the state the generation holds.
+     *
+     * @return The sequence number, or 0 if the generation was written before journal records were numbered.
+     */
+    long getJournalSequence() {
+        return journalSequence;
+    }
+
+    /**
+     * Gets the segments of a section.
+     *
+     * @param section The section index.
+     * @return The segments, by index.
+     */
+    Segment[] getSegments(int section) {
+        return segments[section];
+    }
+
+    /**
+     * Gets the files of a section.
+     *
+     * @param section The section index.
+     * @return The files, by segment index.
+     */
+    File[] getFiles(int section) {
+        File[] files = new File[segments[section].length];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(directories[section], segments[section][i].fileName);
+        }
+        return files;
+    }
+
+    /**
+     * Gets the manifest file of a generation.
+     *
+     * @param generation The generation.
+     * @return The file, in the working directory.
+     */
+    static File fileOf(long generation) {
+        return new File(PREFIX + generation);
+    }
+
+    /**
+     * Lists the generations that have a manifest in the working directory.
+     *
+     * @return The generations, newest first.
+     */
+    static List<Long> generations() {
+        List<Long> generations = new ArrayList<>();
+        String[] names = new File(".").list();
+        if (names != null) {
+            for (String name : names) {
+                Matcher matcher = NAME.matcher(name);
+                if (matcher.matches()) {
+                    generations.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        generations.sort(Comparator.reverseOrder());
+        return generations;
+    }
+
+    /**
+     * Reads the manifest of a generation.
+     *
+     * @param generation The generation.
+     * @return The manifest.
+     * @throws IOException If the manifest cannot be read, is truncated or fails its checksum.
+     */
+    static SnapshotManifest read(long generation) throws IOException {
+        byte[] bytes = Files.readAllBytes(fileOf(generation).toPath());
+        if (bytes.length < 4) {
+            throw new IOException("Truncated manifest " + fileOf(generation));
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt()) {
+            throw new IOException("Checksum mismatch in manifest " + fileOf(generation));
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4))) {
+            int version = BinaryFormat.readHeader(in);
+            long read = BinaryFormat.readVarLong(in);
+            if (read != generation) {
+                throw new IOException("Manifest " + fileOf(generation) + " holds generation " + read);
+            }
+            long journalSequence = version >= 8 ? BinaryFormat.readVarLong(in) : 0;
+            int sections = BinaryFormat.readVarInt(in);
+            String[] directories = new String[sections];
+            Segment[][] segments = new Segment[sections][];
+            for (int s = 0; s < sections; s++) {
+                directories[s] = BinaryFormat.readString(in);
+                segments[s] = new Segment[BinaryFormat.readVarInt(in)];
+                for (int i = 0; i < segments[s].length; i++) {
+                    segments[s][i] = new Segment(BinaryFormat.readString(in), BinaryFormat.readVarLong(in), in.readInt());
+                }
+            }
+            return new SnapshotManifest(generation, journalSequence, directories, segments);
+        } catch (EOFException e) {
+            throw new IOException("Truncated manifest " + fileOf(generation), e);
+        }
+    }
+
+    /**
+     * Writes the manifest, committing its generation: the manifest is written to a temporary
+     * file, forced to disk, renamed into place, and the rename is forced to disk.
+     * The segment files must already be on disk.
+     *
+     * @throws IOException If the manifest cannot be written.
+     */
+    void write() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        BinaryFormat.writeHeader(out);
+        BinaryFormat.writeVarLong(out, generation);
+        BinaryFormat.writeVarLong(out, journalSequence);
+        BinaryFormat.writeVarInt(out, segments.length);
+        for (int s = 0; s < segments.length; s++) {
+            BinaryFormat.writeString(out, directories[s]);
+            BinaryFormat.writeVarInt(out, segments[s].length);
+            for (Segment segment : segments[s]) {
+                BinaryFormat.writeString(out, segment.fileName);
+                BinaryFormat.writeVarLong(out, segment.length);
+                out.writeInt(segment.checksum);
+            }
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        File target = fileOf(generation);
+        File temp = new File(target.getPath() + ".tmp");
+        try {
+            try (FileOutputStream file = new FileOutputStream(temp)) {
+                bytes.writeTo(file);
+                file.getFD().sync();
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+        syncDirectory(new File("."));
+    }
+
+    /**
+     * Checks that every segment file of the generation is present and intact.
+     *
+     * @param checksums Whether to compare the checksums of the files, rather than only their lengths.
+     * @throws IOException Describing the first missing, truncated or corrupted file.
+     */
+    void verify(boolean checksums) throws IOException {
+        for (int s = 0; s < segments.length; s++) {
+            File[] files = getFiles(s);
+            for (int i = 0; i < files.length; i++) {
+                if (!files[i].isFile()) {
+                    throw new IOException("Missing segment " + files[i]);
+                }
+                if (files[i].length() != segments[s][i].length) {
+                    throw new IOException("Segment " + files[i] + " has " + files[i].length()
+                            + " bytes instead of " + segments[s][i].length);
+                }
+                if (checksums && checksum(files[i]) != segments[s][i].checksum) {
+                    throw new IOException("Checksum mismatch in segment " + files[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists the files of every section, as paths relative to the working directory.
+     *
+     * @return The files.
+     */
+    List<File> files() {
+        List<File> files = new ArrayList<>();
+        for (int s = 0; s < segments.length; s++) {
+            files.addAll(Arrays.asList(getFiles(s)));
+        }
+        return files;
+    }
+
+    /**
+     * Computes the CRC32C checksum of a file.
+     *
+     * @param file The file.
+     * @return The checksum.
+     * @throws IOException If the file cannot be read.
+     */
+    static int checksum(File file) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(CHECKSUM_CHUNK);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Forces the entries of a directory to disk, so that files created or renamed in it survive
+     * a crash. Not every platform can open a directory; there the call does nothing.
+     *
+     * @param directory The directory.
+     */
+    static void syncDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories cannot be opened on this platform; renames are durable on their own there.
+        }
+    }
+}
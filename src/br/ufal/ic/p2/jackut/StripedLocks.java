@@ -0,0 +1,140 @@
+package br.ufal.ic.p2.jackut;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks indexed by key hash, used to serialize operations on the same users
+ * without a global lock. Keys that hash to the same stripe share a lock, which only costs
+ * some parallelism.
+ *
+ * Several keys can be locked at once; their stripes are always acquired in ascending index order,
+ * so two threads locking the same pair of users in opposite orders cannot deadlock.
+ */
+public class StripedLocks {
+
+    /**
+     * The stripes.
+     */
+    private final ReentrantLock[] stripes;
+
+    /**
+     * Creates the stripes.
+     *
+     * @param count Number of stripes, rounded up to a power of two.
+     */
+    public StripedLocks(int count) {
+        int size = Integer.highestOneBit(Math.max(1, count - 1)) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Locks the stripes of the given keys.
+     *
+     * @param keys The keys to lock; null keys are ignored.
+     * @return A guard releasing the stripes when closed.
+     */
+    public Guard lock(String... keys) {
+        int[] indexes = new int[keys.length];
+        int count = 0;
+        for (String key : keys) {
+            if (key != null) {
+                indexes[count++] = stripeOf(key);
+            }
+        }
+        Arrays.sort(indexes, 0, count);
+
+        Lock[] held = new Lock[count];
+        int heldCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || indexes[i] != indexes[i - 1]) {
+                Lock lock = stripes[indexes[i]];
+                lock.lock();
+                held[heldCount++] = lock;
+            }
+        }
+        return new Guard(held, heldCount, null);
+    }
+
+    /**
+     * Gets the stripe index of a key.
+     *
+     * @param key The key.
+     * @return The stripe index.
+     */
+    private int stripeOf(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (stripes.length - 1);
+    }
+
+    /**
+     * Set of held locks, released in reverse acquisition order when closed.
+     */
+    public static final class Guard implements AutoCloseable {
+
+        /**
+         * The held locks, in acquisition order.
+         */
+        private final Lock[] held;
+
+        /**
+         * Number of entries of {@link #held} in use.
+         */
+        private final int count;
+
+        /**
+         * Lock acquired before the stripes and released after them, or null.
+         */
+        private final Lock outer;
+
+        /**
+         * Creates a guard.
+         *
+         * @param held  The held locks, in acquisition order.
+         * @param count Number of entries of held in use.
+         * @param outer Lock acquired before the stripes, or null.
+         */
+        private Guard(Lock[] held, int count, Lock outer) {
+            this.held = held;
+            this.count = count;
+            this.outer = outer;
+        }
+
+        /**
+         * Creates a guard that also releases a lock acquired before this one.
+         *
+         * @param outer The outer lock, already held.
+         * @return The combined guard.
+         */
+        Guard within(Lock outer) {
+            return new Guard(held, count, outer);
+        }
+
+        /**
+         * Creates a guard holding a single lock.
+         *
+         * @param lock The lock, already held.
+         * @return The guard.
+         */
+        static Guard of(Lock lock) {
+            return new Guard(new Lock[0], 0, lock);
+        }
+
+        /**
+         * Releases every held lock.
+         */
+        @Override
+        public void close() {
+            for (int i = count - 1; i >= 0; i--) {
+                held[i].unlock();
+            }
+            if (outer != null) {
+                outer.unlock();
+            }
+        }
+    }
+}
@@ -8,13 +8,21 @@ import java.util.*;
 /**
  * Represents a user in the Jackut platform, storing login credentials, social connections,
  * communities, and message queues.
+ *
+ * A user's state is guarded by its own monitor. Methods never hold it while calling into
+ * another user, so users can be used concurrently without lock-ordering concerns; atomicity
+ * across several users is provided by {@link Repository#lockUsers(String...)}.
+ *
+ * The profile and the formatted listings are published as immutable values through volatile
+ * fields: writers replace them while holding the monitor, and readers take them without locking,
+ * so reading a profile or a listing never waits for a writer.
  */
 public class User implements Serializable {
 
     /**
      * The user's login, used as a unique identifier.
      */
-    private String login;
+    private volatile String login;
 
     /**
      * The user's password for authentication.
@@ -24,59 +32,155 @@ public class User implements Serializable {
     /**
      * The user's full name.
      */
-    private String name;
+    private volatile String name;
 
     /**
      * A map of custom attributes associated with the user.
      * The key is the attribute name, and the value is the corresponding value.
+     * The map is never modified once published: setting an attribute replaces it with a copy.
      */
-    private Map<String, String> atributosExtras;
+    private volatile Map<String, String> atributosExtras;
 
     /**
-     * List of logins representing the user's friends.
+     * Id of the user's login in the repository's login dictionary.
      */
-    private List<String> friends;
+    private transient int id;
 
     /**
-     * List of logins of users this user follows.
+     * Users this user sent a friend request to, in request order.
+     * Related users are kept by id, in insertion-ordered {@link IdSet}s: membership checks take
+     * constant time, listings keep the order in which the relationships were created, and logins
+     * are only looked up when a relationship is listed or written to a snapshot.
      */
-    private List<String> follows;
+    private IdSet friends;
 
     /**
-     * List of logins of users who follow this user.
+     * Confirmed friends, for which both sides sent a request; they are listed in the order of
+     * {@link #friends}. Maintained when the second request of a pair lands, so checking
+     * friendships never has to look at the other users.
      */
-    private List<String> followers;
+    private IdSet confirmedFriends;
 
     /**
-     * List of logins marked as crushes (romantic interests).
+     * Users whose friend request to this user has not been returned yet, in arrival order.
      */
-    private List<String> crushes;
+    private IdSet pendingInvites;
 
     /**
-     * List of logins marked as enemies.
+     * Users this user follows, in the order they were followed.
      */
-    private List<String> enemies;
+    private IdSet follows;
+
+    /**
+     * Users who follow this user, in the order they started following.
+     */
+    private IdSet followers;
+
+    /**
+     * Users marked as crushes (romantic interests), in the order they were added.
+     */
+    private IdSet crushes;
+
+    /**
+     * Users marked as enemies, in the order they were added.
+     */
+    private IdSet enemies;
+
+    /**
+     * Users who marked this user as a crush.
+     * This and the following sets are reverse links, kept so that deleting a user only has to
+     * visit the users and communities linked to it.
+     */
+    private IdSet crushedBy;
+
+    /**
+     * Users who marked this user as an enemy.
+     */
+    private IdSet enemyOf;
+
+    /**
+     * Users this user sent private messages to, or whose queue holds a community message of this
+     * user from a deleted community.
+     * Entries are kept after the messages are read, so some may no longer hold messages from this user,
+     * and after those users are deleted, so some ids may be released or reused by a newer login.
+     */
+    private IdSet correspondents;
+
+    /**
+     * Names of the communities this user posted messages to.
+     * Entries are kept after the messages are read.
+     */
+    private Set<String> postedCommunities;
 
     /**
      * The repository object associated with this user for data access and persistence.
+     * Not serialized: it is re-attached by the repository when the user is loaded.
      */
-    private Repository repository;
+    private transient Repository repository;
 
     /**
-     * Queue of private messages received by the user.
+     * Queue of private messages received by the user, spilled to disk past a bounded length.
      */
-    private Queue<Message> messages;
+    private Inbox<Message> messages;
 
     /**
-     * Queue of community messages received by the user.
+     * Queue of community messages kept by the user after their community was deleted, and of
+     * messages queued by versions that delivered community messages to each member. Messages of
+     * existing communities are read from the community's log instead.
      */
-    private Queue<CommunityMessage> communityMessages;
+    private Inbox<CommunityMessage> communityMessages;
 
     /**
      * List of names or identifiers of communities the user is part of.
      */
     private ArrayList<String> communities;
 
+    /**
+     * Confirmed friends formatted as {@code {a,b}}, or null until they are listed again.
+     * This and the following fields cache the listings of the user, built on first use and
+     * discarded when the listed relationship changes, and read without locking. Not serialized.
+     */
+    private transient volatile String formattedFriends;
+
+    /**
+     * Followers formatted as {@code {a,b}}, or null until they are listed again.
+     */
+    private transient volatile String formattedFollowers;
+
+    /**
+     * Crushes formatted as {@code {a,b}}, or null until they are listed again.
+     */
+    private transient volatile String formattedCrushes;
+
+    /**
+     * Communities formatted as {@code {a,b}}, or null until they are listed again.
+     */
+    private transient volatile String formattedCommunities;
+
+    /**
+     * Relationships read from a snapshot written with Java serialization, as logins by target
+     * set, until the user is attached to a repository that can give them ids.
+     */
+    private transient Map<IdSet, Collection<String>> legacyRelations;
+
+    /**
+     * Private message queue read from a snapshot written with Java serialization, until the user
+     * is attached to a repository that can give their senders ids.
+     */
+    private transient Queue<Message> legacyMessages;
+
+    /**
+     * Community message queue read from a snapshot written with Java serialization, until the
+     * user is attached to a repository that can give their senders ids.
+     */
+    private transient Queue<CommunityMessage> legacyCommunityMessages;
+
+    /**
+     * Whether the user changed since its record was last written to a snapshot, so that a snapshot
+     * only encodes the users that changed and copies the others. A new user starts dirty. Not serialized.
+     */
+    private transient boolean dirty = true;
+
     /**
      * Version identifier for serialization.
      */
@@ -90,21 +194,84 @@ public class User implements Serializable {
      * @param name User's name.
      */
     public User(String login, String password, String name) {
+        this(login, password, name, Repository.getInstance());
+    }
+
+    /**
+     * Constructs a User bound to the given repository.
+     * Used by the repository itself while it is still being initialized.
+     * @param login User's unique identifier.
+     * @param password User's password.
+     * @param name User's name.
+     * @param repository The repository the user belongs to.
+     */
+    User(String login, String password, String name, Repository repository) {
         this.login = login;
         this.password = password;
         this.name = name;
-        this.friends = new ArrayList<>();
-        this.messages = new LinkedList<>();
+        this.id = repository.idOf(login);
+        this.friends = new IdSet();
+        this.confirmedFriends = new IdSet();
+        this.pendingInvites = new IdSet();
+        this.messages = new Inbox<>(Message.CODEC, repository);
         this.atributosExtras = new HashMap<>();
-        this.repository = Repository.getInstance();
+        this.repository = repository;
         this.communities = new ArrayList<>();
-        this.communityMessages = new LinkedList<>();
-        this.enemies = new ArrayList<>();
-        this.follows = new ArrayList<>();
-        this.followers = new ArrayList<>();
-        this.crushes = new ArrayList<>();
+        this.communityMessages = new Inbox<>(CommunityMessage.CODEC, repository);
+        this.enemies = new IdSet();
+        this.follows = new IdSet();
+        this.followers = new IdSet();
+        this.crushes = new IdSet();
+        this.crushedBy = new IdSet();
+        this.enemyOf = new IdSet();
+        this.correspondents = new IdSet();
+        this.postedCommunities = new HashSet<>();
+    }
+
+    /**
+     * Attaches a user read with Java serialization to the repository that loaded it, and gives
+     * ids to the logins of its relationships.
+     * @param repository The owning repository.
+     */
+    void setRepository(Repository repository) {
+        this.repository = repository;
+        this.id = repository.idOf(login);
+        if (legacyRelations != null) {
+            legacyRelations.forEach((target, logins) -> {
+                for (String related : logins) {
+                    target.add(repository.idOf(related));
+                }
+            });
+            legacyRelations = null;
+        }
+        if (messages == null) {
+            this.messages = new Inbox<>(Message.CODEC, repository);
+            this.communityMessages = new Inbox<>(CommunityMessage.CODEC, repository);
+            if (legacyMessages != null) {
+                for (Message message : legacyMessages) {
+                    if (message.resolveSender(repository)) {
+                        messages.add(message);
+                    }
+                }
+            }
+            if (legacyCommunityMessages != null) {
+                for (CommunityMessage message : legacyCommunityMessages) {
+                    if (message.resolveSender(repository)) {
+                        communityMessages.add(message);
+                    }
+                }
+            }
+            legacyMessages = null;
+            legacyCommunityMessages = null;
+        }
     }
 
+    /**
+     * Gets the id of the user's login in the repository's login dictionary.
+     * @return The id.
+     */
+    int getId() { return id; }
+
     /**
      * Gets the user's login.
      * @return The user's login.
@@ -124,7 +291,7 @@ public class User implements Serializable {
     public String getPassword() { return password; }
 
     /**
-     * Retrieves a specific user attribute.
+     * Retrieves a specific user attribute, without locking.
      * @param chave The attribute key.
      * @return The attribute value.
      */
@@ -141,16 +308,24 @@ public class User implements Serializable {
      * @param chave The attribute key.
      * @param valor The attribute value.
      */
-    public void setAtributo(String chave, String valor) {
+    public synchronized void setAtributo(String chave, String valor) {
         switch (chave.toLowerCase()) {
             case "login": this.login = valor; break;
             case "name": this.name = valor; break;
-            default: atributosExtras.put(chave, valor); break;
+            default:
+                Map<String, String> updated = new HashMap<>(atributosExtras);
+                updated.put(chave, valor);
+                atributosExtras = updated;
+                break;
         }
+        markDirty();
     }
 
     /**
      * Adds a friend request.
+     * If the other user already sent a request to this user, the friendship is confirmed on both
+     * sides; otherwise the request is added to the other user's pending invites.
+     * The caller holds the locks of both users.
      * @param friendLogin The login of the friend to be added.
      * @throws CantAddItselfException If the user tries to add themselves.
      * @throws UserNotFoundException If the friend does not exist.
@@ -163,31 +338,63 @@ public class User implements Serializable {
         }
 
         User possibleFriend = this.repository.getUser(friendLogin);
+        int friendId = possibleFriend.getId();
 
-        if (friends.contains(friendLogin)) {
-            if (!possibleFriend.friends.contains(this.login)) {
+        if (hasRequested(friendId)) {
+            if (!possibleFriend.hasRequested(this.id)) {
                 throw new WaitingToAcceptException();
             }
             throw new AlreadyFriendException();
         }
-        friends.add(friendLogin);
-        this.repository.saveData();
+        synchronized (this) {
+            friends.add(friendId);
+            markDirty();
+        }
+        if (possibleFriend.hasRequested(this.id)) {
+            this.confirmFriend(friendId);
+            possibleFriend.confirmFriend(this.id);
+        } else {
+            possibleFriend.addPendingInvite(this.id);
+        }
+        this.repository.record(Journal.Operation.ADD_FRIEND, this.login, friendLogin);
     }
 
     /**
-     * Retrieves the list of confirmed friends.
+     * Retrieves the list of confirmed friends, in the order this user sent the requests.
      * @return A list of confirmed friends.
-     * @throws UserNotFoundException If a friend is not found in the repository.
-     */
-    public List<String> getFriends() throws UserNotFoundException {
-        List<String> finalFriends = new ArrayList<>();
-        for (String friend : friends) {
-            User user = this.repository.getUser(friend);
-            if (user.friends.contains(this.login)) {
-                finalFriends.add(friend);
+     */
+    public synchronized List<String> getFriends() {
+        List<String> logins = new ArrayList<>(confirmedFriends.size());
+        friends.forEach(friend -> {
+            if (confirmedFriends.contains(friend)) {
+                logins.add(repository.loginOf(friend));
+            }
+        });
+        return logins;
+    }
+
+    /**
+     * Gets the confirmed friends formatted as {@code {a,b}}, in the order this user sent the requests.
+     * The text is kept until a friendship changes, so repeated calls do not rebuild it.
+     * @return The formatted friend list.
+     */
+    public String getFormattedFriends() {
+        String formatted = formattedFriends;
+        if (formatted == null) {
+            synchronized (this) {
+                if (formattedFriends == null) {
+                    StringBuilder out = ListFormat.open();
+                    friends.forEach(friend -> {
+                        if (confirmedFriends.contains(friend)) {
+                            ListFormat.append(out, repository.loginOf(friend));
+                        }
+                    });
+                    formattedFriends = ListFormat.close(out);
+                }
+                formatted = formattedFriends;
             }
         }
-        return finalFriends;
+        return formatted;
     }
 
     /**
@@ -197,24 +404,114 @@ public class User implements Serializable {
      * @throws UserNotFoundException If the friend is not found.
      */
     public boolean isFriend(String friendLogin) throws UserNotFoundException {
-        User possibleFriend = this.repository.getUser(friendLogin);
-        return friends.contains(friendLogin) && possibleFriend.friends.contains(this.login);
+        this.repository.getUser(friendLogin);
+        return isConfirmedFriend(friendLogin);
+    }
+
+    /**
+     * Checks whether the friendship with another user is confirmed.
+     * @param friendLogin The other user's login.
+     * @return True if both users sent a request to each other.
+     */
+    private synchronized boolean isConfirmedFriend(String friendLogin) {
+        return confirmedFriends.contains(repository.findId(friendLogin));
+    }
+
+    /**
+     * Checks whether this user sent a friend request to another user, confirmed or not.
+     * @param friendId The other user's id.
+     * @return True if the request was sent.
+     */
+    synchronized boolean hasRequested(int friendId) {
+        return friends.contains(friendId);
+    }
+
+    /**
+     * Gets the logins this user sent a friend request to, in request order.
+     * @return The requested logins.
+     */
+    synchronized List<String> getFriendRequests() {
+        return logins(friends);
+    }
+
+    /**
+     * Gets the users whose friend request to this user has not been returned yet.
+     * @return The logins of the pending invites, in arrival order.
+     */
+    public synchronized List<String> getPendingInvites() {
+        return logins(pendingInvites);
+    }
+
+    /**
+     * Marks the friendship with a user this user already sent a request to as confirmed.
+     * @param friendId The friend's id.
+     */
+    synchronized void confirmFriend(int friendId) {
+        if (friends.contains(friendId)) {
+            confirmedFriends.add(friendId);
+            pendingInvites.remove(friendId);
+            formattedFriends = null;
+            markDirty();
+        }
+    }
+
+    /**
+     * Records a friend request received from another user.
+     * @param inviterId The id of the user who sent the request.
+     */
+    synchronized void addPendingInvite(int inviterId) {
+        if (pendingInvites.add(inviterId)) {
+            markDirty();
+        }
+    }
+
+    /**
+     * Clears the confirmed friendships, pending invites and reverse links, before they are
+     * rebuilt from the relationships and messages of every user.
+     */
+    synchronized void resetIndexes() {
+        confirmedFriends.clear();
+        formattedFriends = null;
+        pendingInvites.clear();
+        crushedBy.clear();
+        enemyOf.clear();
+        correspondents.clear();
+        postedCommunities.clear();
+        markDirty();
     }
 
     /**
-     * Removes a user from the current user's friend list.
+     * Removes a user from the current user's friend requests, friendships and pending invites.
      * @param friendLogin The login of the friend to remove.
      */
-    public void removeFriend(String friendLogin) {
-        friends.remove(friendLogin);
+    public synchronized void removeFriend(String friendLogin) {
+        removeFriend(repository.findId(friendLogin));
+    }
+
+    /**
+     * Removes a user from the current user's friend requests, friendships and pending invites.
+     * @param friendId The id of the friend to remove.
+     */
+    private synchronized void removeFriend(int friendId) {
+        friends.remove(friendId);
+        if (confirmedFriends.remove(friendId)) {
+            formattedFriends = null;
+        }
+        pendingInvites.remove(friendId);
+        markDirty();
     }
 
     /**
-     * Adds a message to the user's message queue.
-     * @param message The message to add.
+     * Adds a message to the user's message queue, and records this user as a correspondent of the sender.
+     * @param sender The user sending the message.
+     * @param text The content of the message.
      */
-    public void addMessage(Message message) {
-        messages.add(message);
+    public void addMessage(User sender, String text) {
+        synchronized (this) {
+            messages.add(new Message(sender.getId(), text));
+            markDirty();
+        }
+        sender.addCorrespondent(this.id);
     }
 
     /**
@@ -222,11 +519,22 @@ public class User implements Serializable {
      * @return The text of the first message.
      * @throws NoMessagesException If there are no messages.
      */
-    public String getFirstMessage() throws NoMessagesException {
-        if (messages.isEmpty()) {
+    public synchronized String getFirstMessage() throws NoMessagesException {
+        Message first = messages.poll();
+        if (first == null) {
             throw new NoMessagesException();
         }
-        return messages.poll().getText();
+        markDirty();
+        return first.getText();
+    }
+
+    /**
+     * Gets the sequence number of the first community message in the queue.
+     * @return The sequence number, or {@link Long#MAX_VALUE} if the queue is empty.
+     */
+    synchronized long peekCommunityMessageSequence() {
+        CommunityMessage first = communityMessages.peek();
+        return first == null ? Long.MAX_VALUE : first.getSequence();
     }
 
     /**
@@ -234,35 +542,74 @@ public class User implements Serializable {
      * @return The text of the first community message.
      * @throws NoCommunityMessagesException If there are no community messages.
      */
-    public String getFirstCommunityMessage() throws NoCommunityMessagesException {
-        if (communityMessages.isEmpty()) {
+    public synchronized String getFirstCommunityMessage() throws NoCommunityMessagesException {
+        CommunityMessage first = communityMessages.poll();
+        if (first == null) {
             throw new NoCommunityMessagesException();
         }
-        return communityMessages.poll().getMessage();
+        markDirty();
+        return first.getMessage();
+    }
+
+    /**
+     * Gets the number of private messages waiting to be read.
+     * @return The queue length.
+     */
+    public synchronized int getMessageCount() {
+        return messages.size();
+    }
+
+    /**
+     * Gets the number of community messages kept in the user's own queue.
+     * @return The queue length.
+     */
+    public synchronized int getCommunityMessageCount() {
+        return communityMessages.size();
     }
 
     /**
      * Adds a community message to the user's queue.
      * @param message The community message to add.
      */
-    public void addCommunityMessage(CommunityMessage message) {
+    public synchronized void addCommunityMessage(CommunityMessage message) {
         communityMessages.add(message);
+        markDirty();
     }
 
     /**
      * Adds a community to the user's list of communities.
      * @param community The community to add.
      */
-    public void addCommunity(String community) {
+    public synchronized void addCommunity(String community) {
         this.communities.add(community);
+        this.formattedCommunities = null;
+        markDirty();
     }
 
     /**
      * Gets the list of communities the user belongs to.
      * @return List of community names.
      */
-    public ArrayList<String> getCommunities() {
-        return new ArrayList<>(communities); // Retorna uma cpia para evitar modificaes externas
+    public synchronized ArrayList<String> getCommunities() {
+        return new ArrayList<>(communities); // Retorna uma cópia para evitar modificações externas
+    }
+
+    /**
+     * Gets the communities the user belongs to formatted as {@code {a,b}}, in the order they were joined.
+     * The text is kept until the user joins or leaves a community.
+     * @return The formatted community list.
+     */
+    public String getFormattedCommunities() {
+        String formatted = formattedCommunities;
+        if (formatted == null) {
+            synchronized (this) {
+                if (formattedCommunities == null) {
+                    formattedCommunities = ListFormat.format(communities);
+                }
+                formatted = formattedCommunities;
+            }
+        }
+        return formatted;
     }
 
     /**
@@ -270,32 +617,55 @@ public class User implements Serializable {
      * @param idolLogin The login of the user to check.
      * @return True if the user follows the specified user, false otherwise.
      */
-    public boolean doesUserFollow(String idolLogin) {
-        return follows.contains(idolLogin);
+    public synchronized boolean doesUserFollow(String idolLogin) {
+        return follows.contains(repository.findId(idolLogin));
     }
 
     /**
      * Follows another user.
      * @param idolLogin The login of the user to follow.
      */
-    public void follow(String idolLogin) {
-        this.follows.add(idolLogin);
+    public synchronized void follow(String idolLogin) {
+        if (this.follows.add(repository.idOf(idolLogin))) {
+            markDirty();
+        }
     }
 
     /**
      * Gets the list of followers.
      * @return List of follower logins.
      */
-    public List<String> getFollowers() {
-        return new ArrayList<>(followers); // Retorna uma cpia para evitar modificaes externas
+    public synchronized List<String> getFollowers() {
+        return logins(followers);
+    }
+
+    /**
+     * Gets the followers formatted as {@code {a,b}}, in the order they started following.
+     * The text is kept until a follower is added or removed.
+     * @return The formatted follower list.
+     */
+    public String getFormattedFollowers() {
+        String formatted = formattedFollowers;
+        if (formatted == null) {
+            synchronized (this) {
+                if (formattedFollowers == null) {
+                    formattedFollowers = format(followers);
+                }
+                formatted = formattedFollowers;
+            }
+        }
+        return formatted;
     }
 
     /**
      * Adds a follower to the user's list.
      * @param fanId The login of the follower to add.
      */
-    public void setFollower(String fanId) {
-        this.followers.add(fanId);
+    public synchronized void setFollower(String fanId) {
+        if (this.followers.add(repository.idOf(fanId))) {
+            this.formattedFollowers = null;
+            markDirty();
+        }
     }
 
     /**
@@ -303,32 +673,75 @@ public class User implements Serializable {
      * @param crushLogin The login of the user to check.
      * @return True if the user is a crush, false otherwise.
      */
-    public boolean isCrush(String crushLogin) {
-        return crushes.contains(crushLogin);
+    public synchronized boolean isCrush(String crushLogin) {
+        return crushes.contains(repository.findId(crushLogin));
     }
 
     /**
-     * Adds a crush to the user's list.
+     * Adds a crush to the user's list, and the reverse link to the crush.
      * @param crushLogin The login of the crush to add.
      */
     public void addCrush(String crushLogin) {
-        this.crushes.add(crushLogin);
+        synchronized (this) {
+            if (this.crushes.add(repository.idOf(crushLogin))) {
+                this.formattedCrushes = null;
+                markDirty();
+            }
+        }
+        User crush = this.repository.findUser(crushLogin);
+        if (crush != null) {
+            crush.addCrushedBy(this.id);
+        }
     }
 
     /**
      * Gets the list of crushes.
      * @return List of crush logins.
      */
-    public List<String> getCrushes() {
-        return new ArrayList<>(crushes); // Retorna uma cpia para evitar modificaes externas
+    public synchronized List<String> getCrushes() {
+        return logins(crushes);
     }
 
     /**
-     * Adds an enemy to the user's list.
+     * Gets the crushes formatted as {@code {a,b}}, in the order they were added.
+     * The text is kept until a crush is added or removed.
+     * @return The formatted crush list.
+     */
+    public String getFormattedCrushes() {
+        String formatted = formattedCrushes;
+        if (formatted == null) {
+            synchronized (this) {
+                if (formattedCrushes == null) {
+                    formattedCrushes = format(crushes);
+                }
+                formatted = formattedCrushes;
+            }
+        }
+        return formatted;
+    }
+
+    /**
+     * Adds an enemy to the user's list, and the reverse link to the enemy.
      * @param login The login of the enemy to add.
      */
     public void addEnemy(String login) {
-        this.enemies.add(login);
+        synchronized (this) {
+            if (this.enemies.add(repository.idOf(login))) {
+                markDirty();
+            }
+        }
+        User enemy = this.repository.findUser(login);
+        if (enemy != null) {
+            enemy.addEnemyOf(this.id);
+        }
+    }
+
+    /**
+     * Gets the list of enemies.
+     * @return List of enemy logins.
+     */
+    public synchronized List<String> getEnemies() {
+        return logins(enemies);
     }
 
     /**
@@ -336,8 +749,97 @@ public class User implements Serializable {
      * @param login The login of the user to check.
      * @return True if the user is an enemy, false otherwise.
      */
-    public boolean isEnemy(String login) {
-        return this.enemies.contains(login);
+    public synchronized boolean isEnemy(String login) {
+        return this.enemies.contains(repository.findId(login));
+    }
+
+    /**
+     * Records that another user marked this user as a crush.
+     * @param userId The id of the other user.
+     */
+    synchronized void addCrushedBy(int userId) {
+        if (this.crushedBy.add(userId)) {
+            markDirty();
+        }
+    }
+
+    /**
+     * Records that another user marked this user as an enemy.
+     * @param userId The id of the other user.
+     */
+    synchronized void addEnemyOf(int userId) {
+        if (this.enemyOf.add(userId)) {
+            markDirty();
+        }
+    }
+
+    /**
+     * Records that this user sent a private message to another user.
+     * @param userId The id of the receiver.
+     */
+    synchronized void addCorrespondent(int userId) {
+        if (this.correspondents.add(userId)) {
+            markDirty();
+        }
+    }
+
+    /**
+     * Records that this user posted a message to a community.
+     * @param community The community name.
+     */
+    synchronized void addPostedCommunity(String community) {
+        if (this.postedCommunities.add(community)) {
+            markDirty();
+        }
+    }
+
+    /**
+     * Gets the logins of every user linked to this one: friend requests in both directions,
+     * fans, idols, crushes, enemies (in both directions) and receivers of its messages.
+     * These are the users that may refer to this user.
+     * @return The linked logins.
+     */
+    synchronized Set<String> getLinkedUsers() {
+        Set<String> linked = new HashSet<>();
+        for (IdSet related : new IdSet[] {friends, pendingInvites, follows, followers, crushes, crushedBy, enemies, enemyOf, correspondents}) {
+            related.forEach(user -> linked.add(repository.loginOf(user)));
+        }
+        linked.remove(null);
+        return linked;
+    }
+
+    /**
+     * Gets the names of the communities this user posted messages to.
+     * @return The community names.
+     */
+    synchronized List<String> getPostedCommunities() {
+        return new ArrayList<>(postedCommunities);
+    }
+
+    /**
+     * Removes every reference to a deleted user: relationships in both directions and
+     * the private and community messages it sent.
+     * @param deletedLogin The login of the deleted user.
+     */
+    synchronized void forgetUser(String deletedLogin) {
+        int deletedId = repository.findId(deletedLogin);
+        removeFriend(deletedId);
+        follows.remove(deletedId);
+        if (followers.remove(deletedId)) {
+            formattedFollowers = null;
+        }
+        if (crushes.remove(deletedId)) {
+            formattedCrushes = null;
+        }
+        crushedBy.remove(deletedId);
+        enemies.remove(deletedId);
+        enemyOf.remove(deletedId);
+        correspondents.remove(deletedId);
+        if (deletedId >= 0) {
+            messages.removeIf(message -> message.getSenderId() == deletedId);
+            communityMessages.removeIf(message -> message.getSenderId() == deletedId);
+        }
+        markDirty();
     }
 
     /**
@@ -345,23 +847,298 @@ public class User implements Serializable {
      * @param community The community to remove.
      * @return True if the community was removed, false if it wasn't found.
      */
-    public boolean removeCommunity(String community) {
-        return this.communities.remove(community);
+    public synchronized boolean removeCommunity(String community) {
+        boolean removed = this.communities.remove(community);
+        if (removed) {
+            this.formattedCommunities = null;
+            markDirty();
+        }
+        return removed;
     }
 
     /**
      * Gets the user's message queue.
+     * The queue is not a copy; it may only be used while the repository is held exclusively.
      * @return The message queue.
      */
-    public Queue<Message> getMessages() {
+    Inbox<Message> getMessages() {
         return messages;
     }
 
     /**
      * Gets the user's community message queue.
+     * The queue is not a copy; it may only be used while the repository is held exclusively.
      * @return The community message queue.
      * */
-    public Queue<CommunityMessage> getCommunityMessages() {
+    Inbox<CommunityMessage> getCommunityMessages() {
         return communityMessages;
     }
+
+    /**
+     * Discards the user's message queues, deleting the messages they spilled to disk.
+     * Called when the user is deleted, or when a copy of a user loaded concurrently is dropped.
+     */
+    synchronized void discardMessages() {
+        messages.clear();
+        communityMessages.clear();
+    }
+
+    /**
+     * Records that the user changed, so that the next snapshot writes it again.
+     * The repository is told the first time the user changes after being written.
+     */
+    private synchronized void markDirty() {
+        if (!dirty) {
+            dirty = true;
+            repository.userChanged(login);
+        }
+    }
+
+    /**
+     * Records that the user was written to a snapshot. Called while the repository is held exclusively.
+     */
+    synchronized void clearDirty() {
+        dirty = false;
+    }
+
+    /**
+     * Writes the user's profile, relationships and message queues in the binary snapshot format.
+     * The login itself is the key of the record in the {@link UserStore}. Related users, message
+     * senders and communities are written as logins and names, never as ids, so that a record can
+     * be decoded on its own without loading any other user.
+     * @param out The snapshot output stream.
+     * @throws IOException If writing fails.
+     */
+    synchronized void writeTo(DataOutputStream out) throws IOException {
+        BinaryFormat.writeString(out, password);
+        BinaryFormat.writeString(out, name);
+        BinaryFormat.writeStringMap(out, atributosExtras);
+        writeLogins(out, friends);
+        writeLogins(out, confirmedFriends);
+        writeLogins(out, pendingInvites);
+        writeLogins(out, follows);
+        writeLogins(out, followers);
+        writeLogins(out, crushes);
+        writeLogins(out, enemies);
+        BinaryFormat.writeStrings(out, communities);
+        writeLogins(out, crushedBy);
+        writeLogins(out, enemyOf);
+        writeLogins(out, correspondents);
+        BinaryFormat.writeStrings(out, postedCommunities);
+
+        messages.writeTo(out);
+        communityMessages.writeTo(out);
+    }
+
+    /**
+     * Writes the user's profile, the relationships it started, its communities and its message
+     * queues as the rows of a {@link Dataset} export. Fans are written here rather than with each
+     * fan, in the order they started following, which is the order they are listed in. Derived
+     * data (confirmed friendships, pending invites and reverse links) is not written: the import
+     * rebuilds it.
+     * @param out Receives the rows.
+     * @throws IOException If a row cannot be written.
+     */
+    synchronized void exportTo(Dataset.RowSink out) throws IOException {
+        out.row(Dataset.Table.USERS, login, password, name);
+        for (Map.Entry<String, String> attribute : atributosExtras.entrySet()) {
+            out.row(Dataset.Table.ATTRIBUTES, login, attribute.getKey(), attribute.getValue());
+        }
+        String[] relations = {"friend", "crush", "enemy"};
+        IdSet[] related = {friends, crushes, enemies};
+        for (int i = 0; i < relations.length; i++) {
+            for (String other : logins(related[i])) {
+                out.row(Dataset.Table.RELATIONSHIPS, login, relations[i], other);
+            }
+        }
+        for (String fan : logins(followers)) {
+            out.row(Dataset.Table.RELATIONSHIPS, fan, "idol", login);
+        }
+        for (String community : communities) {
+            out.row(Dataset.Table.MEMBERSHIPS, login, community);
+        }
+        try {
+            messages.forEach(message -> exportRow(out, Dataset.Table.MESSAGES, login,
+                    repository.loginOf(message.getSenderId()), message.getText()));
+            communityMessages.forEach(message -> exportRow(out, Dataset.Table.KEPT_MESSAGES, login,
+                    repository.loginOf(message.getSenderId()), Long.toString(message.getSequence()), message.getMessage()));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Writes a row of an export from a message visitor, which cannot throw checked exceptions.
+     * @param out Receives the row.
+     * @param table The table of the row.
+     * @param fields The fields.
+     * @throws UncheckedIOException If the row cannot be written.
+     */
+    private static void exportRow(Dataset.RowSink out, Dataset.Table table, String... fields) {
+        try {
+            out.row(table, fields);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads a user written by {@link #writeTo}.
+     * Records written before version 3 of the format have no confirmed friendships nor pending
+     * invites, and records written before version 4 have no reverse links; they are rebuilt by the
+     * repository once every user is loaded. Community messages queued by records written before
+     * version 6 are given sequence 0, so they are read before any message sent since. Records
+     * written before version 7 also hold the sender's session with private messages, and the
+     * community name with community messages, which are skipped.
+     * @param in The snapshot input stream.
+     * @param login The user's login, which is the key of the record.
+     * @param version The format version of the snapshot.
+     * @param repository The repository the user belongs to.
+     * @return The user.
+     * @throws IOException If reading fails.
+     */
+    static User readFrom(DataInputStream in, String login, int version, Repository repository) throws IOException {
+        User user = new User(login, BinaryFormat.readString(in), BinaryFormat.readString(in), repository);
+        BinaryFormat.readStringMap(in, user.atributosExtras);
+        user.readLogins(in, user.friends);
+        if (version >= 3) {
+            IdSet confirmed = new IdSet();
+            user.readLogins(in, confirmed);
+            confirmed.forEach(user::confirmFriend);
+            user.readLogins(in, user.pendingInvites);
+        }
+        user.readLogins(in, user.follows);
+        user.readLogins(in, user.followers);
+        user.readLogins(in, user.crushes);
+        user.readLogins(in, user.enemies);
+        BinaryFormat.readStrings(in, user.communities);
+        if (version >= 4) {
+            user.readLogins(in, user.crushedBy);
+            user.readLogins(in, user.enemyOf);
+            user.readLogins(in, user.correspondents);
+            BinaryFormat.readStrings(in, user.postedCommunities);
+        }
+
+        int count = BinaryFormat.readVarInt(in);
+        for (int i = 0; i < count; i++) {
+            if (version < 7) {
+                BinaryFormat.readTokenText(in);
+            }
+            user.messages.add(Message.CODEC.read(in, repository));
+        }
+        count = BinaryFormat.readVarInt(in);
+        for (int i = 0; i < count; i++) {
+            if (version >= 7) {
+                user.communityMessages.add(CommunityMessage.CODEC.read(in, repository));
+                continue;
+            }
+            BinaryFormat.readString(in);
+            int senderId = repository.idOf(BinaryFormat.readString(in));
+            String text = BinaryFormat.readString(in);
+            long sequence = version >= 6 ? BinaryFormat.readVarLong(in) : 0;
+            user.communityMessages.add(new CommunityMessage(senderId, text, sequence));
+        }
+        user.dirty = false;
+        return user;
+    }
+
+    /**
+     * Reads a user written with Java serialization by a previous version of the system,
+     * which stored the relationships as lists. Their logins are given ids once the user is
+     * attached to the repository; confirmed friendships, pending invites and reverse links are
+     * rebuilt by the repository once every user is loaded.
+     * @param in The object input stream.
+     * @throws IOException If reading fails.
+     * @throws ClassNotFoundException If a serialized class cannot be found.
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        this.login = (String) fields.get("login", null);
+        this.password = (String) fields.get("password", null);
+        this.name = (String) fields.get("name", null);
+        this.atributosExtras = (Map<String, String>) fields.get("atributosExtras", null);
+        this.friends = new IdSet();
+        this.confirmedFriends = new IdSet();
+        this.pendingInvites = new IdSet();
+        this.follows = new IdSet();
+        this.followers = new IdSet();
+        this.crushes = new IdSet();
+        this.enemies = new IdSet();
+        this.crushedBy = new IdSet();
+        this.enemyOf = new IdSet();
+        this.correspondents = new IdSet();
+        this.legacyRelations = new LinkedHashMap<>();
+        legacyRelations.put(friends, toSet(fields.get("friends", null)));
+        legacyRelations.put(follows, toSet(fields.get("follows", null)));
+        legacyRelations.put(followers, toSet(fields.get("followers", null)));
+        legacyRelations.put(crushes, toSet(fields.get("crushes", null)));
+        legacyRelations.put(enemies, toSet(fields.get("enemies", null)));
+        this.postedCommunities = new HashSet<>();
+        this.legacyMessages = (Queue<Message>) fields.get("messages", null);
+        this.legacyCommunityMessages = (Queue<CommunityMessage>) fields.get("communityMessages", null);
+        this.communities = (ArrayList<String>) fields.get("communities", null);
+        this.dirty = true;
+    }
+
+    /**
+     * Gets the logins of a set of users, leaving out released ids: the correspondents of a user
+     * are not cleared when a user that only sent messages to it is deleted.
+     * @param users The users' ids.
+     * @return The logins, in the order of the set.
+     */
+    private List<String> logins(IdSet users) {
+        List<String> logins = new ArrayList<>(users.size());
+        users.forEach(user -> {
+            String login = repository.loginOf(user);
+            if (login != null) {
+                logins.add(login);
+            }
+        });
+        return logins;
+    }
+
+    /**
+     * Formats a set of users as their logins, as {@code {a,b}}.
+     * @param users The users' ids.
+     * @return The formatted list, in the order of the set.
+     */
+    private String format(IdSet users) {
+        StringBuilder out = ListFormat.open();
+        users.forEach(user -> ListFormat.append(out, repository.loginOf(user)));
+        return ListFormat.close(out);
+    }
+
+    /**
+     * Writes a set of users as their logins, in the layout of {@link BinaryFormat#writeStrings}.
+     * @param out The snapshot output stream.
+     * @param users The users' ids.
+     * @throws IOException If writing fails.
+     */
+    private void writeLogins(DataOutputStream out, IdSet users) throws IOException {
+        BinaryFormat.writeStrings(out, logins(users));
+    }
+
+    /**
+     * Reads logins written by {@link #writeLogins} into a set of users, giving them ids.
+     * @param in The snapshot input stream.
+     * @param users The set receiving the ids.
+     * @throws IOException If reading fails.
+     */
+    private void readLogins(DataInputStream in, IdSet users) throws IOException {
+        int count = BinaryFormat.readVarInt(in);
+        for (int i = 0; i < count; i++) {
+            users.add(repository.idOf(BinaryFormat.readString(in)));
+        }
+    }
+
+    /**
+     * Copies a serialized collection of logins into an insertion-ordered set.
+     * @param value The serialized collection, possibly null.
+     * @return The set.
+     */
+    @SuppressWarnings("unchecked")
+    private static Set<String> toSet(Object value) {
+        return value == null ? new LinkedHashSet<>() : new LinkedHashSet<>((Collection<String>) value);
+    }
 }
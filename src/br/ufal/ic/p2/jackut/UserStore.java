@@ -0,0 +1,569 @@
+package br.ufal.ic.p2.jackut;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only user snapshot backed by a memory-mapped file.
+ * Opening the store only maps the file; user records are decoded one at a time, when they are
+ * first looked up, so startup time and heap usage do not depend on the number of users.
+ *
+ * The file layout is:
+ * <pre>
+ * [header][record]...[record][hash index][trailer]
+ * record  = [int length][login][user fields]
+ * index   = slotCount x [long record offset, 0 for an empty slot]
+ * trailer = [long index offset][int slot count][int record count]
+ * </pre>
+ * The index is an open-addressing hash table over the logins, probed linearly, so looking up a
+ * login reads a handful of slots and the candidate logins directly from the mapping.
+ *
+ * Records are streamed from the mapping and into the new file rather than copied as a whole, so
+ * a user holding a long spilled inbox is never materialized in the heap.
+ */
+public class UserStore implements Closeable {
+
+    /**
+     * Size of the trailer at the end of the file.
+     */
+    private static final int TRAILER_SIZE = 16;
+
+    /**
+     * Size of each mapped region; files larger than this are mapped in several regions.
+     */
+    private static final long REGION_SIZE = 1L << 30;
+
+    /**
+     * Memory-mapped regions covering the whole file, empty when the store has no file.
+     */
+    private final MappedByteBuffer[] regions;
+
+    /**
+     * Offset of the hash index.
+     */
+    private final long indexOffset;
+
+    /**
+     * Number of slots in the hash index, always a power of two.
+     */
+    private final int slotCount;
+
+    /**
+     * Number of user records.
+     */
+    private final int recordCount;
+
+    /**
+     * Format version the records were written with.
+     */
+    private final int version;
+
+    /**
+     * Creates an empty store, used when there is no snapshot yet.
+     */
+    public UserStore() {
+        this.regions = new MappedByteBuffer[0];
+        this.indexOffset = 0;
+        this.slotCount = 0;
+        this.recordCount = 0;
+        this.version = BinaryFormat.VERSION;
+    }
+
+    /**
+     * Maps an existing users file. Only the header and the trailer are read.
+     *
+     * @param file The users file.
+     * @throws IOException If the file cannot be mapped or is not a supported snapshot.
+     */
+    public UserStore(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int regionCount = (int) ((size + REGION_SIZE - 1) / REGION_SIZE);
+            this.regions = new MappedByteBuffer[regionCount];
+            for (int i = 0; i < regionCount; i++) {
+                long start = i * REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start));
+            }
+
+            try (DataInputStream header = new DataInputStream(new ByteArrayInputStream(read(0, 6)))) {
+                this.version = BinaryFormat.readHeader(header);
+            }
+            DataInputStream trailer = new DataInputStream(new ByteArrayInputStream(read(size - TRAILER_SIZE, TRAILER_SIZE)));
+            this.indexOffset = trailer.readLong();
+            this.slotCount = trailer.readInt();
+            this.recordCount = trailer.readInt();
+            if (Integer.bitCount(slotCount) != 1 || indexOffset + (long) slotCount * 8 != size - TRAILER_SIZE) {
+                throw new IOException("Corrupted user index");
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated users file", e);
+        }
+    }
+
+    /**
+     * Gets the number of users in the store.
+     *
+     * @return The record count.
+     */
+    public int size() {
+        return recordCount;
+    }
+
+    /**
+     * Gets the format version the records were written with.
+     *
+     * @return The format version.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Checks whether the store holds a record for the given login.
+     *
+     * @param login The login.
+     * @return true if the user is in the store.
+     * @throws IOException If the file cannot be read.
+     */
+    public boolean contains(String login) throws IOException {
+        return find(login) != 0;
+    }
+
+    /**
+     * Opens the raw record of a user, without its length prefix.
+     * Raw records can be copied into a new snapshot without being decoded.
+     *
+     * @param login The login.
+     * @return A stream over the record bytes, or null if the user is not in the store.
+     * @throws IOException If the file cannot be read.
+     */
+    public InputStream openRecord(String login) throws IOException {
+        long offset = find(login);
+        return offset == 0 ? null : openRecordAt(offset);
+    }
+
+    /**
+     * Decodes a user from the store.
+     *
+     * @param login      The login.
+     * @param repository The repository the user belongs to.
+     * @return The user, or null if it is not in the store.
+     * @throws IOException If the record cannot be read.
+     */
+    public User load(String login, Repository repository) throws IOException {
+        long offset = find(login);
+        if (offset == 0) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(openRecordAt(offset))) {
+            BinaryFormat.readString(in);
+            return User.readFrom(in, login, version, repository);
+        }
+    }
+
+    /**
+     * Iterates over the logins of every user in the store, in index order.
+     *
+     * @return The logins.
+     */
+    public Iterable<String> logins() {
+        return () -> new Iterator<String>() {
+            private int slot = advance(0);
+
+            @Override
+            public boolean hasNext() {
+                return slot < slotCount;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    String login = readLoginAt(slotValue(slot));
+                    slot = advance(slot + 1);
+                    return login;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            private int advance(int from) {
+                int next = from;
+                while (next < slotCount && slotValue(next) == 0) {
+                    next++;
+                }
+                return next;
+            }
+        };
+    }
+
+    /**
+     * Releases the mapping. The regions are unmapped by the garbage collector.
+     */
+    @Override
+    public void close() {
+        // MappedByteBuffer has no explicit unmap; dropping the references is enough.
+    }
+
+    /**
+     * Looks a login up in the hash index.
+     *
+     * @param login The login.
+     * @return The offset of the user's record, or 0 if it is not in the store.
+     * @throws IOException If a record cannot be read.
+     */
+    private long find(String login) throws IOException {
+        if (slotCount == 0 || login == null) {
+            return 0;
+        }
+        int mask = slotCount - 1;
+        for (int slot = hash(login) & mask, probes = 0; probes < slotCount; slot = (slot + 1) & mask, probes++) {
+            long offset = slotValue(slot);
+            if (offset == 0) {
+                return 0;
+            }
+            if (login.equals(readLoginAt(offset))) {
+                return offset;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Reads the record offset stored in a slot of the hash index.
+     *
+     * @param slot The slot.
+     * @return The record offset, or 0 for an empty slot.
+     */
+    private long slotValue(int slot) {
+        long position = indexOffset + (long) slot * 8;
+        return regions[(int) (position / REGION_SIZE)].getLong((int) (position % REGION_SIZE));
+    }
+
+    /**
+     * Reads the login at the start of a record.
+     *
+     * @param offset The record offset.
+     * @return The login.
+     * @throws IOException If the record cannot be read.
+     */
+    private String readLoginAt(long offset) throws IOException {
+        return BinaryFormat.readString(new DataInputStream(openRecordAt(offset)));
+    }
+
+    /**
+     * Opens a record, without its length prefix.
+     *
+     * @param offset The record offset.
+     * @return A stream over the record bytes, read from the mapping.
+     * @throws IOException If the record is out of the file bounds.
+     */
+    private InputStream openRecordAt(long offset) throws IOException {
+        try {
+            int length = new DataInputStream(new ByteArrayInputStream(read(offset, 4))).readInt();
+            if (length < 0 || offset + 4 + length > indexOffset) {
+                throw new IOException("Corrupted user record at " + offset);
+            }
+            return new RegionInputStream(offset + 4, offset + 4 + length);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupted user record at " + offset, e);
+        }
+    }
+
+    /**
+     * Copies bytes from the mapped regions, which may span a region boundary.
+     *
+     * @param offset The file offset.
+     * @param length The number of bytes.
+     * @return The bytes.
+     */
+    private byte[] read(long offset, int length) {
+        byte[] bytes = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            long position = offset + copied;
+            MappedByteBuffer region = regions[(int) (position / REGION_SIZE)].duplicate();
+            region.position((int) (position % REGION_SIZE));
+            int chunk = Math.min(length - copied, region.remaining());
+            region.get(bytes, copied, chunk);
+            copied += chunk;
+        }
+        return bytes;
+    }
+
+    /**
+     * Input stream over a range of the mapped regions, which may span a region boundary.
+     */
+    private class RegionInputStream extends InputStream {
+        /**
+         * File offset of the next byte to read.
+         */
+        private long position;
+
+        /**
+         * File offset of the end of the range.
+         */
+        private final long end;
+
+        /**
+         * Opens a range of the file.
+         *
+         * @param start The file offset of the first byte.
+         * @param end   The file offset of the end of the range.
+         */
+        private RegionInputStream(long start, long end) {
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() {
+            if (position >= end) {
+                return -1;
+            }
+            byte b = regions[(int) (position / REGION_SIZE)].get((int) (position % REGION_SIZE));
+            position++;
+            return b & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            MappedByteBuffer region = regions[(int) (position / REGION_SIZE)].duplicate();
+            region.position((int) (position % REGION_SIZE));
+            int chunk = (int) Math.min(Math.min(length, end - position), region.remaining());
+            region.get(buffer, offset, chunk);
+            position += chunk;
+            return chunk;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+
+    /**
+     * Spreads the login hash code; String hash codes are specified, so the index is portable.
+     *
+     * @param login The login.
+     * @return The hash.
+     */
+    private static int hash(String login) {
+        int h = login.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Writes a new users file: records are streamed out first, then the hash index and the trailer.
+     */
+    public static class Writer implements Closeable {
+
+        /**
+         * Size up to which a record is buffered, so that its length is written before it. Longer
+         * records are streamed, and their length is filled in once they are written.
+         */
+        private static final int BUFFERED_RECORD = 1 << 16;
+
+        /**
+         * The new file, whose channel fills in the length of streamed records.
+         */
+        private final FileOutputStream file;
+
+        /**
+         * Output stream of the new file.
+         */
+        private final DataOutputStream out;
+
+        /**
+         * Buffer of the record being written, reused from one record to the next.
+         */
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        /**
+         * Logins of the written records.
+         */
+        private final List<String> logins = new ArrayList<>();
+
+        /**
+         * Offsets of the written records, aligned with {@link #logins}.
+         */
+        private final List<Long> offsets = new ArrayList<>();
+
+        /**
+         * Current write position.
+         */
+        private long position;
+
+        /**
+         * Creates a writer and writes the file header.
+         *
+         * @param file The file to write.
+         * @throws IOException If the file cannot be created.
+         */
+        public Writer(File file) throws IOException {
+            this.file = new FileOutputStream(file);
+            this.out = new DataOutputStream(new BufferedOutputStream(this.file));
+            BinaryFormat.writeHeader(out);
+            this.position = out.size();
+        }
+
+        /**
+         * Encodes and writes a user record.
+         *
+         * @param login The login the user is stored under.
+         * @param user  The user.
+         * @throws IOException If writing fails.
+         */
+        public void add(String login, User user) throws IOException {
+            RecordOutputStream record = new RecordOutputStream(login);
+            DataOutputStream data = new DataOutputStream(record);
+            BinaryFormat.writeString(data, login);
+            user.writeTo(data);
+            record.finish();
+        }
+
+        /**
+         * Writes a raw record copied from another store.
+         *
+         * @param login  The login the user is stored under.
+         * @param record The record bytes, as opened by {@link UserStore#openRecord}.
+         * @throws IOException If reading or writing fails.
+         */
+        public void addRecord(String login, InputStream record) throws IOException {
+            RecordOutputStream copy = new RecordOutputStream(login);
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = record.read(chunk)) > 0) {
+                copy.write(chunk, 0, read);
+            }
+            copy.finish();
+        }
+
+        /**
+         * Writes the hash index and the trailer, forces the file to disk, then closes it.
+         *
+         * @throws IOException If writing fails.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                int slotCount = Integer.highestOneBit(Math.max(2, logins.size() * 2 - 1)) << 1;
+                long[] slots = new long[slotCount];
+                int mask = slotCount - 1;
+                for (int i = 0; i < logins.size(); i++) {
+                    int slot = hash(logins.get(i)) & mask;
+                    while (slots[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    slots[slot] = offsets.get(i);
+                }
+
+                long indexOffset = position;
+                for (long slot : slots) {
+                    out.writeLong(slot);
+                }
+                out.writeLong(indexOffset);
+                out.writeInt(slotCount);
+                out.writeInt(logins.size());
+                out.flush();
+                file.getFD().sync();
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * Output stream of one record, writing its length prefix before it.
+         */
+        private class RecordOutputStream extends OutputStream {
+            /**
+             * File offset of the record's length prefix.
+             */
+            private final long start = position;
+
+            /**
+             * Number of record bytes written so far.
+             */
+            private long length;
+
+            /**
+             * Whether the record outgrew the buffer and is written straight to the file.
+             */
+            private boolean streaming;
+
+            /**
+             * Starts a record.
+             *
+             * @param login The login the user is stored under.
+             */
+            private RecordOutputStream(String login) {
+                logins.add(login);
+                offsets.add(start);
+                buffer.reset();
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int count) throws IOException {
+                if (!streaming && buffer.size() + count > BUFFERED_RECORD) {
+                    out.writeInt(0);
+                    buffer.writeTo(out);
+                    buffer.reset();
+                    streaming = true;
+                }
+                if (streaming) {
+                    out.write(bytes, offset, count);
+                } else {
+                    buffer.write(bytes, offset, count);
+                }
+                length += count;
+            }
+
+            /**
+             * Ends the record, writing it with its length if it was buffered, or filling in its
+             * length in the file if it was streamed.
+             *
+             * @throws IOException If writing fails or the record is too long.
+             */
+            private void finish() throws IOException {
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("User record too long: " + length + " bytes");
+                }
+                if (streaming) {
+                    out.flush();
+                    file.getChannel().write(ByteBuffer.allocate(4).putInt(0, (int) length), start);
+                } else {
+                    out.writeInt((int) length);
+                    buffer.writeTo(out);
+                }
+                position += 4 + length;
+            }
+        }
+    }
+}
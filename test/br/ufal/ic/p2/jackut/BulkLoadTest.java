@@ -0,0 +1,365 @@
+package br.ufal.ic.p2.jackut;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Tests of the bulk loads, {@link Facade#carregarEmLote} and {@link Dataset#load}: rows that
+ * cannot be applied are rejected one by one while the others are applied, and a load is not
+ * journaled but saved by a snapshot, so it survives a crash right after it returns, and fails
+ * when the snapshot cannot be written.
+ */
+final class BulkLoadTest {
+
+    /**
+     * Number of users created by the large load.
+     */
+    private static final int USERS = 200;
+
+    /**
+     * Not instantiable.
+     */
+    private BulkLoadTest() {
+    }
+
+    /**
+     * Duplicate users, rows with missing fields, unknown users and communities, and rows the
+     * single operations would refuse are rejected with their stream and position; the other
+     * rows are applied.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testRejectedRows() throws Exception {
+        Scratch scratch = Scratch.create();
+        try {
+            String output = scratch.run(BulkLoadTest.class, "loadWithErrors");
+            Check.equal(List.of(
+                    "users:3:UserAlreadyExistsException",
+                    "users:4:IllegalArgumentException",
+                    "friendships:2:UserNotFoundException",
+                    "friendships:3:CantAddItselfException",
+                    "friendships:4:AlreadyFriendException",
+                    "memberships:2:UserNotFoundException",
+                    "memberships:3:CommunityDoesntExistException",
+                    "memberships:5:UserAlreadyCommunityMemberException",
+                    "memberships:6:CommunityAlreadyExistsException",
+                    "messages:2:UserNotFoundException",
+                    "messages:3:UserNotFoundException",
+                    "messages:4:InvalidFunctionEnemyException",
+                    "messages:5:CantMessageItselfException",
+                    "applied 7",
+                    "ana Ana {bia} {ana,bia} oi"), lines(output), "report and state");
+        } finally {
+            scratch.delete();
+        }
+    }
+
+    /**
+     * A dataset import rejects communities, messages and members referring to unknown users,
+     * and community messages whose sequence does not follow the previous one; the members
+     * read the messages that were applied, from their restored positions.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testDatasetRejectedRows() throws Exception {
+        Scratch scratch = Scratch.create();
+        File dataset = Files.createTempDirectory("jackut-dataset").toFile();
+        try {
+            table(dataset, "users", "login,password,name", "ana,p,Ana", "bia,p,Bia", "ana,q,Outra");
+            table(dataset, "communities", "name,description,owner", "java,Programadores,ana", "rust,Rustaceos,zeca");
+            table(dataset, "memberships", "login,community", "ana,java", "bia,java", "bia,rust");
+            table(dataset, "community_messages", "community,sender,sequence,text",
+                    "java,ana,5,m5", "java,bia,3,m3", "java,zeca,7,m7", "java,bia,8,m8", "java,ana,8,de novo");
+            table(dataset, "members", "community,login,unread", "java,ana,1", "java,zeca,1", "java,bia,5", "java,bia,0");
+            String output = scratch.run(BulkLoadTest.class, "importWithErrors", dataset.getAbsolutePath());
+            Check.equal(List.of(
+                    "users:3:UserAlreadyExistsException",
+                    "communities:2:UserNotFoundException",
+                    "memberships:3:CommunityDoesntExistException",
+                    "community_messages:2:IllegalArgumentException:Mensagem fora de ordem.",
+                    "community_messages:3:UserNotFoundException",
+                    "community_messages:5:IllegalArgumentException:Mensagem fora de ordem.",
+                    "members:2:UserNotFoundException",
+                    "members:4:UserAlreadyCommunityMemberException",
+                    "ana m8",
+                    "bia m5",
+                    "bia m8"), lines(output), "report and messages read");
+        } finally {
+            scratch.delete();
+            Scratch.delete(dataset);
+        }
+    }
+
+    /**
+     * A bulk load writes no journal records, yet survives a crash right after it returns,
+     * along with what was journaled before it; operations after it are journaled again.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testLoadSurvivesCrash() throws Exception {
+        Scratch scratch = Scratch.create();
+        try {
+            scratch.run(BulkLoadTest.class, "loadAndCrash");
+            List<String> journaled = new ArrayList<>();
+            new Journal(scratch.file("jackut_journal.log")).replay((operation, args) -> journaled.add(operation + " " + args[0]));
+            Check.equal(List.of("CREATE_USER depois"), journaled, "journal after the load");
+            Check.equal(List.of("antes Antes", "depois Depois", "u0 User 0", "u199 User 199", "{u1} {u198}",
+                    "{u0,u1,u2,u3,u4,u5,u6,u7,u8,u9}", "oi u2", "oi u3"),
+                    lines(scratch.run(BulkLoadTest.class, "printLoaded")), "state after the crash");
+        } finally {
+            scratch.delete();
+        }
+    }
+
+    /**
+     * A load whose stream fails part way is saved up to the failure, and the failure reaches the caller.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testFailedLoadKeepsAppliedRows() throws Exception {
+        Scratch scratch = Scratch.create();
+        try {
+            Check.equal(List.of("IllegalStateException"), lines(scratch.run(BulkLoadTest.class, "failAndCrash")), "failure");
+            Check.equal(List.of("u0 User 0", "u1 User 1", "u2 UserNotFoundException"),
+                    lines(scratch.run(BulkLoadTest.class, "printFailed")), "state after the crash");
+        } finally {
+            scratch.delete();
+        }
+    }
+
+    /**
+     * A load whose snapshot cannot be written fails, through {@link Facade#carregarEmLote} and
+     * {@link Dataset#load} alike, and is lost in a crash while journaled operations are not.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testUnsavedLoadFails() throws Exception {
+        Scratch scratch = Scratch.create();
+        File dataset = Files.createTempDirectory("jackut-dataset").toFile();
+        try {
+            table(dataset, "users", "login,password,name", "importado,p,Importado");
+            List<String> output = lines(scratch.run(BulkLoadTest.class, "loadUnwritable", dataset.getAbsolutePath()));
+            Check.equal(2L, output.stream().filter(line -> line.startsWith("Error saving snapshot generation")).count(),
+                    "snapshot errors in " + output);
+            output.removeIf(line -> line.startsWith("Error saving snapshot generation"));
+            Check.equal(List.of("UncheckedIOException", "IOException", "carregado Carregado", "importado Importado"),
+                    output, "failures");
+            Check.equal(List.of("u0 User 0", "u1 User 1", "u2 UserNotFoundException"),
+                    lines(scratch.run(BulkLoadTest.class, "printFailed")), "state after the crash");
+        } finally {
+            scratch.delete();
+            Scratch.delete(dataset);
+        }
+    }
+
+    /**
+     * Step running a load with rejected rows in every stream, printing the rejections, the
+     * number of applied rows and a summary of the resulting state.
+     *
+     * @param args No arguments.
+     * @throws Exception If an operation fails.
+     */
+    static void loadWithErrors(String[] args) throws Exception {
+        Facade facade = new Facade();
+        facade.zerarSistema();
+        BulkLoadReport report = facade.carregarEmLote(
+                Stream.of(row("ana", "p", "Ana"), row("bia", "p", "Bia"), row("ana", "x", "Outra"), row("caio", "p"),
+                        row("caio", "p", "Caio")),
+                Stream.of(row("ana", "bia"), row("ana", "zeca"), row("ana", "ana"), row("bia", "ana")),
+                Stream.of(row("ana", "java", "Programadores"), row("zeca", "java"), row("bia", "rust"), row("bia", "java"),
+                        row("bia", "java"), row("caio", "java", "Outra")),
+                Stream.of(row("caio", "ana", "oi"), row("zeca", "ana", "oi"), row("caio", "zeca", "oi"), row("ana", "bia", "oi"),
+                        row("caio", "caio", "oi")));
+        for (BulkLoadReport.RowError error : report.getErrors()) {
+            System.out.println(error.getSource() + ":" + error.getRow() + ":" + error.getError().getClass().getSimpleName());
+        }
+        System.out.println("applied " + report.getApplied());
+        System.out.println("ana " + facade.getAtributoUsuario("ana", "nome") + " " + facade.getAmigos("ana") + " "
+                + facade.getMembrosComunidade("java") + " " + facade.lerRecado(facade.abrirSessao("ana", "p")));
+    }
+
+    /**
+     * Step importing a dataset with rejected rows, printing the rejections and the community
+     * messages each member reads.
+     *
+     * @param args The directory holding the dataset.
+     * @throws Exception If the dataset cannot be read.
+     */
+    static void importWithErrors(String[] args) throws Exception {
+        BulkLoadReport report = Dataset.load(new File(args[0]));
+        for (BulkLoadReport.RowError error : report.getErrors()) {
+            Exception cause = error.getError();
+            System.out.println(error.getSource() + ":" + error.getRow() + ":" + cause.getClass().getSimpleName()
+                    + (cause instanceof IllegalArgumentException ? ":" + cause.getMessage() : ""));
+        }
+        Facade facade = new Facade();
+        for (String login : new String[] {"ana", "bia"}) {
+            String session = facade.abrirSessao(login, "p");
+            while (true) {
+                try {
+                    System.out.println(login + " " + facade.lerMensagem(session));
+                } catch (Exception e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Step creating a journaled user, running a large load, creating another journaled user
+     * and halting the JVM once it is durable, without running the shutdown hooks.
+     *
+     * @param args No arguments.
+     * @throws Exception If an operation fails.
+     */
+    static void loadAndCrash(String[] args) throws Exception {
+        Facade facade = new Facade();
+        facade.zerarSistema();
+        facade.criarUsuario("antes", "p", "Antes");
+        BulkLoadReport report = facade.carregarEmLote(
+                IntStream.range(0, USERS).mapToObj(i -> row("u" + i, "p", "User " + i)),
+                IntStream.range(0, USERS - 1).mapToObj(i -> row("u" + i, "u" + (i + 1))),
+                Stream.concat(Stream.<String[]>of(row("u0", "c", "Comunidade")), IntStream.range(1, 10).mapToObj(i -> row("u" + i, "c"))),
+                IntStream.range(2, 4).mapToObj(i -> row("u" + i, "u0", "oi u" + i)));
+        Check.equal(0, report.getErrors().size(), "rejected rows " + report.getErrors());
+        facade.criarUsuario("depois", "p", "Depois");
+        Repository.getInstance().whenDurable().join();
+        Runtime.getRuntime().halt(0);
+    }
+
+    /**
+     * Step printing the state written by {@link #loadAndCrash}.
+     *
+     * @param args No arguments.
+     * @throws Exception If an operation fails.
+     */
+    static void printLoaded(String[] args) throws Exception {
+        Facade facade = new Facade();
+        for (String login : new String[] {"antes", "depois", "u0", "u" + (USERS - 1)}) {
+            System.out.println(login + " " + facade.getAtributoUsuario(login, "nome"));
+        }
+        System.out.println(facade.getAmigos("u0") + " " + facade.getAmigos("u" + (USERS - 1)));
+        System.out.println(facade.getMembrosComunidade("c"));
+        String session = facade.abrirSessao("u0", "p");
+        System.out.println(facade.lerRecado(session));
+        System.out.println(facade.lerRecado(session));
+    }
+
+    /**
+     * Step running a load whose users stream fails at its third row, printing the failure,
+     * then halting the JVM without running the shutdown hooks.
+     *
+     * @param args No arguments.
+     */
+    static void failAndCrash(String[] args) {
+        Facade facade = new Facade();
+        facade.zerarSistema();
+        try {
+            facade.carregarEmLote(IntStream.range(0, 3).mapToObj(i -> {
+                if (i == 2) {
+                    throw new IllegalStateException("falha na leitura");
+                }
+                return row("u" + i, "p", "User " + i);
+            }), null, null, null);
+        } catch (IllegalStateException e) {
+            System.out.println(e.getClass().getSimpleName());
+        }
+        Runtime.getRuntime().halt(0);
+    }
+
+    /**
+     * Step creating two journaled users, keeping the next snapshot from writing its users
+     * segments, then running a load and a dataset import, printing their failures and the users
+     * they applied in memory, and halting the JVM without running the shutdown hooks.
+     *
+     * @param args The directory holding the dataset to import.
+     * @throws Exception If an operation fails.
+     */
+    static void loadUnwritable(String[] args) throws Exception {
+        Facade facade = new Facade();
+        facade.zerarSistema();
+        facade.criarUsuario("u0", "p", "User 0");
+        facade.criarUsuario("u1", "p", "User 1");
+        long next = SnapshotManifest.generations().get(0) + 1;
+        for (int i = 0; i < 64; i++) {
+            File blocked = new File("jackut_users/" + i + "." + next + ".dat");
+            Check.isTrue(new File(blocked, "bloqueio").mkdirs(), "segment " + blocked + " is blocked");
+        }
+        try {
+            facade.carregarEmLote(Stream.<String[]>of(row("carregado", "p", "Carregado")), null, null, null);
+        } catch (UncheckedIOException e) {
+            System.out.println(e.getClass().getSimpleName());
+        }
+        try {
+            Dataset.load(new File(args[0]));
+        } catch (IOException e) {
+            System.out.println(e.getClass().getSimpleName());
+        }
+        for (String login : new String[] {"carregado", "importado"}) {
+            System.out.println(login + " " + facade.getAtributoUsuario(login, "nome"));
+        }
+        Repository.getInstance().whenDurable().join();
+        Runtime.getRuntime().halt(0);
+    }
+
+    /**
+     * Step printing the state written by {@link #failAndCrash}.
+     *
+     * @param args No arguments.
+     */
+    static void printFailed(String[] args) {
+        Facade facade = new Facade();
+        for (int i = 0; i < 3; i++) {
+            try {
+                System.out.println("u" + i + " " + facade.getAtributoUsuario("u" + i, "nome"));
+            } catch (Exception e) {
+                System.out.println("u" + i + " " + e.getClass().getSimpleName());
+            }
+        }
+    }
+
+    /**
+     * Builds a row.
+     *
+     * @param fields The fields.
+     * @return The row.
+     */
+    private static String[] row(String... fields) {
+        return fields;
+    }
+
+    /**
+     * Writes a CSV table file of a dataset.
+     *
+     * @param directory The directory of the dataset.
+     * @param table     The table name.
+     * @param lines     The header and the rows.
+     * @throws Exception If the file cannot be written.
+     */
+    private static void table(File directory, String table, String... lines) throws Exception {
+        Files.write(new File(directory, table + ".csv").toPath(), List.of(lines), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Splits the output of a step into lines.
+     *
+     * @param output The output.
+     * @return The non-empty lines.
+     */
+    private static List<String> lines(String output) {
+        List<String> lines = new ArrayList<>();
+        for (String line : output.split("\r?\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,74 @@
+package br.ufal.ic.p2.jackut;
+
+import java.util.Objects;
+
+/**
+ * Assertions used by the tests. A failed assertion throws an {@link AssertionError} describing
+ * the mismatch, which {@link TestRunner} reports as the failure of the test.
+ */
+final class Check {
+
+    /**
+     * Code expected to throw.
+     */
+    @FunctionalInterface
+    interface Action {
+        /**
+         * Runs the code.
+         *
+         * @throws Exception The exception under test.
+         */
+        void run() throws Exception;
+    }
+
+    /**
+     * Not instantiable.
+     */
+    private Check() {
+    }
+
+    /**
+     * Checks that a condition holds.
+     *
+     * @param condition The condition.
+     * @param message   Description of the condition, reported if it does not hold.
+     */
+    static void isTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * Checks that a value is the expected one.
+     *
+     * @param expected The expected value.
+     * @param actual   The actual value.
+     * @param what     Description of the value, reported on a mismatch.
+     */
+    static void equal(Object expected, Object actual, String what) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(what + ": expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    /**
+     * Checks that some code throws an exception of a given type.
+     *
+     * @param type   The expected exception type.
+     * @param action The code.
+     * @param <T>    The expected exception type.
+     * @return The exception thrown, for further checks.
+     */
+    static <T extends Throwable> T fails(Class<T> type, Action action) {
+        try {
+            action.run();
+        } catch (Throwable e) {
+            if (type.isInstance(e)) {
+                return type.cast(e);
+            }
+            throw new AssertionError("expected " + type.getSimpleName() + " but got " + e, e);
+        }
+        throw new AssertionError("expected " + type.getSimpleName() + " but nothing was thrown");
+    }
+}
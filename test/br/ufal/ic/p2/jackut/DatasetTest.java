@@ -0,0 +1,418 @@
+package br.ufal.ic.p2.jackut;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests of {@link Dataset}: the CSV and NDJSON table files, written and read back with quoting,
+ * line breaks, escapes and non-ASCII text, the rejection of malformed rows, and the export and
+ * import of a whole system, community read positions included.
+ */
+final class DatasetTest {
+
+    /**
+     * Field values that need quoting or escaping in at least one of the formats.
+     */
+    private static final String[] FIELDS = {
+            "simples", "com, vírgula", "com \"aspas\"", "linha\nquebrada", "windows\r\nlinha", " espaços ",
+            "", "São João \u2603 \u65e5\u672c \ud83d\ude00", "barra \\ invertida\ttab", "\"", ",", "controle\u0001",
+    };
+
+    /**
+     * Logins of the users created by {@link #populate}, all with password {@code p}.
+     */
+    private static final String[] LOGINS = {"ana", "bia", "caio", "davi", "eva"};
+
+    /**
+     * Not instantiable.
+     */
+    private DatasetTest() {
+    }
+
+    /**
+     * Rows written as CSV are read back unchanged, null fields as empty strings.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testCsvRoundTrip() throws Exception {
+        File file = File.createTempFile("jackut-users", ".csv");
+        try {
+            List<String[]> rows = rows();
+            write(file, Dataset.Format.CSV, rows);
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            Check.equal("login,password,name", lines.get(0), "header");
+            Check.isTrue(lines.contains("simples,\"com, vírgula\",\"com \"\"aspas\"\"\""), "quoted fields:\n" + lines);
+
+            List<String[]> read = read(file, Dataset.Format.CSV);
+            Check.equal(rows.size(), read.size(), "number of rows");
+            for (int i = 0; i < rows.size(); i++) {
+                String[] expected = rows.get(i).clone();
+                Arrays.setAll(expected, j -> expected[j] == null ? "" : expected[j]);
+                Check.equal(Arrays.asList(expected), Arrays.asList(read.get(i)), "row " + i);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Rows written as NDJSON are read back unchanged, null fields included, one line per row.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testNdjsonRoundTrip() throws Exception {
+        File file = File.createTempFile("jackut-users", ".ndjson");
+        try {
+            List<String[]> rows = rows();
+            write(file, Dataset.Format.NDJSON, rows);
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            Check.equal(rows.size(), lines.size(), "number of lines");
+            Check.isTrue(lines.contains("{\"login\":\"linha\\nquebrada\",\"password\":\"windows\\r\\nlinha\",\"name\":\" espaços \"}"),
+                    "escaped line breaks:\n" + lines);
+
+            List<String[]> read = read(file, Dataset.Format.NDJSON);
+            Check.equal(rows.size(), read.size(), "number of rows");
+            for (int i = 0; i < rows.size(); i++) {
+                Check.equal(Arrays.asList(rows.get(i)), Arrays.asList(read.get(i)), "row " + i);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A CSV file may list its columns in any order, end its lines with CRLF and hold blank lines.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testCsvColumnsInAnyOrder() throws Exception {
+        List<String[]> rows = readText(Dataset.Format.CSV,
+                "name,login,password\r\n\r\nAna,ana,a\r\n\"B, \"\"b\"\"\",bia,\"x\r\ny\"\r\n\r\n");
+        Check.equal(2, rows.size(), "number of rows");
+        Check.equal(List.of("ana", "a", "Ana"), Arrays.asList(rows.get(0)), "first row");
+        Check.equal(List.of("bia", "x\r\ny", "B, \"b\""), Arrays.asList(rows.get(1)), "second row");
+    }
+
+    /**
+     * A CSV file whose header lacks a column of the table cannot be read.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testCsvMissingColumn() throws Exception {
+        IOException error = Check.fails(IOException.class, () -> readText(Dataset.Format.CSV, "login,name\nana,Ana\n"));
+        Check.isTrue(error.getMessage().contains("Missing column password"), error.getMessage());
+    }
+
+    /**
+     * A CSV row with the wrong number of fields is rejected and reading goes on with the next
+     * row; a quoted field left open at the end of the file is rejected.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testCsvMalformedRows() throws Exception {
+        File file = text("login,password,name\nana,a\nbia,b,Bia\ncaio,c,d,e\ndavi,d,\"sem fim\n");
+        try (Dataset.RowReader reader = Dataset.openReader(file, Dataset.Table.USERS, Dataset.Format.CSV)) {
+            Check.fails(IllegalArgumentException.class, reader::read);
+            Check.equal(List.of("bia", "b", "Bia"), Arrays.asList(reader.read()), "row after a short one");
+            Check.fails(IllegalArgumentException.class, reader::read);
+            IllegalArgumentException error = Check.fails(IllegalArgumentException.class, reader::read);
+            Check.isTrue(error.getMessage().contains("aspas"), error.getMessage());
+            Check.equal(null, reader.read(), "end of the file");
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * NDJSON values may be written with any escape, come in any order with spaces around them,
+     * be numbers, booleans or null, or be missing; unknown keys are ignored.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testNdjsonEscapesAndLiterals() throws Exception {
+        List<String[]> rows = readText(Dataset.Format.NDJSON,
+                " { \"name\" : \"Jos\\u00e9 \\\"Z\\u00e9\\\"\\/\\b\\f\" , \"login\":\"ana\", \"password\": 123, \"extra\": true }\n"
+                        + "\n"
+                        + "{\"login\":\"bia\",\"name\":null}\n");
+        Check.equal(2, rows.size(), "number of rows");
+        Check.equal(List.of("ana", "123", "José \"Zé\"/\b\f"), Arrays.asList(rows.get(0)), "escaped row");
+        Check.equal(Arrays.asList("bia", null, null), Arrays.asList(rows.get(1)), "row with missing values");
+    }
+
+    /**
+     * Malformed NDJSON lines are rejected one by one, and reading goes on with the next line.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testNdjsonMalformedLines() throws Exception {
+        String[] malformed = {
+                "{\"login\":\"ana\"",
+                "not json",
+                "{\"login\":\"ana\",}",
+                "{\"login\":\"\\u12\"}",
+                "{\"login\":\"\\u12zz\"}",
+                "{\"login\":[1]}",
+                "{\"login\":}",
+                "{\"login\":\"ana\"} trailing",
+                "{\"login\":\"sem fim}",
+                "[\"ana\"]",
+        };
+        File file = text(String.join("\n", malformed) + "\n{\"login\":\"ok\"}\n");
+        try (Dataset.RowReader reader = Dataset.openReader(file, Dataset.Table.USERS, Dataset.Format.NDJSON)) {
+            for (String line : malformed) {
+                IllegalArgumentException error = Check.fails(IllegalArgumentException.class, reader::read);
+                Check.isTrue(error.getMessage().startsWith("JSON inválido"), line + ": " + error.getMessage());
+            }
+            Check.equal("ok", reader.read()[0], "line after the malformed ones");
+            Check.equal(null, reader.read(), "end of the file");
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A system exported as CSV and imported into an empty one exports the same rows, and its
+     * users read the same messages in the same order.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testCsvExportImport() throws Exception {
+        exportImport(Dataset.Format.CSV);
+    }
+
+    /**
+     * A system exported as NDJSON and imported into an empty one exports the same rows, and its
+     * users read the same messages in the same order.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testNdjsonExportImport() throws Exception {
+        exportImport(Dataset.Format.NDJSON);
+    }
+
+    /**
+     * Exports a populated system, imports it into an empty one and compares both.
+     *
+     * @param format The format of the dataset.
+     * @throws Exception If the test fails.
+     */
+    private static void exportImport(Dataset.Format format) throws Exception {
+        Scratch source = Scratch.create();
+        Scratch target = Scratch.create();
+        File dataset = Files.createTempDirectory("jackut-dataset").toFile();
+        try {
+            source.run(DatasetTest.class, "populate");
+            source.run(DatasetTest.class, "exportAs", dataset.getAbsolutePath(), format.name());
+            Map<String, List<String>> expected = source.export();
+            Set<String> unread = new HashSet<>();
+            for (String row : expected.get("members.csv").subList(1, expected.get("members.csv").size())) {
+                unread.add(row.substring(row.lastIndexOf(',') + 1));
+            }
+            Check.isTrue(unread.size() >= 3, "members have read different numbers of messages: " + expected.get("members.csv"));
+            Check.isTrue(expected.get("kept_messages.csv").size() > 1, "messages of a deleted community are kept");
+
+            String report = target.run(DatasetTest.class, "importFrom", dataset.getAbsolutePath());
+            Check.isTrue(report.contains("rejected 0"), "every row is imported:\n" + report);
+            Check.equal(expected, target.export(), "imported state");
+            Check.equal(source.run(DatasetTest.class, "readAll"), target.run(DatasetTest.class, "readAll"), "messages read");
+        } finally {
+            source.delete();
+            target.delete();
+            Scratch.delete(dataset);
+        }
+    }
+
+    /**
+     * Step populating the system with text that needs quoting, relationships, private messages,
+     * a community whose members joined and read at different points, a message whose sender
+     * was deleted, and messages kept from a deleted community.
+     *
+     * @param args No arguments.
+     * @throws Exception If an operation fails.
+     */
+    static void populate(String[] args) throws Exception {
+        Facade facade = new Facade();
+        facade.zerarSistema();
+        facade.criarUsuario("ana", "p", "Ana Clara");
+        facade.criarUsuario("bia", "p", "Beatriz \"Bia\", da Silva");
+        facade.criarUsuario("caio", "p", "Caio São João \u2603");
+        facade.criarUsuario("davi", "p", "Davi");
+        facade.criarUsuario("eva", "p", "Eva");
+        facade.criarUsuario("gil", "p", "Gil");
+        facade.criarUsuario("fred", "p", "Fred");
+        String ana = facade.abrirSessao("ana", "p");
+        String bia = facade.abrirSessao("bia", "p");
+        String caio = facade.abrirSessao("caio", "p");
+        String davi = facade.abrirSessao("davi", "p");
+        String eva = facade.abrirSessao("eva", "p");
+        String gil = facade.abrirSessao("gil", "p");
+        String fred = facade.abrirSessao("fred", "p");
+
+        facade.editarPerfil(ana, "descricao", "Gosta de \"Java\", C e café");
+        facade.adicionarAmigo(ana, "bia");
+        facade.adicionarAmigo(bia, "ana");
+        facade.adicionarIdolo(caio, "ana");
+        facade.adicionarPaquera(davi, "eva");
+        facade.adicionarInimigo(eva, "davi");
+        facade.enviarRecado(caio, "ana", "oi, ana");
+        facade.enviarRecado(davi, "ana", "segundo \"recado\"");
+        facade.enviarRecado(caio, "ana", "terceiro");
+
+        facade.criarComunidade(ana, "java", "Programadores, de \"Java\"");
+        facade.adicionarComunidade(bia, "java");
+        facade.enviarMensagem(ana, "java", "m1");
+        facade.adicionarComunidade(caio, "java");
+        facade.enviarMensagem(bia, "java", "m2");
+        facade.adicionarComunidade(gil, "java");
+        facade.enviarMensagem(gil, "java", "de gil");
+        facade.enviarMensagem(caio, "java", "m3");
+        facade.adicionarComunidade(davi, "java");
+        facade.enviarMensagem(ana, "java", "m4");
+        facade.lerMensagem(bia);
+        facade.lerMensagem(caio);
+        facade.lerMensagem(caio);
+        facade.removerUsuario(gil);
+
+        facade.criarComunidade(fred, "temp", "Temporária");
+        facade.adicionarComunidade(eva, "temp");
+        facade.adicionarComunidade(caio, "temp");
+        facade.enviarMensagem(eva, "temp", "guardada");
+        facade.enviarMensagem(caio, "temp", "de caio");
+        facade.removerUsuario(fred);
+    }
+
+    /**
+     * Step exporting the system.
+     *
+     * @param args The directory receiving the dataset, and the name of the format.
+     * @throws IOException If the dataset cannot be written.
+     */
+    static void exportAs(String[] args) throws IOException {
+        Dataset.export(new File(args[0]), Dataset.Format.valueOf(args[1]));
+    }
+
+    /**
+     * Step importing a dataset into the empty system and printing the rejected rows.
+     *
+     * @param args The directory holding the dataset.
+     * @throws IOException If the dataset cannot be read.
+     */
+    static void importFrom(String[] args) throws IOException {
+        BulkLoadReport report = Dataset.load(new File(args[0]));
+        report.getErrors().forEach(System.out::println);
+        System.out.println("rejected " + report.getErrors().size());
+    }
+
+    /**
+     * Step reading every private and community message of each user, printing them in order.
+     *
+     * @param args No arguments.
+     * @throws Exception If a session cannot be opened.
+     */
+    static void readAll(String[] args) throws Exception {
+        Facade facade = new Facade();
+        for (String login : LOGINS) {
+            String session = facade.abrirSessao(login, "p");
+            while (true) {
+                try {
+                    System.out.println(login + " recado " + facade.lerRecado(session));
+                } catch (Exception e) {
+                    break;
+                }
+            }
+            while (true) {
+                try {
+                    System.out.println(login + " mensagem " + facade.lerMensagem(session));
+                } catch (Exception e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds rows of the users table out of {@link #FIELDS}, plus a row with a null field.
+     *
+     * @return The rows.
+     */
+    private static List<String[]> rows() {
+        List<String[]> rows = new ArrayList<>();
+        for (int i = 0; i < FIELDS.length; i += 3) {
+            rows.add(new String[] {FIELDS[i], FIELDS[i + 1], FIELDS[i + 2]});
+        }
+        rows.add(new String[] {"nulo", null, "fim"});
+        return rows;
+    }
+
+    /**
+     * Writes rows of the users table to a file.
+     *
+     * @param file   The file.
+     * @param format The format.
+     * @param rows   The rows.
+     * @throws IOException If the file cannot be written.
+     */
+    private static void write(File file, Dataset.Format format, List<String[]> rows) throws IOException {
+        try (Dataset.RowWriter writer = Dataset.openWriter(file, Dataset.Table.USERS, format)) {
+            for (String[] row : rows) {
+                writer.write(row);
+            }
+        }
+    }
+
+    /**
+     * Reads every row of a users table file.
+     *
+     * @param file   The file.
+     * @param format The format.
+     * @return The rows.
+     * @throws IOException If the file cannot be read.
+     */
+    private static List<String[]> read(File file, Dataset.Format format) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        try (Dataset.RowReader reader = Dataset.openReader(file, Dataset.Table.USERS, format)) {
+            for (String[] row = reader.read(); row != null; row = reader.read()) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Reads every row of a users table given as text.
+     *
+     * @param format The format.
+     * @param text   The content of the file.
+     * @return The rows.
+     * @throws IOException If the file cannot be read.
+     */
+    private static List<String[]> readText(Dataset.Format format, String text) throws IOException {
+        File file = text(text);
+        try {
+            return read(file, format);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Writes text to a temporary file in UTF-8.
+     *
+     * @param text The text.
+     * @return The file.
+     * @throws IOException If the file cannot be written.
+     */
+    private static File text(String text) throws IOException {
+        File file = File.createTempFile("jackut-table", ".txt");
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
@@ -0,0 +1,226 @@
+package br.ufal.ic.p2.jackut;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests of the inboxes spilling to disk, run with {@code jackut.inbox.memory} set so low that a
+ * few messages already spill: messages are read in the order they were sent across spills,
+ * restarts from the journal and from a snapshot, and the segment files of a deleted user are
+ * removed with it.
+ */
+final class InboxTest {
+
+    /**
+     * Number of messages each inbox receives.
+     */
+    private static final int MESSAGES = 12;
+
+    /**
+     * Number of messages of each kind read in each of the first steps.
+     */
+    private static final int READ = 3;
+
+    /**
+     * Not instantiable.
+     */
+    private InboxTest() {
+    }
+
+    /**
+     * The private messages and the messages kept from a deleted community are read first in,
+     * first out while spilled, after a crash replayed from the journal, and after a snapshot.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testOrderSurvivesSpillAndRestart() throws Exception {
+        Scratch scratch = Scratch.create().option("-Djackut.inbox.memory=2");
+        try {
+            Check.equal(List.of("spilled", "r0", "r1", "r2", "c0", "c1", "c2"),
+                    lines(scratch.run(InboxTest.class, "fillAndCrash")), "reads before the crash");
+            Check.equal(List.of("spilled", "r3", "r4", "r5", "c3", "c4", "c5"),
+                    lines(scratch.run(InboxTest.class, "readAndClose")), "reads after replaying the journal");
+            List<String> rest = new ArrayList<>(List.of("spilled"));
+            for (int i = 2 * READ; i < MESSAGES; i++) {
+                rest.add("r" + i);
+            }
+            rest.add("NoMessagesException");
+            for (int i = 2 * READ; i < MESSAGES; i++) {
+                rest.add("c" + i);
+            }
+            rest.add("NoCommunityMessagesException");
+            Check.equal(rest, lines(scratch.run(InboxTest.class, "readRest")), "reads after loading the snapshot");
+        } finally {
+            scratch.delete();
+        }
+    }
+
+    /**
+     * Deleting a user removes the segment files of its inboxes and leaves the other users' ones,
+     * so that the spill directory is empty once the other users read their messages.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testSegmentsDeletedWithUser() throws Exception {
+        Scratch scratch = Scratch.create().option("-Djackut.inbox.memory=2");
+        try {
+            Check.equal(List.of("spilled true true", "caio " + MESSAGES, "bia " + MESSAGES, "spilled 0", "segments 0"),
+                    lines(scratch.run(InboxTest.class, "deleteSpilled")), "spill after the deletion");
+        } finally {
+            scratch.delete();
+        }
+    }
+
+    /**
+     * Step sending private and community messages to a user, deleting the community so that its
+     * unread messages are kept in the user's own queue, reading the first of each, then halting
+     * the JVM once they are durable, without running the shutdown hooks.
+     *
+     * @param args No arguments.
+     * @throws Exception If an operation fails.
+     */
+    static void fillAndCrash(String[] args) throws Exception {
+        Facade facade = new Facade();
+        facade.zerarSistema();
+        for (String login : new String[] {"ana", "bia", "dave"}) {
+            facade.criarUsuario(login, "p", login);
+        }
+        String bia = facade.abrirSessao("bia", "p");
+        String dave = facade.abrirSessao("dave", "p");
+        facade.criarComunidade(dave, "c", "Comunidade");
+        facade.adicionarComunidade(facade.abrirSessao("ana", "p"), "c");
+        facade.adicionarComunidade(bia, "c");
+        for (int i = 0; i < MESSAGES; i++) {
+            facade.enviarRecado(bia, "ana", "r" + i);
+            facade.enviarMensagem(bia, "c", "c" + i);
+        }
+        facade.removerUsuario(dave);
+        read(facade, READ);
+        Repository.getInstance().whenDurable().join();
+        Runtime.getRuntime().halt(0);
+    }
+
+    /**
+     * Step reading a few more messages of each kind after a crash, then closing the system.
+     *
+     * @param args No arguments.
+     * @throws Exception If an operation fails.
+     */
+    static void readAndClose(String[] args) throws Exception {
+        Facade facade = new Facade();
+        read(facade, READ);
+        facade.encerrarSistema();
+    }
+
+    /**
+     * Step reading the remaining messages of each kind, printing the exception that ends each.
+     *
+     * @param args No arguments.
+     * @throws Exception If an operation fails.
+     */
+    static void readRest(String[] args) throws Exception {
+        read(new Facade(), MESSAGES);
+    }
+
+    /**
+     * Step filling the inboxes of three users, deleting one of them, and printing whether
+     * messages are still spilled and fewer than before, the number of messages the others read,
+     * and what is left on disk once they read them.
+     *
+     * @param args No arguments.
+     * @throws Exception If an operation fails.
+     */
+    static void deleteSpilled(String[] args) throws Exception {
+        Facade facade = new Facade();
+        facade.zerarSistema();
+        for (String login : new String[] {"ana", "bia", "caio", "dave"}) {
+            facade.criarUsuario(login, "p", login);
+        }
+        String ana = facade.abrirSessao("ana", "p");
+        String bia = facade.abrirSessao("bia", "p");
+        String caio = facade.abrirSessao("caio", "p");
+        String dave = facade.abrirSessao("dave", "p");
+        facade.criarComunidade(dave, "c", "Comunidade");
+        for (String member : new String[] {ana, bia, caio}) {
+            facade.adicionarComunidade(member, "c");
+        }
+        for (int i = 0; i < MESSAGES; i++) {
+            facade.enviarRecado(bia, "ana", "r" + i);
+            facade.enviarRecado(bia, "caio", "r" + i);
+            facade.enviarMensagem(caio, "c", "c" + i);
+        }
+        facade.removerUsuario(dave);
+        long before = Inbox.getSpilledCount();
+        facade.removerUsuario(ana);
+        long after = Inbox.getSpilledCount();
+        System.out.println("spilled " + (after > 0) + " " + (after < before));
+        System.out.println("caio " + drain(() -> facade.lerRecado(caio)));
+        System.out.println("bia " + drain(() -> facade.lerMensagem(bia)));
+        drain(() -> facade.lerMensagem(caio));
+        System.out.println("spilled " + Inbox.getSpilledCount());
+        String[] segments = new File("jackut_inbox").list();
+        System.out.println("segments " + (segments == null ? 0 : segments.length));
+    }
+
+    /**
+     * Reads private messages, then community messages, of the user {@code ana}, printing
+     * whether any message is spilled once the user is loaded, then each message, and the exception that stops
+     * reading a kind before the limit.
+     *
+     * @param facade The facade.
+     * @param limit  Maximum number of messages of each kind.
+     * @throws Exception If a session cannot be opened.
+     */
+    private static void read(Facade facade, int limit) throws Exception {
+        String ana = facade.abrirSessao("ana", "p");
+        if (Inbox.getSpilledCount() > 0) {
+            System.out.println("spilled");
+        }
+        List<Check.Action> kinds = List.of(() -> System.out.println(facade.lerRecado(ana)),
+                () -> System.out.println(facade.lerMensagem(ana)));
+        for (Check.Action kind : kinds) {
+            try {
+                for (int i = 0; i < limit; i++) {
+                    kind.run();
+                }
+            } catch (Exception e) {
+                System.out.println(e.getClass().getSimpleName());
+            }
+        }
+    }
+
+    /**
+     * Reads messages until none is left.
+     *
+     * @param reader Reads one message.
+     * @return The number of messages read.
+     */
+    private static int drain(Check.Action reader) {
+        int read = 0;
+        try {
+            while (true) {
+                reader.run();
+                read++;
+            }
+        } catch (Exception e) {
+            return read;
+        }
+    }
+
+    /**
+     * Splits the output of a step into lines.
+     *
+     * @param output The output.
+     * @return The non-empty lines.
+     */
+    private static List<String> lines(String output) {
+        List<String> lines = new ArrayList<>();
+        for (String line : output.split("\r?\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,282 @@
+package br.ufal.ic.p2.jackut;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests of the write-ahead journal around snapshots: the operations a generation holds are never
+ * replayed on top of it, whether the system stops before or right after the generation is
+ * committed, and messages and reads are applied exactly once.
+ */
+final class JournalTest {
+
+    /**
+     * Not instantiable.
+     */
+    private JournalTest() {
+    }
+
+    /**
+     * Erasing a fresh system writes the first generation. Its journal is archived before the
+     * manifest is written, so a crash right after the commit loads the erased state, and a crash
+     * right before it replays the archive and the journal once, as if the erase never happened.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testCrashAroundFirstSnapshot() throws Exception {
+        Scratch scratch = Scratch.create();
+        Scratch beforeCommit = null;
+        try {
+            scratch.run(JournalTest.class, "eraseAndCrash");
+            Check.isTrue(scratch.file("jackut_manifest.1").isFile(), "first generation is committed");
+            Check.equal(List.of("CREATE_USER antes", "CREATE_USER bia", "NEW_SESSION", "SEND_MESSAGE", "SEND_MESSAGE",
+                    "NEW_SESSION", "READ_MESSAGE"), records(scratch.file("jackut_journal.0.log")), "archive of generation 0");
+            Check.equal(List.of("CREATE_USER depois"), records(scratch.file("jackut_journal.log")), "journal");
+
+            beforeCommit = scratch.copy();
+            Check.isTrue(beforeCommit.file("jackut_manifest.1").delete(), "manifest is removed");
+
+            Check.equal(List.of("antes UserNotFoundException", "bia UserNotFoundException", "depois Depois"),
+                    lines(scratch.run(JournalTest.class, "printState")), "state after a crash right after the commit");
+            Check.equal(List.of("antes Antes r1 NoMessagesException", "bia Bia NoMessagesException", "depois Depois"),
+                    lines(beforeCommit.run(JournalTest.class, "printState")), "state after a crash right before the commit");
+        } finally {
+            scratch.delete();
+            if (beforeCommit != null) {
+                beforeCommit.delete();
+            }
+        }
+    }
+
+    /**
+     * Journal records replayed twice, from an archive that still holds the journal's records or
+     * from a journal whose records a newer generation already holds, are applied once: private
+     * and community messages are neither duplicated nor read twice.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testRepeatedRecordsAppliedOnce() throws Exception {
+        Scratch scratch = Scratch.create();
+        Scratch archived = null;
+        try {
+            scratch.run(JournalTest.class, "sendAndCrash");
+            Check.isTrue(scratch.file("jackut_manifest.1").isFile(), "generation of the erase");
+            byte[] records = Files.readAllBytes(scratch.file("jackut_journal.log").toPath());
+            List<String> expected = List.of("r1 r2 NoMessagesException", "c1 c2 NoCommunityMessagesException");
+
+            archived = scratch.copy();
+            Files.write(archived.file("jackut_journal.1.log").toPath(), records);
+            Check.equal(expected, lines(archived.run(JournalTest.class, "printMessages")),
+                    "state after a crash between archiving and emptying the journal");
+
+            scratch.run(JournalTest.class, "saveAndCrash");
+            Check.isTrue(scratch.file("jackut_manifest.2").isFile(), "generation holding the records");
+            Files.write(scratch.file("jackut_journal.log").toPath(), records);
+            Check.equal(expected, lines(scratch.run(JournalTest.class, "printMessages")),
+                    "state with a journal the newest generation holds");
+        } finally {
+            scratch.delete();
+            if (archived != null) {
+                archived.delete();
+            }
+        }
+    }
+
+    /**
+     * Private messages, including those sent when two users become each other's crush, are
+     * journaled with the sender and receiver logins and the text, without any session id; a
+     * record written by older versions, which also held the sender's session id, still replays.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testMessageRecords() throws Exception {
+        Scratch scratch = Scratch.create();
+        Scratch old = Scratch.create();
+        try {
+            scratch.run(JournalTest.class, "sendToCrush");
+            List<String> messages = new ArrayList<>();
+            new Journal(scratch.file("jackut_journal.log")).replay((operation, args) -> {
+                if (operation == Journal.Operation.SEND_MESSAGE) {
+                    messages.add(String.join("|", args));
+                }
+            });
+            Check.equal(List.of("bia|ana|oi", "bia|ana|Bia \u00e9 seu paquera - Recado do Jackut.",
+                    "ana|bia|Ana \u00e9 seu paquera - Recado do Jackut."), messages, "journaled messages");
+
+            try (Journal journal = new Journal(old.file("jackut_journal.log"))) {
+                journal.append(Journal.Operation.CREATE_USER, "ana", "p", "Ana");
+                journal.append(Journal.Operation.CREATE_USER, "bia", "p", "Bia");
+                journal.append(Journal.Operation.SEND_MESSAGE, SessionToken.generate().toString(), "bia", "ana", "antigo");
+            }
+            Check.equal(List.of("antigo NoMessagesException", "NoCommunityMessagesException"),
+                    lines(old.run(JournalTest.class, "printMessages")), "state from an older journal");
+        } finally {
+            scratch.delete();
+            old.delete();
+        }
+    }
+
+    /**
+     * Step creating users, sending two messages and reading one in a fresh system, erasing it,
+     * creating another user, then halting the JVM once it is durable, without running the
+     * shutdown hooks.
+     *
+     * @param args No arguments.
+     * @throws Exception If an operation fails.
+     */
+    static void eraseAndCrash(String[] args) throws Exception {
+        Facade facade = new Facade();
+        facade.criarUsuario("antes", "p", "Antes");
+        facade.criarUsuario("bia", "p", "Bia");
+        String bia = facade.abrirSessao("bia", "p");
+        facade.enviarRecado(bia, "antes", "r0");
+        facade.enviarRecado(bia, "antes", "r1");
+        facade.lerRecado(facade.abrirSessao("antes", "p"));
+        Repository.getInstance().whenDurable().join();
+        facade.zerarSistema();
+        facade.criarUsuario("depois", "p", "Depois");
+        Repository.getInstance().whenDurable().join();
+        Runtime.getRuntime().halt(0);
+    }
+
+    /**
+     * Step erasing the system, then sending private and community messages and reading the
+     * first of each, and halting the JVM once they are durable, without running the shutdown hooks.
+     *
+     * @param args No arguments.
+     * @throws Exception If an operation fails.
+     */
+    static void sendAndCrash(String[] args) throws Exception {
+        Facade facade = new Facade();
+        facade.zerarSistema();
+        facade.criarUsuario("ana", "p", "Ana");
+        facade.criarUsuario("bia", "p", "Bia");
+        String ana = facade.abrirSessao("ana", "p");
+        String bia = facade.abrirSessao("bia", "p");
+        facade.criarComunidade(ana, "c", "Comunidade");
+        facade.adicionarComunidade(bia, "c");
+        for (int i = 0; i < 3; i++) {
+            facade.enviarRecado(bia, "ana", "r" + i);
+            facade.enviarMensagem(bia, "c", "c" + i);
+        }
+        facade.lerRecado(ana);
+        facade.lerMensagem(ana);
+        Repository.getInstance().whenDurable().join();
+        Runtime.getRuntime().halt(0);
+    }
+
+    /**
+     * Step sending a private message, then making two users each other's crush, and halting the
+     * JVM once it is durable, without running the shutdown hooks.
+     *
+     * @param args No arguments.
+     * @throws Exception If an operation fails.
+     */
+    static void sendToCrush(String[] args) throws Exception {
+        Facade facade = new Facade();
+        facade.zerarSistema();
+        facade.criarUsuario("ana", "p", "Ana");
+        facade.criarUsuario("bia", "p", "Bia");
+        String ana = facade.abrirSessao("ana", "p");
+        String bia = facade.abrirSessao("bia", "p");
+        facade.enviarRecado(bia, "ana", "oi");
+        facade.adicionarPaquera(ana, "bia");
+        facade.adicionarPaquera(bia, "ana");
+        Repository.getInstance().whenDurable().join();
+        Runtime.getRuntime().halt(0);
+    }
+
+    /**
+     * Step writing a snapshot, then halting the JVM without running the shutdown hooks.
+     *
+     * @param args No arguments.
+     */
+    static void saveAndCrash(String[] args) {
+        new Facade();
+        Repository.getInstance().saveData();
+        Runtime.getRuntime().halt(0);
+    }
+
+    /**
+     * Step printing the private messages, then the community messages, the user {@code ana}
+     * reads, each followed by the exception thrown once none is left.
+     *
+     * @param args No arguments.
+     * @throws Exception If the session cannot be opened.
+     */
+    static void printMessages(String[] args) throws Exception {
+        Facade facade = new Facade();
+        String ana = facade.abrirSessao("ana", "p");
+        List<Check.Action> kinds = List.of(() -> System.out.print(facade.lerRecado(ana) + " "),
+                () -> System.out.print(facade.lerMensagem(ana) + " "));
+        for (Check.Action kind : kinds) {
+            try {
+                while (true) {
+                    kind.run();
+                }
+            } catch (Exception e) {
+                System.out.println(e.getClass().getSimpleName());
+            }
+        }
+    }
+
+    /**
+     * Step printing, for each user, its name and the private messages it reads, or the exception
+     * thrown once none is left or when it does not exist.
+     *
+     * @param args No arguments.
+     */
+    static void printState(String[] args) {
+        Facade facade = new Facade();
+        for (String login : new String[] {"antes", "bia", "depois"}) {
+            StringBuilder line = new StringBuilder(login);
+            try {
+                String name = facade.getAtributoUsuario(login, "nome");
+                line.append(' ').append(name);
+                if (!login.equals("depois")) {
+                    String session = facade.abrirSessao(login, "p");
+                    while (true) {
+                        String message = facade.lerRecado(session);
+                        line.append(' ').append(message);
+                    }
+                }
+            } catch (Exception e) {
+                line.append(' ').append(e.getClass().getSimpleName());
+            }
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Lists the records of a journal file, as the operation followed by its first argument,
+     * except for sessions, whose ids are random.
+     *
+     * @param file The journal file.
+     * @return The records.
+     * @throws Exception If the journal cannot be read.
+     */
+    private static List<String> records(File file) throws Exception {
+        List<String> records = new ArrayList<>();
+        new Journal(file).replay((operation, args) -> records.add(operation == Journal.Operation.CREATE_USER
+                ? operation + " " + args[0] : operation.toString()));
+        return records;
+    }
+
+    /**
+     * Splits the output of a step into lines.
+     *
+     * @param output The output.
+     * @return The non-empty lines.
+     */
+    private static List<String> lines(String output) {
+        List<String> lines = new ArrayList<>();
+        for (String line : output.split("\r?\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,165 @@
+package br.ufal.ic.p2.jackut;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests of the partitioned snapshot with dirty tracking: a snapshot taken after a few changes
+ * rewrites only the segments of the users and communities recorded by
+ * {@link Repository#userChanged} and {@link Repository#communityChanged}, shares the other
+ * segments with the previous generation untouched, and loads back into the same state.
+ */
+final class PartitionedSnapshotTest {
+
+    /**
+     * Number of segments of each section.
+     */
+    private static final int SEGMENTS = 16;
+
+    /**
+     * Number of users created before the first snapshot.
+     */
+    private static final int USERS = 48;
+
+    /**
+     * Number of communities created before the first snapshot.
+     */
+    private static final int COMMUNITIES = 8;
+
+    /**
+     * Section directories, by section index of the manifest.
+     */
+    private static final String[] SECTIONS = {"jackut_users", "jackut_communities"};
+
+    /**
+     * Not instantiable.
+     */
+    private PartitionedSnapshotTest() {
+    }
+
+    /**
+     * A second snapshot rewrites the segments of an edited, a created and a deleted user and of
+     * a community that received a message, keeps the others, and reloads to the same state.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testPartialSnapshotRoundTrip() throws Exception {
+        Scratch scratch = Scratch.create().option("-Djackut.store.segments=" + SEGMENTS);
+        try {
+            scratch.run(PartitionedSnapshotTest.class, "populate");
+            String[] first = scratch.run(PartitionedSnapshotTest.class, "printManifest").trim().split("\n");
+            long firstGeneration = Long.parseLong(first[0]);
+            Map<String, String> firstEntries = new HashMap<>();
+            Map<String, byte[]> firstFiles = new HashMap<>();
+            for (String entry : Arrays.asList(first).subList(1, first.length)) {
+                String[] fields = entry.split(" ");
+                firstEntries.put(fields[0] + " " + fields[1], fields[2]);
+                firstFiles.put(fields[2], Files.readAllBytes(scratch.file(fields[2]).toPath()));
+            }
+
+            scratch.run(PartitionedSnapshotTest.class, "change", "before");
+            String[] second = scratch.run(PartitionedSnapshotTest.class, "printManifest").trim().split("\n");
+            long secondGeneration = Long.parseLong(second[0]);
+            Check.equal(firstGeneration + 1, secondGeneration, "generation of the second snapshot");
+
+            Set<Integer> changedUsers = new HashSet<>();
+            for (String login : new String[] {"u3", "u47", "novo"}) {
+                changedUsers.add(SegmentedUserStore.segmentOf(login, SEGMENTS));
+            }
+            Set<Integer> changedCommunities = new HashSet<>(List.of(SegmentedUserStore.segmentOf("c5", SEGMENTS)));
+            List<Set<Integer>> changed = List.of(changedUsers, changedCommunities);
+            for (String entry : Arrays.asList(second).subList(1, second.length)) {
+                String[] fields = entry.split(" ");
+                int section = Integer.parseInt(fields[0]);
+                int index = Integer.parseInt(fields[1]);
+                if (changed.get(section).contains(index)) {
+                    Check.equal(SECTIONS[section] + "/" + index + "." + secondGeneration + ".dat", fields[2], "rewritten segment");
+                } else {
+                    Check.equal(firstEntries.get(fields[0] + " " + fields[1]), fields[2], "kept segment");
+                    Check.isTrue(Arrays.equals(firstFiles.get(fields[2]), Files.readAllBytes(scratch.file(fields[2]).toPath())),
+                            fields[2] + " is unchanged");
+                }
+            }
+
+            Map<String, List<String>> before = Scratch.read(scratch.file("before"));
+            Check.isTrue(before.get("attributes.csv").contains("u3,cidade,Recife"), "edited attribute is in the state");
+            Check.isTrue(before.get("users.csv").contains("novo,n,Novo"), "created user is in the state");
+            Check.isTrue(before.get("users.csv").stream().noneMatch(row -> row.startsWith("u47,")), "deleted user is gone");
+            Check.isTrue(before.get("community_messages.csv").stream().anyMatch(row -> row.startsWith("c5,u5,") && row.endsWith(",outra")),
+                    "community message is in the state");
+            Check.isTrue(scratch.file("jackut_journal.log").delete() || !scratch.file("jackut_journal.log").exists(),
+                    "journal is removed");
+            Check.equal(before, scratch.export(), "state loaded from the partial snapshot");
+        } finally {
+            scratch.delete();
+        }
+    }
+
+    /**
+     * Step populating the system and writing a full snapshot: users, communities owned by the
+     * first users with a few members, and a message posted by each owner.
+     *
+     * @param args No arguments.
+     * @throws Exception If an operation fails.
+     */
+    static void populate(String[] args) throws Exception {
+        Facade facade = new Facade();
+        facade.zerarSistema();
+        List<String> sessions = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            facade.criarUsuario("u" + i, "p", "User " + i);
+            sessions.add(facade.abrirSessao("u" + i, "p"));
+        }
+        for (int i = 0; i < COMMUNITIES; i++) {
+            facade.criarComunidade(sessions.get(i), "c" + i, "Comunidade " + i);
+            facade.adicionarComunidade(sessions.get(COMMUNITIES + i), "c" + i);
+            facade.enviarMensagem(sessions.get(i), "c" + i, "primeira");
+        }
+        facade.adicionarAmigo(sessions.get(10), "u11");
+        facade.adicionarAmigo(sessions.get(11), "u10");
+        facade.encerrarSistema();
+    }
+
+    /**
+     * Step changing a few users and a community, then writing a second snapshot and exporting
+     * the state. The owner of {@code c5} already posted to it, so its message only changes the
+     * community; {@code u47} has no relationships, so deleting it changes no other user.
+     *
+     * @param args The directory receiving the export.
+     * @throws Exception If an operation fails.
+     */
+    static void change(String[] args) throws Exception {
+        Facade facade = new Facade();
+        facade.editarPerfil(facade.abrirSessao("u3", "p"), "cidade", "Recife");
+        facade.criarUsuario("novo", "n", "Novo");
+        facade.removerUsuario(facade.abrirSessao("u47", "p"));
+        facade.enviarMensagem(facade.abrirSessao("u5", "p"), "c5", "outra");
+        facade.encerrarSistema();
+        Dataset.export(new File(args[0]), Dataset.Format.CSV);
+    }
+
+    /**
+     * Step printing the newest manifest: its generation, then one line per users and
+     * communities segment with the section index, the segment index and the file path.
+     *
+     * @param args No arguments.
+     * @throws Exception If the manifest cannot be read.
+     */
+    static void printManifest(String[] args) throws Exception {
+        SnapshotManifest manifest = SnapshotManifest.read(SnapshotManifest.generations().get(0));
+        System.out.println(manifest.getGeneration());
+        for (int section = 0; section < SECTIONS.length; section++) {
+            SnapshotManifest.Segment[] segments = manifest.getSegments(section);
+            for (int i = 0; i < segments.length; i++) {
+                System.out.println(section + " " + i + " " + SECTIONS[section] + "/" + segments[i].getFileName());
+            }
+        }
+    }
+}
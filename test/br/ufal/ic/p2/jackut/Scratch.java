@@ -0,0 +1,288 @@
+package br.ufal.ic.p2.jackut;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A scratch working directory holding the system files of one test, and the runs of test code
+ * against it in separate JVMs.
+ *
+ * The {@link Repository} is a singleton reading its files from the working directory when it
+ * is created, so a test that restarts the system, or inspects and damages its files between
+ * runs, runs each step in a child JVM started in the scratch directory. A step is a static
+ * method taking the arguments as a {@code String[]}; {@link #main} calls it and exits.
+ */
+final class Scratch {
+
+    /**
+     * Time after which a child JVM is considered stuck and killed.
+     */
+    private static final long TIMEOUT_SECONDS = 120;
+
+    /**
+     * The directory.
+     */
+    private final File directory;
+
+    /**
+     * JVM options of the child JVMs, such as system properties.
+     */
+    private final List<String> options = new ArrayList<>();
+
+    /**
+     * Creates a scratch directory object.
+     *
+     * @param directory The directory, which must exist.
+     */
+    private Scratch(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Creates an empty scratch directory in the temporary directory.
+     *
+     * @return The scratch directory.
+     * @throws IOException If the directory cannot be created.
+     */
+    static Scratch create() throws IOException {
+        return new Scratch(Files.createTempDirectory("jackut-test").toFile());
+    }
+
+    /**
+     * Adds a JVM option, such as {@code -Djackut.inbox.memory=1}, to the following runs.
+     *
+     * @param option The option.
+     * @return This scratch directory.
+     */
+    Scratch option(String option) {
+        options.add(option);
+        return this;
+    }
+
+    /**
+     * Gets a file of the scratch directory.
+     *
+     * @param path The path, relative to the scratch directory.
+     * @return The file.
+     */
+    File file(String path) {
+        return new File(directory, path);
+    }
+
+    /**
+     * Runs a step in a child JVM whose working directory is the scratch directory.
+     *
+     * @param type   The class declaring the step.
+     * @param method The name of the step, a static method taking a {@code String[]}.
+     * @param args   The arguments of the step.
+     * @return What the child wrote to its standard output and error.
+     * @throws IOException If the child JVM cannot be started.
+     * @throws InterruptedException If interrupted while waiting for the child.
+     * @throws AssertionError If the step failed or timed out, with the child's output.
+     */
+    String run(Class<?> type, String method, String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.addAll(options);
+        command.add(Scratch.class.getName());
+        command.add(type.getName());
+        command.add(method);
+        command.addAll(Arrays.asList(args));
+
+        Process process = new ProcessBuilder(command).directory(directory).redirectErrorStream(true).start();
+        process.getOutputStream().close();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Thread reader = new Thread(() -> {
+            try (InputStream in = process.getInputStream()) {
+                in.transferTo(output);
+            } catch (IOException e) {
+                // The child is gone; whatever was read is reported.
+            }
+        });
+        reader.start();
+        boolean exited = process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (!exited) {
+            process.destroyForcibly().waitFor();
+        }
+        reader.join();
+        String text = new String(output.toByteArray(), StandardCharsets.UTF_8);
+        if (!exited) {
+            throw new AssertionError(type.getSimpleName() + "." + method + " timed out:\n" + text);
+        }
+        if (process.exitValue() != 0) {
+            throw new AssertionError(type.getSimpleName() + "." + method + " failed:\n" + text);
+        }
+        return text;
+    }
+
+    /**
+     * Copies the scratch directory, with its options, as the files would be found after a crash.
+     *
+     * @return The copy.
+     * @throws IOException If a file cannot be copied.
+     */
+    Scratch copy() throws IOException {
+        Scratch copy = create();
+        copy.options.addAll(options);
+        Path source = directory.toPath();
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Path target = copy.directory.toPath().resolve(source.relativize(path));
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(target);
+                } else {
+                    Files.copy(path, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Loads the system in a child JVM and exports it with {@link Dataset#export} as CSV.
+     *
+     * @return The content of each table file, by file name, as given by {@link #canonical}.
+     * @throws IOException If the export cannot be read.
+     * @throws InterruptedException If interrupted while waiting for the child.
+     */
+    Map<String, List<String>> export() throws IOException, InterruptedException {
+        File target = Files.createTempDirectory("jackut-export").toFile();
+        try {
+            run(Scratch.class, "exportTo", target.getAbsolutePath());
+            return read(target);
+        } finally {
+            delete(target);
+        }
+    }
+
+    /**
+     * Reads the table files of an exported dataset.
+     *
+     * @param exported The directory of the dataset.
+     * @return The content of each table file, by file name, as given by {@link #canonical}.
+     * @throws IOException If a file cannot be read.
+     */
+    static Map<String, List<String>> read(File exported) throws IOException {
+        Map<String, List<String>> tables = new TreeMap<>();
+        File[] files = exported.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                tables.put(file.getName(), canonical(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)));
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Puts the lines of an exported CSV table in an order that does not depend on the order in
+     * which users and communities were visited: the header stays first, and the rows are sorted
+     * by their first field, keeping the order of the rows of a same user or community. Fields
+     * holding line breaks are not supported.
+     *
+     * @param lines The lines of the table file.
+     * @return The lines, reordered.
+     */
+    static List<String> canonical(List<String> lines) {
+        List<String> rows = new ArrayList<>(lines.subList(Math.min(1, lines.size()), lines.size()));
+        rows.sort(Comparator.comparing(Scratch::firstField));
+        List<String> result = new ArrayList<>(lines.subList(0, Math.min(1, lines.size())));
+        result.addAll(rows);
+        return result;
+    }
+
+    /**
+     * Gets the first field of a CSV line, still quoted if it was.
+     *
+     * @param line The line.
+     * @return The first field.
+     */
+    private static String firstField(String line) {
+        if (line.startsWith("\"")) {
+            int end = 1;
+            while (end < line.length()) {
+                if (line.charAt(end) == '"') {
+                    if (end + 1 < line.length() && line.charAt(end + 1) == '"') {
+                        end += 2;
+                        continue;
+                    }
+                    return line.substring(0, end + 1);
+                }
+                end++;
+            }
+            return line;
+        }
+        int comma = line.indexOf(',');
+        return comma < 0 ? line : line.substring(0, comma);
+    }
+
+    /**
+     * Deletes the scratch directory and everything in it.
+     */
+    void delete() {
+        delete(directory);
+    }
+
+    /**
+     * Deletes a file, or a directory and everything in it.
+     *
+     * @param file The file or directory.
+     */
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Step exporting the system of the working directory as CSV.
+     *
+     * @param args The directory receiving the table files.
+     * @throws IOException If the export cannot be written.
+     */
+    static void exportTo(String[] args) throws IOException {
+        Dataset.export(new File(args[0]), Dataset.Format.CSV);
+    }
+
+    /**
+     * Entry point of the child JVMs: runs a step, then exits, running the shutdown hooks that
+     * flush the journal. A step may halt the JVM itself to simulate a crash.
+     *
+     * @param args The class declaring the step, the name of the step, then its arguments.
+     */
+    public static void main(String[] args) {
+        try {
+            Method step = Class.forName(args[0]).getDeclaredMethod(args[1], String[].class);
+            step.setAccessible(true);
+            step.invoke(null, (Object) Arrays.copyOfRange(args, 2, args.length));
+        } catch (InvocationTargetException e) {
+            e.getCause().printStackTrace();
+            System.exit(1);
+        } catch (ReflectiveOperationException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,336 @@
+package br.ufal.ic.p2.jackut;
+
+import br.ufal.ic.p2.jackut.Exceptions.UserNotFoundException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tests of the session tokens and tables: {@link SessionToken} generation, text form and
+ * parsing, {@link SessionTable} lookups across resizes and removals, and the ways
+ * {@link SessionStore} closes sessions: user deletion, the per-login limit and expiry, and how
+ * often lookups mark its snapshot segments as changed.
+ */
+final class SessionTest {
+
+    /**
+     * Not instantiable.
+     */
+    private SessionTest() {
+    }
+
+    /**
+     * Tokens generated concurrently are all distinct, and their text form is well formed and
+     * parses back to the same token.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testTokensAreUnique() throws Exception {
+        int threads = 4;
+        int perThread = 50_000;
+        Set<SessionToken> tokens = ConcurrentHashMap.newKeySet();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    tokens.add(SessionToken.generate());
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Check.equal(threads * perThread, tokens.size(), "distinct tokens");
+
+        Set<String> texts = new HashSet<>();
+        for (SessionToken token : tokens) {
+            String text = token.toString();
+            Check.isTrue(text.matches("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}"), text);
+            Check.isTrue(SessionToken.isWellFormed(text), text + " is well formed");
+            SessionToken parsed = SessionToken.parse(text);
+            Check.equal(token, parsed, "parsed " + text);
+            Check.equal(token.hashCode(), parsed.hashCode(), "hash of " + text);
+            Check.isTrue(parsed.matches(SessionToken.parseHigh(text), SessionToken.parseLow(text)), text + " bits");
+            texts.add(text);
+        }
+        Check.equal(tokens.size(), texts.size(), "distinct text forms");
+    }
+
+    /**
+     * The lowest and highest tokens keep every digit of their text form.
+     */
+    static void testExtremeTokens() {
+        Check.equal("00000000-0000-0000-0000-000000000000", new SessionToken(0, 0).toString(), "zero token");
+        Check.equal("ffffffff-ffff-ffff-ffff-ffffffffffff", new SessionToken(-1, -1).toString(), "all-ones token");
+        Check.equal("01234567-89ab-cdef-0123-456789abcdef", new SessionToken(0x0123456789abcdefL, 0x0123456789abcdefL).toString(),
+                "digits in order");
+        Check.equal(new SessionToken(-1, -1), SessionToken.parse("ffffffff-ffff-ffff-ffff-ffffffffffff"), "parsed all-ones token");
+    }
+
+    /**
+     * Texts that are not the canonical form of a token are rejected, and looking them up finds
+     * no session without failing.
+     */
+    static void testMalformedTokens() {
+        String valid = SessionToken.generate().toString();
+        String[] malformed = {
+                null,
+                "",
+                "não é um token",
+                valid.substring(1),
+                valid + "0",
+                valid.toUpperCase(),
+                valid.replace("-", ""),
+                valid.replace('-', '_'),
+                valid.substring(0, 8) + valid.substring(9, 10) + "-" + valid.substring(10),
+                "g" + valid.substring(1),
+                "\u0660" + valid.substring(1),
+                "é" + valid.substring(1),
+                " " + valid.substring(1),
+                "{" + valid.substring(1, 35) + "}",
+        };
+        SessionStore store = new SessionStore(0, 0, 10, 4);
+        store.add(new Session(SessionToken.parse(valid), "ana"));
+        for (String text : malformed) {
+            Check.isTrue(!SessionToken.isWellFormed(text), text + " is rejected");
+            Check.equal(null, SessionToken.parse(text), "parsed " + text);
+            Check.equal(null, store.get(text), "session of " + text);
+        }
+        Check.equal("ana", store.get(valid).getLogin(), "session of the valid token");
+    }
+
+    /**
+     * Every session can be looked up while the table grows far past its initial size, after
+     * half of them are removed, and after the table grows again.
+     */
+    static void testLookupAfterResize() {
+        SessionTable table = new SessionTable();
+        List<Session> sessions = new ArrayList<>();
+        for (int i = 0; i < 50_000; i++) {
+            Session session = new Session(SessionToken.generate(), "u" + i);
+            sessions.add(session);
+            table.put(session);
+        }
+        Check.equal(sessions.size(), table.size(), "size after growing");
+        for (Session session : sessions) {
+            Check.isTrue(find(table, session) == session, "session " + session.getLogin() + " after growing");
+        }
+        SessionToken absent = SessionToken.generate();
+        Check.equal(null, table.get(absent.getHigh(), absent.getLow()), "absent token");
+
+        for (int i = 0; i < sessions.size(); i += 2) {
+            Check.isTrue(table.remove(sessions.get(i).getToken()) == sessions.get(i), "removed " + sessions.get(i).getLogin());
+        }
+        Check.equal(null, table.remove(sessions.get(0).getToken()), "removing twice");
+        Check.equal(sessions.size() / 2, table.size(), "size after removing");
+        for (int i = 0; i < sessions.size(); i++) {
+            Session found = find(table, sessions.get(i));
+            Check.isTrue(i % 2 == 0 ? found == null : found == sessions.get(i), "session " + i + " after removing");
+        }
+
+        for (int i = 0; i < sessions.size(); i += 2) {
+            Session session = new Session(SessionToken.generate(), "novo" + i);
+            sessions.set(i, session);
+            table.put(session);
+        }
+        Check.equal(sessions.size(), table.size(), "size after growing again");
+        for (Session session : sessions) {
+            Check.isTrue(find(table, session) == session, "session " + session.getLogin() + " after growing again");
+        }
+        List<Session> collected = new ArrayList<>();
+        Check.equal(-1L, table.collect(0, 0, Integer.MAX_VALUE, collected), "end of the walk");
+        Check.equal(new HashSet<>(sessions), new HashSet<>(collected), "sessions walked");
+
+        Session replacement = new Session(sessions.get(1).getToken(), "outro");
+        table.put(replacement);
+        Check.equal(sessions.size(), table.size(), "size after replacing");
+        Check.isTrue(find(table, replacement) == replacement, "replaced session");
+    }
+
+    /**
+     * Closing the sessions of a login, as deleting its user does, leaves the other logins' sessions.
+     */
+    static void testRemoveLogin() {
+        SessionStore store = new SessionStore(0, 0, 10, 4);
+        List<Session> ana = open(store, "ana", 3);
+        List<Session> bia = open(store, "bia", 2);
+        store.removeLogin("ana");
+        store.removeLogin("ninguem");
+        for (Session session : ana) {
+            Check.equal(null, store.get(session.getId()), "closed session of ana");
+        }
+        for (Session session : bia) {
+            Check.isTrue(store.get(session.getId()) == session, "open session of bia");
+        }
+        Check.equal(2, store.size(), "sessions left");
+    }
+
+    /**
+     * A login keeps at most the configured number of sessions; the oldest are closed first.
+     */
+    static void testOldestSessionsEvicted() {
+        SessionStore store = new SessionStore(0, 0, 3, 4);
+        List<Session> ana = open(store, "ana", 5);
+        for (int i = 0; i < ana.size(); i++) {
+            Session found = store.get(ana.get(i).getId());
+            Check.isTrue(i < 2 ? found == null : found == ana.get(i), "session " + i + " of ana");
+        }
+        Check.equal(3, store.size(), "sessions left");
+    }
+
+    /**
+     * A session older than the absolute timeout, or unused for longer than the idle timeout, is
+     * closed when looked up and is not written to snapshots.
+     */
+    static void testExpiredSessions() {
+        long now = System.currentTimeMillis();
+        SessionStore store = new SessionStore(60_000, 3_600_000, 10, 4);
+        Session live = new Session(SessionToken.generate(), "ana");
+        Session old = new Session(SessionToken.generate(), "ana", now - 7_200_000);
+        Session idle = new Session(SessionToken.generate(), "bia", now - 120_000);
+        store.add(live);
+        store.add(old);
+        store.add(idle);
+        Check.equal(List.of(live), new ArrayList<>(store.liveSessions()), "live sessions");
+        Check.equal(null, store.get(old.getId()), "session past the absolute timeout");
+        Check.equal(null, store.get(idle.getId()), "idle session");
+        Check.isTrue(store.get(live.getId()) == live, "live session");
+        Check.equal(1, store.size(), "sessions left");
+    }
+
+    /**
+     * Looking a session up only marks its snapshot segment as changed once its last use time
+     * moves by the granularity: a minute, or half the idle timeout if shorter.
+     */
+    static void testLookupsMarkSegmentsOnce() {
+        long now = System.currentTimeMillis();
+        SessionStore store = new SessionStore(3_600_000, 0, 10, 4);
+        Session fresh = new Session(SessionToken.generate(), "ana");
+        Session used = new Session(SessionToken.generate(), "bia", now - 120_000);
+        store.add(fresh);
+        store.add(used);
+        store.takeChangedSegments();
+        for (int i = 0; i < 100; i++) {
+            Check.isTrue(store.get(fresh.getId()) == fresh, "session of ana");
+        }
+        Check.equal(List.of(), changed(store), "segments changed by recent lookups");
+        Check.isTrue(store.get(used.getId()) == used, "session of bia");
+        Check.equal(List.of(store.segmentOf("bia")), changed(store), "segments changed by a late lookup");
+        Check.isTrue(used.getLastAccess() >= now, "last use of bia");
+        store.get(used.getId());
+        Check.equal(List.of(), changed(store), "segments changed by a second lookup");
+
+        SessionStore shortIdle = new SessionStore(1_000, 0, 10, 4);
+        Session recent = new Session(SessionToken.generate(), "ana", now - 600);
+        shortIdle.add(recent);
+        shortIdle.takeChangedSegments();
+        Check.isTrue(shortIdle.get(recent.getId()) == recent, "session with a short idle timeout");
+        Check.equal(List.of(shortIdle.segmentOf("ana")), changed(shortIdle), "segments changed with a short idle timeout");
+    }
+
+    /**
+     * Deleting a user closes all of its sessions, which stay closed after a restart and once a
+     * new user takes the same login.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testUserDeletionClosesSessions() throws Exception {
+        Scratch scratch = Scratch.create();
+        try {
+            String sessions = scratch.run(SessionTest.class, "deleteWithSessions").trim();
+            String[] ids = sessions.substring(sessions.lastIndexOf('\n') + 1).split(" ");
+            Check.equal(List.of("UserNotFoundException", "UserNotFoundException", "ana"),
+                    List.of(scratch.run(SessionTest.class, "useSessions", ids).trim().split("\n")), "sessions after a restart");
+        } finally {
+            scratch.delete();
+        }
+    }
+
+    /**
+     * Step creating a user with two sessions, deleting it through one of them, creating a new
+     * user with the same login and a session, and printing the three session ids.
+     *
+     * @param args No arguments.
+     * @throws Exception If an operation fails.
+     */
+    static void deleteWithSessions(String[] args) throws Exception {
+        Facade facade = new Facade();
+        facade.zerarSistema();
+        facade.criarUsuario("ana", "p", "Ana");
+        String first = facade.abrirSessao("ana", "p");
+        String second = facade.abrirSessao("ana", "p");
+        facade.removerUsuario(first);
+        Check.fails(UserNotFoundException.class, () -> facade.editarPerfil(second, "cidade", "Recife"));
+        facade.criarUsuario("ana", "q", "Outra Ana");
+        String third = facade.abrirSessao("ana", "q");
+        System.out.println(first + " " + second + " " + third);
+    }
+
+    /**
+     * Step editing a profile through each session id given, printing the login of the user
+     * changed or the exception thrown.
+     *
+     * @param args The session ids.
+     */
+    static void useSessions(String[] args) {
+        Facade facade = new Facade();
+        for (String id : args) {
+            try {
+                facade.editarPerfil(id, "cidade", "Recife");
+                System.out.println(Repository.getInstance().getUserBySessionId(id).getLogin());
+            } catch (Exception e) {
+                System.out.println(e.getClass().getSimpleName());
+            }
+        }
+    }
+
+    /**
+     * Looks a session up by its token.
+     *
+     * @param table   The table.
+     * @param session A session whose token is looked up.
+     * @return The session found, or null.
+     */
+    private static Session find(SessionTable table, Session session) {
+        return table.get(session.getToken().getHigh(), session.getToken().getLow());
+    }
+
+    /**
+     * Lists the snapshot segments of a store that changed, and marks them unchanged.
+     *
+     * @param store The store.
+     * @return The indexes of the changed segments.
+     */
+    private static List<Integer> changed(SessionStore store) {
+        List<Integer> segments = new ArrayList<>();
+        boolean[] changed = store.takeChangedSegments();
+        for (int i = 0; i < changed.length; i++) {
+            if (changed[i]) {
+                segments.add(i);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Opens sessions for a login.
+     *
+     * @param store The store.
+     * @param login The login.
+     * @param count The number of sessions.
+     * @return The sessions, oldest first.
+     */
+    private static List<Session> open(SessionStore store, String login, int count) {
+        List<Session> sessions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Session session = new Session(SessionToken.generate(), login);
+            store.add(session);
+            sessions.add(session);
+        }
+        return sessions;
+    }
+}
@@ -0,0 +1,207 @@
+package br.ufal.ic.p2.jackut;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests of the recovery from a damaged snapshot: when the manifest or a segment of the newest
+ * generation is corrupted or truncated, loading rejects that generation, falls back to the
+ * previous one and replays the journal archived under it ({@code jackut_journal.<gen>.log})
+ * and then the current journal, reaching the state the newest generation held.
+ */
+final class SnapshotRecoveryTest {
+
+    /**
+     * Not instantiable.
+     */
+    private SnapshotRecoveryTest() {
+    }
+
+    /**
+     * A way of damaging the newest generation.
+     */
+    @FunctionalInterface
+    private interface Damage {
+        /**
+         * Damages the files of a scratch directory.
+         *
+         * @param scratch    The scratch directory.
+         * @param generation The newest generation.
+         * @throws IOException If a file cannot be changed.
+         */
+        void apply(Scratch scratch, long generation) throws IOException;
+    }
+
+    /**
+     * A manifest with a flipped byte is rejected.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testCorruptedManifest() throws Exception {
+        recover((scratch, generation) -> flipByte(scratch.file("jackut_manifest." + generation)));
+    }
+
+    /**
+     * A truncated manifest is rejected.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testTruncatedManifest() throws Exception {
+        recover((scratch, generation) -> truncate(scratch.file("jackut_manifest." + generation)));
+    }
+
+    /**
+     * A segment written by the newest generation with a flipped byte is rejected.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testCorruptedSegment() throws Exception {
+        recover((scratch, generation) -> flipByte(newestSegment(scratch, generation)));
+    }
+
+    /**
+     * A truncated segment written by the newest generation is rejected.
+     *
+     * @throws Exception If the test fails.
+     */
+    static void testTruncatedSegment() throws Exception {
+        recover((scratch, generation) -> truncate(newestSegment(scratch, generation)));
+    }
+
+    /**
+     * Populates a system over three generations and a journal, damages a copy of its files, and
+     * checks that the copy loads the previous generation and replays the journals into the same state.
+     *
+     * @param damage The damage done to the copy.
+     * @throws Exception If the test fails.
+     */
+    private static void recover(Damage damage) throws Exception {
+        Scratch intact = Scratch.create();
+        Scratch damaged = null;
+        try {
+            intact.run(SnapshotRecoveryTest.class, "populate");
+            long generation = newestGeneration(intact);
+            Check.isTrue(intact.file("jackut_manifest." + (generation - 1)).isFile(), "previous generation is kept");
+            Check.isTrue(intact.file("jackut_journal." + (generation - 1) + ".log").length() > 0,
+                    "journal of the previous generation is archived");
+            Check.isTrue(intact.file("jackut_journal.log").length() > 0, "operations after the newest generation are journaled");
+
+            damaged = intact.copy();
+            damage.apply(damaged, generation);
+            Map<String, List<String>> expected = intact.export();
+            Check.isTrue(expected.get("messages.csv").contains("ana,bia,depois do snapshot"), "journaled message is in the state");
+            String output = damaged.run(Scratch.class, "exportTo", "recovered");
+            Check.isTrue(output.contains("Rejecting snapshot generation " + generation), "newest generation is rejected:\n" + output);
+            Check.isTrue(output.contains("Loaded snapshot generation " + (generation - 1)), "previous generation is loaded:\n" + output);
+            Check.equal(expected, Scratch.read(damaged.file("recovered")), "recovered state");
+        } finally {
+            intact.delete();
+            if (damaged != null) {
+                damaged.delete();
+            }
+        }
+    }
+
+    /**
+     * Step populating the system: operations saved by a snapshot, more operations saved by a
+     * second snapshot, which archives the journal of the first, then operations only journaled.
+     *
+     * @param args No arguments.
+     * @throws Exception If an operation fails.
+     */
+    static void populate(String[] args) throws Exception {
+        Facade facade = new Facade();
+        facade.zerarSistema();
+        facade.criarUsuario("ana", "a", "Ana");
+        facade.criarUsuario("bia", "b", "Bia");
+        facade.criarUsuario("caio", "c", "Caio");
+        String ana = facade.abrirSessao("ana", "a");
+        String bia = facade.abrirSessao("bia", "b");
+        String caio = facade.abrirSessao("caio", "c");
+        facade.adicionarAmigo(ana, "caio");
+        facade.adicionarAmigo(caio, "ana");
+        facade.criarComunidade(ana, "java", "Programadores");
+        facade.adicionarComunidade(bia, "java");
+        facade.encerrarSistema();
+
+        facade.editarPerfil(bia, "cidade", "Maceió");
+        facade.enviarRecado(bia, "ana", "antes do snapshot");
+        facade.enviarMensagem(ana, "java", "primeira");
+        facade.adicionarIdolo(caio, "bia");
+        facade.adicionarPaquera(bia, "caio");
+        facade.criarUsuario("davi", "d", "Davi");
+        String davi = facade.abrirSessao("davi", "d");
+        facade.adicionarComunidade(davi, "java");
+        facade.adicionarIdolo(davi, "ana");
+        facade.encerrarSistema();
+
+        facade.enviarRecado(bia, "ana", "depois do snapshot");
+        facade.enviarMensagem(bia, "java", "segunda");
+        facade.lerMensagem(davi);
+        facade.adicionarInimigo(davi, "caio");
+        facade.removerUsuario(caio);
+        facade.criarUsuario("eva", "e", "Eva");
+    }
+
+    /**
+     * Gets the newest generation of a scratch directory.
+     *
+     * @param scratch The scratch directory.
+     * @return The generation.
+     */
+    private static long newestGeneration(Scratch scratch) {
+        long newest = -1;
+        String[] names = scratch.file(".").list();
+        for (String name : names == null ? new String[0] : names) {
+            if (name.matches("jackut_manifest\\.[0-9]+")) {
+                newest = Math.max(newest, Long.parseLong(name.substring("jackut_manifest.".length())));
+            }
+        }
+        Check.isTrue(newest >= 2, "at least two generations were written");
+        return newest;
+    }
+
+    /**
+     * Gets a users segment written by a generation, and not shared with the previous one.
+     *
+     * @param scratch    The scratch directory.
+     * @param generation The generation.
+     * @return The segment file.
+     */
+    private static File newestSegment(Scratch scratch, long generation) {
+        File[] files = scratch.file("jackut_users").listFiles((dir, name) -> name.endsWith("." + generation + ".dat"));
+        Check.isTrue(files != null && files.length > 0, "generation " + generation + " wrote a users segment");
+        return files[0];
+    }
+
+    /**
+     * Inverts the bits of the byte in the middle of a file.
+     *
+     * @param file The file.
+     * @throws IOException If the file cannot be changed.
+     */
+    private static void flipByte(File file) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            long position = out.length() / 2;
+            out.seek(position);
+            int value = out.read();
+            out.seek(position);
+            out.write(~value);
+        }
+    }
+
+    /**
+     * Cuts a file to half its length.
+     *
+     * @param file The file.
+     * @throws IOException If the file cannot be changed.
+     */
+    private static void truncate(File file) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(out.length() / 2);
+        }
+    }
+}
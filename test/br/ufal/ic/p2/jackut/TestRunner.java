@@ -0,0 +1,84 @@
+package br.ufal.ic.p2.jackut;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs the unit tests: every static method without parameters whose name starts with
+ * {@code test}, in the test classes given as arguments or else in {@link #TESTS}. Each test is
+ * reported on its own line, and the exit status is 1 if any failed.
+ *
+ * Usage: {@code java br.ufal.ic.p2.jackut.TestRunner [test class...]}
+ */
+public class TestRunner {
+
+    /**
+     * The test classes run by default.
+     */
+    private static final Class<?>[] TESTS = {
+            SnapshotRecoveryTest.class,
+            PartitionedSnapshotTest.class,
+            DatasetTest.class,
+            BulkLoadTest.class,
+            SessionTest.class,
+            InboxTest.class,
+            JournalTest.class,
+    };
+
+    /**
+     * Not instantiable.
+     */
+    private TestRunner() {
+    }
+
+    /**
+     * Runs the tests.
+     *
+     * @param args Names of the test classes to run, or none to run them all.
+     * @throws ClassNotFoundException If a test class does not exist.
+     */
+    public static void main(String[] args) throws ClassNotFoundException {
+        List<Class<?>> classes = new ArrayList<>();
+        if (args.length == 0) {
+            classes.addAll(Arrays.asList(TESTS));
+        }
+        for (String name : args) {
+            classes.add(Class.forName(name.contains(".") ? name : TestRunner.class.getPackage().getName() + "." + name));
+        }
+
+        int run = 0;
+        int failed = 0;
+        for (Class<?> type : classes) {
+            Method[] methods = type.getDeclaredMethods();
+            Arrays.sort(methods, Comparator.comparing(Method::getName));
+            for (Method method : methods) {
+                if (!method.getName().startsWith("test") || !Modifier.isStatic(method.getModifiers())
+                        || method.getParameterCount() != 0) {
+                    continue;
+                }
+                String name = type.getSimpleName() + "." + method.getName();
+                run++;
+                long start = System.nanoTime();
+                try {
+                    method.setAccessible(true);
+                    method.invoke(null);
+                    System.out.printf("ok   %s (%d ms)%n", name, (System.nanoTime() - start) / 1_000_000);
+                } catch (InvocationTargetException e) {
+                    failed++;
+                    System.out.println("FAIL " + name + ": " + e.getCause());
+                    e.getCause().printStackTrace(System.out);
+                } catch (IllegalAccessException e) {
+                    failed++;
+                    System.out.println("FAIL " + name + ": " + e);
+                }
+            }
+        }
+        System.out.println(run + " tests, " + failed + " failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}